@@ -0,0 +1,113 @@
+package org.futo.inputmethod.latin.benchmark;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.text.InputType;
+import android.view.inputmethod.EditorInfo;
+import android.view.inputmethod.InputMethodSubtype;
+
+import org.futo.inputmethod.keyboard.Key;
+import org.futo.inputmethod.keyboard.KeyDetector;
+import org.futo.inputmethod.keyboard.Keyboard;
+import org.futo.inputmethod.keyboard.KeyboardId;
+import org.futo.inputmethod.keyboard.KeyboardLayoutSet;
+import org.futo.inputmethod.latin.RichInputMethodSubtype;
+import org.futo.inputmethod.latin.common.InputPointers;
+import org.futo.inputmethod.latin.common.StringUtils;
+import org.futo.inputmethod.latin.utils.AdditionalSubtypeUtils;
+import org.futo.inputmethod.latin.utils.ResourceUtils;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * An alphabet keyboard with the geometry the app uses by default, and helpers to turn text into
+ * the touch points that typing or swiping it would produce on that keyboard.
+ */
+public final class BenchmarkKeyboard {
+    // Arbitrarily 0.1s between gesture events and 5 events between letters, like InputTestsBase.
+    private static final int GESTURE_STEPS_PER_LETTER = 5;
+    private static final int GESTURE_EVENT_INTERVAL_MILLIS = 100;
+    // Taps land this fraction of the key size away from the center at most.
+    private static final float TAP_SPREAD = 0.3f;
+
+    public final Keyboard mKeyboard;
+    public final KeyDetector mKeyDetector;
+
+    private BenchmarkKeyboard(final Keyboard keyboard) {
+        mKeyboard = keyboard;
+        mKeyDetector = new KeyDetector();
+        mKeyDetector.setKeyboard(keyboard, 0 /* correctionX */, 0 /* correctionY */);
+    }
+
+    public static BenchmarkKeyboard create(final Context context, final Locale locale,
+            final String keyboardLayoutName) {
+        final Resources res = context.getResources();
+        final InputMethodSubtype subtype = AdditionalSubtypeUtils.createDummyAdditionalSubtype(
+                locale.toString(), keyboardLayoutName);
+        final EditorInfo editorInfo = new EditorInfo();
+        editorInfo.inputType = InputType.TYPE_CLASS_TEXT;
+        final KeyboardLayoutSet.Builder builder =
+                new KeyboardLayoutSet.Builder(context, editorInfo);
+        builder.setKeyboardGeometry(ResourceUtils.getDefaultKeyboardWidth(res),
+                ResourceUtils.getDefaultKeyboardHeight(res));
+        builder.setSubtype(RichInputMethodSubtype.getRichInputMethodSubtype(subtype));
+        builder.disableTouchPositionCorrectionData();
+        return new BenchmarkKeyboard(builder.build().getKeyboard(KeyboardId.ELEMENT_ALPHABET));
+    }
+
+    private Key getKey(final int codePoint) {
+        final Key key = mKeyboard.getKey(codePoint);
+        if (null == key) {
+            throw new RuntimeException("Code point not on the keyboard: " + codePoint);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the points where each code point of the text is tapped, as x and y coordinates
+     * one after the other. Taps are spread around the center of the keys in a way that only
+     * depends on the seed of the random generator.
+     */
+    public int[] getTapCoordinates(final String text, final Random random) {
+        final int[] codePoints = StringUtils.toCodePointArray(text);
+        final int[] coordinates = new int[codePoints.length * 2];
+        for (int i = 0; i < codePoints.length; ++i) {
+            final Key key = getKey(codePoints[i]);
+            coordinates[i * 2] = key.getX() + key.getWidth() / 2
+                    + (int) ((random.nextFloat() - 0.5f) * TAP_SPREAD * key.getWidth());
+            coordinates[i * 2 + 1] = key.getY() + key.getHeight() / 2
+                    + (int) ((random.nextFloat() - 0.5f) * TAP_SPREAD * key.getHeight());
+        }
+        return coordinates;
+    }
+
+    /**
+     * Returns the points of a gesture that goes in straight lines through the centers of the
+     * keys of the word.
+     */
+    public InputPointers getGesturePointers(final String word) {
+        final int[] codePoints = StringUtils.toCodePointArray(word);
+        final InputPointers pointers = new InputPointers(
+                codePoints.length * GESTURE_STEPS_PER_LETTER + 1);
+        Key oldKey = getKey(codePoints[0]);
+        int oldX = oldKey.getX() + oldKey.getWidth() / 2;
+        int oldY = oldKey.getY() + oldKey.getHeight() / 2;
+        int timestamp = 0;
+        pointers.addPointer(oldX, oldY, 0 /* pointerId */, timestamp);
+        for (int i = 1; i < codePoints.length; ++i) {
+            final Key newKey = getKey(codePoints[i]);
+            final int newX = newKey.getX() + newKey.getWidth() / 2;
+            final int newY = newKey.getY() + newKey.getHeight() / 2;
+            for (int j = 1; j <= GESTURE_STEPS_PER_LETTER; ++j) {
+                timestamp += GESTURE_EVENT_INTERVAL_MILLIS;
+                pointers.addPointer(oldX + ((newX - oldX) * j) / GESTURE_STEPS_PER_LETTER,
+                        oldY + ((newY - oldY) * j) / GESTURE_STEPS_PER_LETTER,
+                        0 /* pointerId */, timestamp);
+            }
+            oldX = newX;
+            oldY = newY;
+        }
+        return pointers;
+    }
+}
@@ -0,0 +1,150 @@
+package org.futo.inputmethod.latin.benchmark;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.futo.inputmethod.event.Event;
+import org.futo.inputmethod.latin.Dictionary;
+import org.futo.inputmethod.latin.DictionaryFactory;
+import org.futo.inputmethod.latin.NgramContext;
+import org.futo.inputmethod.latin.WordComposer;
+import org.futo.inputmethod.latin.common.ComposedData;
+import org.futo.inputmethod.latin.settings.SettingsValuesForSuggestion;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures how long the built-in main dictionary takes to return suggestions, for each
+ * keystroke of the typing trace and for each word of the gesture trace.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class DictionaryBenchmark {
+    private static final long SEED = 1;
+    private static final int SESSION_ID = 0;
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final SettingsValuesForSuggestion mSettingsValuesForSuggestion =
+            new SettingsValuesForSuggestion(true /* blockPotentiallyOffensive */,
+                    false /* useTransformerLM */);
+    private BenchmarkKeyboard mKeyboard;
+    private Dictionary mDictionary;
+    private Context mTestContext;
+
+    @Before
+    public void setUp() {
+        final Context targetContext =
+                InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mTestContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mKeyboard = BenchmarkKeyboard.create(targetContext, Locale.US, "qwerty");
+        mDictionary = DictionaryFactory.createMainDictionaryFromManager(targetContext, Locale.US);
+    }
+
+    @After
+    public void tearDown() {
+        mDictionary.close();
+    }
+
+    // What the dictionary is asked for each keystroke: the word typed so far and the word
+    // before it.
+    private static final class Query {
+        public final ComposedData mComposedData;
+        public final NgramContext mNgramContext;
+
+        public Query(final ComposedData composedData, final NgramContext ngramContext) {
+            mComposedData = composedData;
+            mNgramContext = ngramContext;
+        }
+    }
+
+    private List<Query> getTypingQueries() {
+        final Random random = new Random(SEED);
+        final ArrayList<Query> queries = new ArrayList<>();
+        final WordComposer composer = new WordComposer();
+        for (final String sentence : Traces.load(mTestContext, Traces.TYPING_EN_US)) {
+            NgramContext ngramContext = NgramContext.BEGINNING_OF_SENTENCE;
+            for (final String word : sentence.split(" ")) {
+                final int[] coordinates = mKeyboard.getTapCoordinates(word, random);
+                composer.reset();
+                for (int i = 0; i < word.length(); i = word.offsetByCodePoints(i, 1)) {
+                    final int index = word.codePointCount(0, i);
+                    final Event event = Event.createSoftwareKeypressEvent(word.codePointAt(i),
+                            Event.NOT_A_KEY_CODE, coordinates[index * 2],
+                            coordinates[index * 2 + 1], false /* isKeyRepeat */);
+                    composer.applyProcessedEvent(composer.processEvent(event));
+                    queries.add(new Query(composer.getComposedDataSnapshot(), ngramContext));
+                }
+                ngramContext = new NgramContext(new NgramContext.WordInfo(word));
+            }
+        }
+        return queries;
+    }
+
+    private List<Query> getGestureQueries() {
+        final ArrayList<Query> queries = new ArrayList<>();
+        final WordComposer composer = new WordComposer();
+        for (final String word : Traces.load(mTestContext, Traces.GESTURE_EN_US)) {
+            composer.reset();
+            composer.setBatchInputPointers(mKeyboard.getGesturePointers(word));
+            queries.add(new Query(composer.getComposedDataSnapshot(),
+                    NgramContext.BEGINNING_OF_SENTENCE));
+        }
+        return queries;
+    }
+
+    private void runQueries(final List<Query> queries, final LatencyRecorder recorder) {
+        final long proximityInfoHandle =
+                mKeyboard.mKeyboard.getProximityInfo().getNativeProximityInfo();
+        for (final Query query : queries) {
+            final long startTime = System.nanoTime();
+            mDictionary.getSuggestions(query.mComposedData, query.mNgramContext,
+                    proximityInfoHandle, mSettingsValuesForSuggestion, SESSION_ID,
+                    1.0f /* weightForLocale */,
+                    new float[] { Dictionary.NOT_A_WEIGHT_OF_LANG_MODEL_VS_SPATIAL_MODEL });
+            if (null != recorder) {
+                recorder.addSample(System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    private void measure(final String name, final List<Query> queries) {
+        final LatencyRecorder recorder = new LatencyRecorder(name);
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            runQueries(queries, recorder);
+        }
+        recorder.countAllocations(queries.size(), new Runnable() {
+            @Override
+            public void run() {
+                runQueries(queries, null);
+            }
+        });
+        recorder.report();
+    }
+
+    @Test
+    public void getSuggestionsWhileTyping() {
+        measure("BinaryDictionary.getSuggestions.typing", getTypingQueries());
+    }
+
+    @Test
+    public void getSuggestionsForGesture() {
+        measure("BinaryDictionary.getSuggestions.gesture", getGestureQueries());
+    }
+}
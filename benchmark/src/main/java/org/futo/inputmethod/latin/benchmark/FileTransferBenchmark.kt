@@ -0,0 +1,97 @@
+package org.futo.inputmethod.latin.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry
+import org.futo.inputmethod.latin.utils.FileTransfer
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+import java.io.FileOutputStream
+import java.util.Random
+
+/**
+ * Measures how long copying a model sized file takes with FileTransfer, against the 1KB buffer
+ * loop that model import, export and extraction used before.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4::class)
+class FileTransferBenchmark {
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val targetContext = InstrumentationRegistry.getInstrumentation().targetContext
+
+    private lateinit var source: File
+    private lateinit var target: File
+
+    @Before
+    fun setUp() {
+        source = File(targetContext.cacheDir, "FileTransferBenchmark.source")
+        target = File(targetContext.cacheDir, "FileTransferBenchmark.target")
+
+        val random = Random(SEED)
+        val bytes = ByteArray(1024 * 1024)
+        FileOutputStream(source).use { outputStream ->
+            repeat((FILE_SIZE / bytes.size).toInt()) {
+                random.nextBytes(bytes)
+                outputStream.write(bytes)
+            }
+        }
+    }
+
+    @After
+    fun tearDown() {
+        source.delete()
+        target.delete()
+    }
+
+    private fun copyWithLoop() {
+        source.inputStream().use { inputStream ->
+            FileOutputStream(target).use { outputStream ->
+                var read: Int
+                val bytes = ByteArray(1024)
+                while (inputStream.read(bytes).also { read = it } != -1) {
+                    outputStream.write(bytes, 0, read)
+                }
+            }
+        }
+    }
+
+    private fun measure(name: String, copy: () -> Unit) {
+        val recorder = LatencyRecorder(name)
+        val state = benchmarkRule.getState()
+        while (state.keepRunning()) {
+            val startTime = System.nanoTime()
+            copy()
+            recorder.addSample(System.nanoTime() - startTime)
+
+            state.pauseTiming()
+            assertEquals(FILE_SIZE, target.length())
+            target.delete()
+            state.resumeTiming()
+        }
+        recorder.report()
+    }
+
+    @Test
+    fun copyWithByteArrayLoop() {
+        measure("FileTransfer.copy.loop_1k") { copyWithLoop() }
+    }
+
+    // Also syncs the file before renaming it into place, which the loop never did
+    @Test
+    fun copyWithFileTransfer() {
+        measure("FileTransfer.copy") { FileTransfer.copy(source, target) }
+    }
+
+    companion object {
+        private const val SEED = 1L
+        private const val FILE_SIZE = 64L * 1024L * 1024L
+    }
+}
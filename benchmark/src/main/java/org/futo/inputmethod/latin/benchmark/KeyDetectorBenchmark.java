@@ -0,0 +1,78 @@
+package org.futo.inputmethod.latin.benchmark;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.futo.inputmethod.keyboard.KeyDetector;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures how long finding the key under a touch point takes, for the taps of the typing trace.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class KeyDetectorBenchmark {
+    private static final long SEED = 1;
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private KeyDetector mKeyDetector;
+    private int[] mCoordinates;
+
+    @Before
+    public void setUp() {
+        final Context targetContext =
+                InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final BenchmarkKeyboard keyboard =
+                BenchmarkKeyboard.create(targetContext, Locale.US, "qwerty");
+        mKeyDetector = keyboard.mKeyDetector;
+        final List<String> trace = Traces.load(
+                InstrumentationRegistry.getInstrumentation().getContext(), Traces.TYPING_EN_US);
+        final Random random = new Random(SEED);
+        final StringBuilder text = new StringBuilder();
+        for (final String sentence : trace) {
+            text.append(sentence).append(' ');
+        }
+        mCoordinates = keyboard.getTapCoordinates(text.toString(), random);
+    }
+
+    private void detectAllKeys(final LatencyRecorder recorder) {
+        for (int i = 0; i < mCoordinates.length; i += 2) {
+            final long startTime = System.nanoTime();
+            mKeyDetector.detectHitKey(mCoordinates[i], mCoordinates[i + 1]);
+            if (null != recorder) {
+                recorder.addSample(System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    @Test
+    public void detectHitKey() {
+        final LatencyRecorder recorder = new LatencyRecorder("KeyDetector.detectHitKey");
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            detectAllKeys(recorder);
+        }
+        recorder.countAllocations(mCoordinates.length / 2, new Runnable() {
+            @Override
+            public void run() {
+                detectAllKeys(null);
+            }
+        });
+        recorder.report();
+    }
+}
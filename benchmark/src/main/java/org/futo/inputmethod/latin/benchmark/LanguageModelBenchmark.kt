@@ -0,0 +1,181 @@
+package org.futo.inputmethod.latin.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.lifecycle.Lifecycle
+import androidx.lifecycle.LifecycleOwner
+import androidx.lifecycle.LifecycleRegistry
+import androidx.lifecycle.lifecycleScope
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry
+import kotlinx.coroutines.runBlocking
+import org.futo.inputmethod.event.Event
+import org.futo.inputmethod.latin.Dictionary
+import org.futo.inputmethod.latin.NgramContext
+import org.futo.inputmethod.latin.WordComposer
+import org.futo.inputmethod.latin.settings.SettingsValuesForSuggestion
+import org.futo.inputmethod.latin.utils.JniUtils
+import org.futo.inputmethod.latin.xlm.LanguageModel
+import org.futo.inputmethod.latin.xlm.ModelPaths
+import org.junit.After
+import org.junit.Assume.assumeNotNull
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Locale
+import java.util.Random
+
+/**
+ * Measures how long the transformer language model takes to return suggestions for each
+ * keystroke of the typing trace, using the model the app has set for English.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4::class)
+class LanguageModelBenchmark {
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val targetContext = InstrumentationRegistry.getInstrumentation().targetContext
+    private val testContext = InstrumentationRegistry.getInstrumentation().context
+    private val settingsValuesForSuggestion = SettingsValuesForSuggestion(
+        true /* blockPotentiallyOffensive */,
+        true /* useTransformerLM */
+    )
+
+    // The model only uses its lifecycle scope for work it launches on its own, which the
+    // benchmark never triggers, so it never has to move past INITIALIZED.
+    private val lifecycleOwner = object : LifecycleOwner {
+        override val lifecycle: Lifecycle = LifecycleRegistry.createUnsafe(this)
+    }
+
+    private lateinit var keyboard: BenchmarkKeyboard
+    private var languageModel: LanguageModel? = null
+
+    @Before
+    fun setUp() {
+        JniUtils.loadNativeLibrary()
+        keyboard = BenchmarkKeyboard.create(targetContext, Locale.US, "qwerty")
+        val model = runBlocking { ModelPaths.getModelOptions(targetContext)["en"] }
+        assumeNotNull(model)
+        languageModel = LanguageModel(targetContext, lifecycleOwner.lifecycleScope, model!!,
+            Locale.US)
+    }
+
+    @After
+    fun tearDown() {
+        runBlocking { languageModel?.closeInternalLocked() }
+    }
+
+    private fun type(
+        words: List<Pair<String, IntArray>>,
+        recorder: LatencyRecorder?,
+        suggest: (WordComposer, NgramContext, Int) -> Unit
+    ) {
+        val composer = WordComposer()
+        var ngramContext = NgramContext.BEGINNING_OF_SENTENCE
+        for ((wordIndex, entry) in words.withIndex()) {
+            val (word, coordinates) = entry
+            composer.reset()
+            var index = 0
+            var i = 0
+            while (i < word.length) {
+                val startTime = System.nanoTime()
+                val event = Event.createSoftwareKeypressEvent(word.codePointAt(i),
+                    Event.NOT_A_KEY_CODE, coordinates[index * 2], coordinates[index * 2 + 1],
+                    false /* isKeyRepeat */)
+                composer.applyProcessedEvent(composer.processEvent(event))
+                suggest(composer, ngramContext, wordIndex)
+                recorder?.addSample(System.nanoTime() - startTime)
+                i = word.offsetByCodePoints(i, 1)
+                index++
+            }
+            ngramContext = NgramContext(NgramContext.WordInfo(word))
+        }
+    }
+
+    private fun getSuggestions(composer: WordComposer, ngramContext: NgramContext) {
+        runBlocking {
+            languageModel!!.getSuggestions(
+                composer.composedDataSnapshot,
+                ngramContext,
+                keyboard.mKeyDetector,
+                settingsValuesForSuggestion,
+                keyboard.mKeyboard.proximityInfo.nativeProximityInfo,
+                0 /* sessionId */,
+                AUTOCORRECT_THRESHOLD,
+                floatArrayOf(Dictionary.NOT_A_WEIGHT_OF_LANG_MODEL_VS_SPATIAL_MODEL),
+                emptyList(),
+                arrayOf()
+            )
+        }
+    }
+
+    private fun loadWords(): List<Pair<String, IntArray>> {
+        val random = Random(SEED)
+        return Traces.load(testContext, Traces.TYPING_EN_US).flatMap { sentence ->
+            sentence.split(" ").map { word -> word to keyboard.getTapCoordinates(word, random) }
+        }
+    }
+
+    @Test
+    fun getSuggestionsWhileTyping() {
+        val words = loadWords()
+        val suggest = { composer: WordComposer, ngramContext: NgramContext, _: Int ->
+            getSuggestions(composer, ngramContext)
+        }
+        // The first call loads the model and returns nothing.
+        type(words.take(1), null, suggest)
+
+        val recorder = LatencyRecorder("LanguageModel.getSuggestions.typing")
+        val state = benchmarkRule.getState()
+        while (state.keepRunning()) {
+            type(words, recorder, suggest)
+        }
+        recorder.countAllocations(words.sumOf { it.first.codePointCount(0, it.first.length) }) {
+            type(words, null, suggest)
+        }
+        recorder.report()
+    }
+
+    // Compare with getSuggestionsWhileTyping. There is no dictionary here, so the candidates are
+    // the typed word, the intended word and the words that follow it in the trace, which costs
+    // the same as scoring as many dictionary suggestions.
+    @Test
+    fun scoreCandidatesWhileTyping() {
+        val words = loadWords()
+        val suggest = { composer: WordComposer, ngramContext: NgramContext, wordIndex: Int ->
+            val candidates = (listOf(composer.typedWord)
+                    + words.drop(wordIndex).map { it.first })
+                .distinct().take(JOINT_SCORING_CANDIDATES)
+            runBlocking {
+                languageModel!!.scoreCandidates(
+                    composer.composedDataSnapshot,
+                    ngramContext,
+                    keyboard.mKeyDetector,
+                    keyboard.mKeyboard.proximityInfo.nativeProximityInfo,
+                    emptyList(),
+                    candidates
+                )
+            }
+            Unit
+        }
+        type(words.take(1), null, suggest)
+
+        val recorder = LatencyRecorder("LanguageModel.scoreCandidates.typing")
+        val state = benchmarkRule.getState()
+        while (state.keepRunning()) {
+            type(words, recorder, suggest)
+        }
+        recorder.countAllocations(words.sumOf { it.first.codePointCount(0, it.first.length) }) {
+            type(words, null, suggest)
+        }
+        recorder.report()
+    }
+
+    companion object {
+        private const val SEED = 1L
+        private const val AUTOCORRECT_THRESHOLD = 4.0f
+        private const val JOINT_SCORING_CANDIDATES = 10
+    }
+}
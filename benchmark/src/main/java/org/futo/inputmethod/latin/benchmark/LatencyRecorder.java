@@ -0,0 +1,170 @@
+package org.futo.inputmethod.latin.benchmark;
+
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Records the latency of each operation of a benchmark, and the allocations of one pass over
+ * its trace, then reports their distribution and checks it against the baseline.
+ *
+ * BenchmarkRule only reports the latency of whole loop iterations. Since a loop iteration
+ * replays a whole trace, the latency of each keystroke is recorded here on top of it. Only the
+ * most recent samples are kept, so that warmup iterations drop out of the results.
+ */
+public final class LatencyRecorder {
+    private static final String TAG = LatencyRecorder.class.getSimpleName();
+
+    private static final int MAX_SAMPLES = 1 << 16;
+    private static final String BASELINE_ASSET = "baseline.properties";
+    private static final String RESULTS_FILE = "benchmark-results.properties";
+    private static final String TOLERANCE_KEY = "tolerance";
+    private static final float DEFAULT_TOLERANCE = 0.25f;
+    // Instrumentation arguments, passed with -e when running the benchmarks.
+    private static final String ARG_IGNORE_BASELINE = "ignoreBaseline";
+    private static final String ARG_TOLERANCE = "baselineTolerance";
+    // Status code that the benchmark runner also uses to report results.
+    private static final int STATUS_CODE_RESULTS = 2;
+
+    public static final String P50_SUFFIX = ".p50_ns";
+    public static final String P99_SUFFIX = ".p99_ns";
+    public static final String ALLOCATIONS_SUFFIX = ".allocations";
+
+    private final String mName;
+    private final long[] mSamples = new long[MAX_SAMPLES];
+    private int mSampleCount;
+    private float mAllocationsPerOperation = -1;
+
+    public LatencyRecorder(final String name) {
+        mName = name;
+    }
+
+    public void addSample(final long nanos) {
+        mSamples[mSampleCount % MAX_SAMPLES] = nanos;
+        ++mSampleCount;
+    }
+
+    /**
+     * Counts the allocations of a pass over the trace. This is done apart from the timed
+     * iterations because counting allocations slows them down.
+     */
+    @SuppressWarnings("deprecation")
+    public void countAllocations(final int operationCount, final Runnable pass) {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        try {
+            pass.run();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        mAllocationsPerOperation = (float) Debug.getThreadAllocCount() / operationCount;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100.
+     * @return the latency in nanoseconds below which this percentile of the samples fall.
+     */
+    public long getPercentile(final int percentile) {
+        final int count = Math.min(mSampleCount, MAX_SAMPLES);
+        if (0 == count) return 0;
+        final long[] sorted = Arrays.copyOf(mSamples, count);
+        Arrays.sort(sorted);
+        return sorted[Math.min(count - 1, (int) ((long) count * percentile / 100))];
+    }
+
+    /**
+     * Reports the results to the instrumentation, adds them to the results file and fails the
+     * test if they are worse than the baseline.
+     */
+    public void report() {
+        final Properties results = new Properties();
+        results.setProperty(mName + P50_SUFFIX, Long.toString(getPercentile(50)));
+        results.setProperty(mName + P99_SUFFIX, Long.toString(getPercentile(99)));
+        if (mAllocationsPerOperation >= 0) {
+            results.setProperty(mName + ALLOCATIONS_SUFFIX,
+                    String.format(Locale.ROOT, "%.2f", mAllocationsPerOperation));
+        }
+        Log.i(TAG, mName + ": " + results);
+
+        final Bundle status = new Bundle();
+        for (final String key : results.stringPropertyNames()) {
+            status.putString(key, results.getProperty(key));
+        }
+        InstrumentationRegistry.getInstrumentation().sendStatus(STATUS_CODE_RESULTS, status);
+        writeResults(results);
+        checkAgainstBaseline(results);
+    }
+
+    private static synchronized void writeResults(final Properties results) {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final File directory = context.getExternalFilesDir(null);
+        if (null == directory) {
+            Log.w(TAG, "No external storage to write the results to");
+            return;
+        }
+        final File file = new File(directory, RESULTS_FILE);
+        final Properties allResults = new Properties();
+        if (file.isFile()) {
+            try (final InputStream in = new FileInputStream(file)) {
+                allResults.load(in);
+            } catch (final IOException e) {
+                Log.w(TAG, "Can't read previous results, overwriting them", e);
+            }
+        }
+        allResults.putAll(results);
+        try (final OutputStream out = new FileOutputStream(file)) {
+            allResults.store(out, "Benchmark results");
+        } catch (final IOException e) {
+            Log.e(TAG, "Can't write results to " + file, e);
+        }
+    }
+
+    private static void checkAgainstBaseline(final Properties results) {
+        final Bundle arguments = InstrumentationRegistry.getArguments();
+        if (Boolean.parseBoolean(arguments.getString(ARG_IGNORE_BASELINE))) return;
+        final Properties baseline = new Properties();
+        try (final InputStream in = InstrumentationRegistry.getInstrumentation().getContext()
+                .getAssets().open(BASELINE_ASSET)) {
+            baseline.load(in);
+        } catch (final IOException e) {
+            throw new RuntimeException("Can't read the baseline", e);
+        }
+        final String toleranceArgument = arguments.getString(ARG_TOLERANCE);
+        final float tolerance = Float.parseFloat(null != toleranceArgument ? toleranceArgument
+                : baseline.getProperty(TOLERANCE_KEY, Float.toString(DEFAULT_TOLERANCE)));
+
+        final StringBuilder regressions = new StringBuilder();
+        for (final String key : results.stringPropertyNames()) {
+            final String baselineValue = baseline.getProperty(key);
+            if (null == baselineValue) {
+                Log.i(TAG, "No baseline for " + key);
+                continue;
+            }
+            final float expected = Float.parseFloat(baselineValue);
+            final float actual = Float.parseFloat(results.getProperty(key));
+            if (actual > expected * (1 + tolerance)) {
+                regressions.append("\n").append(key).append(": ").append(results.getProperty(key))
+                        .append(", baseline ").append(baselineValue);
+            }
+        }
+        if (regressions.length() > 0) {
+            fail("Regressed by more than " + (int) (tolerance * 100) + "% against the baseline:"
+                    + regressions);
+        }
+    }
+}
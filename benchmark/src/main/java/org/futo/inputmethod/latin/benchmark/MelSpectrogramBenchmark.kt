@@ -0,0 +1,100 @@
+package org.futo.inputmethod.latin.benchmark
+
+import androidx.benchmark.junit4.BenchmarkRule
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.filters.LargeTest
+import org.futo.voiceinput.shared.util.AudioFeatureExtraction
+import org.futo.voiceinput.shared.util.StreamingMelSpectrogram
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Random
+
+/**
+ * Measures the cost of each 10ms hop of the streaming mel front end, and of extracting the mel
+ * spectrogram of a whole recording with it and with the batch extractor it replaces.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4::class)
+class MelSpectrogramBenchmark {
+    @get:Rule
+    val benchmarkRule = BenchmarkRule()
+
+    private val audio = FloatArray(SAMPLING_RATE * RECORDING_SECONDS).also {
+        val random = Random(SEED)
+        for (i in it.indices) {
+            it[i] = (0.1 * random.nextGaussian()).toFloat()
+        }
+    }
+
+    @Test
+    fun streamingPerHop() {
+        val extractor = StreamingMelSpectrogram()
+        val hops = audio.size / HOP_LENGTH
+
+        val recorder = LatencyRecorder("MelSpectrogram.streaming.hop")
+        val state = benchmarkRule.getState()
+        while (state.keepRunning()) {
+            extractor.reset()
+            for (hop in 0 until hops) {
+                val startTime = System.nanoTime()
+                extractor.accept(audio, hop * HOP_LENGTH, HOP_LENGTH)
+                recorder.addSample(System.nanoTime() - startTime)
+            }
+        }
+        recorder.countAllocations(hops) {
+            extractor.reset()
+            for (hop in 0 until hops) {
+                extractor.accept(audio, hop * HOP_LENGTH, HOP_LENGTH)
+            }
+        }
+        recorder.report()
+    }
+
+    @Test
+    fun streamingWholeRecording() {
+        val extractor = StreamingMelSpectrogram()
+        val output = FloatArray(80 * 3000)
+
+        val recorder = LatencyRecorder("MelSpectrogram.streaming.recording")
+        val state = benchmarkRule.getState()
+        while (state.keepRunning()) {
+            val startTime = System.nanoTime()
+            extractor.reset()
+            extractor.accept(audio)
+            extractor.finish()
+            extractor.toWhisperInput(output)
+            recorder.addSample(System.nanoTime() - startTime)
+        }
+        recorder.report()
+    }
+
+    @Test
+    fun batchWholeRecording() {
+        val extractor = AudioFeatureExtraction(
+            featureSize = 80,
+            samplingRate = SAMPLING_RATE,
+            hopLength = HOP_LENGTH,
+            chunkLength = 30,
+            nFFT = 400,
+            paddingValue = 0.0
+        )
+        val doubleAudio = DoubleArray(audio.size) { audio[it].toDouble() }
+
+        val recorder = LatencyRecorder("MelSpectrogram.batch.recording")
+        val state = benchmarkRule.getState()
+        while (state.keepRunning()) {
+            val startTime = System.nanoTime()
+            extractor.melSpectrogram(doubleAudio)
+            recorder.addSample(System.nanoTime() - startTime)
+        }
+        recorder.report()
+    }
+
+    companion object {
+        private const val SEED = 1L
+        private const val SAMPLING_RATE = 16000
+        private const val HOP_LENGTH = 160
+        private const val RECORDING_SECONDS = 5
+    }
+}
@@ -0,0 +1,186 @@
+package org.futo.inputmethod.latin.benchmark;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.futo.inputmethod.event.Event;
+import org.futo.inputmethod.latin.DictionaryFacilitatorLruCache;
+import org.futo.inputmethod.latin.NgramContext;
+import org.futo.inputmethod.latin.Suggest;
+import org.futo.inputmethod.latin.SuggestedWords;
+import org.futo.inputmethod.latin.WordComposer;
+import org.futo.inputmethod.latin.common.InputPointers;
+import org.futo.inputmethod.latin.settings.SettingsValuesForSuggestion;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the work done for each keystroke and each gesture between the event reaching the
+ * input logic and the suggestions being ready: updating the word being composed and getting
+ * suggestions for it from all the dictionaries of the locale.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class SuggestBenchmark {
+    private static final long SEED = 1;
+    private static final String DICTIONARY_NAME_PREFIX = "benchmark_";
+
+    @Rule
+    public final BenchmarkRule mBenchmarkRule = new BenchmarkRule();
+
+    private final SettingsValuesForSuggestion mSettingsValuesForSuggestion =
+            new SettingsValuesForSuggestion(true /* blockPotentiallyOffensive */,
+                    false /* useTransformerLM */);
+    private final Suggest.OnGetSuggestedWordsCallback mCallback =
+            new Suggest.OnGetSuggestedWordsCallback() {
+                @Override
+                public void onGetSuggestedWords(final SuggestedWords suggestedWords) {
+                    // The suggestions are computed synchronously, nothing to wait for.
+                }
+            };
+    private DictionaryFacilitatorLruCache mDictionaryFacilitatorCache;
+    private BenchmarkKeyboard mKeyboard;
+    private Suggest mSuggest;
+    private Context mTestContext;
+
+    @Before
+    public void setUp() {
+        final Context targetContext =
+                InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mTestContext = InstrumentationRegistry.getInstrumentation().getContext();
+        mKeyboard = BenchmarkKeyboard.create(targetContext, Locale.US, "qwerty");
+        mDictionaryFacilitatorCache =
+                new DictionaryFacilitatorLruCache(targetContext, DICTIONARY_NAME_PREFIX);
+        // Waits for the main dictionary to be loaded.
+        mSuggest = new Suggest(mDictionaryFacilitatorCache.get(Locale.US));
+    }
+
+    @After
+    public void tearDown() {
+        mDictionaryFacilitatorCache.closeDictionaries();
+    }
+
+    private static final class TypedWord {
+        public final String mWord;
+        public final int[] mCoordinates;
+        public final NgramContext mNgramContext;
+
+        public TypedWord(final String word, final int[] coordinates,
+                final NgramContext ngramContext) {
+            mWord = word;
+            mCoordinates = coordinates;
+            mNgramContext = ngramContext;
+        }
+    }
+
+    private List<TypedWord> getTypedWords() {
+        final Random random = new Random(SEED);
+        final ArrayList<TypedWord> typedWords = new ArrayList<>();
+        for (final String sentence : Traces.load(mTestContext, Traces.TYPING_EN_US)) {
+            NgramContext ngramContext = NgramContext.BEGINNING_OF_SENTENCE;
+            for (final String word : sentence.split(" ")) {
+                typedWords.add(new TypedWord(word, mKeyboard.getTapCoordinates(word, random),
+                        ngramContext));
+                ngramContext = new NgramContext(new NgramContext.WordInfo(word));
+            }
+        }
+        return typedWords;
+    }
+
+    private void type(final List<TypedWord> typedWords, final LatencyRecorder recorder) {
+        final WordComposer composer = new WordComposer();
+        int sequenceNumber = 0;
+        for (final TypedWord typedWord : typedWords) {
+            composer.reset();
+            final String word = typedWord.mWord;
+            for (int i = 0, index = 0; i < word.length();
+                    i = word.offsetByCodePoints(i, 1), ++index) {
+                final long startTime = System.nanoTime();
+                final Event event = Event.createSoftwareKeypressEvent(word.codePointAt(i),
+                        Event.NOT_A_KEY_CODE, typedWord.mCoordinates[index * 2],
+                        typedWord.mCoordinates[index * 2 + 1], false /* isKeyRepeat */);
+                composer.applyProcessedEvent(composer.processEvent(event));
+                mSuggest.getSuggestedWords(composer, typedWord.mNgramContext,
+                        mKeyboard.mKeyboard, mSettingsValuesForSuggestion,
+                        true /* isCorrectionEnabled */, SuggestedWords.INPUT_STYLE_TYPING,
+                        ++sequenceNumber, mCallback);
+                if (null != recorder) {
+                    recorder.addSample(System.nanoTime() - startTime);
+                }
+            }
+        }
+    }
+
+    private void swipe(final List<InputPointers> gestures, final LatencyRecorder recorder) {
+        final WordComposer composer = new WordComposer();
+        int sequenceNumber = 0;
+        for (final InputPointers gesture : gestures) {
+            final long startTime = System.nanoTime();
+            composer.reset();
+            composer.setBatchInputPointers(gesture);
+            mSuggest.getSuggestedWords(composer, NgramContext.BEGINNING_OF_SENTENCE,
+                    mKeyboard.mKeyboard, mSettingsValuesForSuggestion,
+                    true /* isCorrectionEnabled */, SuggestedWords.INPUT_STYLE_TAIL_BATCH,
+                    ++sequenceNumber, mCallback);
+            if (null != recorder) {
+                recorder.addSample(System.nanoTime() - startTime);
+            }
+        }
+    }
+
+    @Test
+    public void getSuggestedWordsWhileTyping() {
+        final List<TypedWord> typedWords = getTypedWords();
+        final LatencyRecorder recorder = new LatencyRecorder("Suggest.getSuggestedWords.typing");
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            type(typedWords, recorder);
+        }
+        int keystrokeCount = 0;
+        for (final TypedWord typedWord : typedWords) {
+            keystrokeCount += typedWord.mWord.codePointCount(0, typedWord.mWord.length());
+        }
+        recorder.countAllocations(keystrokeCount, new Runnable() {
+            @Override
+            public void run() {
+                type(typedWords, null);
+            }
+        });
+        recorder.report();
+    }
+
+    @Test
+    public void getSuggestedWordsForGesture() {
+        final ArrayList<InputPointers> gestures = new ArrayList<>();
+        for (final String word : Traces.load(mTestContext, Traces.GESTURE_EN_US)) {
+            gestures.add(mKeyboard.getGesturePointers(word));
+        }
+        final LatencyRecorder recorder =
+                new LatencyRecorder("Suggest.getSuggestedWords.gesture");
+        final BenchmarkState state = mBenchmarkRule.getState();
+        while (state.keepRunning()) {
+            swipe(gestures, recorder);
+        }
+        recorder.countAllocations(gestures.size(), new Runnable() {
+            @Override
+            public void run() {
+                swipe(gestures, null);
+            }
+        });
+        recorder.report();
+    }
+}
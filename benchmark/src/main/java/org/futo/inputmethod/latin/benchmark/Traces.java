@@ -0,0 +1,39 @@
+package org.futo.inputmethod.latin.benchmark;
+
+import android.content.Context;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the traces in the assets of the benchmark. A trace is a text file with one sentence or
+ * word per line. Empty lines and lines starting with # are ignored.
+ */
+public final class Traces {
+    public static final String TYPING_EN_US = "traces/typing_en_US.txt";
+    public static final String GESTURE_EN_US = "traces/gesture_en_US.txt";
+
+    private Traces() {
+        // This utility class is not publicly instantiable.
+    }
+
+    public static List<String> load(final Context context, final String assetName) {
+        final ArrayList<String> lines = new ArrayList<>();
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                context.getAssets().open(assetName), StandardCharsets.UTF_8))) {
+            String line;
+            while (null != (line = reader.readLine())) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                lines.add(line);
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException("Can't read trace " + assetName, e);
+        }
+        return lines;
+    }
+}
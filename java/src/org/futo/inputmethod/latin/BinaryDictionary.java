@@ -28,6 +28,7 @@ import org.futo.inputmethod.latin.common.FileUtils;
 import org.futo.inputmethod.latin.common.InputPointers;
 import org.futo.inputmethod.latin.common.StringUtils;
 import org.futo.inputmethod.latin.makedict.DictionaryHeader;
+import org.futo.inputmethod.latin.makedict.DictionaryPatch;
 import org.futo.inputmethod.latin.makedict.FormatSpec;
 import org.futo.inputmethod.latin.makedict.FormatSpec.DictionaryOptions;
 import org.futo.inputmethod.latin.makedict.UnsupportedFormatException;
@@ -492,6 +493,23 @@ public final class BinaryDictionary extends Dictionary {
         return true;
     }
 
+    // Remove an n-gram entry from the binary dictionary in native code.
+    public boolean removeNgramEntry(final NgramContext ngramContext, final String word) {
+        if (!ngramContext.isValid() || TextUtils.isEmpty(word)) {
+            return false;
+        }
+        final int[][] prevWordCodePointArrays = new int[ngramContext.getPrevWordCount()][];
+        final boolean[] isBeginningOfSentenceArray = new boolean[ngramContext.getPrevWordCount()];
+        ngramContext.outputToArray(prevWordCodePointArrays, isBeginningOfSentenceArray);
+        final int[] wordCodePoints = StringUtils.toCodePointArray(word);
+        if (!removeNgramEntryNative(mNativeDict, prevWordCodePointArrays,
+                isBeginningOfSentenceArray, wordCodePoints)) {
+            return false;
+        }
+        mHasUpdated = true;
+        return true;
+    }
+
     // Update entries for the word occurrence with the ngramContext.
     public boolean updateEntriesForWordWithNgramContext(@Nonnull final NgramContext ngramContext,
             final String word, final boolean isValidWord, final int count, final int timestamp) {
@@ -625,6 +643,45 @@ public final class BinaryDictionary extends Dictionary {
         }
     }
 
+    /**
+     * Applies the edits of a dictionary patch in memory. Only updatable version 4 dictionaries
+     * can be patched; call {@link #flush()} or {@link #flushWithGC()} to write the result.
+     * @return whether every edit was applied.
+     */
+    public boolean applyPatch(final DictionaryPatch patch) {
+        if (!isValidDictionary() || !mIsUpdatable
+                || getFormatVersion() != FormatSpec.VERSION4) {
+            return false;
+        }
+        return patch.applyTo(new DictionaryPatch.Editor() {
+            @Override
+            public boolean setWord(final String word, final int probability,
+                    final boolean isNotAWord, final boolean isPossiblyOffensive) {
+                return addUnigramEntry(word, probability, null /* shortcutTarget */,
+                        0 /* shortcutProbability */, false /* isBeginningOfSentence */,
+                        isNotAWord, isPossiblyOffensive, NOT_A_VALID_TIMESTAMP);
+            }
+
+            @Override
+            public boolean removeWord(final String word) {
+                return removeUnigramEntry(word);
+            }
+
+            @Override
+            public boolean setBigram(final String word0, final String word1,
+                    final int probability) {
+                return addNgramEntry(new NgramContext(new NgramContext.WordInfo(word0)), word1,
+                        probability, NOT_A_VALID_TIMESTAMP);
+            }
+
+            @Override
+            public boolean removeBigram(final String word0, final String word1) {
+                return removeNgramEntry(new NgramContext(new NgramContext.WordInfo(word0)),
+                        word1);
+            }
+        });
+    }
+
     @UsedForTesting
     public String getPropertyForGettingStats(final String query) {
         if (!isValidDictionary()) {
@@ -118,6 +118,23 @@ public abstract class Dictionary {
      */
     abstract public boolean isInDictionary(final String word);
 
+    /**
+     * Checks a batch of words at once. Words already marked valid are skipped, so that several
+     * dictionaries can be asked in turn about the words none of the previous ones knew.
+     * @param words the words to check.
+     * @param isValid set to true for each word that {@link #isValidWord} accepts.
+     * @return whether every word was actually checked. When the dictionary couldn't be read,
+     * e.g. because it's being loaded, this is false and the words are left as they were.
+     */
+    public boolean markValidWords(final String[] words, final boolean[] isValid) {
+        for (int i = 0; i < words.length; ++i) {
+            if (!isValid[i] && isValidWord(words[i])) {
+                isValid[i] = true;
+            }
+        }
+        return true;
+    }
+
     /**
      * Get the frequency of the word.
      * @param word the word to get the frequency of.
@@ -20,6 +20,7 @@ import android.util.Log;
 
 import org.futo.inputmethod.latin.SuggestedWords.SuggestedWordInfo;
 import org.futo.inputmethod.latin.common.ComposedData;
+import org.futo.inputmethod.latin.makedict.DictionaryPatch;
 import org.futo.inputmethod.latin.settings.SettingsValuesForSuggestion;
 
 import java.util.ArrayList;
@@ -89,6 +90,17 @@ public final class DictionaryCollection extends Dictionary {
         return false;
     }
 
+    @Override
+    public boolean markValidWords(final String[] words, final boolean[] isValid) {
+        boolean isChecked = true;
+        for (int i = mDictionaries.size() - 1; i >= 0; --i) {
+            if (!mDictionaries.get(i).markValidWords(words, isValid)) {
+                isChecked = false;
+            }
+        }
+        return isChecked;
+    }
+
     @Override
     public int getFrequency(final String word) {
         int maxFreq = -1;
@@ -120,6 +132,34 @@ public final class DictionaryCollection extends Dictionary {
             dict.close();
     }
 
+    /**
+     * Applies a dictionary patch to every patchable dictionary in this collection.
+     * @return whether there was at least one and the patch applied cleanly to all of them.
+     */
+    public boolean applyPatch(final DictionaryPatch patch) {
+        boolean patched = false;
+        for (final Dictionary dict : mDictionaries) {
+            if (!(dict instanceof ReadOnlyBinaryDictionary)) continue;
+            if (!((ReadOnlyBinaryDictionary)dict).applyPatch(patch)) return false;
+            patched = true;
+        }
+        return patched;
+    }
+
+    /**
+     * Returns a hash of the files of the dictionaries in this collection, which changes when any
+     * of them is replaced or updated on disk.
+     */
+    public long getContentHash() {
+        long hash = mDictionaries.size();
+        for (final Dictionary dict : mDictionaries) {
+            hash = hash * 31 + ((dict instanceof ReadOnlyBinaryDictionary)
+                    ? ((ReadOnlyBinaryDictionary)dict).getContentHash()
+                    : dict.mDictType.hashCode());
+        }
+        return hash;
+    }
+
     // Warning: this is not thread-safe. Take necessary precaution when calling.
     public void addDictionary(final Dictionary newDict) {
         if (null == newDict) return;
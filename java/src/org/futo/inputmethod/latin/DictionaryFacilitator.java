@@ -22,6 +22,7 @@ import android.util.LruCache;
 import org.futo.inputmethod.annotations.UsedForTesting;
 import org.futo.inputmethod.keyboard.Keyboard;
 import org.futo.inputmethod.latin.common.ComposedData;
+import org.futo.inputmethod.latin.makedict.DictionaryPatch;
 import org.futo.inputmethod.latin.settings.SettingsValuesForSuggestion;
 import org.futo.inputmethod.latin.utils.SuggestionResults;
 
@@ -133,6 +134,14 @@ public interface DictionaryFacilitator {
 
     void closeDictionaries();
 
+    /**
+     * Applies a patch to the loaded main dictionary for the locale, if it was opened patchable.
+     *
+     * @return whether the loaded main dictionary now reflects the patch. If false, it has to be
+     * reloaded to pick up the patched file.
+     */
+    boolean applyMainDictionaryPatch(final Locale locale, final DictionaryPatch patch);
+
     @UsedForTesting
     ExpandableBinaryDictionary getSubDictForTesting(final String dictName);
 
@@ -165,6 +174,11 @@ public interface DictionaryFacilitator {
 
     boolean isValidSpellingWord(final String word);
 
+    /**
+     * Same as {@link #isValidSpellingWord} for many words, looking each dictionary up once.
+     */
+    boolean[] isValidSpellingWords(final String[] words);
+
     boolean isValidSuggestionWord(final String word);
 
     boolean clearUserHistoryDictionary(final Context context);
@@ -29,10 +29,13 @@ import org.futo.inputmethod.latin.SuggestedWords.SuggestedWordInfo;
 import org.futo.inputmethod.latin.common.ComposedData;
 import org.futo.inputmethod.latin.common.Constants;
 import org.futo.inputmethod.latin.common.StringUtils;
+import org.futo.inputmethod.latin.makedict.DictionaryPatch;
 import org.futo.inputmethod.latin.permissions.PermissionsUtil;
 import org.futo.inputmethod.latin.personalization.UserHistoryDictionary;
 import org.futo.inputmethod.latin.settings.SettingsValuesForSuggestion;
 import org.futo.inputmethod.latin.utils.ExecutorUtils;
+import org.futo.inputmethod.latin.utils.LatencyTracker;
+import org.futo.inputmethod.latin.utils.PersistentSpellingCache;
 import org.futo.inputmethod.latin.utils.SuggestionResults;
 import org.futo.inputmethod.latin.xlm.LanguageModel;
 
@@ -88,6 +91,8 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
 
     private LruCache<String, Boolean> mValidSpellingWordReadCache;
     private LruCache<String, Boolean> mValidSpellingWordWriteCache;
+    // Validity of words computed with the current dictionaries, kept across restarts.
+    @Nullable private volatile PersistentSpellingCache mPersistentSpellingCache;
 
     @Override
     public void setValidSpellingWordReadCache(final LruCache<String, Boolean> cache) {
@@ -376,6 +381,29 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
         if (mValidSpellingWordWriteCache != null) {
             mValidSpellingWordWriteCache.evictAll();
         }
+        updatePersistentSpellingCache(context);
+    }
+
+    private static long computeDictionaryVersion(final DictionaryGroup dictionaryGroup) {
+        final Dictionary mainDict = dictionaryGroup.getDict(Dictionary.TYPE_MAIN);
+        final long version = (mainDict instanceof DictionaryCollection)
+                ? ((DictionaryCollection) mainDict).getContentHash() : 0;
+        return version == PersistentSpellingCache.NO_DICTIONARY_VERSION ? 1 : version;
+    }
+
+    /**
+     * Points the persistent spelling cache at the current main dictionary. The cache is only
+     * used once the main dictionary is loaded, as results computed without it would be wrong.
+     */
+    private void updatePersistentSpellingCache(final Context context) {
+        final DictionaryGroup dictionaryGroup = mDictionaryGroup;
+        final Dictionary mainDict = dictionaryGroup.getDict(Dictionary.TYPE_MAIN);
+        if (dictionaryGroup.mLocale == null || mainDict == null || !mainDict.isInitialized()) {
+            mPersistentSpellingCache = null;
+            return;
+        }
+        mPersistentSpellingCache = PersistentSpellingCache.getInstance(context,
+                dictionaryGroup.mLocale, computeDictionaryVersion(dictionaryGroup));
     }
 
     private void asyncReloadUninitializedMainDictionaries(final Context context,
@@ -406,6 +434,7 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
         synchronized (mLock) {
             if (locale.equals(dictionaryGroup.mLocale)) {
                 dictionaryGroup.setMainDict(mainDict);
+                updatePersistentSpellingCache(context);
             } else {
                 // Dictionary facilitator has been reset for another locale.
                 mainDict.close();
@@ -453,12 +482,34 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
         synchronized (mLock) {
             dictionaryGroupToClose = mDictionaryGroup;
             mDictionaryGroup = new DictionaryGroup();
+            mPersistentSpellingCache = null;
         }
         for (final String dictType : ALL_DICTIONARY_TYPES) {
             dictionaryGroupToClose.closeDict(dictType);
         }
     }
 
+    public boolean applyMainDictionaryPatch(final Locale locale, final DictionaryPatch patch) {
+        if (!isForLocale(locale)) {
+            return false;
+        }
+        final Dictionary mainDict = mDictionaryGroup.getDict(Dictionary.TYPE_MAIN);
+        if (!(mainDict instanceof DictionaryCollection)) {
+            return false;
+        }
+        final boolean patched = ((DictionaryCollection) mainDict).applyPatch(patch);
+        if (mValidSpellingWordWriteCache != null) {
+            mValidSpellingWordWriteCache.evictAll();
+        }
+        final PersistentSpellingCache persistentCache = mPersistentSpellingCache;
+        if (persistentCache != null) {
+            // The patched file has a new modification time, so this leaves the old results behind.
+            mPersistentSpellingCache = persistentCache.withDictionaryVersion(
+                    computeDictionaryVersion(mDictionaryGroup));
+        }
+        return patched;
+    }
+
     @UsedForTesting
     public ExpandableBinaryDictionary getSubDictForTesting(final String dictName) {
         return mDictionaryGroup.getSubDict(dictName);
@@ -623,21 +674,26 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
                 false /* firstSuggestionExceedsConfidenceThreshold */);
         final float[] weightOfLangModelVsSpatialModel =
                 new float[] { Dictionary.NOT_A_WEIGHT_OF_LANG_MODEL_VS_SPATIAL_MODEL };
-        for (final String dictType : ALL_DICTIONARY_TYPES) {
-            final Dictionary dictionary = mDictionaryGroup.getDict(dictType);
-            if (null == dictionary) continue;
-            final float weightForLocale = composedData.mIsBatchMode
-                    ? mDictionaryGroup.mWeightForGesturingInLocale
-                    : mDictionaryGroup.mWeightForTypingInLocale;
-            final ArrayList<SuggestedWordInfo> dictionarySuggestions =
-                    dictionary.getSuggestions(composedData, ngramContext,
-                            proximityInfoHandle, settingsValuesForSuggestion, sessionId,
-                            weightForLocale, weightOfLangModelVsSpatialModel);
-            if (null == dictionarySuggestions) continue;
-            suggestionResults.addAll(dictionarySuggestions);
-            if (null != suggestionResults.mRawSuggestions) {
-                suggestionResults.mRawSuggestions.addAll(dictionarySuggestions);
+        final long startNanos = LatencyTracker.begin(LatencyTracker.SUGGESTIONS_DICTIONARY);
+        try {
+            for (final String dictType : ALL_DICTIONARY_TYPES) {
+                final Dictionary dictionary = mDictionaryGroup.getDict(dictType);
+                if (null == dictionary) continue;
+                final float weightForLocale = composedData.mIsBatchMode
+                        ? mDictionaryGroup.mWeightForGesturingInLocale
+                        : mDictionaryGroup.mWeightForTypingInLocale;
+                final ArrayList<SuggestedWordInfo> dictionarySuggestions =
+                        dictionary.getSuggestions(composedData, ngramContext,
+                                proximityInfoHandle, settingsValuesForSuggestion, sessionId,
+                                weightForLocale, weightOfLangModelVsSpatialModel);
+                if (null == dictionarySuggestions) continue;
+                suggestionResults.addAll(dictionarySuggestions);
+                if (null != suggestionResults.mRawSuggestions) {
+                    suggestionResults.mRawSuggestions.addAll(dictionarySuggestions);
+                }
             }
+        } finally {
+            LatencyTracker.end(LatencyTracker.SUGGESTIONS_DICTIONARY, startNanos);
         }
         return suggestionResults;
     }
@@ -650,7 +706,111 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
             }
         }
 
-        return isValidWord(word, ALL_DICTIONARY_TYPES);
+        final PersistentSpellingCache persistentCache = mPersistentSpellingCache;
+        if (persistentCache == null) {
+            return isValidWord(word, ALL_DICTIONARY_TYPES);
+        }
+        if (TextUtils.isEmpty(word) || mDictionaryGroup.mLocale == null) {
+            return false;
+        }
+        Boolean isInMainDictionary = persistentCache.getValidity(word);
+        if (isInMainDictionary == null) {
+            final boolean[] isValid = new boolean[1];
+            final boolean isChecked = markValidMainDictionaryWords(new String[] { word }, isValid);
+            if (isValid[0] || isChecked) {
+                persistentCache.putValidity(word, isValid[0]);
+            }
+            isInMainDictionary = isValid[0];
+        }
+        // Only the main dictionary is cached, the others change as the user types.
+        return isInMainDictionary || isValidWord(word, DYNAMIC_DICTIONARY_TYPES);
+    }
+
+    /**
+     * Marks the words that the main dictionary finds valid.
+     *
+     * @return whether the main dictionary checked every word. A dictionary that's busy finds no
+     * words, so otherwise the words left invalid may only be unchecked.
+     */
+    private boolean markValidMainDictionaryWords(final String[] words, final boolean[] isValid) {
+        final Dictionary mainDict = mDictionaryGroup.getDict(Dictionary.TYPE_MAIN);
+        return mainDict != null && mainDict.markValidWords(words, isValid);
+    }
+
+    public boolean[] isValidSpellingWords(final String[] words) {
+        final boolean[] isValid = new boolean[words.length];
+        if (mDictionaryGroup.mLocale == null) {
+            return isValid;
+        }
+        final PersistentSpellingCache persistentCache = mPersistentSpellingCache;
+        // Words whose validity is still unknown after the caches, and the indices of those that
+        // the main dictionary has to check.
+        final boolean[] isKnown = new boolean[words.length];
+        final ArrayList<Integer> mainDictionaryIndices = new ArrayList<>();
+        for (int i = 0; i < words.length; ++i) {
+            if (TextUtils.isEmpty(words[i])) {
+                isKnown[i] = true;
+                continue;
+            }
+            if (mValidSpellingWordReadCache != null) {
+                final Boolean cachedValue = mValidSpellingWordReadCache.get(words[i]);
+                if (cachedValue != null) {
+                    isValid[i] = cachedValue;
+                    isKnown[i] = true;
+                    continue;
+                }
+            }
+            if (persistentCache == null) continue;
+            final Boolean isInMainDictionary = persistentCache.getValidity(words[i]);
+            if (isInMainDictionary == null) {
+                mainDictionaryIndices.add(i);
+            } else {
+                isValid[i] = isInMainDictionary;
+            }
+        }
+
+        if (!mainDictionaryIndices.isEmpty()) {
+            final String[] uncachedWords = new String[mainDictionaryIndices.size()];
+            for (int j = 0; j < uncachedWords.length; ++j) {
+                uncachedWords[j] = words[mainDictionaryIndices.get(j)];
+            }
+            final boolean[] isUncachedWordValid = new boolean[uncachedWords.length];
+            final boolean isChecked =
+                    markValidMainDictionaryWords(uncachedWords, isUncachedWordValid);
+            for (int j = 0; j < uncachedWords.length; ++j) {
+                isValid[mainDictionaryIndices.get(j)] = isUncachedWordValid[j];
+                if (isUncachedWordValid[j] || isChecked) {
+                    persistentCache.putValidity(uncachedWords[j], isUncachedWordValid[j]);
+                }
+            }
+        }
+
+        // The remaining words are looked up in the dictionaries that aren't cached, which are
+        // all of them until the main dictionary is loaded.
+        final ArrayList<Integer> liveIndices = new ArrayList<>();
+        for (int i = 0; i < words.length; ++i) {
+            if (!isKnown[i] && !isValid[i]) {
+                liveIndices.add(i);
+            }
+        }
+        if (liveIndices.isEmpty()) {
+            return isValid;
+        }
+        final String[] liveWords = new String[liveIndices.size()];
+        for (int j = 0; j < liveWords.length; ++j) {
+            liveWords[j] = words[liveIndices.get(j)];
+        }
+        final boolean[] isLiveWordValid = new boolean[liveWords.length];
+        for (final String dictType : persistentCache == null
+                ? ALL_DICTIONARY_TYPES : DYNAMIC_DICTIONARY_TYPES) {
+            final Dictionary dictionary = mDictionaryGroup.getDict(dictType);
+            if (null == dictionary) continue;
+            dictionary.markValidWords(liveWords, isLiveWordValid);
+        }
+        for (int j = 0; j < liveWords.length; ++j) {
+            isValid[liveIndices.get(j)] = isLiveWordValid[j];
+        }
+        return isValid;
     }
 
     public boolean isValidSuggestionWord(final String word) {
@@ -731,6 +891,12 @@ public class DictionaryFacilitatorImpl implements DictionaryFacilitator {
 
     @Override
     public String dump(final Context context) {
-        return "";
+        final StringBuilder builder = new StringBuilder();
+        for (final String dictType : DYNAMIC_DICTIONARY_TYPES) {
+            final ExpandableBinaryDictionary dictionary = mDictionaryGroup.getSubDict(dictType);
+            if (dictionary == null) continue;
+            builder.append(dictType).append(":\n").append(dictionary.getMetrics()).append("\n");
+        }
+        return builder.toString();
     }
 }
@@ -17,6 +17,7 @@
 package org.futo.inputmethod.latin;
 
 import android.content.Context;
+import android.os.Trace;
 import android.util.Log;
 
 import org.futo.inputmethod.annotations.UsedForTesting;
@@ -30,18 +31,22 @@ import org.futo.inputmethod.latin.makedict.UnsupportedFormatException;
 import org.futo.inputmethod.latin.makedict.WordProperty;
 import org.futo.inputmethod.latin.settings.SettingsValuesForSuggestion;
 import org.futo.inputmethod.latin.utils.AsyncResultHolder;
+import org.futo.inputmethod.latin.utils.BinaryDictionaryUtils;
 import org.futo.inputmethod.latin.utils.CombinedFormatUtils;
 import org.futo.inputmethod.latin.utils.ExecutorUtils;
+import org.futo.inputmethod.latin.utils.LatencyTracker;
 import org.futo.inputmethod.latin.utils.WordInputEventForPersonalization;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -67,6 +72,9 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
 
     private static final int TIMEOUT_FOR_READ_OPS_IN_MILLISECONDS = 100;
 
+    /** Suffix of the copy of the dictionary file that is compacted in the background. */
+    private static final String COMPACTION_FILE_SUFFIX = ".compacting";
+
     /**
      * The maximum length of a word in this dictionary.
      */
@@ -106,6 +114,50 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
 
     private Map<String, String> mAdditionalAttributeMap = null;
 
+    /**
+     * An update of the binary dictionary. Updates are kept after they have been applied until the
+     * dictionary file is written, so that they can be replayed on a compacted copy of the file.
+     */
+    private static abstract class Update {
+        /** The word this update adds to the dictionary, if any. */
+        @Nullable public final String mAddedWord;
+        /** The word this update removes from the dictionary, if any. */
+        @Nullable public final String mRemovedWord;
+
+        public Update(@Nullable final String addedWord, @Nullable final String removedWord) {
+            mAddedWord = addedWord;
+            mRemovedWord = removedWord;
+        }
+
+        public abstract void apply(@Nonnull BinaryDictionary binaryDictionary);
+    }
+
+    /**
+     * Updates waiting to be applied to the binary dictionary, oldest first. Writers only append
+     * here, and a single task applies the whole batch under the write lock. Guarded by itself.
+     */
+    private final ArrayList<Update> mPendingUpdates = new ArrayList<>();
+
+    /** Whether a task to apply pending updates is waiting to run. Guarded by mPendingUpdates. */
+    private boolean mIsApplyingUpdatesScheduled = false;
+
+    /** Updates applied since the dictionary file was last written. Guarded by the write lock. */
+    private final ArrayList<Update> mUnflushedUpdates = new ArrayList<>();
+
+    /**
+     * Incremented whenever the dictionary file or the binary dictionary is replaced other than by
+     * compaction, which then discards its result. Guarded by the write lock.
+     */
+    private int mDictionaryGeneration = 0;
+
+    /** Indicates whether a compaction task has been scheduled. */
+    private final AtomicBoolean mIsCompacting = new AtomicBoolean();
+
+    /** Whether a flush was requested while compacting. Guarded by the write lock. */
+    private boolean mNeedsToFlushAfterCompaction = false;
+
+    private final Metrics mMetrics = new Metrics();
+
     /* A extension for a binary dictionary file. */
     protected static final String DICT_FILE_EXTENSION = ".dict";
 
@@ -166,11 +218,11 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         asyncExecuteTaskWithLock(mLock.writeLock(), task);
     }
 
-    private static void asyncExecuteTaskWithLock(final Lock lock, final Runnable task) {
+    private void asyncExecuteTaskWithLock(final Lock lock, final Runnable task) {
         ExecutorUtils.getBackgroundExecutor(ExecutorUtils.KEYBOARD).execute(new Runnable() {
             @Override
             public void run() {
-                lock.lock();
+                lockAndRecordWait(lock);
                 try {
                     task.run();
                 } finally {
@@ -180,6 +232,21 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         });
     }
 
+    private void lockAndRecordWait(final Lock lock) {
+        final long startTime = System.nanoTime();
+        lock.lock();
+        mMetrics.recordLockWait(lock == mLock.writeLock(), System.nanoTime() - startTime,
+                true /* acquired */);
+    }
+
+    private boolean tryLockForRead() throws InterruptedException {
+        final long startTime = System.nanoTime();
+        final boolean acquired = mLock.readLock().tryLock(
+                TIMEOUT_FOR_READ_OPS_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        mMetrics.recordLockWait(false /* isWrite */, System.nanoTime() - startTime, acquired);
+        return acquired;
+    }
+
     @Nullable
     BinaryDictionary getBinaryDictionary() {
         return mBinaryDictionary;
@@ -190,6 +257,8 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
             mBinaryDictionary.close();
             mBinaryDictionary = null;
         }
+        mDictionaryGeneration++;
+        mUnflushedUpdates.clear();
     }
 
     /**
@@ -200,6 +269,10 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         asyncExecuteTaskWithWriteLock(new Runnable() {
             @Override
             public void run() {
+                if (mNeedsToFlushAfterCompaction && mBinaryDictionary != null) {
+                    // Don't lose the updates whose flush was waiting for compaction
+                    flushLocked();
+                }
                 closeBinaryDictionary();
             }
         });
@@ -237,12 +310,16 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         mBinaryDictionary = new BinaryDictionary(
                 mDictFile.getAbsolutePath(), 0 /* offset */, mDictFile.length(),
                 true /* useFullEditDistance */, mLocale, mDictType, true /* isUpdatable */);
+        mDictionaryGeneration++;
+        mUnflushedUpdates.clear();
     }
 
     void createOnMemoryBinaryDictionaryLocked() {
         mBinaryDictionary = new BinaryDictionary(
                 mDictFile.getAbsolutePath(), true /* useFullEditDistance */, mLocale, mDictType,
                 DICTIONARY_FORMAT_VERSION, getHeaderAttributeMap());
+        mDictionaryGeneration++;
+        mUnflushedUpdates.clear();
     }
 
     public void clear() {
@@ -270,25 +347,246 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         });
     }
 
+    /**
+     * Runs GC while holding the write lock. Used by subclasses that add their initial contents
+     * directly; updates made through the public methods are compacted in the background instead.
+     */
     protected void runGCIfRequiredLocked(final boolean mindsBlockByGC) {
         if (mBinaryDictionary.needsToRunGC(mindsBlockByGC)) {
+            flushWithGCLocked();
+        }
+    }
+
+    private void flushLocked() {
+        mBinaryDictionary.flush();
+        mDictionaryGeneration++;
+        mUnflushedUpdates.clear();
+        mNeedsToFlushAfterCompaction = false;
+    }
+
+    private void flushWithGCLocked() {
+        final long startTime = System.nanoTime();
+        Trace.beginSection(LatencyTracker.DICTIONARY_GC);
+        try {
             mBinaryDictionary.flushWithGC();
+        } finally {
+            Trace.endSection();
         }
+        mMetrics.recordGC(true /* isBlocking */, System.nanoTime() - startTime);
+        mDictionaryGeneration++;
+        mUnflushedUpdates.clear();
+        mNeedsToFlushAfterCompaction = false;
     }
 
-    private void updateDictionaryWithWriteLock(@Nonnull final Runnable updateTask) {
-        reloadDictionaryIfRequired();
-        final Runnable task = new Runnable() {
+    /**
+     * Schedules GC of the dictionary file on a copy of it, at low priority and without holding
+     * the lock. The binary dictionary keeps serving reads and taking updates meanwhile; once the
+     * copy has been compacted, the write lock is only taken to swap it in and replay the updates
+     * made since the copy was taken.
+     */
+    private void asyncCompactLocked() {
+        if (!mDictFile.exists()) {
+            // There is no file to take a copy of yet.
+            flushWithGCLocked();
+            return;
+        }
+        if (!mIsCompacting.compareAndSet(false, true)) {
+            return;
+        }
+        final int generation = mDictionaryGeneration;
+        final ArrayList<Update> updatesToReplay = new ArrayList<>(mUnflushedUpdates);
+        ExecutorUtils.getBackgroundExecutor(ExecutorUtils.COMPACTION).execute(new Runnable() {
             @Override
             public void run() {
-                if (getBinaryDictionary() == null) {
-                    return;
+                try {
+                    compact(generation, updatesToReplay);
+                } finally {
+                    // Normally cleared while swapping in the compacted file already.
+                    mIsCompacting.set(false);
+                }
+            }
+        });
+    }
+
+    private void compact(final int generation, final ArrayList<Update> updatesToReplay) {
+        final File compactedFile = new File(mDictFile.getPath() + COMPACTION_FILE_SUFFIX);
+        try {
+            final boolean compacted =
+                    compactCopy(generation, updatesToReplay, compactedFile);
+            lockAndRecordWait(mLock.writeLock());
+            try {
+                if (compacted) {
+                    swapInCompactedDictionaryLocked(compactedFile, generation,
+                            updatesToReplay.size());
+                }
+                mIsCompacting.set(false);
+                if (mNeedsToFlushAfterCompaction && mBinaryDictionary != null) {
+                    flushLocked();
+                }
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        } finally {
+            FileUtils.deleteRecursively(compactedFile);
+        }
+    }
+
+    /**
+     * Copies the dictionary file, replays the given updates on the copy and runs GC on it.
+     * Only holds the read lock while copying.
+     */
+    private boolean compactCopy(final int generation, final ArrayList<Update> updatesToReplay,
+            final File compactedFile) {
+        FileUtils.deleteRecursively(compactedFile);
+        final long startTime = System.nanoTime();
+        // The read lock keeps the file from being flushed or replaced while it's being copied,
+        // without blocking readers.
+        lockAndRecordWait(mLock.readLock());
+        try {
+            if (generation != mDictionaryGeneration
+                    || !BinaryDictionaryUtils.copyDict(mDictFile, compactedFile)) {
+                return false;
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        final BinaryDictionary compactedDictionary = new BinaryDictionary(
+                compactedFile.getAbsolutePath(), 0 /* offset */, compactedFile.length(),
+                true /* useFullEditDistance */, mLocale, mDictType, true /* isUpdatable */);
+        boolean compacted = false;
+        try {
+            if (compactedDictionary.isValidDictionary()) {
+                for (final Update update : updatesToReplay) {
+                    update.apply(compactedDictionary);
+                }
+                Trace.beginSection(LatencyTracker.DICTIONARY_COMPACTION);
+                try {
+                    compacted = compactedDictionary.flushWithGC();
+                } finally {
+                    Trace.endSection();
+                }
+            }
+        } finally {
+            compactedDictionary.close();
+        }
+        if (!compacted) {
+            Log.e(TAG, "Cannot compact dictionary: " + mDictName);
+            return false;
+        }
+        mMetrics.recordGC(false /* isBlocking */, System.nanoTime() - startTime);
+        return true;
+    }
+
+    private void swapInCompactedDictionaryLocked(final File compactedFile, final int generation,
+            final int replayedUpdateCount) {
+        if (generation != mDictionaryGeneration || mBinaryDictionary == null) {
+            // The dictionary was replaced or flushed while compacting, so the copy is stale.
+            return;
+        }
+        final long startTime = System.nanoTime();
+        final File oldFile = new File(mDictFile.getPath() + ".old");
+        FileUtils.deleteRecursively(oldFile);
+        final ArrayList<Update> unflushedUpdates = new ArrayList<>(mUnflushedUpdates);
+        closeBinaryDictionary();
+        boolean swapped = false;
+        if (BinaryDictionaryUtils.renameDict(mDictFile, oldFile)) {
+            swapped = BinaryDictionaryUtils.renameDict(compactedFile, mDictFile);
+            if (!swapped) {
+                BinaryDictionaryUtils.renameDict(oldFile, mDictFile);
+            }
+        }
+        if (!swapped) {
+            Log.e(TAG, "Cannot replace dictionary with compacted one: " + mDictName);
+        }
+        FileUtils.deleteRecursively(oldFile);
+        // The updates that aren't in the file that is now in place were only applied to the
+        // binary dictionary that was just closed, so apply them again.
+        final List<Update> updatesToApply = swapped
+                ? unflushedUpdates.subList(replayedUpdateCount, unflushedUpdates.size())
+                : unflushedUpdates;
+        openBinaryDictionaryLocked();
+        for (final Update update : updatesToApply) {
+            update.apply(mBinaryDictionary);
+        }
+        mUnflushedUpdates.addAll(updatesToApply);
+        mMetrics.recordSwap(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Queues an update. The first update of a batch schedules the task that applies the batch;
+     * later ones join it until that task takes the write lock.
+     */
+    private void updateDictionaryWithWriteLock(@Nonnull final Update update) {
+        reloadDictionaryIfRequired();
+        final boolean needsToScheduleTask;
+        synchronized (mPendingUpdates) {
+            mPendingUpdates.add(update);
+            needsToScheduleTask = !mIsApplyingUpdatesScheduled;
+            mIsApplyingUpdatesScheduled = true;
+        }
+        if (needsToScheduleTask) {
+            asyncExecuteTaskWithWriteLock(new Runnable() {
+                @Override
+                public void run() {
+                    applyPendingUpdatesLocked();
+                }
+            });
+        }
+    }
+
+    private void applyPendingUpdatesLocked() {
+        final ArrayList<Update> updates;
+        synchronized (mPendingUpdates) {
+            updates = new ArrayList<>(mPendingUpdates);
+            mIsApplyingUpdatesScheduled = false;
+        }
+        try {
+            if (mBinaryDictionary == null) {
+                return;
+            }
+            for (final Update update : updates) {
+                update.apply(mBinaryDictionary);
+            }
+            mUnflushedUpdates.addAll(updates);
+            if (mBinaryDictionary.needsToRunGC(true /* mindsBlockByGC */)) {
+                if (mIsCompacting.get()) {
+                    // Updates kept coming while the compaction runs, and the dictionary refuses
+                    // them once it reaches its size limit. GC it now rather than wait for the
+                    // swap; the compaction's result is then stale and discarded.
+                    flushWithGCLocked();
+                } else {
+                    asyncCompactLocked();
                 }
-                runGCIfRequiredLocked(true /* mindsBlockByGC */);
-                updateTask.run();
             }
-        };
-        asyncExecuteTaskWithWriteLock(task);
+        } finally {
+            // Only now that they're in the binary dictionary, so that isInDictionary always sees
+            // them in one or the other. Updates queued meanwhile are applied by the next task,
+            // which runs after this one on the same executor.
+            synchronized (mPendingUpdates) {
+                mPendingUpdates.subList(0, updates.size()).clear();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the latest pending update of the word adds or removes it, or null if no
+     * pending update says.
+     */
+    @Nullable
+    private Boolean isInPendingUpdates(final String word) {
+        synchronized (mPendingUpdates) {
+            for (int i = mPendingUpdates.size() - 1; i >= 0; --i) {
+                final Update update = mPendingUpdates.get(i);
+                if (word.equals(update.mRemovedWord)) {
+                    return false;
+                }
+                if (word.equals(update.mAddedWord)) {
+                    return true;
+                }
+            }
+        }
+        return null;
     }
 
     /**
@@ -297,10 +595,11 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
     public void addUnigramEntry(final String word, final int frequency,
             final String shortcutTarget, final int shortcutProbability,
             final boolean isNotAWord, final boolean isPossiblyOffensive, final int timestamp) {
-        updateDictionaryWithWriteLock(new Runnable() {
+        updateDictionaryWithWriteLock(new Update(isNotAWord ? null : word, null /* removedWord */) {
             @Override
-            public void run() {
-                addUnigramLocked(word, frequency, shortcutTarget, shortcutProbability, isNotAWord, isPossiblyOffensive, timestamp);
+            public void apply(@Nonnull final BinaryDictionary binaryDictionary) {
+                addUnigram(binaryDictionary, word, frequency, shortcutTarget,
+                        shortcutProbability, isNotAWord, isPossiblyOffensive, timestamp);
             }
         });
     }
@@ -308,7 +607,15 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
     protected void addUnigramLocked(final String word, final int frequency,
             final String shortcutTarget, final int shortcutProbability,
             final boolean isNotAWord, final boolean isPossiblyOffensive, final int timestamp) {
-        if (!mBinaryDictionary.addUnigramEntry(word, frequency,
+        addUnigram(mBinaryDictionary, word, frequency, shortcutTarget, shortcutProbability,
+                isNotAWord, isPossiblyOffensive, timestamp);
+    }
+
+    private static void addUnigram(@Nonnull final BinaryDictionary binaryDictionary,
+            final String word, final int frequency,
+            final String shortcutTarget, final int shortcutProbability,
+            final boolean isNotAWord, final boolean isPossiblyOffensive, final int timestamp) {
+        if (!binaryDictionary.addUnigramEntry(word, frequency,
                 shortcutTarget, shortcutProbability,
                 false /* isBeginningOfSentence */, isNotAWord, isPossiblyOffensive, timestamp)) {
             Log.e(TAG, "Cannot add unigram entry. word: " + word);
@@ -319,15 +626,9 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
      * Dynamically remove the unigram entry from the dictionary.
      */
     public void removeUnigramEntryDynamically(final String word) {
-        reloadDictionaryIfRequired();
-        asyncExecuteTaskWithWriteLock(new Runnable() {
+        updateDictionaryWithWriteLock(new Update(null /* addedWord */, word) {
             @Override
-            public void run() {
-                final BinaryDictionary binaryDictionary = getBinaryDictionary();
-                if (binaryDictionary == null) {
-                    return;
-                }
-                runGCIfRequiredLocked(true /* mindsBlockByGC */);
+            public void apply(@Nonnull final BinaryDictionary binaryDictionary) {
                 if (!binaryDictionary.removeUnigramEntry(word)) {
                     if (DEBUG) {
                         Log.i(TAG, "Cannot remove unigram entry: " + word);
@@ -342,22 +643,23 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
      */
     public void addNgramEntry(@Nonnull final NgramContext ngramContext, final String word,
             final int frequency, final int timestamp) {
-        reloadDictionaryIfRequired();
-        asyncExecuteTaskWithWriteLock(new Runnable() {
+        updateDictionaryWithWriteLock(new Update(null /* addedWord */, null /* removedWord */) {
             @Override
-            public void run() {
-                if (getBinaryDictionary() == null) {
-                    return;
-                }
-                runGCIfRequiredLocked(true /* mindsBlockByGC */);
-                addNgramEntryLocked(ngramContext, word, frequency, timestamp);
+            public void apply(@Nonnull final BinaryDictionary binaryDictionary) {
+                addNgramEntry(binaryDictionary, ngramContext, word, frequency, timestamp);
             }
         });
     }
 
     protected void addNgramEntryLocked(@Nonnull final NgramContext ngramContext, final String word,
             final int frequency, final int timestamp) {
-        if (!mBinaryDictionary.addNgramEntry(ngramContext, word, frequency, timestamp)) {
+        addNgramEntry(mBinaryDictionary, ngramContext, word, frequency, timestamp);
+    }
+
+    private static void addNgramEntry(@Nonnull final BinaryDictionary binaryDictionary,
+            @Nonnull final NgramContext ngramContext, final String word,
+            final int frequency, final int timestamp) {
+        if (!binaryDictionary.addNgramEntry(ngramContext, word, frequency, timestamp)) {
             if (DEBUG) {
                 Log.i(TAG, "Cannot add n-gram entry.");
                 Log.i(TAG, "  NgramContext: " + ngramContext + ", word: " + word);
@@ -370,13 +672,11 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
      */
     public void updateEntriesForWord(@Nonnull final NgramContext ngramContext,
             final String word, final boolean isValidWord, final int count, final int timestamp) {
-        updateDictionaryWithWriteLock(new Runnable() {
+        // Whether the word is then in the dictionary depends on its history, so this update
+        // doesn't answer isInDictionary by itself.
+        updateDictionaryWithWriteLock(new Update(null /* addedWord */, null /* removedWord */) {
             @Override
-            public void run() {
-                final BinaryDictionary binaryDictionary = getBinaryDictionary();
-                if (binaryDictionary == null) {
-                    return;
-                }
+            public void apply(@Nonnull final BinaryDictionary binaryDictionary) {
                 if (!binaryDictionary.updateEntriesForWordWithNgramContext(ngramContext, word,
                         isValidWord, count, timestamp)) {
                     if (DEBUG) {
@@ -407,22 +707,20 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
     public void updateEntriesForInputEvents(
             @Nonnull final ArrayList<WordInputEventForPersonalization> inputEvents,
             final UpdateEntriesForInputEventsCallback callback) {
-        reloadDictionaryIfRequired();
+        updateDictionaryWithWriteLock(new Update(null /* addedWord */, null /* removedWord */) {
+            @Override
+            public void apply(@Nonnull final BinaryDictionary binaryDictionary) {
+                binaryDictionary.updateEntriesForInputEvents(
+                        inputEvents.toArray(
+                                new WordInputEventForPersonalization[inputEvents.size()]));
+            }
+        });
+        // Runs after the task applying the update above, as tasks are executed in order.
         asyncExecuteTaskWithWriteLock(new Runnable() {
             @Override
             public void run() {
-                try {
-                    final BinaryDictionary binaryDictionary = getBinaryDictionary();
-                    if (binaryDictionary == null) {
-                        return;
-                    }
-                    binaryDictionary.updateEntriesForInputEvents(
-                            inputEvents.toArray(
-                                    new WordInputEventForPersonalization[inputEvents.size()]));
-                } finally {
-                    if (callback != null) {
-                        callback.onFinished();
-                    }
+                if (callback != null) {
+                    callback.onFinished();
                 }
             }
         });
@@ -436,8 +734,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         reloadDictionaryIfRequired();
         boolean lockAcquired = false;
         try {
-            lockAcquired = mLock.readLock().tryLock(
-                    TIMEOUT_FOR_READ_OPS_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+            lockAcquired = tryLockForRead();
             if (lockAcquired) {
                 if (mBinaryDictionary == null) {
                     return null;
@@ -466,10 +763,13 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
     @Override
     public boolean isInDictionary(final String word) {
         reloadDictionaryIfRequired();
+        final Boolean isInPendingUpdates = isInPendingUpdates(word);
+        if (isInPendingUpdates != null) {
+            return isInPendingUpdates;
+        }
         boolean lockAcquired = false;
         try {
-            lockAcquired = mLock.readLock().tryLock(
-                    TIMEOUT_FOR_READ_OPS_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+            lockAcquired = tryLockForRead();
             if (lockAcquired) {
                 if (mBinaryDictionary == null) {
                     return false;
@@ -486,6 +786,27 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         return false;
     }
 
+    @Override
+    public boolean markValidWords(final String[] words, final boolean[] isValid) {
+        reloadDictionaryIfRequired();
+        boolean lockAcquired = false;
+        try {
+            lockAcquired = tryLockForRead();
+            if (!lockAcquired || mBinaryDictionary == null) {
+                return false;
+            }
+            // The read lock is reentrant, so isValidWord can't time out on it while it's held.
+            return super.markValidWords(words, isValid);
+        } catch (final InterruptedException e) {
+            Log.e(TAG, "Interrupted tryLock() in markValidWords().", e);
+        } finally {
+            if (lockAcquired) {
+                mLock.readLock().unlock();
+            }
+        }
+        return false;
+    }
+
     protected boolean isInDictionaryLocked(final String word) {
         if (mBinaryDictionary == null) return false;
         return mBinaryDictionary.isInDictionary(word);
@@ -496,8 +817,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         reloadDictionaryIfRequired();
         boolean lockAcquired = false;
         try {
-            lockAcquired = mLock.readLock().tryLock(
-                    TIMEOUT_FOR_READ_OPS_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+            lockAcquired = tryLockForRead();
             if (lockAcquired) {
                 if (mBinaryDictionary == null) {
                     return NOT_A_PROBABILITY;
@@ -554,6 +874,7 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         loadInitialContentsLocked();
         // Run GC and flush to file when initial contents have been loaded.
         mBinaryDictionary.flushWithGCIfHasUpdated();
+        mDictionaryGeneration++;
     }
 
     /**
@@ -640,10 +961,15 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
                 if (binaryDictionary == null) {
                     return;
                 }
-                if (binaryDictionary.needsToRunGC(false /* mindsBlockByGC */)) {
-                    binaryDictionary.flushWithGC();
+                if (mIsCompacting.get()) {
+                    // Flushing now would make the compacted copy stale. The compacted file is
+                    // written when it's swapped in, and updates made meanwhile right after.
+                    mNeedsToFlushAfterCompaction = true;
+                } else if (binaryDictionary.needsToRunGC(false /* mindsBlockByGC */)) {
+                    mNeedsToFlushAfterCompaction = true;
+                    asyncCompactLocked();
                 } else {
-                    binaryDictionary.flush();
+                    flushLocked();
                 }
             }
         });
@@ -680,6 +1006,26 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         }
     }
 
+    /**
+     * Starts compacting the dictionary in the background, writing it first if it has no file
+     * yet. Lets tests make updates while the compaction runs.
+     */
+    @UsedForTesting
+    void compactForTests() {
+        asyncExecuteTaskWithWriteLock(new Runnable() {
+            @Override
+            public void run() {
+                if (mBinaryDictionary == null) {
+                    return;
+                }
+                if (!mDictFile.exists()) {
+                    flushLocked();
+                }
+                asyncCompactLocked();
+            }
+        });
+    }
+
     @UsedForTesting
     public void clearAndFlushDictionaryWithAdditionalAttributes(
             final Map<String, String> attributeMap) {
@@ -757,4 +1103,81 @@ abstract public class ExpandableBinaryDictionary extends Dictionary {
         return result.get(DEFAULT_WORD_PROPERTIES_FOR_SYNC,
                 TIMEOUT_FOR_READ_OPS_IN_MILLISECONDS);
     }
+
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Times spent waiting for the lock and running GC, for spotting stalls in dumps.
+     */
+    public static final class Metrics {
+        private final AtomicLong mReadLockWaitCount = new AtomicLong();
+        private final AtomicLong mReadLockWaitNanos = new AtomicLong();
+        private final AtomicLong mMaxReadLockWaitNanos = new AtomicLong();
+        private final AtomicLong mReadLockTimeoutCount = new AtomicLong();
+        private final AtomicLong mWriteLockWaitCount = new AtomicLong();
+        private final AtomicLong mWriteLockWaitNanos = new AtomicLong();
+        private final AtomicLong mMaxWriteLockWaitNanos = new AtomicLong();
+        private final AtomicLong mBlockingGCCount = new AtomicLong();
+        private final AtomicLong mBlockingGCNanos = new AtomicLong();
+        private final AtomicLong mCompactionCount = new AtomicLong();
+        private final AtomicLong mCompactionNanos = new AtomicLong();
+        private final AtomicLong mMaxCompactionNanos = new AtomicLong();
+        private final AtomicLong mMaxSwapNanos = new AtomicLong();
+
+        void recordLockWait(final boolean isWrite, final long nanos, final boolean acquired) {
+            if (isWrite) {
+                mWriteLockWaitCount.incrementAndGet();
+                mWriteLockWaitNanos.addAndGet(nanos);
+                mMaxWriteLockWaitNanos.accumulateAndGet(nanos, Math::max);
+            } else {
+                mReadLockWaitCount.incrementAndGet();
+                mReadLockWaitNanos.addAndGet(nanos);
+                mMaxReadLockWaitNanos.accumulateAndGet(nanos, Math::max);
+                if (!acquired) {
+                    mReadLockTimeoutCount.incrementAndGet();
+                }
+            }
+        }
+
+        void recordGC(final boolean isBlocking, final long nanos) {
+            LatencyTracker.record(isBlocking
+                    ? LatencyTracker.DICTIONARY_GC : LatencyTracker.DICTIONARY_COMPACTION, nanos);
+            if (isBlocking) {
+                mBlockingGCCount.incrementAndGet();
+                mBlockingGCNanos.addAndGet(nanos);
+            } else {
+                mCompactionCount.incrementAndGet();
+                mCompactionNanos.addAndGet(nanos);
+                mMaxCompactionNanos.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        void recordSwap(final long nanos) {
+            mMaxSwapNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        private static String formatTimes(final String what, final AtomicLong count,
+                final AtomicLong totalNanos, final AtomicLong maxNanos) {
+            final long n = count.get();
+            final long averageNanos = n == 0 ? 0 : totalNanos.get() / n;
+            return n + " " + what + ", avg " + averageNanos / 1000 + "us, max "
+                    + maxNanos.get() / 1000 + "us";
+        }
+
+        @Override
+        public String toString() {
+            return "read lock: " + formatTimes("waits", mReadLockWaitCount,
+                            mReadLockWaitNanos, mMaxReadLockWaitNanos)
+                    + ", " + mReadLockTimeoutCount.get() + " timeouts"
+                    + "\nwrite lock: " + formatTimes("waits", mWriteLockWaitCount,
+                            mWriteLockWaitNanos, mMaxWriteLockWaitNanos)
+                    + "\nblocking GC: " + mBlockingGCCount.get() + " runs, "
+                    + TimeUnit.NANOSECONDS.toMillis(mBlockingGCNanos.get()) + "ms total"
+                    + "\ncompaction: " + formatTimes("runs", mCompactionCount,
+                            mCompactionNanos, mMaxCompactionNanos)
+                    + ", max swap " + mMaxSwapNanos.get() / 1000 + "us";
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package org.futo.inputmethod.latin
 
+import android.content.ComponentCallbacks2
 import android.content.res.Configuration
 import android.graphics.Color
 import android.inputmethodservice.InputMethodService
@@ -443,6 +444,7 @@ class LatinIME : InputMethodService(), LifecycleOwner, ViewModelStoreOwner, Save
         super.onStartInputView(info, restarting)
         latinIMELegacy.onStartInputView(info, restarting)
         lifecycleScope.launch { uixManager.showUpdateNoticeIfNeeded() }
+        uixManager.onInputStarting(info)
     }
 
     override fun onFinishInputView(finishingInput: Boolean) {
@@ -605,7 +607,14 @@ class LatinIME : InputMethodService(), LifecycleOwner, ViewModelStoreOwner, Save
 
     override fun onTrimMemory(level: Int) {
         super.onTrimMemory(level)
-        uixManager.cleanUpPersistentStates()
+
+        // UI_HIDDEN comes every time the keyboard is hidden, which alone is no reason to drop
+        // models that would have to be loaded again for the next field
+        val isMemoryLow = level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                && level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+        if(isMemoryLow) {
+            uixManager.cleanUpPersistentStates()
+        }
     }
 
     @RequiresApi(Build.VERSION_CODES.R)
@@ -41,6 +41,7 @@ import android.os.Message;
 import android.preference.PreferenceManager;
 import android.text.InputType;
 import android.util.Log;
+import android.util.Pair;
 import android.util.PrintWriterPrinter;
 import android.util.Printer;
 import android.util.SparseArray;
@@ -79,6 +80,7 @@ import org.futo.inputmethod.latin.common.InputPointers;
 import org.futo.inputmethod.latin.define.DebugFlags;
 import org.futo.inputmethod.latin.define.ProductionFlags;
 import org.futo.inputmethod.latin.inputlogic.InputLogic;
+import org.futo.inputmethod.latin.makedict.DictionaryPatch;
 import org.futo.inputmethod.latin.permissions.PermissionsManager;
 import org.futo.inputmethod.latin.personalization.PersonalizationHelper;
 import org.futo.inputmethod.latin.settings.Settings;
@@ -104,6 +106,7 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
@@ -142,6 +145,9 @@ public class LatinIMELegacy implements KeyboardActionListener,
     private static final String SCHEME_PACKAGE = "package";
 
     public static boolean mPendingDictionaryUpdate = false;
+    // Patches already applied to dictionary files, to be applied to the loaded main dictionary
+    public static final ConcurrentLinkedQueue<Pair<Locale, DictionaryPatch>>
+            mPendingDictionaryPatches = new ConcurrentLinkedQueue<>();
     public final Settings mSettings;
     private Locale mLocale;
     final DictionaryFacilitator mDictionaryFacilitator =
@@ -815,6 +821,17 @@ public class LatinIMELegacy implements KeyboardActionListener,
     }
 
     public void onStartInput(final EditorInfo editorInfo, final boolean restarting) {
+        Pair<Locale, DictionaryPatch> pendingPatch;
+        while ((pendingPatch = mPendingDictionaryPatches.poll()) != null) {
+            // Dictionaries for other locales read the patched file when they are loaded
+            if (mPendingDictionaryUpdate
+                    || !mDictionaryFacilitator.isForLocale(pendingPatch.first)) continue;
+            if (!mDictionaryFacilitator.applyMainDictionaryPatch(pendingPatch.first,
+                    pendingPatch.second)) {
+                Log.w(TAG, "Could not patch the loaded dictionary, reloading it instead");
+                mPendingDictionaryUpdate = true;
+            }
+        }
         if(mPendingDictionaryUpdate) {
             Log.i(TAG, "Pending dictionary update received, posting update dictionaries...");
             mPendingDictionaryUpdate = false;
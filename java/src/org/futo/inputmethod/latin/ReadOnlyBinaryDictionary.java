@@ -18,8 +18,10 @@ package org.futo.inputmethod.latin;
 
 import org.futo.inputmethod.latin.SuggestedWords.SuggestedWordInfo;
 import org.futo.inputmethod.latin.common.ComposedData;
+import org.futo.inputmethod.latin.makedict.DictionaryPatch;
 import org.futo.inputmethod.latin.settings.SettingsValuesForSuggestion;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Locale;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -38,11 +40,29 @@ public final class ReadOnlyBinaryDictionary extends Dictionary {
 
     private final BinaryDictionary mBinaryDictionary;
 
+    private final String mFilename;
+    private final long mOffset;
+    private final long mLength;
+
     public ReadOnlyBinaryDictionary(final String filename, final long offset, final long length,
             final boolean useFullEditDistance, final Locale locale, final String dictType) {
+        this(filename, offset, length, useFullEditDistance, locale, dictType,
+                false /* isPatchable */);
+    }
+
+    /**
+     * @param isPatchable whether to open the dictionary so that {@link #applyPatch} can update it
+     * in memory. The dictionary is still never written to.
+     */
+    public ReadOnlyBinaryDictionary(final String filename, final long offset, final long length,
+            final boolean useFullEditDistance, final Locale locale, final String dictType,
+            final boolean isPatchable) {
         super(dictType, locale);
+        mFilename = filename;
+        mOffset = offset;
+        mLength = length;
         mBinaryDictionary = new BinaryDictionary(filename, offset, length, useFullEditDistance,
-                locale, dictType, false /* isUpdatable */);
+                locale, dictType, isPatchable);
     }
 
     public boolean isValidDictionary() {
@@ -79,6 +99,23 @@ public final class ReadOnlyBinaryDictionary extends Dictionary {
         return false;
     }
 
+    @Override
+    public boolean markValidWords(final String[] words, final boolean[] isValid) {
+        if (mLock.readLock().tryLock()) {
+            try {
+                for (int i = 0; i < words.length; ++i) {
+                    if (!isValid[i] && mBinaryDictionary.isValidWord(words[i])) {
+                        isValid[i] = true;
+                    }
+                }
+                return true;
+            } finally {
+                mLock.readLock().unlock();
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean shouldAutoCommit(final SuggestedWordInfo candidate) {
         if (mLock.readLock().tryLock()) {
@@ -115,6 +152,36 @@ public final class ReadOnlyBinaryDictionary extends Dictionary {
         return NOT_A_PROBABILITY;
     }
 
+    /**
+     * Applies a dictionary patch to the loaded dictionary, so that it matches a patched file on
+     * disk without reloading it. Lookups made while the patch is applied return no results.
+     * @return whether every edit was applied. If not, the dictionary should be reloaded.
+     */
+    public boolean applyPatch(final DictionaryPatch patch) {
+        mLock.writeLock().lock();
+        try {
+            return mBinaryDictionary.applyPatch(patch);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns a hash of the location of the dictionary file and of when it was last modified.
+     */
+    public long getContentHash() {
+        final File file = new File(mFilename);
+        long lastModified = file.lastModified();
+        final File[] files = file.listFiles();
+        if (files != null) {
+            // Version 4 dictionaries are directories, whose files are updated in place.
+            for (final File f : files) {
+                lastModified = Math.max(lastModified, f.lastModified());
+            }
+        }
+        return ((mFilename.hashCode() * 31L + mOffset) * 31L + mLength) * 31L + lastModified;
+    }
+
     @Override
     public void close() {
         mLock.writeLock().lock();
@@ -55,6 +55,7 @@ import org.futo.inputmethod.latin.settings.SpacingAndPunctuations;
 import org.futo.inputmethod.latin.suggestions.SuggestionStripViewAccessor;
 import org.futo.inputmethod.latin.utils.AsyncResultHolder;
 import org.futo.inputmethod.latin.utils.InputTypeUtils;
+import org.futo.inputmethod.latin.utils.LatencyTracker;
 import org.futo.inputmethod.latin.utils.RecapitalizeStatus;
 import org.futo.inputmethod.latin.utils.StatsUtils;
 import org.futo.inputmethod.latin.utils.TextRange;
@@ -461,6 +462,18 @@ public final class InputLogic {
     public InputTransaction onCodeInput(final SettingsValues settingsValues,
             @Nonnull final Event event, final int keyboardShiftMode,
             final int currentKeyboardScriptId, final LatinIMELegacy.UIHandler handler) {
+        final long startNanos = LatencyTracker.begin(LatencyTracker.KEY_INPUT);
+        try {
+            return handleCodeInput(settingsValues, event, keyboardShiftMode,
+                    currentKeyboardScriptId, handler);
+        } finally {
+            LatencyTracker.end(LatencyTracker.KEY_INPUT, startNanos);
+        }
+    }
+
+    private InputTransaction handleCodeInput(final SettingsValues settingsValues,
+            @Nonnull final Event event, final int keyboardShiftMode,
+            final int currentKeyboardScriptId, final LatinIMELegacy.UIHandler handler) {
         mWordBeingCorrectedByCursor = null;
         final Event processedEvent = mWordComposer.processEvent(event);
         final InputTransaction inputTransaction = new InputTransaction(settingsValues,
@@ -991,6 +1004,9 @@ public final class InputLogic {
 
             if (!shouldAvoidSendingCode) {
                 sendKeyCodePoint(settingsValues, codePoint);
+                if (wasComposingWord && settingsValues.mTransformerPredictionEnabled) {
+                    handler.getLanguageModelFacilitator().speculateNextWord();
+                }
             }
         } else {
             if ((SpaceState.PHANTOM == inputTransaction.mSpaceState
@@ -1597,7 +1613,12 @@ public final class InputLogic {
         final SuggestedWords suggestedWords = holder.get(null,
                 Constants.GET_SUGGESTED_WORDS_TIMEOUT);
         if (suggestedWords != null) {
-            mSuggestionStripViewAccessor.showSuggestionStrip(suggestedWords);
+            final long startNanos = LatencyTracker.begin(LatencyTracker.SUGGESTION_STRIP);
+            try {
+                mSuggestionStripViewAccessor.showSuggestionStrip(suggestedWords);
+            } finally {
+                LatencyTracker.end(LatencyTracker.SUGGESTION_STRIP, startNanos);
+            }
         }
         if (DebugFlags.DEBUG_ENABLED) {
             long runTimeMillis = System.currentTimeMillis() - startTimeMillis;
@@ -0,0 +1,293 @@
+package org.futo.inputmethod.latin.makedict;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An incremental update from one version of a dictionary to the next.
+ *
+ * A patch is generated off-device by dicttool from two versions of a dictionary, and is a list
+ * of unigram and bigram edits that turn the base version into the target version. On device it
+ * is applied to a version 4 dictionary through the BinaryDictionary update methods.
+ *
+ * The file starts with an uncompressed magic number and format version, so that the kind of
+ * file can be told from its first bytes like for dictionaries. The rest is gzip compressed:
+ *
+ * - base version, target version (modified UTF-8 strings)
+ * - attribute count, then key and value strings for the header of the target version
+ * - edits, each starting with one byte for its type, terminated by {@link #EDIT_END}
+ */
+public final class DictionaryPatch {
+    public static final int MAGIC_NUMBER = 0x44505443; // "DPTC"
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int EDIT_END = 0;
+    private static final int EDIT_SET_WORD = 1;
+    private static final int EDIT_REMOVE_WORD = 2;
+    private static final int EDIT_SET_BIGRAM = 3;
+    private static final int EDIT_REMOVE_BIGRAM = 4;
+
+    private static final int FLAG_NOT_A_WORD = 0x1;
+    private static final int FLAG_POSSIBLY_OFFENSIVE = 0x2;
+
+    /**
+     * Receives the edits of a patch. Each method returns whether the edit could be applied.
+     */
+    public interface Editor {
+        boolean setWord(String word, int probability, boolean isNotAWord,
+                boolean isPossiblyOffensive);
+        boolean removeWord(String word);
+        boolean setBigram(String word0, String word1, int probability);
+        boolean removeBigram(String word0, String word1);
+    }
+
+    private static final class Edit {
+        public final int mType;
+        public final String mWord0;
+        public final String mWord1;
+        public final int mProbability;
+        public final int mFlags;
+
+        public Edit(final int type, final String word0, final String word1,
+                final int probability, final int flags) {
+            mType = type;
+            mWord0 = word0;
+            mWord1 = word1;
+            mProbability = probability;
+            mFlags = flags;
+        }
+    }
+
+    public final String mBaseVersion;
+    public final String mTargetVersion;
+    public final Map<String, String> mTargetAttributes;
+    private final ArrayList<Edit> mEdits = new ArrayList<>();
+
+    public DictionaryPatch(final String baseVersion, final String targetVersion,
+            final Map<String, String> targetAttributes) {
+        mBaseVersion = baseVersion;
+        mTargetVersion = targetVersion;
+        mTargetAttributes = Collections.unmodifiableMap(new TreeMap<>(targetAttributes));
+    }
+
+    public void setWord(final String word, final int probability, final boolean isNotAWord,
+            final boolean isPossiblyOffensive) {
+        mEdits.add(new Edit(EDIT_SET_WORD, word, null, probability,
+                (isNotAWord ? FLAG_NOT_A_WORD : 0)
+                        | (isPossiblyOffensive ? FLAG_POSSIBLY_OFFENSIVE : 0)));
+    }
+
+    public void removeWord(final String word) {
+        mEdits.add(new Edit(EDIT_REMOVE_WORD, word, null, 0, 0));
+    }
+
+    public void setBigram(final String word0, final String word1, final int probability) {
+        mEdits.add(new Edit(EDIT_SET_BIGRAM, word0, word1, probability, 0));
+    }
+
+    public void removeBigram(final String word0, final String word1) {
+        mEdits.add(new Edit(EDIT_REMOVE_BIGRAM, word0, word1, 0, 0));
+    }
+
+    public int getEditCount() {
+        return mEdits.size();
+    }
+
+    /**
+     * Passes every edit to the editor in order. Edits are recorded so that words are added before
+     * the bigrams that use them and bigrams are removed before their words, so applying them in
+     * order is always valid on the base version.
+     *
+     * @return whether all the edits were applied. Stops at the first edit that fails.
+     */
+    public boolean applyTo(final Editor editor) {
+        for (final Edit edit : mEdits) {
+            final boolean applied;
+            switch (edit.mType) {
+                case EDIT_SET_WORD:
+                    applied = editor.setWord(edit.mWord0, edit.mProbability,
+                            0 != (edit.mFlags & FLAG_NOT_A_WORD),
+                            0 != (edit.mFlags & FLAG_POSSIBLY_OFFENSIVE));
+                    break;
+                case EDIT_REMOVE_WORD:
+                    applied = editor.removeWord(edit.mWord0);
+                    break;
+                case EDIT_SET_BIGRAM:
+                    applied = editor.setBigram(edit.mWord0, edit.mWord1, edit.mProbability);
+                    break;
+                case EDIT_REMOVE_BIGRAM:
+                    applied = editor.removeBigram(edit.mWord0, edit.mWord1);
+                    break;
+                default:
+                    throw new RuntimeException("Unknown edit type " + edit.mType);
+            }
+            if (!applied) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void writeTo(final OutputStream out) throws IOException {
+        final DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC_NUMBER);
+        header.writeShort(FORMAT_VERSION);
+        header.flush();
+
+        final GZIPOutputStream compressed = new GZIPOutputStream(out);
+        final DataOutputStream body = new DataOutputStream(compressed);
+        body.writeUTF(mBaseVersion);
+        body.writeUTF(mTargetVersion);
+        body.writeInt(mTargetAttributes.size());
+        for (final Map.Entry<String, String> attribute : mTargetAttributes.entrySet()) {
+            body.writeUTF(attribute.getKey());
+            body.writeUTF(attribute.getValue());
+        }
+        for (final Edit edit : mEdits) {
+            body.writeByte(edit.mType);
+            body.writeUTF(edit.mWord0);
+            switch (edit.mType) {
+                case EDIT_SET_WORD:
+                    body.writeByte(edit.mProbability);
+                    body.writeByte(edit.mFlags);
+                    break;
+                case EDIT_SET_BIGRAM:
+                    body.writeUTF(edit.mWord1);
+                    body.writeByte(edit.mProbability);
+                    break;
+                case EDIT_REMOVE_BIGRAM:
+                    body.writeUTF(edit.mWord1);
+                    break;
+            }
+        }
+        body.writeByte(EDIT_END);
+        body.flush();
+        compressed.finish();
+    }
+
+    public static DictionaryPatch readFrom(final InputStream in)
+            throws IOException, UnsupportedFormatException {
+        final DataInputStream header = new DataInputStream(in);
+        if (MAGIC_NUMBER != header.readInt()) {
+            throw new UnsupportedFormatException("Not a dictionary patch");
+        }
+        final int formatVersion = header.readUnsignedShort();
+        if (FORMAT_VERSION != formatVersion) {
+            throw new UnsupportedFormatException(
+                    "Unsupported dictionary patch version " + formatVersion);
+        }
+
+        final DataInputStream body = new DataInputStream(new GZIPInputStream(in));
+        final String baseVersion = body.readUTF();
+        final String targetVersion = body.readUTF();
+        final int attributeCount = body.readInt();
+        final HashMap<String, String> attributes = new HashMap<>();
+        for (int i = 0; i < attributeCount; ++i) {
+            attributes.put(body.readUTF(), body.readUTF());
+        }
+        final DictionaryPatch patch = new DictionaryPatch(baseVersion, targetVersion, attributes);
+        while (true) {
+            final int type = body.readUnsignedByte();
+            if (EDIT_END == type) {
+                break;
+            }
+            final String word0 = body.readUTF();
+            switch (type) {
+                case EDIT_SET_WORD:
+                    patch.mEdits.add(new Edit(type, word0, null, body.readUnsignedByte(),
+                            body.readUnsignedByte()));
+                    break;
+                case EDIT_REMOVE_WORD:
+                    patch.mEdits.add(new Edit(type, word0, null, 0, 0));
+                    break;
+                case EDIT_SET_BIGRAM:
+                    final String target = body.readUTF();
+                    patch.mEdits.add(new Edit(type, word0, target, body.readUnsignedByte(), 0));
+                    break;
+                case EDIT_REMOVE_BIGRAM:
+                    patch.mEdits.add(new Edit(type, word0, body.readUTF(), 0, 0));
+                    break;
+                default:
+                    throw new UnsupportedFormatException("Unknown dictionary patch edit " + type);
+            }
+        }
+        return patch;
+    }
+
+    /**
+     * Computes the patch that turns the words of the base dictionary into those of the target.
+     * Either list can be in any order; edits are emitted sorted by word, which keeps the
+     * compressed patch small.
+     */
+    public static DictionaryPatch compute(final String baseVersion,
+            final Iterable<WordProperty> baseWords, final String targetVersion,
+            final Iterable<WordProperty> targetWords, final Map<String, String> targetAttributes) {
+        final TreeMap<String, WordProperty> base = new TreeMap<>();
+        for (final WordProperty word : baseWords) {
+            base.put(word.mWord, word);
+        }
+        final TreeMap<String, WordProperty> target = new TreeMap<>();
+        for (final WordProperty word : targetWords) {
+            target.put(word.mWord, word);
+        }
+
+        final DictionaryPatch patch =
+                new DictionaryPatch(baseVersion, targetVersion, targetAttributes);
+
+        // Bigrams that go away are removed first, while both of their words still exist
+        for (final WordProperty word : base.values()) {
+            final TreeMap<String, Integer> bigrams = getBigramMap(word);
+            final TreeMap<String, Integer> targetBigrams = getBigramMap(target.get(word.mWord));
+            for (final String word1 : bigrams.keySet()) {
+                if (!targetBigrams.containsKey(word1)) {
+                    patch.removeBigram(word.mWord, word1);
+                }
+            }
+        }
+        for (final String word : base.keySet()) {
+            if (!target.containsKey(word)) {
+                patch.removeWord(word);
+            }
+        }
+        for (final WordProperty word : target.values()) {
+            final WordProperty baseWord = base.get(word.mWord);
+            if (null == baseWord || baseWord.getProbability() != word.getProbability()
+                    || baseWord.mIsNotAWord != word.mIsNotAWord
+                    || baseWord.mIsPossiblyOffensive != word.mIsPossiblyOffensive) {
+                patch.setWord(word.mWord, word.getProbability(), word.mIsNotAWord,
+                        word.mIsPossiblyOffensive);
+            }
+        }
+        for (final WordProperty word : target.values()) {
+            final TreeMap<String, Integer> baseBigrams = getBigramMap(base.get(word.mWord));
+            for (final Map.Entry<String, Integer> bigram : getBigramMap(word).entrySet()) {
+                if (!bigram.getValue().equals(baseBigrams.get(bigram.getKey()))) {
+                    patch.setBigram(word.mWord, bigram.getKey(), bigram.getValue());
+                }
+            }
+        }
+        return patch;
+    }
+
+    private static TreeMap<String, Integer> getBigramMap(final WordProperty word) {
+        final TreeMap<String, Integer> bigrams = new TreeMap<>();
+        if (null == word) return bigrams;
+        final List<WeightedString> weightedStrings = word.getBigrams();
+        if (null == weightedStrings) return bigrams;
+        for (final WeightedString bigram : weightedStrings) {
+            bigrams.put(bigram.mWord, bigram.getProbability());
+        }
+        return bigrams;
+    }
+}
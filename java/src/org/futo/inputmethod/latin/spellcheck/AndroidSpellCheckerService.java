@@ -43,6 +43,8 @@ import org.futo.inputmethod.latin.utils.SuggestionResults;
 import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 
 import javax.annotation.Nonnull;
@@ -69,6 +71,10 @@ public final class AndroidSpellCheckerService extends SpellCheckerService
             true /* fair */);
     // TODO: Make each spell checker session has its own session id.
     private final ConcurrentLinkedQueue<Integer> mSessionIdPool = new ConcurrentLinkedQueue<>();
+    // Computes suggestions for the misspelled words of a sentence in parallel. There is no point
+    // in more threads than can read the dictionaries at the same time.
+    private final ExecutorService mSuggestionExecutor =
+            Executors.newFixedThreadPool(MAX_NUM_OF_THREADS_READ_DICTIONARY);
 
     private final DictionaryFacilitatorLruCache mDictionaryFacilitatorCache =
             new DictionaryFacilitatorLruCache(this /* context */, DICTIONARY_NAME_PREFIX);
@@ -100,10 +106,20 @@ public final class AndroidSpellCheckerService extends SpellCheckerService
         onSharedPreferenceChanged(prefs, PREF_USE_CONTACTS_KEY);
     }
 
+    @Override
+    public void onDestroy() {
+        mSuggestionExecutor.shutdownNow();
+        super.onDestroy();
+    }
+
     public float getRecommendedThreshold() {
         return mRecommendedThreshold;
     }
 
+    public ExecutorService getSuggestionExecutor() {
+        return mSuggestionExecutor;
+    }
+
     private static String getKeyboardLayoutNameForLocale(final Locale locale) {
         // See b/19963288.
         if (locale.getLanguage().equals("sr")) {
@@ -168,6 +184,21 @@ public final class AndroidSpellCheckerService extends SpellCheckerService
         }
     }
 
+    /**
+     * Checks the validity of several words at once. This waits for the dictionaries only once
+     * and lets each dictionary look up all the words in a row.
+     */
+    public boolean[] isValidWords(final Locale locale, final String[] words) {
+        mSemaphore.acquireUninterruptibly();
+        try {
+            DictionaryFacilitator dictionaryFacilitatorForLocale =
+                    mDictionaryFacilitatorCache.get(locale);
+            return dictionaryFacilitatorForLocale.isValidSpellingWords(words);
+        } finally {
+            mSemaphore.release();
+        }
+    }
+
     public SuggestionResults getSuggestionResults(final Locale locale,
             final ComposedData composedData, final NgramContext ngramContext,
             @Nonnull final Keyboard keyboard) {
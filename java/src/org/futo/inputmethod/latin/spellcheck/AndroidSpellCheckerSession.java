@@ -31,6 +31,7 @@ import org.futo.inputmethod.latin.NgramContext;
 import org.futo.inputmethod.latin.utils.SpannableStringUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Locale;
 
 public final class AndroidSpellCheckerSession extends AndroidWordLevelSpellCheckerSession {
@@ -173,53 +174,89 @@ public final class AndroidSpellCheckerSession extends AndroidWordLevelSpellCheck
         if (sentenceLevelAdapter == null) {
             return SentenceLevelAdapter.getEmptySentenceSuggestionsInfo();
         }
+        // Check the words of all the sentences together, so that each distinct word is looked up
+        // only once.
         final int infosSize = textInfos.length;
-        final SentenceSuggestionsInfo[] retval = new SentenceSuggestionsInfo[infosSize];
+        final SentenceLevelAdapter.SentenceTextInfoParams[] textInfoParams =
+                new SentenceLevelAdapter.SentenceTextInfoParams[infosSize];
+        final ArrayList<TextInfo> splitTextInfos = new ArrayList<>();
         for (int i = 0; i < infosSize; ++i) {
-            final SentenceLevelAdapter.SentenceTextInfoParams textInfoParams =
-                    sentenceLevelAdapter.getSplitWords(textInfos[i]);
-            final ArrayList<SentenceLevelAdapter.SentenceWordItem> mItems =
-                    textInfoParams.mItems;
-            final int itemsSize = mItems.size();
-            final TextInfo[] splitTextInfos = new TextInfo[itemsSize];
-            for (int j = 0; j < itemsSize; ++j) {
-                splitTextInfos[j] = mItems.get(j).mTextInfo;
+            textInfoParams[i] = sentenceLevelAdapter.getSplitWords(textInfos[i]);
+            for (final SentenceLevelAdapter.SentenceWordItem item : textInfoParams[i].mItems) {
+                splitTextInfos.add(item.mTextInfo);
             }
-            retval[i] = SentenceLevelAdapter.reconstructSuggestions(
-                    textInfoParams, onGetSuggestionsMultiple(
-                            splitTextInfos, suggestionsLimit, true));
+        }
+        final SuggestionsInfo[] suggestionsInfos = getSuggestionsForSequentialWords(
+                splitTextInfos.toArray(new TextInfo[splitTextInfos.size()]), textInfoParams,
+                suggestionsLimit);
+        final SentenceSuggestionsInfo[] retval = new SentenceSuggestionsInfo[infosSize];
+        int start = 0;
+        for (int i = 0; i < infosSize; ++i) {
+            final int itemsSize = textInfoParams[i].mItems.size();
+            retval[i] = SentenceLevelAdapter.reconstructSuggestions(textInfoParams[i],
+                    Arrays.copyOfRange(suggestionsInfos, start, start + itemsSize));
+            start += itemsSize;
         }
         return retval;
     }
 
-    @Override
-    public SuggestionsInfo[] onGetSuggestionsMultiple(TextInfo[] textInfos,
-            int suggestionsLimit, boolean sequentialWords) {
+    /**
+     * Gets the suggestions for the words of several sentences in one batch. Each word uses the
+     * previous word of the same sentence as its context.
+     */
+    private SuggestionsInfo[] getSuggestionsForSequentialWords(final TextInfo[] textInfos,
+            final SentenceLevelAdapter.SentenceTextInfoParams[] textInfoParams,
+            final int suggestionsLimit) {
+        final NgramContext[] ngramContexts = new NgramContext[textInfos.length];
+        int index = 0;
+        for (final SentenceLevelAdapter.SentenceTextInfoParams params : textInfoParams) {
+            for (int j = 0; j < params.mItems.size(); ++j, ++index) {
+                ngramContexts[index] = getNgramContext(textInfos, index, j > 0);
+            }
+        }
+        return getSuggestions(textInfos, ngramContexts, suggestionsLimit);
+    }
+
+    private SuggestionsInfo[] getSuggestions(final TextInfo[] textInfos,
+            final NgramContext[] ngramContexts, final int suggestionsLimit) {
         long ident = Binder.clearCallingIdentity();
         try {
-            final int length = textInfos.length;
-            final SuggestionsInfo[] retval = new SuggestionsInfo[length];
-            for (int i = 0; i < length; ++i) {
-                final CharSequence prevWord;
-                if (sequentialWords && i > 0) {
-                    final TextInfo prevTextInfo = textInfos[i - 1];
-                    final CharSequence prevWordCandidate =
-                            TextInfoCompatUtils.getCharSequenceOrString(prevTextInfo);
-                    // Note that an empty string would be used to indicate the initial word
-                    // in the future.
-                    prevWord = TextUtils.isEmpty(prevWordCandidate) ? null : prevWordCandidate;
-                } else {
-                    prevWord = null;
-                }
-                final NgramContext ngramContext =
-                        new NgramContext(new NgramContext.WordInfo(prevWord));
-                final TextInfo textInfo = textInfos[i];
-                retval[i] = onGetSuggestionsInternal(textInfo, ngramContext, suggestionsLimit);
-                retval[i].setCookieAndSequence(textInfo.getCookie(), textInfo.getSequence());
+            final SuggestionsInfo[] retval =
+                    onGetSuggestionsInternal(textInfos, ngramContexts, suggestionsLimit);
+            for (int i = 0; i < textInfos.length; ++i) {
+                retval[i].setCookieAndSequence(textInfos[i].getCookie(),
+                        textInfos[i].getSequence());
             }
             return retval;
         } finally {
             Binder.restoreCallingIdentity(ident);
         }
     }
+
+    private static NgramContext getNgramContext(final TextInfo[] textInfos, final int index,
+            final boolean hasPrevWord) {
+        final CharSequence prevWord;
+        if (hasPrevWord) {
+            final TextInfo prevTextInfo = textInfos[index - 1];
+            final CharSequence prevWordCandidate =
+                    TextInfoCompatUtils.getCharSequenceOrString(prevTextInfo);
+            // Note that an empty string would be used to indicate the initial word
+            // in the future.
+            prevWord = TextUtils.isEmpty(prevWordCandidate) ? null : prevWordCandidate;
+        } else {
+            prevWord = null;
+        }
+        return new NgramContext(new NgramContext.WordInfo(prevWord));
+    }
+
+    @Override
+    public SuggestionsInfo[] onGetSuggestionsMultiple(TextInfo[] textInfos,
+            int suggestionsLimit, boolean sequentialWords) {
+        final int length = textInfos.length;
+        final NgramContext[] ngramContexts = new NgramContext[length];
+        for (int i = 0; i < length; ++i) {
+            ngramContexts[i] = getNgramContext(textInfos, i, sequentialWords && i > 0);
+        }
+        return getSuggestions(textInfos, ngramContexts, suggestionsLimit);
+    }
 }
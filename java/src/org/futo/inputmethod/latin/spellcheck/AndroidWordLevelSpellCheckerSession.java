@@ -42,8 +42,12 @@ import org.futo.inputmethod.latin.utils.StatsUtils;
 import org.futo.inputmethod.latin.utils.SuggestionResults;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public abstract class AndroidWordLevelSpellCheckerSession extends Session {
     private static final String TAG = AndroidWordLevelSpellCheckerSession.class.getSimpleName();
@@ -209,6 +213,30 @@ public abstract class AndroidWordLevelSpellCheckerSession extends Session {
                 StringUtils.capitalizeFirstAndDowncaseRest(lowerCaseText, mLocale));
     }
 
+    /**
+     * Returns the forms of a word that make it valid if any of them is in the dictionary, in the
+     * order {@link #isInDictForAnyCapitalization(String, int)} tests them.
+     */
+    private ArrayList<String> getCapitalizationsToCheck(final String text,
+            final int capitalizeType) {
+        final ArrayList<String> capitalizations = new ArrayList<>(3);
+        capitalizations.add(text);
+        if (StringUtils.CAPITALIZE_NONE == capitalizeType) return capitalizations;
+        final String lowerCaseText = text.toLowerCase(mLocale);
+        capitalizations.add(lowerCaseText);
+        if (StringUtils.CAPITALIZE_FIRST == capitalizeType) return capitalizations;
+        capitalizations.add(StringUtils.capitalizeFirstAndDowncaseRest(lowerCaseText, mLocale));
+        return capitalizations;
+    }
+
+    private static String getNormalizedText(final TextInfo textInfo) {
+        return textInfo.getText().
+                replaceAll(AndroidSpellCheckerService.APOSTROPHE,
+                        AndroidSpellCheckerService.SINGLE_QUOTE).
+                replaceAll("^" + quotesRegexp, "").
+                replaceAll(quotesRegexp + "$", "");
+    }
+
     // Note : this must be reentrant
     /**
      * Gets a list of suggestions for a specific string. This returns a list of possible
@@ -223,11 +251,7 @@ public abstract class AndroidWordLevelSpellCheckerSession extends Session {
     protected SuggestionsInfo onGetSuggestionsInternal(
             final TextInfo textInfo, final NgramContext ngramContext, final int suggestionsLimit) {
         try {
-            final String text = textInfo.getText().
-                    replaceAll(AndroidSpellCheckerService.APOSTROPHE,
-                            AndroidSpellCheckerService.SINGLE_QUOTE).
-                    replaceAll("^" + quotesRegexp, "").
-                    replaceAll(quotesRegexp + "$", "");
+            final String text = getNormalizedText(textInfo);
 
             if (!mService.hasMainDictionaryForLocale(mLocale)) {
                 return AndroidSpellCheckerService.getNotInDictEmptySuggestions(
@@ -272,57 +296,215 @@ public abstract class AndroidWordLevelSpellCheckerSession extends Session {
                 Log.i(TAG, "onGetSuggestionsInternal() : [" + text + "] is NOT a valid word");
             }
 
-            final Keyboard keyboard = mService.getKeyboardForLocale(mLocale);
-            if (null == keyboard) {
-                Log.w(TAG, "onGetSuggestionsInternal() : No keyboard for locale: " + mLocale);
-                // If there is no keyboard for this locale, don't do any spell-checking.
-                return AndroidSpellCheckerService.getNotInDictEmptySuggestions(
-                        false /* reportAsTypo */);
+            final SuggestionsParams cachedSuggestions =
+                    mSuggestionsCache.getSuggestionsFromCache(text);
+            if (null != cachedSuggestions) {
+                return new SuggestionsInfo(cachedSuggestions.mFlags,
+                        cachedSuggestions.mSuggestions);
             }
 
-            final WordComposer composer = new WordComposer();
-            final int[] codePoints = StringUtils.toCodePointArray(text);
-            final int[] coordinates;
-            coordinates = keyboard.getCoordinates(codePoints);
-            composer.setComposingWord(codePoints, coordinates);
-            // TODO: Don't gather suggestions if the limit is <= 0 unless necessary
-            final SuggestionResults suggestionResults = mService.getSuggestionResults(
-                    mLocale, composer.getComposedDataSnapshot(), ngramContext, keyboard);
-            final Result result = getResult(capitalizeType, mLocale, suggestionsLimit,
-                    mService.getRecommendedThreshold(), text, suggestionResults);
-            if (DebugFlags.DEBUG_ENABLED) {
-                if (result.mSuggestions != null && result.mSuggestions.length > 0) {
-                    final StringBuilder builder = new StringBuilder();
-                    for (String suggestion : result.mSuggestions) {
-                        builder.append(" [");
-                        builder.append(suggestion);
-                        builder.append("]");
+            final SuggestionsParams suggestions = getSuggestionsForMisspelledWord(
+                    text, capitalizeType, ngramContext, suggestionsLimit);
+            return new SuggestionsInfo(suggestions.mFlags, suggestions.mSuggestions);
+        } catch (RuntimeException e) {
+            // Don't kill the keyboard if there is a bug in the spell checker
+            Log.e(TAG, "Exception while spellchecking", e);
+            return AndroidSpellCheckerService.getNotInDictEmptySuggestions(
+                    false /* reportAsTypo */);
+        }
+    }
+
+    /**
+     * Computes the suggestions for a word that is not in the dictionary and caches them. This
+     * may be called from the suggestion threads of the service.
+     */
+    private SuggestionsParams getSuggestionsForMisspelledWord(final String text,
+            final int capitalizeType, final NgramContext ngramContext,
+            final int suggestionsLimit) {
+        final Keyboard keyboard = mService.getKeyboardForLocale(mLocale);
+        if (null == keyboard) {
+            Log.w(TAG, "getSuggestionsForMisspelledWord() : No keyboard for locale: " + mLocale);
+            // If there is no keyboard for this locale, don't do any spell-checking.
+            return new SuggestionsParams(EMPTY_STRING_ARRAY, 0 /* flags */);
+        }
+
+        final WordComposer composer = new WordComposer();
+        final int[] codePoints = StringUtils.toCodePointArray(text);
+        final int[] coordinates;
+        coordinates = keyboard.getCoordinates(codePoints);
+        composer.setComposingWord(codePoints, coordinates);
+        // TODO: Don't gather suggestions if the limit is <= 0 unless necessary
+        final SuggestionResults suggestionResults = mService.getSuggestionResults(
+                mLocale, composer.getComposedDataSnapshot(), ngramContext, keyboard);
+        final Result result = getResult(capitalizeType, mLocale, suggestionsLimit,
+                mService.getRecommendedThreshold(), text, suggestionResults);
+        if (DebugFlags.DEBUG_ENABLED) {
+            if (result.mSuggestions != null && result.mSuggestions.length > 0) {
+                final StringBuilder builder = new StringBuilder();
+                for (String suggestion : result.mSuggestions) {
+                    builder.append(" [");
+                    builder.append(suggestion);
+                    builder.append("]");
+                }
+                Log.i(TAG, "getSuggestionsForMisspelledWord() : Suggestions =" + builder);
+            }
+        }
+        // Handle word not in dictionary.
+        // This is called only once per unique word, so entering multiple
+        // instances of the same word does not result in more than one call
+        // to this method.
+        // Also, upon changing the orientation of the device, this is called
+        // again for every unique invalid word in the text box.
+        StatsUtils.onInvalidWordIdentification(text);
+
+        final int flags =
+                SuggestionsInfo.RESULT_ATTR_LOOKS_LIKE_TYPO
+                | (result.mHasRecommendedSuggestions
+                        ? SuggestionsInfoCompatUtils
+                                .getValueOf_RESULT_ATTR_HAS_RECOMMENDED_SUGGESTIONS()
+                        : 0);
+        mSuggestionsCache.putSuggestionsToCache(text, result.mSuggestions, flags);
+        return new SuggestionsParams(result.mSuggestions, flags);
+    }
+
+    /**
+     * Gets the suggestions for several words at once, typically all the words of a sentence.
+     *
+     * Unlike calling {@link #onGetSuggestionsInternal(TextInfo, NgramContext, int)} for each
+     * word, this looks up the validity of all the distinct words and their capitalizations with
+     * a single request to the service, and computes the suggestions for the distinct misspelled
+     * words in parallel on the suggestion threads of the service.
+     *
+     * @param textInfos the words to check.
+     * @param ngramContexts the context of each word, or null entries for none.
+     * @param suggestionsLimit the maximum number of suggestions to return for each word.
+     * @return the suggestions for each word, without cookie and sequence set.
+     */
+    protected SuggestionsInfo[] onGetSuggestionsInternal(final TextInfo[] textInfos,
+            final NgramContext[] ngramContexts, final int suggestionsLimit) {
+        final long startTime = System.nanoTime();
+        final int length = textInfos.length;
+        final SuggestionsInfo[] retval = new SuggestionsInfo[length];
+        try {
+            if (!mService.hasMainDictionaryForLocale(mLocale)) {
+                for (int i = 0; i < length; ++i) {
+                    retval[i] = AndroidSpellCheckerService.getNotInDictEmptySuggestions(
+                            false /* reportAsTypo */);
+                }
+                return retval;
+            }
+
+            // Collect the distinct forms to look up. Words that are not plain words go through
+            // the single word path, which handles all the special cases.
+            final String[] texts = new String[length];
+            final int[] capitalizeTypes = new int[length];
+            final HashMap<String, Integer> lookupIndices = new HashMap<>();
+            final ArrayList<String> lookups = new ArrayList<>();
+            for (int i = 0; i < length; ++i) {
+                final String text = getNormalizedText(textInfos[i]);
+                if (CHECKABILITY_CHECKABLE != getCheckabilityInScript(text, mScript)) {
+                    retval[i] = onGetSuggestionsInternal(textInfos[i], ngramContexts[i],
+                            suggestionsLimit);
+                    continue;
+                }
+                texts[i] = text;
+                capitalizeTypes[i] = StringUtils.getCapitalizationType(text);
+                for (final String capitalization
+                        : getCapitalizationsToCheck(text, capitalizeTypes[i])) {
+                    if (!lookupIndices.containsKey(capitalization)) {
+                        lookupIndices.put(capitalization, lookups.size());
+                        lookups.add(capitalization);
                     }
-                    Log.i(TAG, "onGetSuggestionsInternal() : Suggestions =" + builder);
                 }
             }
-            // Handle word not in dictionary.
-            // This is called only once per unique word, so entering multiple
-            // instances of the same word does not result in more than one call
-            // to this method.
-            // Also, upon changing the orientation of the device, this is called
-            // again for every unique invalid word in the text box.
-            StatsUtils.onInvalidWordIdentification(text);
-
-            final int flags =
-                    SuggestionsInfo.RESULT_ATTR_LOOKS_LIKE_TYPO
-                    | (result.mHasRecommendedSuggestions
-                            ? SuggestionsInfoCompatUtils
-                                    .getValueOf_RESULT_ATTR_HAS_RECOMMENDED_SUGGESTIONS()
-                            : 0);
-            final SuggestionsInfo retval = new SuggestionsInfo(flags, result.mSuggestions);
-            mSuggestionsCache.putSuggestionsToCache(text, result.mSuggestions, flags);
+            final boolean[] isValid = mService.isValidWords(mLocale,
+                    lookups.toArray(new String[lookups.size()]));
+
+            // Start computing the suggestions of each distinct misspelled word.
+            final HashMap<String, Future<SuggestionsParams>> misspelledWords = new HashMap<>();
+            for (int i = 0; i < length; ++i) {
+                final String text = texts[i];
+                if (null == text) continue;
+                boolean isInDict = false;
+                for (final String capitalization
+                        : getCapitalizationsToCheck(text, capitalizeTypes[i])) {
+                    if (isValid[lookupIndices.get(capitalization)]) {
+                        isInDict = true;
+                        break;
+                    }
+                }
+                if (isInDict) {
+                    retval[i] = AndroidSpellCheckerService.getInDictEmptySuggestions();
+                    continue;
+                }
+                if (misspelledWords.containsKey(text)) continue;
+                final SuggestionsParams cachedSuggestions =
+                        mSuggestionsCache.getSuggestionsFromCache(text);
+                if (null != cachedSuggestions) {
+                    retval[i] = new SuggestionsInfo(cachedSuggestions.mFlags,
+                            cachedSuggestions.mSuggestions);
+                    continue;
+                }
+                final int capitalizeType = capitalizeTypes[i];
+                final NgramContext ngramContext = ngramContexts[i];
+                misspelledWords.put(text, mService.getSuggestionExecutor().submit(
+                        new Callable<SuggestionsParams>() {
+                            @Override
+                            public SuggestionsParams call() {
+                                return getSuggestionsForMisspelledWord(text, capitalizeType,
+                                        ngramContext, suggestionsLimit);
+                            }
+                        }));
+            }
+
+            // Repeated words share the suggestions of their first occurrence.
+            for (int i = 0; i < length; ++i) {
+                if (null != retval[i]) continue;
+                final Future<SuggestionsParams> future = misspelledWords.get(texts[i]);
+                if (null == future) {
+                    final SuggestionsParams cachedSuggestions =
+                            mSuggestionsCache.getSuggestionsFromCache(texts[i]);
+                    retval[i] = null == cachedSuggestions
+                            ? AndroidSpellCheckerService.getNotInDictEmptySuggestions(
+                                    false /* reportAsTypo */)
+                            : new SuggestionsInfo(cachedSuggestions.mFlags,
+                                    cachedSuggestions.mSuggestions);
+                    continue;
+                }
+                final SuggestionsParams suggestions = getSuggestions(future);
+                retval[i] = null == suggestions
+                        ? AndroidSpellCheckerService.getNotInDictEmptySuggestions(
+                                false /* reportAsTypo */)
+                        : new SuggestionsInfo(suggestions.mFlags, suggestions.mSuggestions);
+            }
+            if (DebugFlags.DEBUG_ENABLED) {
+                final long elapsedNanos = Math.max(1, System.nanoTime() - startTime);
+                Log.i(TAG, "onGetSuggestionsInternal() : " + length + " words, "
+                        + lookups.size() + " lookups, " + misspelledWords.size()
+                        + " misspelled, " + (length * 1000000000L / elapsedNanos)
+                        + " words/s");
+            }
             return retval;
         } catch (RuntimeException e) {
             // Don't kill the keyboard if there is a bug in the spell checker
             Log.e(TAG, "Exception while spellchecking", e);
-            return AndroidSpellCheckerService.getNotInDictEmptySuggestions(
-                    false /* reportAsTypo */);
+            for (int i = 0; i < length; ++i) {
+                retval[i] = AndroidSpellCheckerService.getNotInDictEmptySuggestions(
+                        false /* reportAsTypo */);
+            }
+            return retval;
+        }
+    }
+
+    private static SuggestionsParams getSuggestions(final Future<SuggestionsParams> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Exception while computing suggestions", e.getCause());
+            return null;
         }
     }
 
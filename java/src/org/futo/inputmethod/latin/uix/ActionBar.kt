@@ -589,11 +589,12 @@ fun ActionBar(
     forceOpenActionsInitially: Boolean = false,
     importantNotice: ImportantNotice? = null,
     keyboardManagerForAction: KeyboardManagerForAction? = null,
-    actionsForcedOpenByUser: MutableState<Boolean> = mutableStateOf(false)
+    actionsForcedOpenByUser: MutableState<Boolean> = mutableStateOf(false),
+    isActionsOpen: MutableState<Boolean> = remember { mutableStateOf(forceOpenActionsInitially) },
+    showVoiceKey: Boolean = true
 ) {
     val view = LocalView.current
     val context = LocalContext.current
-    val isActionsOpen = remember { mutableStateOf(forceOpenActionsInitially) }
 
     val activateActionWithHaptic: (Action) -> Unit = {
         keyboardManagerForAction?.performHapticAndAudioFeedback(Constants.CODE_TAB, view)
@@ -664,7 +665,9 @@ fun ActionBar(
                     } else {
                         Spacer(modifier = Modifier.weight(1.0f))
                     }
-                    ActionItemSmall(VoiceInputAction, activateActionWithHaptic)
+                    if(showVoiceKey) {
+                        ActionItemSmall(VoiceInputAction, activateActionWithHaptic)
+                    }
                 }
             }
         }
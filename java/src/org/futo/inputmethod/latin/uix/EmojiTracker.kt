@@ -1,39 +1,273 @@
 package org.futo.inputmethod.latin.uix
 
 import android.content.Context
+import android.util.Log
 import androidx.datastore.preferences.core.edit
 import androidx.datastore.preferences.core.stringPreferencesKey
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.futo.inputmethod.annotations.UsedForTesting
+import java.io.File
+import kotlin.math.pow
 
 
 val lastUsedEmoji = stringPreferencesKey("last_used_emoji")
 val lastUsedColor = stringPreferencesKey("last_used_color")
 
+@Serializable
+private data class EmojiUsage(
+    val emoji: String,
+    val score: Float, // frecency score as of lastUsed
+    val lastUsed: Long
+)
+
+@Serializable
+private data class EmojiTrackerData(
+    val recent: List<String>, // oldest first
+    val usage: List<EmojiUsage>
+)
+
+private const val MAX_RECENT_EMOJIS = 128
+private const val FRECENCY_HALF_LIFE_MS = 3L * 24L * 60L * 60L * 1000L
+private const val PERSIST_DELAY_MS = 5000L
+private const val TRACKER_FILE = "emoji_usage.json"
+
+/**
+ * Keeps track of recently and frequently used emojis. Usage is kept in memory in a ring buffer of
+ * the most recent uses plus an exponentially decaying (frecency) score per emoji, and is written to
+ * disk in batches a few seconds after the last change rather than on every tap.
+ */
 object EmojiTracker {
+    private val mutex = Mutex()
+
+    private val recentRing = arrayOfNulls<String>(MAX_RECENT_EMOJIS)
+    private var recentStart = 0
+    private var recentCount = 0
+
+    private val usage = HashMap<String, EmojiUsage>()
+
+    // Copy of [usage] for [frecencyScore], replaced after every change so it can be read unlocked
+    @Volatile
+    private var usageSnapshot: Map<String, EmojiUsage> = emptyMap()
+
+    private var loaded = false
+    private var isDirty = false
+    private var persistJob: Job? = null
+    private val persistScope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+
+    private fun pushRecent(emoji: String) {
+        val idx = (recentStart + recentCount) % MAX_RECENT_EMOJIS
+        recentRing[idx] = emoji
+        if(recentCount < MAX_RECENT_EMOJIS) {
+            recentCount += 1
+        } else {
+            recentStart = (recentStart + 1) % MAX_RECENT_EMOJIS
+        }
+    }
+
+    // Oldest first
+    private fun recentList(): List<String> =
+        List(recentCount) { recentRing[(recentStart + it) % MAX_RECENT_EMOJIS]!! }
+
+    private fun publishUsageLocked() {
+        usageSnapshot = HashMap(usage)
+    }
+
+    private fun decayedScore(entry: EmojiUsage, now: Long): Float =
+        entry.score * 0.5.pow((now - entry.lastUsed).toDouble() / FRECENCY_HALF_LIFE_MS).toFloat()
+
+    private suspend fun Context.ensureLoadedLocked() {
+        if(loaded) return
+        loaded = true
+
+        val file = File(filesDir, TRACKER_FILE)
+        try {
+            if(file.exists()) {
+                val data = Json.decodeFromString<EmojiTrackerData>(file.readText())
+                data.recent.takeLast(MAX_RECENT_EMOJIS).forEach { pushRecent(it) }
+                data.usage.forEach { usage[it.emoji] = it }
+                publishUsageLocked()
+                return
+            }
+        } catch(e: Exception) {
+            Log.e("EmojiTracker", "Failed to load emoji usage, starting over", e)
+        }
+
+        // Migrate from the older delimiter-joined preference, which stores the newest first
+        val now = System.currentTimeMillis()
+        getSetting(lastUsedEmoji, "")
+            .split("<|>")
+            .filter { it.isNotBlank() }
+            .asReversed()
+            .forEach {
+                pushRecent(it)
+                usage[it] = EmojiUsage(it, (usage[it]?.score ?: 0.0f) + 1.0f, now)
+            }
+
+        if(recentCount > 0) {
+            publishUsageLocked()
+
+            // Written right away, as the legacy preference can only be removed once it's saved
+            val data = EmojiTrackerData(recentList(), usage.values.toList())
+            val saved = withContext(Dispatchers.IO) { persist(this@ensureLoadedLocked, data) }
+            if(saved) {
+                dataStore.edit { it.remove(lastUsedEmoji) }
+            } else {
+                schedulePersistLocked(this)
+            }
+        }
+    }
+
+    // Keeps writing until a write finds nothing new, so uses during a write are saved after it
+    private fun schedulePersistLocked(context: Context) {
+        isDirty = true
+        if(persistJob != null) return
+
+        val appContext = context.applicationContext ?: context
+        persistJob = persistScope.launch {
+            while(true) {
+                delay(PERSIST_DELAY_MS)
+
+                val data = mutex.withLock {
+                    if(!isDirty) {
+                        persistJob = null
+                        return@launch
+                    }
+                    isDirty = false
+                    EmojiTrackerData(recentList(), usage.values.toList())
+                }
+
+                persist(appContext, data)
+            }
+        }
+    }
+
+    private fun persist(context: Context, data: EmojiTrackerData): Boolean {
+        val file = File(context.filesDir, TRACKER_FILE)
+        val tmpFile = File(context.filesDir, "$TRACKER_FILE.tmp")
+        try {
+            tmpFile.writeText(Json.encodeToString(data))
+            if(!tmpFile.renameTo(file)) {
+                Log.e("EmojiTracker", "Failed to replace $file with the saved emoji usage")
+                tmpFile.delete()
+                return false
+            }
+            return true
+        } catch(e: Exception) {
+            Log.e("EmojiTracker", "Failed to save emoji usage", e)
+            tmpFile.delete()
+            return false
+        }
+    }
+
     suspend fun Context.setLastUsedColor(color: String) {
         dataStore.edit {
             it[lastUsedColor] = color
         }
     }
 
-    suspend fun Context.useEmoji(emoji: String) {
-        dataStore.edit {
-            val combined = emoji + "<|>" + (it[lastUsedEmoji] ?: "")
-            it[lastUsedEmoji] = combined.split("<|>").take(128).joinToString("<|>")
-        }
+    suspend fun Context.useEmoji(emoji: String) = mutex.withLock {
+        ensureLoadedLocked()
+
+        val now = System.currentTimeMillis()
+        pushRecent(emoji)
+        usage[emoji] = EmojiUsage(emoji, (usage[emoji]?.let { decayedScore(it, now) } ?: 0.0f) + 1.0f, now)
+        publishUsageLocked()
+
+        schedulePersistLocked(this)
     }
 
-    suspend fun Context.unuseEmoji(emoji: String) {
-        dataStore.edit {
-            val split = (it[lastUsedEmoji] ?: "").split("<|>")
-            val idxToRemove = split.indexOfFirst { v -> v == emoji || v.trim() == emoji.trim() }
-            it[lastUsedEmoji] = split.filterIndexed { i, _ -> i != idxToRemove}.joinToString("<|>")
+    suspend fun Context.unuseEmoji(emoji: String) = mutex.withLock {
+        ensureLoadedLocked()
+
+        val recent = recentList()
+        val idxToRemove = recent.indexOfLast { v -> v == emoji || v.trim() == emoji.trim() }
+        if(idxToRemove == -1) return@withLock
+
+        val removed = recent[idxToRemove]
+        recentStart = 0
+        recentCount = 0
+        recent.filterIndexed { i, _ -> i != idxToRemove }.forEach { pushRecent(it) }
+
+        usage[removed]?.let {
+            val now = System.currentTimeMillis()
+            val score = decayedScore(it, now) - 1.0f
+            if(score <= 0.0f) {
+                usage.remove(removed)
+            } else {
+                usage[removed] = EmojiUsage(removed, score, now)
+            }
+            publishUsageLocked()
         }
+
+        schedulePersistLocked(this)
     }
 
-    suspend fun Context.getRecentEmojis(): List<String> {
-        return getSetting(lastUsedEmoji, "")
-            .split("<|>")
-            .filter { it.isNotBlank() }
-            .distinct()
+    /**
+     * Returns recently used emojis, most recent first
+     */
+    suspend fun Context.getRecentEmojis(): List<String> = mutex.withLock {
+        ensureLoadedLocked()
+        recentList().asReversed().distinct()
+    }
+
+    /**
+     * Returns used emojis ordered by their frecency score, highest first
+     */
+    suspend fun Context.getFrequentEmojis(): List<String> = mutex.withLock {
+        ensureLoadedLocked()
+        val now = System.currentTimeMillis()
+        usage.values
+            .map { it.emoji to decayedScore(it, now) }
+            .sortedByDescending { it.second }
+            .map { it.first }
+    }
+
+    suspend fun Context.loadEmojiUsage() = mutex.withLock {
+        ensureLoadedLocked()
+    }
+
+    /**
+     * Returns the current frecency score of an emoji, or 0 if it has not been used or usage has
+     * not been loaded yet. Does not block.
+     */
+    fun frecencyScore(emoji: String): Float =
+        usageSnapshot[emoji]?.let { decayedScore(it, System.currentTimeMillis()) } ?: 0.0f
+
+    /**
+     * Waits for the pending batched write, if any, to be done.
+     */
+    @UsedForTesting
+    suspend fun awaitPersistForTests() {
+        mutex.withLock { persistJob }?.join()
+    }
+
+    /**
+     * Forgets all usage, in memory and on disk, so that the next call loads it again.
+     */
+    @UsedForTesting
+    suspend fun Context.resetForTests() {
+        mutex.withLock { persistJob.also { persistJob = null } }?.cancelAndJoin()
+
+        mutex.withLock {
+            isDirty = false
+            loaded = false
+            recentStart = 0
+            recentCount = 0
+            usage.clear()
+            publishUsageLocked()
+            File(filesDir, TRACKER_FILE).delete()
+        }
     }
-}
\ No newline at end of file
+}
@@ -3,7 +3,9 @@ package org.futo.inputmethod.latin.uix
 import android.content.Context
 import android.net.Uri
 import android.os.Bundle
+import android.util.Log
 import android.view.inputmethod.InputMethodSubtype
+import android.widget.Toast
 import androidx.activity.ComponentActivity
 import androidx.activity.compose.setContent
 import androidx.compose.foundation.layout.Box
@@ -35,12 +37,15 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.withContext
+import org.futo.inputmethod.latin.BinaryDictionary
 import org.futo.inputmethod.latin.Dictionary
 import org.futo.inputmethod.latin.LatinIMELegacy
 import org.futo.inputmethod.latin.R
 import org.futo.inputmethod.latin.ReadOnlyBinaryDictionary
 import org.futo.inputmethod.latin.Subtypes
 import org.futo.inputmethod.latin.SubtypesSetting
+import org.futo.inputmethod.latin.makedict.DictionaryPatch
+import org.futo.inputmethod.latin.makedict.FormatSpec
 import org.futo.inputmethod.latin.uix.settings.NavigationItem
 import org.futo.inputmethod.latin.uix.settings.NavigationItemStyle
 import org.futo.inputmethod.latin.uix.settings.ScreenTitleWithIcon
@@ -52,12 +57,14 @@ import org.futo.inputmethod.latin.uix.theme.ThemeOption
 import org.futo.inputmethod.latin.uix.theme.ThemeOptions
 import org.futo.inputmethod.latin.uix.theme.UixThemeWrapper
 import org.futo.inputmethod.latin.uix.theme.presets.VoiceInputTheme
+import org.futo.inputmethod.latin.utils.BinaryDictionaryUtils
 import org.futo.inputmethod.latin.utils.SubtypeLocaleUtils
 import org.futo.inputmethod.latin.xlm.ModelPaths
 import org.futo.voiceinput.shared.BUILTIN_ENGLISH_MODEL
 import org.futo.voiceinput.shared.types.ModelFileFile
 import org.futo.voiceinput.shared.types.ModelLoader
 import java.io.File
+import java.io.IOException
 import java.io.InputStream
 import java.nio.ByteBuffer
 import java.util.Locale
@@ -93,6 +100,12 @@ fun FileKind.namePreferenceKeyFor(locale: String): Preferences.Key<String> {
     return stringPreferencesKey("resourcename_${name}_${locale}")
 }
 
+// Version of the resource after patches applied on device, which is not reflected in its header
+fun FileKind.versionPreferenceKeyFor(locale: String): Preferences.Key<String> {
+    assert(this != FileKind.Invalid)
+    return stringPreferencesKey("resourceversion_${name}_${locale}")
+}
+
 @Composable
 fun ImportScreen(fileKind: FileKindAndInfo, file: String?, onApply: (FileKindAndInfo, InputMethodSubtype) -> Unit, onCancel: () -> Unit) {
     val context = LocalContext.current
@@ -165,13 +178,14 @@ enum class FileKind {
     VoiceInput,
     Transformer,
     Dictionary,
+    DictionaryPatch,
     Invalid;
 
     fun getAddonUrlForLocale(locale: Locale?): String {
         return when(this) {
             VoiceInput -> "https://keyboard.futo.org/voice-input-models?locale=${locale?.toLanguageTag() ?: ""}"
             Transformer -> "https://keyboard.futo.org/models?locale=${locale?.toLanguageTag() ?: ""}"
-            Dictionary -> "https://keyboard.futo.org/dictionaries?locale=${locale?.toLanguageTag() ?: ""}"
+            Dictionary, DictionaryPatch -> "https://keyboard.futo.org/dictionaries?locale=${locale?.toLanguageTag() ?: ""}"
             Invalid -> "https://keyboard.futo.org/"
         }
     }
@@ -182,6 +196,7 @@ fun FileKind.youAreImporting(): String {
         FileKind.VoiceInput -> "voice input model"
         FileKind.Transformer -> "transformer model"
         FileKind.Dictionary -> "dictionary"
+        FileKind.DictionaryPatch -> "dictionary update"
         FileKind.Invalid -> "invalid file"
     }
 }
@@ -192,6 +207,7 @@ fun FileKind.kindTitle(): String {
         FileKind.VoiceInput -> "Voice Input"
         FileKind.Transformer -> "Transformer"
         FileKind.Dictionary -> "Dictionary"
+        FileKind.DictionaryPatch -> "Dictionary Update"
         FileKind.Invalid -> "(invalid)"
     }
 }
@@ -201,6 +217,7 @@ fun FileKind.icon(): Int {
         FileKind.VoiceInput -> R.drawable.mic
         FileKind.Transformer -> R.drawable.cpu
         FileKind.Dictionary -> R.drawable.book
+        FileKind.DictionaryPatch -> R.drawable.book
         FileKind.Invalid -> R.drawable.close
     }
 }
@@ -210,6 +227,7 @@ fun FileKind.extension(): String {
         FileKind.VoiceInput -> ".bin"
         FileKind.Transformer -> ".gguf"
         FileKind.Dictionary -> ".dict"
+        FileKind.DictionaryPatch -> ".dictpatch"
         FileKind.Invalid -> ""
     }
 }
@@ -297,6 +315,7 @@ fun determineFileKind(context: Context, file: Uri): FileKindAndInfo {
         val voiceInputMagic = 0x6c6d6767.toUInt()
         val transformerMagic = 0x47475546.toUInt()
         val dictionaryMagic = 0x9bc13afe.toUInt()
+        val dictionaryPatchMagic = DictionaryPatch.MAGIC_NUMBER.toUInt()
 
         val magic = ByteBuffer.wrap(array).getInt().toUInt()
 
@@ -312,6 +331,24 @@ fun determineFileKind(context: Context, file: Uri): FileKindAndInfo {
                     locale = metadata?.get("locale")
                 )
             }
+            dictionaryPatchMagic -> {
+                val patch = try {
+                    contentResolver.openInputStream(file)?.use { DictionaryPatch.readFrom(it.buffered()) }
+                } catch(e: Exception) {
+                    Log.e("ImportResource", "Failed to read dictionary patch", e)
+                    null
+                }
+
+                if(patch == null) {
+                    FileKindAndInfo(FileKind.Invalid, null, null)
+                } else {
+                    FileKindAndInfo(
+                        FileKind.DictionaryPatch,
+                        name = "Updates version ${patch.mBaseVersion} to ${patch.mTargetVersion}",
+                        locale = patch.mTargetAttributes["locale"]
+                    )
+                }
+            }
             else -> FileKindAndInfo(FileKind.Invalid, null, null)
         }
     } ?: FileKindAndInfo(FileKind.Invalid, null, null)
@@ -366,20 +403,70 @@ object ResourceHelper {
             file.length(),
             false,
             locale,
-            Dictionary.TYPE_MAIN
+            Dictionary.TYPE_MAIN,
+            file.isDirectory // Patched dictionaries are in the version 4 format, a directory
         )
     }
 
+    /**
+     * Applies a dictionary patch to the imported dictionary for the locale, on disk and, when
+     * possible, to the loaded dictionary. Imported dictionaries are static, so the first patch
+     * converts the dictionary to the updatable version 4 format and needs one full reload; later
+     * patches update the loaded dictionary in place.
+     *
+     * Returns false if there is no imported dictionary, or if it is not the version the patch
+     * was made for.
+     */
+    fun applyDictionaryPatch(context: Context, locale: Locale, patch: DictionaryPatch): Boolean {
+        val key = runBlocking { findKeyForLocaleAndKind(context, locale, FileKind.Dictionary) } ?: return false
+        val file = runBlocking { findFileForKind(context, locale, FileKind.Dictionary) } ?: return false
+        val versionKey = FileKind.Dictionary.versionPreferenceKeyFor(key)
+
+        val staticDict = BinaryDictionary(file.absolutePath, 0, file.length(), false, locale,
+            Dictionary.TYPE_MAIN, false)
+        val needsReload = try {
+            if(!staticDict.isValidDictionary) return false
+
+            val version = runBlocking { context.getSetting(versionKey, "") }.ifEmpty {
+                staticDict.header.mVersionString
+            }
+            if(version != patch.mBaseVersion) {
+                Log.w("ImportResource", "Dictionary patch is for version ${patch.mBaseVersion}, but the dictionary is version $version")
+                return false
+            }
+
+            staticDict.formatVersion != FormatSpec.VERSION4
+        } finally {
+            staticDict.close()
+        }
+
+        // Converted and patched as a copy, so a failed patch leaves the file as is
+        if(!BinaryDictionaryUtils.patchDictFile(file, locale, patch)) {
+            Log.e("ImportResource", "Failed to apply dictionary patch")
+            return false
+        }
+
+        runBlocking { context.setSetting(versionKey, patch.mTargetVersion) }
+
+        if(needsReload) {
+            LatinIMELegacy.mPendingDictionaryUpdate = true
+        } else {
+            LatinIMELegacy.mPendingDictionaryPatches.add(android.util.Pair.create(locale, patch))
+        }
+        return true
+    }
+
     fun deleteResourceForLanguage(context: Context, kind: FileKind, locale: Locale) {
         val setting = kind.preferenceKeyFor(locale.toString())
         val value = runBlocking { context.getSetting(setting, "") }
         if(value.isNotBlank()) {
             val file = File(context.getExternalFilesDir(null), value)
-            file.delete()
+            file.deleteRecursively()
         }
 
         runBlocking { context.setSetting(kind.preferenceKeyFor(locale.toString()), "") }
         runBlocking { context.setSetting(kind.namePreferenceKeyFor(locale.toString()), "") }
+        runBlocking { context.setSetting(kind.versionPreferenceKeyFor(locale.toString()), "") }
 
         LatinIMELegacy.mPendingDictionaryUpdate = true
     }
@@ -395,49 +482,85 @@ class ImportResourceActivity : ComponentActivity() {
         val outputFileName = "${fileKind.kind.name.lowercase()}_${inputMethodSubtype.locale}${fileKind.kind.extension()}"
 
         lifecycleScope.launch {
-            withContext(Dispatchers.IO) {
-                // This is a special case for now
-                if (fileKind.kind == FileKind.Transformer) {
-                    // 1. Copy file
-                    val contentResolver = applicationContext.contentResolver
-                    val outDirectory = ModelPaths.getModelDirectory(applicationContext)
-                    val outputFile = File(outDirectory, outputFileName)
-                    if(outputFile.exists()) { outputFile.delete() }
-
-                    contentResolver.openInputStream(uri!!)!!.use { inputStream ->
-                        outputFile.outputStream().use { outputStream ->
-                            inputStream.copyTo(outputStream, 1024)
-                        }
+            if (fileKind.kind == FileKind.DictionaryPatch) {
+                val applied = withContext(Dispatchers.IO) {
+                    val patch = applicationContext.contentResolver.openInputStream(uri!!)!!.use {
+                        DictionaryPatch.readFrom(it.buffered())
                     }
+                    ResourceHelper.applyDictionaryPatch(
+                        applicationContext,
+                        Subtypes.getLocale(inputMethodSubtype),
+                        patch
+                    )
+                }
 
-                    // 2. Update reference
-                    val language = inputMethodSubtype.locale.split("_").first()
-                    ModelPaths.updateModelOption(applicationContext, language, outputFile)
+                if(!applied) {
+                    Toast.makeText(
+                        applicationContext,
+                        "This update does not apply to the dictionary imported for this language",
+                        Toast.LENGTH_LONG
+                    ).show()
+                }
+                finish()
+                return@launch
+            }
+
+            if (fileKind.kind == FileKind.Transformer) {
+                val error = withContext(Dispatchers.IO) {
+                    try {
+                        // 1. Copy and check the file
+                        val outputFile = ModelPaths.importModel(applicationContext, uri!!, outputFileName)
+
+                        // 2. Update reference
+                        val language = inputMethodSubtype.locale.split("_").first()
+                        ModelPaths.updateModelOption(applicationContext, language, outputFile)
+                        null
+                    } catch(e: IllegalArgumentException) {
+                        e.message
+                    } catch(e: IOException) {
+                        Log.e("ImportResourceActivity", "Failed to import model", e)
+                        "Failed to import the model: ${e.message}"
+                    }
+                }
+
+                if(error != null) {
+                    Toast.makeText(applicationContext, error, Toast.LENGTH_LONG).show()
                 } else {
-                    // 1. Copy file
-                    val contentResolver = applicationContext.contentResolver
-                    contentResolver.openInputStream(uri!!)!!.use { inputStream ->
-                        val outputFile =
-                            File(applicationContext.getExternalFilesDir(null), outputFileName)
-                        if(outputFile.exists()) { outputFile.delete() }
-
-                        outputFile.outputStream().use { outputStream ->
-                            inputStream.copyTo(outputStream, 1024)
-                        }
+                    LatinIMELegacy.mPendingDictionaryUpdate = true
+                }
+                finish()
+                return@launch
+            }
+
+            withContext(Dispatchers.IO) {
+                // 1. Copy file
+                val contentResolver = applicationContext.contentResolver
+                contentResolver.openInputStream(uri!!)!!.use { inputStream ->
+                    val outputFile =
+                        File(applicationContext.getExternalFilesDir(null), outputFileName)
+                    // Patched dictionaries are directories
+                    if(outputFile.exists()) { outputFile.deleteRecursively() }
+
+                    outputFile.outputStream().use { outputStream ->
+                        inputStream.copyTo(outputStream, 1024)
                     }
+                }
 
-                    // 2. Update reference
+                // 2. Update reference
+                applicationContext.setSetting(
+                    fileKind.kind.preferenceKeyFor(inputMethodSubtype.locale),
+                    outputFileName
+                )
+                fileKind.name?.let {
                     applicationContext.setSetting(
-                        fileKind.kind.preferenceKeyFor(inputMethodSubtype.locale),
-                        outputFileName
+                        fileKind.kind.namePreferenceKeyFor(inputMethodSubtype.locale),
+                        it
                     )
-                    fileKind.name?.let {
-                        applicationContext.setSetting(
-                            fileKind.kind.namePreferenceKeyFor(inputMethodSubtype.locale),
-                            it
-                        )
-                    }
                 }
+                applicationContext.setSetting(
+                    fileKind.kind.versionPreferenceKeyFor(inputMethodSubtype.locale),
+                    ""
+                )
             }
             LatinIMELegacy.mPendingDictionaryUpdate = true
             finish()
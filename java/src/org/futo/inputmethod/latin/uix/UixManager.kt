@@ -11,6 +11,7 @@ import android.os.Vibrator
 import android.util.Log
 import android.view.View
 import android.view.WindowManager
+import android.view.inputmethod.EditorInfo
 import android.view.inputmethod.InlineSuggestionsResponse
 import android.view.inputmethod.InputConnection
 import android.view.inputmethod.InputContentInfo
@@ -67,11 +68,14 @@ import org.futo.inputmethod.latin.suggestions.SuggestionStripView
 import org.futo.inputmethod.latin.uix.actions.ActionRegistry
 import org.futo.inputmethod.latin.uix.actions.AllActions
 import org.futo.inputmethod.latin.uix.actions.EmojiAction
+import org.futo.inputmethod.latin.uix.actions.VoiceInputAction
+import org.futo.inputmethod.latin.uix.actions.VoiceInputPersistentState
 import org.futo.inputmethod.latin.uix.settings.SettingsActivity
 import org.futo.inputmethod.latin.uix.theme.ThemeOption
 import org.futo.inputmethod.latin.uix.theme.Typography
 import org.futo.inputmethod.latin.uix.theme.UixThemeAuto
 import org.futo.inputmethod.latin.uix.theme.UixThemeWrapper
+import org.futo.inputmethod.latin.utils.InputTypeUtils
 import org.futo.inputmethod.updates.DISABLE_UPDATE_REMINDER
 import org.futo.inputmethod.updates.autoDeferManualUpdateIfNeeded
 import org.futo.inputmethod.updates.deferManualUpdate
@@ -100,7 +104,7 @@ private class LatinIMEActionInputTransaction(
     }
 
     private fun transformText(text: String): String {
-        return if(isSpaceNecessary) { " $text" } else { text }
+        return if(isSpaceNecessary && text.isNotEmpty()) { " $text" } else { text }
     }
 
     private var previousText = ""
@@ -273,6 +277,7 @@ class UixManager(private val latinIME: LatinIME) {
     private var currentNotice: MutableState<ImportantNotice?> = mutableStateOf(null)
 
     private val actionsForcedOpenByUser = mutableStateOf(false)
+    private val actionsOpen = mutableStateOf(false)
 
     var currWindowActionWindow: ActionWindow? = null
 
@@ -311,11 +316,23 @@ class UixManager(private val latinIME: LatinIME) {
                 onActionActivated = { onActionActivated(it) },
                 importantNotice = currentNotice.value,
                 keyboardManagerForAction = keyboardManagerForAction,
-                actionsForcedOpenByUser = actionsForcedOpenByUser
+                actionsForcedOpenByUser = actionsForcedOpenByUser,
+                isActionsOpen = actionsOpen,
+                // The legacy suggestion strip, which held the voice key, is hidden in password
+                // fields and when there is nothing to show in it
+                showVoiceKey = shouldShowSuggestionStrip
             )
         }
     }
 
+    private fun getPersistentState(action: Action): PersistentActionState? {
+        if (persistentStates[action] == null) {
+            persistentStates[action] = action.persistentState?.let { it(keyboardManagerForAction) }
+        }
+
+        return persistentStates[action]
+    }
+
     private fun enterActionWindowView(action: Action) {
         assert(action.windowImpl != null)
 
@@ -323,11 +340,7 @@ class UixManager(private val latinIME: LatinIME) {
 
         currWindowAction = action
 
-        if (persistentStates[action] == null) {
-            persistentStates[action] = action.persistentState?.let { it(keyboardManagerForAction) }
-        }
-
-        currWindowActionWindow = action.windowImpl?.let { it(keyboardManagerForAction, persistentStates[action]) }
+        currWindowActionWindow = action.windowImpl?.let { it(keyboardManagerForAction, getPersistentState(action)) }
 
         if(action.keepScreenAwake) {
             latinIME.window.window?.addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON)
@@ -608,9 +621,39 @@ class UixManager(private val latinIME: LatinIME) {
         setContent()
     }
 
+    fun onInputStarting(editorInfo: EditorInfo?) {
+        latinIME.lifecycleScope.launch {
+            if(ActionRegistry.getActionOverride(latinIME, VoiceInputAction) != VoiceInputAction) return@launch
+            if(!latinIME.getSetting(PRELOAD_MODEL)) return@launch
+
+            val state = getPersistentState(VoiceInputAction) as VoiceInputPersistentState
+            state.preloader.onKeyboardShown(
+                editorInfo,
+                keyboardManagerForAction.getActiveLocale(),
+                micButtonVisible = isVoiceKeyShown(editorInfo)
+            )
+        }
+    }
+
+    // Whether the action bar is on screen and shows the voice key, see MainKeyboardViewWithActionBar
+    // and ActionBar. The strip visibility may not have been updated for a new field yet, so
+    // password fields are also checked for directly
+    private fun isVoiceKeyShown(editorInfo: EditorInfo?): Boolean {
+        val isPasswordField = editorInfo != null &&
+                (InputTypeUtils.isPasswordInputType(editorInfo.inputType)
+                        || InputTypeUtils.isVisiblePasswordInputType(editorInfo.inputType))
+
+        return currWindowActionWindow == null
+                && currentNotice.value == null
+                && !actionsOpen.value
+                && shouldShowSuggestionStrip
+                && !isPasswordField
+    }
+
     fun onInputFinishing() {
         closeActionWindow()
         actionsForcedOpenByUser.value = false
+        actionsOpen.value = false
         languageSwitcherDialog?.dismiss()
     }
 
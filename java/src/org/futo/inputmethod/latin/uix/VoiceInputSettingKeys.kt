@@ -52,4 +52,31 @@ val MULTILINGUAL_MODEL_INDEX = SettingsKey(
 val LANGUAGE_TOGGLES = SettingsKey(
     key = stringSetPreferencesKey("enabled_languages"),
     default = setOf()
-)
\ No newline at end of file
+)
+
+val CONTINUOUS_DICTATION = SettingsKey(
+    key = booleanPreferencesKey("continuous_dictation"),
+    default = false
+)
+
+val KEEP_MODEL_LOADED = SettingsKey(
+    key = booleanPreferencesKey("keep_model_loaded_between_utterances"),
+    default = true
+)
+
+// Beam search is used when it's expected to finish within this, see AdaptiveDecoding
+val DECODING_LATENCY_BUDGET = SettingsKey(
+    key = intPreferencesKey("decoding_latency_budget_ms"),
+    default = 1500
+)
+
+val PRELOAD_MODEL = SettingsKey(
+    key = booleanPreferencesKey("preload_voice_input_model"),
+    default = true
+)
+
+// Fields voice input was last used in, see VoiceInputPreloader.fieldKey
+val DICTATED_FIELDS = SettingsKey(
+    key = stringSetPreferencesKey("dictated_fields"),
+    default = setOf()
+)
@@ -36,8 +36,10 @@ import androidx.compose.runtime.Composable
 import androidx.compose.runtime.LaunchedEffect
 import androidx.compose.runtime.MutableState
 import androidx.compose.runtime.getValue
+import androidx.compose.runtime.key
 import androidx.compose.runtime.mutableIntStateOf
 import androidx.compose.runtime.mutableStateOf
+import androidx.compose.runtime.produceState
 import androidx.compose.runtime.remember
 import androidx.compose.runtime.saveable.rememberSaveable
 import androidx.compose.runtime.setValue
@@ -78,7 +80,6 @@ import androidx.recyclerview.widget.GridLayoutManager.SpanSizeLookup
 import androidx.recyclerview.widget.RecyclerView
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.withContext
 import kotlinx.serialization.json.Json
 import kotlinx.serialization.json.booleanOrNull
@@ -88,12 +89,16 @@ import kotlinx.serialization.json.jsonPrimitive
 import org.futo.inputmethod.latin.R
 import org.futo.inputmethod.latin.common.Constants
 import org.futo.inputmethod.latin.uix.Action
+import org.futo.inputmethod.latin.uix.ActionTextEditor
 import org.futo.inputmethod.latin.uix.ActionWindow
 import org.futo.inputmethod.latin.uix.AutoFitText
-import org.futo.inputmethod.latin.uix.EmojiTracker.getRecentEmojis
+import org.futo.inputmethod.latin.uix.EmojiTracker
+import org.futo.inputmethod.latin.uix.EmojiTracker.getFrequentEmojis
+import org.futo.inputmethod.latin.uix.EmojiTracker.loadEmojiUsage
 import org.futo.inputmethod.latin.uix.EmojiTracker.useEmoji
 import org.futo.inputmethod.latin.uix.PersistentActionState
 import org.futo.inputmethod.latin.uix.actions.emoji.EmojiItem
+import org.futo.inputmethod.latin.uix.actions.emoji.EmojiSearchIndex
 import org.futo.inputmethod.latin.uix.actions.emoji.EmojiView
 import org.futo.voiceinput.shared.ui.theme.Typography
 import kotlin.math.max
@@ -566,13 +571,24 @@ fun EmojiGrid(
     emojis: List<EmojiItem>,
     keyboardShown: Boolean,
     emojiMap: Map<String, EmojiItem>,
-    keyBackground: Drawable
+    keyBackground: Drawable,
+    onSearch: ((String) -> List<EmojiItem>)? = null
 ) {
     val context = LocalContext.current
-    val recentEmojis = remember {
-        runBlocking { context.getRecentEmojis() }.map {
+    // Loaded off the main thread, the grid shows up without the recent emojis until then
+    val recentEmojis = produceState(initialValue = listOf<EmojiItem>()) {
+        value = withContext(Dispatchers.IO) { context.getFrequentEmojis() }.map {
             EmojiItem(it, description = "", category = "", skinTones = false, tags = listOf(), aliases = listOf())
         }
+    }.value
+
+    val searchQuery = remember { mutableStateOf("") }
+    val searchResults = remember(searchQuery.value, keyboardShown) {
+        if(onSearch == null || !keyboardShown || searchQuery.value.isBlank()) {
+            null
+        } else {
+            onSearch(searchQuery.value)
+        }
     }
 
     val categorizedEmojis = remember {
@@ -597,27 +613,41 @@ fun EmojiGrid(
 
 
     Column {
-        Emojis(
-            modifier = Modifier
-                .align(Alignment.CenterHorizontally)
-                .fillMaxWidth()
-                .weight(1.0f)
-                .drawBehind {
-                    keyBackground.setBounds(
-                        0,
-                        0,
-                        this.size.width.roundToInt(),
-                        this.size.height.roundToInt()
-                    )
-                    keyBackground.state = intArrayOf()
-                    keyBackground.draw(this.drawContext.canvas.nativeCanvas)
+        // The search box takes over the input connection, so it's only shown while the keyboard is
+        // visible to type into it
+        if(onSearch != null && keyboardShown) {
+            ActionTextEditor(searchQuery)
+        }
+
+        // The grid adapter is created once per list, so it's recreated whenever the results or
+        // the recent emojis change
+        key(searchResults, recentEmojis) {
+            Emojis(
+                modifier = Modifier
+                    .align(Alignment.CenterHorizontally)
+                    .fillMaxWidth()
+                    .weight(1.0f)
+                    .drawBehind {
+                        keyBackground.setBounds(
+                            0,
+                            0,
+                            this.size.width.roundToInt(),
+                            this.size.height.roundToInt()
+                        )
+                        keyBackground.state = intArrayOf()
+                        keyBackground.draw(this.drawContext.canvas.nativeCanvas)
+                    },
+                emojis = if(searchResults != null) {
+                    listOf(CategoryItem(stringResource(R.string.emoji_search_results))) + searchResults.map { EmojiItemItem(it) }
+                } else {
+                    listOf(CategoryItem("Recent")) + recentEmojis.map { EmojiItemItem(it) } + categorizedEmojis
                 },
-            emojis = listOf(CategoryItem("Recent")) + recentEmojis.map { EmojiItemItem(it) } + categorizedEmojis,
-            onClick = onClick,
-            emojiMap = emojiMap,
-            currentCategory = currentCategory,
-            jumpCategory = jumpCategory
-        )
+                onClick = onClick,
+                emojiMap = emojiMap,
+                currentCategory = currentCategory,
+                jumpCategory = jumpCategory
+            )
+        }
 
         EmojiNavigation(
             showKeys = !keyboardShown,
@@ -638,6 +668,11 @@ class PersistentEmojiState : PersistentActionState {
     var emojis: MutableState<List<EmojiItem>?> = mutableStateOf(null)
     var emojiMap: HashMap<String, EmojiItem> = HashMap()
     var emojiAliases: HashMap<String, EmojiItem> = HashMap()
+    var searchIndex: EmojiSearchIndex? = null
+
+    fun search(query: String, limit: Int): List<EmojiItem> {
+        return searchIndex?.search(query, limit) { EmojiTracker.frecencyScore(it) } ?: listOf()
+    }
 
     suspend fun loadEmojis(context: Context) = withContext(Dispatchers.IO) {
         val stream = context.resources.openRawResource(R.raw.gemoji)
@@ -694,6 +729,8 @@ class PersistentEmojiState : PersistentActionState {
                     }
                 }
             }
+
+            searchIndex = EmojiSearchIndex(emojis.value!!)
         }
     }
 
@@ -713,6 +750,9 @@ val EmojiAction = Action(
         manager.getLifecycleScope().launch {
             state.loadEmojis(manager.getContext())
         }
+        manager.getLifecycleScope().launch {
+            manager.getContext().loadEmojiUsage()
+        }
 
         state
     },
@@ -745,7 +785,8 @@ val EmojiAction = Action(
                         if(!isRepeated) {
                             manager.performHapticAndAudioFeedback(Constants.CODE_DELETE, view)
                         }
-                    }, emojis = emojis, keyboardShown = keyboardShown, emojiMap = state.emojiMap, keyBackground = manager.getThemeProvider().keyBackground)
+                    }, emojis = emojis, keyboardShown = keyboardShown, emojiMap = state.emojiMap, keyBackground = manager.getThemeProvider().keyBackground,
+                    onSearch = { query -> state.search(query, 64) })
                 }
             }
 
@@ -28,10 +28,13 @@ import kotlinx.coroutines.withContext
 import kotlinx.coroutines.yield
 import org.futo.inputmethod.latin.R
 import org.futo.inputmethod.latin.uix.AUDIO_FOCUS
+import org.futo.inputmethod.latin.uix.CONTINUOUS_DICTATION
+import org.futo.inputmethod.latin.uix.DECODING_LATENCY_BUDGET
 import org.futo.inputmethod.latin.uix.Action
 import org.futo.inputmethod.latin.uix.ActionWindow
 import org.futo.inputmethod.latin.uix.DISALLOW_SYMBOLS
 import org.futo.inputmethod.latin.uix.ENABLE_SOUND
+import org.futo.inputmethod.latin.uix.KEEP_MODEL_LOADED
 import org.futo.inputmethod.latin.uix.KeyboardManagerForAction
 import org.futo.inputmethod.latin.uix.PREFER_BLUETOOTH
 import org.futo.inputmethod.latin.uix.PersistentActionState
@@ -39,7 +42,9 @@ import org.futo.inputmethod.latin.uix.ResourceHelper
 import org.futo.inputmethod.latin.uix.VERBOSE_PROGRESS
 import org.futo.inputmethod.latin.uix.getSetting
 import org.futo.inputmethod.latin.uix.setSetting
+import org.futo.inputmethod.latin.uix.voiceinput.VoiceInputPreloader
 import org.futo.inputmethod.latin.uix.voiceinput.downloader.DownloadActivity
+import org.futo.inputmethod.latin.utils.LatencyTracker
 import org.futo.inputmethod.latin.xlm.UserDictionaryObserver
 import org.futo.inputmethod.updates.openURI
 import org.futo.voiceinput.shared.ModelDoesNotExistException
@@ -48,6 +53,7 @@ import org.futo.voiceinput.shared.RecognizerViewListener
 import org.futo.voiceinput.shared.RecognizerViewSettings
 import org.futo.voiceinput.shared.RecordingSettings
 import org.futo.voiceinput.shared.SoundPlayer
+import org.futo.voiceinput.shared.types.InferenceState
 import org.futo.voiceinput.shared.types.Language
 import org.futo.voiceinput.shared.types.ModelLoader
 import org.futo.voiceinput.shared.types.getLanguageFromWhisperString
@@ -72,8 +78,10 @@ class VoiceInputPersistentState(val manager: KeyboardManagerForAction) : Persist
     val modelManager = ModelManager(manager.getContext())
     val soundPlayer = SoundPlayer(manager.getContext())
     val userDictionaryObserver = UserDictionaryObserver(manager.getContext())
+    val preloader = VoiceInputPreloader(manager.getContext(), modelManager, manager.getLifecycleScope())
 
     override suspend fun cleanUp() {
+        preloader.cancel()
         modelManager.cleanUp()
     }
 }
@@ -91,6 +99,9 @@ private class VoiceInputActionWindow(
         val disallowSymbols = async { context.getSetting(DISALLOW_SYMBOLS) }
         val useBluetoothAudio = async { context.getSetting(PREFER_BLUETOOTH) }
         val requestAudioFocus = async { context.getSetting(AUDIO_FOCUS) }
+        val continuousDictation = async { context.getSetting(CONTINUOUS_DICTATION) }
+        val keepModelLoaded = async { context.getSetting(KEEP_MODEL_LOADED) }
+        val latencyBudget = async { context.getSetting(DECODING_LATENCY_BUDGET) }
 
         val primaryModel = model
         val languageSpecificModels = mutableMapOf<Language, ModelLoader>()
@@ -110,15 +121,20 @@ private class VoiceInputActionWindow(
             decodingConfiguration = DecodingConfiguration(
                 glossary = state.userDictionaryObserver.getWords().map { it.word },
                 languages = allowedLanguages,
-                suppressSymbols = disallowSymbols.await()
+                suppressSymbols = disallowSymbols.await(),
+                latencyBudgetMs = latencyBudget.await().toLong()
             ),
             recordingConfiguration = RecordingSettings(
                 preferBluetoothMic = useBluetoothAudio.await(),
-                requestAudioFocus = requestAudioFocus.await()
+                requestAudioFocus = requestAudioFocus.await(),
+                continuousDictation = continuousDictation.await(),
+                keepModelLoaded = keepModelLoaded.await()
             )
         )
     }
 
+    private val warmStart = state.preloader.onVoiceInputStarted(model)
+
     private var recognizerView: MutableState<RecognizerView?> = mutableStateOf(null)
     private var modelException: MutableState<ModelDoesNotExistException?> = mutableStateOf(null)
 
@@ -158,7 +174,11 @@ private class VoiceInputActionWindow(
         val context = LocalContext.current
         Box(modifier = Modifier.fillMaxSize().clickable {
             val intent = Intent(context, DownloadActivity::class.java)
-            intent.putStringArrayListExtra("models", ArrayList(modelException.models.map { model -> model.getRequiredDownloadList(context) }.flatten()))
+            val downloads = modelException.models.flatMap { model ->
+                model.getRequiredDownloadList(context).map { file -> file to model.getDownloadChecksum(file) }
+            }
+            intent.putStringArrayListExtra("models", ArrayList(downloads.map { it.first }))
+            intent.putStringArrayListExtra("checksums", ArrayList(downloads.map { it.second ?: "" }))
 
             if(context !is Activity) {
                 intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
@@ -200,6 +220,7 @@ private class VoiceInputActionWindow(
     override fun close() {
         initJob.cancel()
         recognizerView.value?.cancel()
+        state.preloader.onVoiceInputClosed()
     }
 
     private var wasFinished = false
@@ -228,14 +249,64 @@ private class VoiceInputActionWindow(
         }
     }
 
+    // Inference stages are reported from the recognizer's thread, so each stage is timed from
+    // its start to the start of the next one rather than with a traced section.
+    private val stageLock = Any()
+    private var processingStartTime = 0L
+    private var currentStage: InferenceState? = null
+    private var currentStageStartTime = 0L
+
+    private fun endCurrentStage(now: Long) {
+        val stage = currentStage ?: return
+        LatencyTracker.record(LatencyTracker.VOICE_PREFIX + stage.name, now - currentStageStartTime)
+        currentStage = null
+    }
+
+    override fun processing() {
+        synchronized(stageLock) {
+            processingStartTime = System.nanoTime()
+            currentStage = null
+        }
+    }
+
+    override fun decodingStatus(status: InferenceState) {
+        synchronized(stageLock) {
+            val now = System.nanoTime()
+            endCurrentStage(now)
+            currentStage = status
+            currentStageStartTime = now
+        }
+    }
+
     override fun finished(result: String) {
+        synchronized(stageLock) {
+            val now = System.nanoTime()
+            endCurrentStage(now)
+            if (processingStartTime != 0L) {
+                LatencyTracker.record(LatencyTracker.VOICE_PREFIX + "Total",
+                    now - processingStartTime)
+                LatencyTracker.record(LatencyTracker.VOICE_PREFIX +
+                        if(warmStart) "Total (warm start)" else "Total (cold start)",
+                    now - processingStartTime)
+                processingStartTime = 0L
+            }
+        }
+
         wasFinished = true
+        state.preloader.onDictated()
 
         inputTransaction.commit(result)
         manager.announce(result)
         manager.closeActionWindow()
     }
 
+    override fun segmentFinished(result: String) {
+        inputTransaction.commit(result)
+        state.preloader.onDictated()
+
+        inputTransaction = manager.createInputTransaction(true)
+    }
+
     override fun partialResult(result: String) {
         inputTransaction.updatePartial(result)
     }
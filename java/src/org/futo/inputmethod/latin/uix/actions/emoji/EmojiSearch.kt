@@ -0,0 +1,138 @@
+package org.futo.inputmethod.latin.uix.actions.emoji
+
+/**
+ * In-memory prefix index over the aliases, tags and descriptions of a list of emojis.
+ *
+ * All search terms are kept in one sorted array, so a prefix lookup is a binary search for the
+ * first matching term followed by a linear walk over the contiguous block of terms sharing that
+ * prefix. Each term points to the emojis it came from along with how strongly it matched (an
+ * alias is a stronger signal than a word in the description).
+ */
+class EmojiSearchIndex(private val emojis: List<EmojiItem>) {
+    private val terms: Array<String>
+    private val postings: Array<IntArray>
+    private val postingWeights: Array<ByteArray>
+
+    init {
+        val termMap = HashMap<String, HashMap<Int, Int>>()
+        fun addTerm(term: String, emojiIdx: Int, weight: Int) {
+            if(term.isBlank()) return
+            val entries = termMap.getOrPut(term) { HashMap() }
+            if((entries[emojiIdx] ?: 0) < weight) entries[emojiIdx] = weight
+        }
+
+        emojis.forEachIndexed { i, emoji ->
+            emoji.aliases.forEach { alias ->
+                val lowercase = alias.lowercase()
+                addTerm(lowercase, i, WEIGHT_ALIAS)
+                lowercase.split('_').forEach { addTerm(it, i, WEIGHT_ALIAS_PART) }
+            }
+
+            emoji.tags.forEach { tag ->
+                val lowercase = tag.lowercase()
+                addTerm(lowercase, i, WEIGHT_TAG)
+                lowercase.split('_', ' ').forEach { addTerm(it, i, WEIGHT_TAG) }
+            }
+
+            // Descriptions are prose, so their filler words would match nearly every query
+            emoji.description.lowercase().split(separators).forEach {
+                if(it.length >= MIN_DESCRIPTION_TERM_LENGTH && it !in descriptionStopwords) {
+                    addTerm(it, i, WEIGHT_DESCRIPTION)
+                }
+            }
+        }
+
+        val sortedTerms = termMap.keys.sorted()
+        terms = sortedTerms.toTypedArray()
+        postings = Array(terms.size) { t ->
+            termMap[terms[t]]!!.keys.toIntArray()
+        }
+        postingWeights = Array(terms.size) { t ->
+            val entries = termMap[terms[t]]!!
+            ByteArray(postings[t].size) { p -> entries[postings[t][p]]!!.toByte() }
+        }
+    }
+
+    private fun lowerBound(prefix: String): Int {
+        var lo = 0
+        var hi = terms.size
+        while(lo < hi) {
+            val mid = (lo + hi) ushr 1
+            if(terms[mid] < prefix) lo = mid + 1 else hi = mid
+        }
+        return lo
+    }
+
+    /**
+     * Accumulates, for every emoji, the best score that any term starting with [token] gives it.
+     * Exact term matches score higher than prefix matches.
+     */
+    private fun scoreToken(token: String, into: IntArray) {
+        var t = lowerBound(token)
+        while(t < terms.size && terms[t].startsWith(token)) {
+            val exact = terms[t].length == token.length
+            val ids = postings[t]
+            val weights = postingWeights[t]
+            for(p in ids.indices) {
+                val score = weights[p] * 2 + (if(exact) 1 else 0)
+                if(into[ids[p]] < score) into[ids[p]] = score
+            }
+            t++
+        }
+    }
+
+    /**
+     * Returns up to [limit] emojis whose terms start with every word of [query], best first.
+     * Ties are broken by [usageScore] (e.g. from recent usage) and then by the original order of
+     * the emoji list, which keeps the more common emojis first.
+     */
+    fun search(
+        query: String,
+        limit: Int,
+        usageScore: (String) -> Float = { 0.0f }
+    ): List<EmojiItem> {
+        val words = query.lowercase().split(separators).filter { it.isNotEmpty() }
+        // Descriptions are indexed without stopwords, so queries are searched without them too
+        val tokens = words.filter { it !in descriptionStopwords }.ifEmpty { words }
+        if(tokens.isEmpty() || limit <= 0) return listOf()
+
+        val total = IntArray(emojis.size)
+        val tokenScore = IntArray(emojis.size)
+        tokens.forEachIndexed { i, token ->
+            tokenScore.fill(0)
+            scoreToken(token, tokenScore)
+            for(e in total.indices) {
+                total[e] = if(tokenScore[e] == 0 || (i > 0 && total[e] == 0)) {
+                    0
+                } else {
+                    total[e] + tokenScore[e]
+                }
+            }
+        }
+
+        val matches = total.indices.filter { total[it] > 0 }
+        val usage = FloatArray(emojis.size)
+        matches.forEach { usage[it] = usageScore(emojis[it].emoji) }
+
+        return matches.sortedWith(
+            compareByDescending<Int> { total[it] }
+                .thenByDescending { usage[it] }
+                .thenBy { it }
+        ).take(limit).map { emojis[it] }
+    }
+
+    companion object {
+        private const val WEIGHT_DESCRIPTION = 1
+        private const val WEIGHT_TAG = 2
+        private const val WEIGHT_ALIAS_PART = 3
+        private const val WEIGHT_ALIAS = 4
+
+        private const val MIN_DESCRIPTION_TERM_LENGTH = 2
+        private val descriptionStopwords = hashSetOf(
+            "an", "and", "as", "at", "by", "for", "from", "in", "into", "is", "it", "its", "of",
+            "on", "or", "the", "to", "with"
+        )
+
+        private val separators = Regex("[\\s_:,.!?'\"()-]+")
+    }
+}
@@ -40,6 +40,7 @@ import org.futo.inputmethod.latin.uix.theme.ThemeOption
 import org.futo.inputmethod.latin.uix.theme.ThemeOptions
 import org.futo.inputmethod.latin.uix.theme.UixThemeWrapper
 import org.futo.inputmethod.latin.uix.theme.presets.VoiceInputTheme
+import org.futo.inputmethod.latin.xlm.ModelMetadataIndex
 import org.futo.inputmethod.latin.xlm.ModelPaths
 import org.futo.inputmethod.updates.checkForUpdateAndSaveToPreferences
 import java.io.File
@@ -181,6 +182,8 @@ class SettingsActivity : ComponentActivity() {
             checkForUpdateAndSaveToPreferences(applicationContext)
         }
 
+        ModelMetadataIndex.watch(applicationContext, lifecycleScope)
+
         deferGetSetting(THEME_KEY) {
             val themeOptionFromSettings = ThemeOptions[it]
             val themeOption = when {
@@ -1,19 +1,53 @@
 package org.futo.inputmethod.latin.uix.settings.pages
 
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.rememberCoroutineScope
+import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.tooling.preview.Preview
 import androidx.navigation.NavHostController
 import androidx.navigation.compose.rememberNavController
+import kotlinx.coroutines.launch
+import org.futo.inputmethod.latin.uix.settings.NavigationItem
+import org.futo.inputmethod.latin.uix.settings.NavigationItemStyle
 import org.futo.inputmethod.latin.uix.settings.ScreenTitle
 import org.futo.inputmethod.latin.uix.settings.ScrollableList
 import org.futo.inputmethod.latin.uix.settings.SettingSlider
+import org.futo.inputmethod.latin.uix.settings.SettingToggleDataStore
 import org.futo.inputmethod.latin.uix.settings.Tip
+import org.futo.inputmethod.latin.uix.settings.useDataStoreValueBlocking
 import org.futo.inputmethod.latin.xlm.AutocorrectThresholdSetting
 import org.futo.inputmethod.latin.xlm.BinaryDictTransformerWeightSetting
+import org.futo.inputmethod.latin.xlm.CalibratedDecodeThreadsSetting
+import org.futo.inputmethod.latin.xlm.CalibratedPromptSpeedSetting
+import org.futo.inputmethod.latin.xlm.CalibratedPromptThreadsSetting
+import org.futo.inputmethod.latin.xlm.CalibratedSingleThreadPromptSpeedSetting
+import org.futo.inputmethod.latin.xlm.JointCandidateScoringSetting
+import org.futo.inputmethod.latin.xlm.LanguageModelDecodeThreadsSetting
+import org.futo.inputmethod.latin.xlm.LanguageModelPromptThreadsSetting
+import org.futo.inputmethod.latin.xlm.LanguageModelThreads
+import kotlin.math.roundToInt
 
 @Preview
 @Composable
 fun AdvancedParametersScreen(navController: NavHostController = rememberNavController()) {
+    val context = LocalContext.current
+    val coroutineScope = rememberCoroutineScope()
+
+    val calibratedDecodeThreads = useDataStoreValueBlocking(CalibratedDecodeThreadsSetting)
+    val calibratedPromptThreads = useDataStoreValueBlocking(CalibratedPromptThreadsSetting)
+    val singleThreadPromptSpeed = useDataStoreValueBlocking(CalibratedSingleThreadPromptSpeedSetting)
+    val promptSpeed = useDataStoreValueBlocking(CalibratedPromptSpeedSetting)
+
+    val threadsIndicator = { calibrated: Int ->
+        { threads: Int ->
+            when {
+                threads > 0 -> "$threads"
+                calibrated > 0 -> "auto ($calibrated)"
+                else -> "auto"
+            }
+        }
+    }
+
     ScrollableList {
         ScreenTitle("Advanced Parameters", showBack = true, navController)
 
@@ -67,5 +101,44 @@ fun AdvancedParametersScreen(navController: NavHostController = rememberNavContr
             power = 2.5f
         )
 
+        SettingSlider(
+            title = "Transformer LM decode threads",
+            subtitle = "Threads used to predict one token at a time while typing. Auto uses the count picked by calibrating on this device",
+            setting = LanguageModelDecodeThreadsSetting,
+            range = 0.0f .. LanguageModelThreads.maxThreads.toFloat(),
+            transform = { it.roundToInt() },
+            indicator = threadsIndicator(calibratedDecodeThreads),
+            steps = LanguageModelThreads.maxThreads - 1
+        )
+
+        SettingSlider(
+            title = "Transformer LM prompt threads",
+            subtitle = "Threads used to read the text before the cursor, such as after switching to another text field or pasting. Auto uses the count picked by calibrating on this device",
+            setting = LanguageModelPromptThreadsSetting,
+            range = 0.0f .. LanguageModelThreads.maxThreads.toFloat(),
+            transform = { it.roundToInt() },
+            indicator = threadsIndicator(calibratedPromptThreads),
+            steps = LanguageModelThreads.maxThreads - 1
+        )
+
+        if(promptSpeed > 0.0f) {
+            Tip("Calibration: prompt evaluation runs at ${singleThreadPromptSpeed.roundToInt()} tokens/s with 1 thread and ${promptSpeed.roundToInt()} tokens/s with $calibratedPromptThreads")
+        }
+
+        NavigationItem(
+            title = "Recalibrate threads",
+            subtitle = "Measure which thread counts are fastest on this device again",
+            style = NavigationItemStyle.MiscNoArrow,
+            navigate = {
+                coroutineScope.launch { LanguageModelThreads.resetCalibration(context) }
+            }
+        )
+
+        SettingToggleDataStore(
+            title = "Joint candidate scoring",
+            subtitle = "Score the dictionary's candidates with the Transformer LM in one pass instead of merging two separate suggestion lists. The strength setting above is ignored while typing when this is enabled",
+            setting = JointCandidateScoringSetting
+        )
+
     }
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+package org.futo.inputmethod.latin.uix.settings.pages
+
+import android.net.Uri
+import android.widget.Toast
+import androidx.activity.compose.rememberLauncherForActivityResult
+import androidx.activity.result.contract.ActivityResultContracts
+import androidx.compose.foundation.horizontalScroll
+import androidx.compose.foundation.layout.padding
+import androidx.compose.foundation.rememberScrollState
+import androidx.compose.material3.MaterialTheme
+import androidx.compose.material3.Text
+import androidx.compose.runtime.Composable
+import androidx.compose.runtime.LaunchedEffect
+import androidx.compose.runtime.mutableStateOf
+import androidx.compose.runtime.remember
+import androidx.compose.ui.Modifier
+import androidx.compose.ui.platform.LocalContext
+import androidx.compose.ui.platform.LocalLifecycleOwner
+import androidx.compose.ui.text.font.FontFamily
+import androidx.compose.ui.tooling.preview.Preview
+import androidx.compose.ui.unit.dp
+import androidx.lifecycle.lifecycleScope
+import androidx.navigation.NavHostController
+import androidx.navigation.compose.rememberNavController
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import org.futo.inputmethod.latin.uix.settings.NavigationItem
+import org.futo.inputmethod.latin.uix.settings.NavigationItemStyle
+import org.futo.inputmethod.latin.uix.settings.ScreenTitle
+import org.futo.inputmethod.latin.uix.settings.ScrollableList
+import org.futo.inputmethod.latin.uix.settings.Tip
+import org.futo.inputmethod.latin.utils.LatencyTracker
+
+private const val REFRESH_INTERVAL_MS = 1000L
+
+@Preview(showBackground = true)
+@Composable
+fun DevLatencyScreen(navController: NavHostController = rememberNavController()) {
+    val context = LocalContext.current
+    val scope = LocalLifecycleOwner.current
+    val report = remember { mutableStateOf(LatencyTracker.dump()) }
+
+    LaunchedEffect(Unit) {
+        while (true) {
+            report.value = LatencyTracker.dump()
+            delay(REFRESH_INTERVAL_MS)
+        }
+    }
+
+    val exportLauncher = rememberLauncherForActivityResult(
+        contract = ActivityResultContracts.CreateDocument("text/plain")
+    ) { uri: Uri? ->
+        if (uri == null) return@rememberLauncherForActivityResult
+        val contents = LatencyTracker.dump()
+        scope.lifecycleScope.launch {
+            val succeeded = withContext(Dispatchers.IO) {
+                try {
+                    context.contentResolver.openOutputStream(uri)?.use {
+                        it.write(contents.toByteArray())
+                    } != null
+                } catch (e: Exception) {
+                    false
+                }
+            }
+
+            Toast.makeText(
+                context,
+                if (succeeded) "Latency report exported" else "Failed to export latency report",
+                Toast.LENGTH_SHORT
+            ).show()
+        }
+    }
+
+    ScrollableList {
+        ScreenTitle("Latency", showBack = true, navController)
+
+        Tip("Latencies are in milliseconds and cover the time since the keyboard process started or since the last reset. Sections also show up in system traces.")
+
+        Text(
+            text = report.value,
+            style = MaterialTheme.typography.bodySmall,
+            fontFamily = FontFamily.Monospace,
+            softWrap = false,
+            modifier = Modifier
+                .horizontalScroll(rememberScrollState())
+                .padding(16.dp)
+        )
+
+        NavigationItem(
+            title = "Export as file",
+            style = NavigationItemStyle.MiscNoArrow,
+            navigate = { exportLauncher.launch("latency.txt") }
+        )
+
+        NavigationItem(
+            title = "Reset",
+            style = NavigationItemStyle.MiscNoArrow,
+            navigate = {
+                LatencyTracker.reset()
+                report.value = LatencyTracker.dump()
+            }
+        )
+    }
+}
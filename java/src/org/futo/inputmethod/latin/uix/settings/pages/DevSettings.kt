@@ -75,6 +75,13 @@ fun DeveloperScreen(navController: NavHostController = rememberNavController())
             navigate = { navController.navigate("devtextedit") }
         )
 
+        NavigationItem(
+            title = "Latency",
+            subtitle = "Hot path timings and export",
+            style = NavigationItemStyle.Misc,
+            navigate = { navController.navigate("devlatency") }
+        )
+
 
         ScreenTitle(title = "Payment stuff")
 
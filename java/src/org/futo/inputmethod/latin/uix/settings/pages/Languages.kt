@@ -64,13 +64,13 @@ import org.futo.inputmethod.latin.uix.settings.NavigationItemStyle
 import org.futo.inputmethod.latin.uix.settings.ScreenTitle
 import org.futo.inputmethod.latin.uix.settings.SettingItem
 import org.futo.inputmethod.latin.uix.settings.pages.modelmanager.openModelImporter
+import org.futo.inputmethod.latin.uix.settings.pages.modelmanager.useModelIndex
 import org.futo.inputmethod.latin.uix.settings.useDataStoreValueBlocking
 import org.futo.inputmethod.latin.uix.theme.Typography
 import org.futo.inputmethod.latin.uix.theme.UixThemeWrapper
 import org.futo.inputmethod.latin.uix.theme.presets.DynamicDarkTheme
 import org.futo.inputmethod.latin.uix.youAreImporting
 import org.futo.inputmethod.latin.utils.Dictionaries
-import org.futo.inputmethod.latin.xlm.ModelPaths
 import org.futo.inputmethod.updates.openURI
 import java.util.Locale
 
@@ -345,6 +345,7 @@ data class DeleteInfo(
 @Composable
 fun LanguagesScreen(navController: NavHostController = rememberNavController()) {
     val context = LocalContext.current
+    val modelIndex = useModelIndex()
     val deleteDialogInfo: MutableState<DeleteInfo?> = remember { mutableStateOf(null) }
 
     val inputMethods = useDataStoreValueBlocking(SubtypesSetting)
@@ -407,8 +408,8 @@ fun LanguagesScreen(navController: NavHostController = rememberNavController())
                     null
             }
 
-            val transformerName = runBlocking { ModelPaths.getModelOptions(context) }.get(locale.language)?.let {
-                it.loadDetails()?.name
+            val transformerName = modelIndex?.options?.get(locale.language)?.let {
+                modelIndex.getDetails(it)?.name
             }
 
             val options = LanguageOptions(
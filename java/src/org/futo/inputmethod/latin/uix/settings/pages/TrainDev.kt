@@ -14,15 +14,16 @@ import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.tooling.preview.Preview
 import androidx.navigation.NavHostController
 import androidx.navigation.compose.rememberNavController
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
 import org.futo.inputmethod.latin.uix.getSettingFlow
 import org.futo.inputmethod.latin.uix.settings.ScreenTitle
 import org.futo.inputmethod.latin.uix.settings.ScrollableList
-import org.futo.inputmethod.latin.xlm.HistoryLogForTraining
 import org.futo.inputmethod.latin.xlm.NUM_TRAINING_RUNS_KEY
 import org.futo.inputmethod.latin.xlm.TrainingState
 import org.futo.inputmethod.latin.xlm.TrainingStateWithModel
 import org.futo.inputmethod.latin.xlm.TrainingWorkerStatus
-import org.futo.inputmethod.latin.xlm.loadHistoryLogBackup
+import org.futo.inputmethod.latin.xlm.readHistoryLog
 import org.futo.inputmethod.latin.xlm.scheduleTrainingWorkerImmediately
 import kotlin.math.roundToInt
 
@@ -39,10 +40,9 @@ fun TrainDevScreen(navController: NavHostController = rememberNavController()) {
 
     val context = LocalContext.current
     LaunchedEffect(Unit) {
-        val data = mutableListOf<HistoryLogForTraining>()
-        loadHistoryLogBackup(context, data)
-
-        trainingDataAmount = data.size
+        trainingDataAmount = withContext(Dispatchers.IO) {
+            readHistoryLog(context).count()
+        }
     }
 
     val numTrains = context.getSettingFlow(NUM_TRAINING_RUNS_KEY, 0).collectAsState(initial = 0)
@@ -10,23 +10,30 @@ import androidx.navigation.NavHostController
 import androidx.navigation.compose.rememberNavController
 import org.futo.inputmethod.latin.R
 import org.futo.inputmethod.latin.uix.AUDIO_FOCUS
+import org.futo.inputmethod.latin.uix.CONTINUOUS_DICTATION
+import org.futo.inputmethod.latin.uix.DECODING_LATENCY_BUDGET
 import org.futo.inputmethod.latin.uix.DISALLOW_SYMBOLS
 import org.futo.inputmethod.latin.uix.ENABLE_SOUND
+import org.futo.inputmethod.latin.uix.KEEP_MODEL_LOADED
 import org.futo.inputmethod.latin.uix.PREFER_BLUETOOTH
+import org.futo.inputmethod.latin.uix.PRELOAD_MODEL
 import org.futo.inputmethod.latin.uix.USE_SYSTEM_VOICE_INPUT
 import org.futo.inputmethod.latin.uix.VERBOSE_PROGRESS
 import org.futo.inputmethod.latin.uix.settings.NavigationItem
 import org.futo.inputmethod.latin.uix.settings.NavigationItemStyle
 import org.futo.inputmethod.latin.uix.settings.ScreenTitle
 import org.futo.inputmethod.latin.uix.settings.ScrollableList
+import org.futo.inputmethod.latin.uix.settings.SettingSlider
 import org.futo.inputmethod.latin.uix.settings.SettingToggleDataStore
 import org.futo.inputmethod.latin.uix.settings.useDataStore
+import kotlin.math.roundToInt
 
 @Preview
 @Composable
 fun VoiceInputScreen(navController: NavHostController = rememberNavController()) {
     val context = LocalContext.current
     val systemVoiceInput = useDataStore(key = USE_SYSTEM_VOICE_INPUT.key, default = USE_SYSTEM_VOICE_INPUT.default)
+    val continuousDictation = useDataStore(key = CONTINUOUS_DICTATION.key, default = CONTINUOUS_DICTATION.default)
     ScrollableList {
         ScreenTitle("Voice Input", showBack = true, navController)
 
@@ -73,6 +80,35 @@ fun VoiceInputScreen(navController: NavHostController = rememberNavController())
                 setting = AUDIO_FOCUS
             )
 
+            SettingToggleDataStore(
+                title = "Continuous dictation",
+                subtitle = "Keep listening through pauses and type each sentence as it's recognized, until tapped",
+                setting = CONTINUOUS_DICTATION
+            )
+
+            if(continuousDictation.value) {
+                SettingToggleDataStore(
+                    title = "Keep model loaded",
+                    subtitle = "Keep the model in memory through long pauses, instead of loading it again when speaking resumes",
+                    setting = KEEP_MODEL_LOADED
+                )
+            }
+
+            SettingToggleDataStore(
+                title = "Preload model",
+                subtitle = "Load the model in the background when the keyboard opens, so results appear sooner. Uses more memory",
+                setting = PRELOAD_MODEL
+            )
+
+            SettingSlider(
+                title = "Processing time target",
+                subtitle = "More accurate decoding is used when it's expected to finish within this time on your device",
+                setting = DECODING_LATENCY_BUDGET,
+                range = 250.0f .. 5000.0f,
+                transform = { (it / 250.0f).roundToInt() * 250 },
+                indicator = { "$it ms" }
+            )
+
             SettingToggleDataStore(
                 title = "Suppress symbols",
                 setting = DISALLOW_SYMBOLS
@@ -14,6 +14,7 @@ import androidx.navigation.NavHostController
 import androidx.navigation.compose.rememberNavController
 import kotlinx.coroutines.runBlocking
 import org.futo.inputmethod.latin.R
+import org.futo.inputmethod.latin.xlm.ModelInfoLoader
 import org.futo.inputmethod.latin.xlm.ModelPaths
 import java.io.File
 
@@ -38,6 +39,7 @@ fun ModelDeleteConfirmScreen(path: File = File("/example"), navController: NavHo
             TextButton(
                 onClick = {
                     path.delete()
+                    ModelInfoLoader(path, path.nameWithoutExtension).deleteAdapter()
                     runBlocking {
                         ModelPaths.signalReloadModels()
                     }
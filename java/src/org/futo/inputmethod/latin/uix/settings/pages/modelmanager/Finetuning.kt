@@ -12,6 +12,7 @@ import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.Text
 import androidx.compose.material3.TextField
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.LaunchedEffect
 import androidx.compose.runtime.collectAsState
 import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.remember
@@ -23,11 +24,9 @@ import androidx.compose.ui.tooling.preview.Preview
 import androidx.compose.ui.unit.dp
 import androidx.navigation.NavHostController
 import androidx.navigation.compose.rememberNavController
-import kotlinx.coroutines.runBlocking
 import org.futo.inputmethod.latin.uix.settings.ScreenTitle
 import org.futo.inputmethod.latin.uix.settings.ScrollableList
 import org.futo.inputmethod.latin.uix.theme.Typography
-import org.futo.inputmethod.latin.xlm.ModelInfoLoader
 import org.futo.inputmethod.latin.xlm.ModelPaths
 import org.futo.inputmethod.latin.xlm.TrainingState
 import org.futo.inputmethod.latin.xlm.TrainingStateWithModel
@@ -93,11 +92,13 @@ fun FinetuningStatePreview() {
 @Preview(showBackground = true)
 @Composable
 fun FinetuneModelScreen(file: File? = null, navController: NavHostController = rememberNavController()) {
-    val model = remember { file?.let { ModelInfoLoader(name = it.nameWithoutExtension, path = it).loadDetails() } }
+    val index = useModelIndex()
+    val model = file?.let { index?.getDetails(it) }
 
     val context = LocalContext.current
-    val models = if(!LocalInspectionMode.current) {
-        remember { runBlocking { ModelPaths.getModelOptions(context) }.values.mapNotNull { it.loadDetails() } }
+    val isInspecting = LocalInspectionMode.current
+    val models = if(!isInspecting) {
+        index?.let { it.options.values.mapNotNull { file -> it.getDetails(file) } } ?: listOf()
     } else {
         PreviewModels
     }
@@ -106,6 +107,9 @@ fun FinetuneModelScreen(file: File? = null, navController: NavHostController = r
         TrainingState.None, null)
     )
     val currentModel = remember { mutableStateOf(model) }
+    LaunchedEffect(model) {
+        if(currentModel.value == null) currentModel.value = model
+    }
 
     val progress = TrainingWorkerStatus.progress.collectAsState(initial = 0.0f)
     val loss = TrainingWorkerStatus.loss.collectAsState(initial = Float.MAX_VALUE)
@@ -115,6 +119,10 @@ fun FinetuneModelScreen(file: File? = null, navController: NavHostController = r
     ScrollableList {
         ScreenTitle("Finetuning", showBack = true, navController)
 
+        if(index == null && !isInspecting) {
+            ModelIndexLoading()
+        }
+
         if(trainingState.value.state == TrainingState.Training && TrainingWorkerStatus.isTraining.value) {
             Text("Currently busy finetuning ${trainingState.value.model}")
             Text("Progress ${(progress.value * 100.0f).roundToInt()}%")
@@ -130,6 +138,9 @@ fun FinetuneModelScreen(file: File? = null, navController: NavHostController = r
                     TrainingState.Finished -> {
                         Text("Last training run succeeded with final loss ${loss.value}")
                     }
+                    TrainingState.Interrupted -> {
+                        Text("Last training run was interrupted, the next run will resume it")
+                    }
                     TrainingState.FatalError -> {
                         Text("Fatal error")
                     }
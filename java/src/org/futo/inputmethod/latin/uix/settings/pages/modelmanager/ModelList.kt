@@ -5,7 +5,6 @@ import android.content.Intent
 import androidx.compose.foundation.layout.Spacer
 import androidx.compose.foundation.layout.height
 import androidx.compose.runtime.Composable
-import androidx.compose.runtime.remember
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.platform.LocalInspectionMode
@@ -14,7 +13,6 @@ import androidx.compose.ui.tooling.preview.Preview
 import androidx.compose.ui.unit.dp
 import androidx.navigation.NavHostController
 import androidx.navigation.compose.rememberNavController
-import kotlinx.coroutines.runBlocking
 import org.futo.inputmethod.latin.R
 import org.futo.inputmethod.latin.uix.settings.IMPORT_GGUF_MODEL_REQUEST
 import org.futo.inputmethod.latin.uix.settings.NavigationItem
@@ -22,7 +20,6 @@ import org.futo.inputmethod.latin.uix.settings.NavigationItemStyle
 import org.futo.inputmethod.latin.uix.settings.ScreenTitle
 import org.futo.inputmethod.latin.uix.settings.ScrollableList
 import org.futo.inputmethod.latin.xlm.ModelInfo
-import org.futo.inputmethod.latin.xlm.ModelPaths
 import org.futo.inputmethod.updates.openURI
 import java.net.URLEncoder
 import java.util.Locale
@@ -49,15 +46,13 @@ fun ModelNavigationItem(navController: NavHostController, name: String, isPrimar
 @Composable
 fun ModelListScreen(navController: NavHostController = rememberNavController()) {
     val context = LocalContext.current
-    val models = if(LocalInspectionMode.current) { PreviewModels } else {
-        remember {
-            ModelPaths.getModels(context).mapNotNull {
-                it.loadDetails()
-            }
-        }
+    val index = useModelIndex()
+    val isInspecting = LocalInspectionMode.current
+    val models = if(isInspecting) { PreviewModels } else {
+        index?.models ?: listOf()
     }
 
-    val modelChoices = remember { runBlocking { ModelPaths.getModelOptions(context) } }
+    val modelChoices = index?.options ?: mapOf()
 
     val modelsByLanguage: MutableMap<String, MutableList<ModelInfo>> = mutableMapOf()
     models.forEach { model ->
@@ -67,6 +62,10 @@ fun ModelListScreen(navController: NavHostController = rememberNavController())
     ScrollableList {
         ScreenTitle("Models", showBack = true, navController)
 
+        if(index == null && !isInspecting) {
+            ModelIndexLoading()
+        }
+
         modelsByLanguage.forEach { item ->
             Spacer(modifier = Modifier.height(32.dp))
             ScreenTitle(Locale(item.key).displayLanguage)
@@ -80,7 +79,7 @@ fun ModelListScreen(navController: NavHostController = rememberNavController())
 
                 ModelNavigationItem(
                     name = name,
-                    isPrimary = model.path == modelChoices[item.key]?.path?.absolutePath,
+                    isPrimary = model.path == modelChoices[item.key]?.absolutePath,
                     path = model.path,
                     navController = navController
                 )
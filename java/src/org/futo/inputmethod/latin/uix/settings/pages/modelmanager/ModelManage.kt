@@ -10,6 +10,8 @@ import androidx.compose.foundation.layout.padding
 import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.collectAsState
+import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.remember
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
@@ -22,12 +24,14 @@ import androidx.compose.ui.unit.dp
 import androidx.lifecycle.lifecycleScope
 import androidx.navigation.NavHostController
 import androidx.navigation.compose.rememberNavController
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import org.futo.inputmethod.latin.uix.USE_TRANSFORMER_FINETUNING
 import org.futo.inputmethod.latin.uix.settings.NavigationItem
 import org.futo.inputmethod.latin.uix.settings.NavigationItemStyle
 import org.futo.inputmethod.latin.uix.settings.ScreenTitle
 import org.futo.inputmethod.latin.uix.settings.ScrollableList
+import org.futo.inputmethod.latin.uix.settings.SettingToggleRaw
 import org.futo.inputmethod.latin.uix.settings.Tip
 import org.futo.inputmethod.latin.uix.settings.useDataStore
 import org.futo.inputmethod.latin.uix.theme.Typography
@@ -98,6 +102,10 @@ fun ManageModelScreen(model: ModelInfo = PreviewModels[0], navController: NavHos
 
     val finetuningEnabled = useDataStore(key = USE_TRANSFORMER_FINETUNING.key, default = USE_TRANSFORMER_FINETUNING.default)
 
+    val modelLoader = remember { ModelInfoLoader(file, file.nameWithoutExtension) }
+    val adapterInfo = remember { mutableStateOf(modelLoader.loadAdapterInfo()) }
+    val lastAdapterReload = ModelPaths.lastAdapterReload.collectAsState()
+
     ScrollableList {
         ScreenTitle(name, showBack = true, navController)
 
@@ -175,6 +183,30 @@ fun ManageModelScreen(model: ModelInfo = PreviewModels[0], navController: NavHos
             )
         }
 
+        adapterInfo.value?.let { adapter ->
+            Spacer(modifier = Modifier.height(32.dp))
+            ScreenTitle("Fine-tuning")
+
+            val reload = lastAdapterReload.value?.takeIf { it.model == modelLoader.name }
+            SettingToggleRaw(
+                title = "Use fine-tuned adapter",
+                subtitle = if(reload != null) {
+                    "Last ${if(reload.attached) "attached" else "detached"} in ${reload.latencyMs} ms"
+                } else {
+                    "Turn off to compare against the base model"
+                },
+                enabled = adapter.enabled,
+                setValue = { enabled ->
+                    val newInfo = adapter.copy(enabled = enabled)
+                    adapterInfo.value = newInfo
+                    coroutineScope.lifecycleScope.launch(Dispatchers.IO) {
+                        modelLoader.saveAdapterInfo(newInfo)
+                        ModelPaths.signalReloadAdapter(file)
+                    }
+                }
+            )
+        }
+
         Spacer(modifier = Modifier.height(32.dp))
         ScreenTitle("Actions")
 
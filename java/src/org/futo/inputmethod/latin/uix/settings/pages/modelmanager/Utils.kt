@@ -7,6 +7,7 @@ import android.view.ContextThemeWrapper
 import androidx.compose.foundation.layout.Box
 import androidx.compose.foundation.layout.fillMaxWidth
 import androidx.compose.foundation.layout.padding
+import androidx.compose.material3.CircularProgressIndicator
 import androidx.compose.material3.DropdownMenuItem
 import androidx.compose.material3.ExperimentalMaterial3Api
 import androidx.compose.material3.ExposedDropdownMenuBox
@@ -15,19 +16,24 @@ import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.Text
 import androidx.compose.material3.TextField
 import androidx.compose.runtime.Composable
+import androidx.compose.runtime.LaunchedEffect
+import androidx.compose.runtime.collectAsState
 import androidx.compose.runtime.getValue
 import androidx.compose.runtime.mutableStateOf
 import androidx.compose.runtime.remember
 import androidx.compose.runtime.setValue
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
+import androidx.compose.ui.platform.LocalContext
 import androidx.compose.ui.unit.dp
 import androidx.navigation.NavHostController
 import androidx.navigation.compose.rememberNavController
 import org.futo.inputmethod.latin.uix.settings.EXPORT_GGUF_MODEL_REQUEST
 import org.futo.inputmethod.latin.uix.settings.IMPORT_GGUF_MODEL_REQUEST
 import org.futo.inputmethod.latin.uix.settings.SettingsActivity
+import org.futo.inputmethod.latin.xlm.ModelIndex
 import org.futo.inputmethod.latin.xlm.ModelInfo
+import org.futo.inputmethod.latin.xlm.ModelMetadataIndex
 import org.futo.inputmethod.latin.xlm.ModelInfoLoader
 import java.io.File
 import java.text.CharacterIterator
@@ -72,10 +78,39 @@ fun triggerModelExport(context: Context, file: File) {
     activity.startActivityForResult(intent, EXPORT_GGUF_MODEL_REQUEST)
 }
 
+// Null until the models have been indexed for the first time. The settings activity keeps the
+// index up to date, this only makes sure a first refresh happens wherever the screen is shown
+@Composable
+fun useModelIndex(): ModelIndex? {
+    val context = LocalContext.current
+    val index = ModelMetadataIndex.index.collectAsState().value
+    LaunchedEffect(index == null) {
+        if(index == null) ModelMetadataIndex.refresh(context.applicationContext)
+    }
+    return index
+}
+
+// Shown in place of model details while the index is being built
+@Composable
+fun ModelIndexLoading() {
+    Box(
+        modifier = Modifier
+            .fillMaxWidth()
+            .padding(32.dp)
+    ) {
+        CircularProgressIndicator(modifier = Modifier.align(Alignment.Center))
+    }
+}
+
 @Composable
 fun ModelScreenNav(file: File, navController: NavHostController = rememberNavController()) {
     val loader = remember { ModelInfoLoader(name = file.nameWithoutExtension, path = file) }
-    val model = remember { loader.loadDetails() }
+    val index = useModelIndex()
+    if(index == null) {
+        ModelIndexLoading()
+        return
+    }
+    val model = index.getDetails(file)
     if(model != null) {
         ManageModelScreen(model = model, navController)
     } else {
@@ -0,0 +1,132 @@
+package org.futo.inputmethod.latin.uix.voiceinput
+
+import android.content.Context
+import android.util.Log
+import android.view.inputmethod.EditorInfo
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import org.futo.inputmethod.latin.uix.DICTATED_FIELDS
+import org.futo.inputmethod.latin.uix.ResourceHelper
+import org.futo.inputmethod.latin.uix.getSetting
+import org.futo.inputmethod.latin.uix.setSetting
+import org.futo.inputmethod.latin.utils.LatencyTracker
+import org.futo.voiceinput.shared.types.ModelLoader
+import org.futo.voiceinput.shared.whisper.ModelManager
+import java.util.Locale
+
+/**
+ * Loads the voice input model in the background when voice input is likely to be used soon, so
+ * that recognition does not have to wait for the model once recording stops. The model is loaded
+ * when the keyboard is shown with the voice input button visible, or in a field voice input was
+ * used in before, and released again after [IDLE_TIMEOUT_MS] without the keyboard being shown or
+ * voice input being used. Under memory pressure it is released with the rest of the action state.
+ *
+ * All methods must be called on the main thread.
+ */
+class VoiceInputPreloader(
+    private val context: Context,
+    private val modelManager: ModelManager,
+    private val scope: CoroutineScope
+) {
+    private var preloadJob: Job? = null
+    private var releaseJob: Job? = null
+    private var inUse = false
+    private var currentField: String? = null
+
+    fun onKeyboardShown(editorInfo: EditorInfo?, locale: Locale, micButtonVisible: Boolean) {
+        currentField = editorInfo?.let { fieldKey(it) }
+        if(inUse) return
+
+        scheduleRelease()
+        if(preloadJob?.isActive == true) return
+
+        val field = currentField
+        preloadJob = scope.launch {
+            val dictatedHere = field != null && context.getSetting(DICTATED_FIELDS).contains(field)
+            if(!micButtonVisible && !dictatedHere) return@launch
+
+            withContext(Dispatchers.Default) {
+                preload(locale)
+            }
+        }
+    }
+
+    private fun preload(locale: Locale) {
+        val model = ResourceHelper.tryFindingVoiceInputModelForLocale(context, locale) ?: return
+        if(modelManager.isLoaded(model) || !model.exists(context)) return
+
+        try {
+            val startTime = System.nanoTime()
+            modelManager.obtainModel(model)
+            LatencyTracker.record(LatencyTracker.VOICE_PREFIX + "Preload",
+                System.nanoTime() - startTime)
+        } catch(e: Exception) {
+            // Starting voice input will try again and show the error
+            Log.w(TAG, "Failed to preload voice input model", e)
+        }
+    }
+
+    private fun scheduleRelease() {
+        releaseJob?.cancel()
+        releaseJob = scope.launch {
+            delay(IDLE_TIMEOUT_MS)
+            preloadJob?.join()
+            if(!inUse) {
+                modelManager.cleanUp()
+            }
+        }
+    }
+
+    /**
+     * Called when the voice input window opens, which keeps the model loaded until
+     * [onVoiceInputClosed]. Returns whether the model was already loaded.
+     */
+    fun onVoiceInputStarted(model: ModelLoader): Boolean {
+        inUse = true
+        releaseJob?.cancel()
+        return modelManager.isLoaded(model)
+    }
+
+    fun onVoiceInputClosed() {
+        inUse = false
+        scheduleRelease()
+    }
+
+    /**
+     * Remembers the current field, so that the model is preloaded when it's focused again even if
+     * the voice input button is not visible.
+     */
+    fun onDictated() {
+        val field = currentField ?: return
+        scope.launch {
+            val fields = context.getSetting(DICTATED_FIELDS)
+            if(fields.contains(field)) return@launch
+
+            context.setSetting(DICTATED_FIELDS, fields.drop(
+                (fields.size + 1 - MAX_DICTATED_FIELDS).coerceAtLeast(0)
+            ).toSet() + field)
+        }
+    }
+
+    /** Stops any preload and pending release, before the model manager is cleaned up. */
+    suspend fun cancel() {
+        releaseJob?.cancel()
+        preloadJob?.cancelAndJoin()
+    }
+
+    companion object {
+        private const val TAG = "VoiceInputPreloader"
+
+        const val IDLE_TIMEOUT_MS = 2 * 60 * 1000L
+        private const val MAX_DICTATED_FIELDS = 64
+
+        fun fieldKey(editorInfo: EditorInfo): String {
+            return "${editorInfo.packageName}/${editorInfo.fieldId}/${editorInfo.inputType}"
+        }
+    }
+}
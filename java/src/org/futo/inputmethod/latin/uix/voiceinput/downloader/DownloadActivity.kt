@@ -5,6 +5,7 @@ package org.futo.inputmethod.latin.uix.voiceinput.downloader
 import android.content.Context
 import android.content.Intent
 import android.os.Bundle
+import android.util.Log
 import androidx.activity.ComponentActivity
 import androidx.activity.compose.setContent
 import androidx.compose.foundation.clickable
@@ -57,6 +58,7 @@ import org.futo.inputmethod.latin.uix.theme.ThemeOption
 import org.futo.inputmethod.latin.uix.theme.ThemeOptions
 import org.futo.inputmethod.latin.uix.theme.UixThemeWrapper
 import org.futo.inputmethod.latin.uix.theme.presets.VoiceInputTheme
+import org.futo.voiceinput.shared.getDownloadChecksum
 import org.futo.voiceinput.shared.ui.theme.Typography
 import java.io.File
 import java.io.IOException
@@ -66,6 +68,7 @@ data class ModelInfo(
     val name: String,
     val url: String,
     var size: Long?,
+    val sha256: String? = null,
     var progress: Float = 0.0f,
     var error: Boolean = false,
     var finished: Boolean = false
@@ -252,6 +255,7 @@ fun Context.fileNeedsDownloading(file: String): Boolean {
 class DownloadActivity : ComponentActivity() {
     private lateinit var modelsToDownload: List<ModelInfo>
     private val httpClient = OkHttpClient()
+    private val downloader = ModelDownloader(httpClient)
     private var isDownloading = false
 
     private val themeOption: MutableState<ThemeOption?> = mutableStateOf(null)
@@ -288,66 +292,39 @@ class DownloadActivity : ComponentActivity() {
         updateContent()
 
         modelsToDownload.forEach {
-            val request = Request.Builder().method("GET", null).url(it.url).build()
-
-            httpClient.newCall(request).enqueue(object : Callback {
-                override fun onFailure(call: Call, e: IOException) {
-                    it.error = true
-                    updateContent()
-                }
-
-                override fun onResponse(call: Call, response: Response) {
-                    response.body?.source()?.let { source ->
-
-                        try {
-                            it.size = response.headers["content-length"]!!.toLong()
-                        } catch (e: Exception) {
-                            println("url failed ${it.url}")
-                            println(response.headers)
-                            e.printStackTrace()
-                        }
-
-                        val fileName = it.name + ".download"
-                        val file =
-                            File.createTempFile(fileName, null, this@DownloadActivity.cacheDir)
-                        val os = file.outputStream()
-
-                        val buffer = ByteArray(128 * 1024)
-                        var downloaded = 0
-                        while (true) {
-                            val read = source.read(buffer)
-                            if (read == -1) {
-                                break
-                            }
-
-                            os.write(buffer.sliceArray(0 until read))
-
-                            downloaded += read
-
-                            if (it.size != null) {
-                                it.progress = downloaded.toFloat() / it.size!!.toFloat()
+            lifecycleScope.launch {
+                val succeeded = withContext(Dispatchers.IO) {
+                    try {
+                        downloader.download(
+                            DownloadRequest(it.url, File(filesDir, it.name), it.sha256)
+                        ) { downloaded, total ->
+                            // The downloader already limits how often this is called
+                            if (total > 0) {
+                                it.size = total
+                                it.progress = downloaded.toFloat() / total.toFloat()
                             }
 
-                            lifecycleScope.launch {
-                                withContext(Dispatchers.Main) {
-                                    updateContent()
-                                }
-                            }
+                            lifecycleScope.launch { updateContent() }
                         }
+                        true
+                    } catch (e: IOException) {
+                        Log.e("DownloadActivity", "Failed to download ${it.url}", e)
+                        false
+                    }
+                }
 
-                        it.finished = true
-                        it.progress = 1.0f
-                        os.flush()
-                        os.close()
-
-                        assert(file.renameTo(File(this@DownloadActivity.filesDir, it.name)))
+                if (succeeded) {
+                    it.finished = true
+                    it.progress = 1.0f
+                } else {
+                    it.error = true
+                }
+                updateContent()
 
-                        if (modelsToDownload.all { a -> a.finished }) {
-                            downloadsFinished()
-                        }
-                    }
+                if (modelsToDownload.all { a -> a.finished }) {
+                    downloadsFinished()
                 }
-            })
+            }
         }
     }
 
@@ -395,17 +372,29 @@ class DownloadActivity : ComponentActivity() {
         }
     }
 
+    override fun onDestroy() {
+        super.onDestroy()
+
+        // Partial downloads are resumed the next time
+        downloader.cancel()
+    }
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
 
         val models = intent.getStringArrayListExtra("models")
             ?: throw IllegalStateException("intent extra `models` must be specified for DownloadActivity")
 
+        // SHA-256 of each model, in the same order as `models`. Models missing from it are
+        // looked up by file name
+        val checksums = intent.getStringArrayListExtra("checksums")?.let { models.zip(it).toMap() }
+
         modelsToDownload = models.distinct().filter { this.fileNeedsDownloading(it) }.map {
             ModelInfo(
                 name = it,
                 url = "https://voiceinput.futo.org/VoiceInput/${it}",
                 size = null,
+                sha256 = checksums?.get(it)?.ifEmpty { null } ?: getDownloadChecksum(it),
                 progress = 0.0f
             )
         }
@@ -0,0 +1,467 @@
+package org.futo.inputmethod.latin.uix.voiceinput.downloader
+
+import android.util.Log
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import okhttp3.Call
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import java.io.File
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicLong
+
+data class DownloadRequest(
+    val url: String,
+    val destination: File,
+    // Lowercase hex, or null to accept any content of the advertised size
+    val sha256: String? = null
+)
+
+fun interface DownloadProgressListener {
+    // total is -1 if the server did not say how large the file is
+    fun onProgress(downloaded: Long, total: Long)
+}
+
+class DownloadVerificationException(message: String) : IOException(message)
+
+/**
+ * Downloads a file over HTTP into a partial file next to its destination, and resumes from it
+ * with Range requests after a dropped connection, within the same call or in a later session.
+ * Large files are fetched as several chunks in parallel if the server accepts ranges. The SHA-256
+ * of the file is computed as it is written, and the file is only moved to its destination if it
+ * matches.
+ *
+ * [download] blocks, and should be called from a background thread.
+ */
+class ModelDownloader @JvmOverloads constructor(
+    private val httpClient: OkHttpClient,
+    private val parallelChunks: Int = DEFAULT_PARALLEL_CHUNKS,
+    private val parallelThreshold: Long = DEFAULT_PARALLEL_THRESHOLD,
+    private val maxAttempts: Int = DEFAULT_MAX_ATTEMPTS,
+    private val retryDelayMs: Long = DEFAULT_RETRY_DELAY_MS,
+    private val progressIntervalMs: Long = DEFAULT_PROGRESS_INTERVAL_MS
+) {
+    companion object {
+        const val DEFAULT_PARALLEL_CHUNKS = 4
+        const val DEFAULT_PARALLEL_THRESHOLD = 16L * 1024L * 1024L
+        const val DEFAULT_MAX_ATTEMPTS = 5
+        const val DEFAULT_RETRY_DELAY_MS = 1000L
+        const val DEFAULT_PROGRESS_INTERVAL_MS = 100L
+
+        private const val BUFFER_SIZE = 128 * 1024
+        private const val TAG = "ModelDownloader"
+
+        private val json = Json { ignoreUnknownKeys = true }
+
+        fun getPartialFile(destination: File): File = File(destination.parentFile, "${destination.name}.part")
+        private fun getStateFile(destination: File): File = File(destination.parentFile, "${destination.name}.part.json")
+    }
+
+    @Serializable
+    private data class ChunkState(
+        val start: Long,
+        // Inclusive, -1 if the size is unknown
+        val end: Long,
+        val downloaded: Long,
+        val complete: Boolean
+    )
+
+    @Serializable
+    private data class PartialDownloadState(
+        val url: String,
+        val totalSize: Long,
+        val etag: String?,
+        val chunks: List<ChunkState>
+    )
+
+    @Volatile
+    private var cancelled = false
+    private val activeCalls = mutableSetOf<Call>()
+
+    /**
+     * Stops every download in progress. Their partial files are kept so a later download of the
+     * same file resumes from them.
+     */
+    fun cancel() {
+        cancelled = true
+        synchronized(activeCalls) {
+            activeCalls.forEach { it.cancel() }
+        }
+    }
+
+    /**
+     * Downloads the file, retrying with backoff while the connection keeps dropping, and starting
+     * over if the finished file does not match its checksum.
+     */
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun download(request: DownloadRequest, listener: DownloadProgressListener? = null) {
+        var lastError: IOException? = null
+        for (attempt in 0 until maxAttempts) {
+            if (cancelled) throw InterruptedIOException("Download cancelled")
+
+            try {
+                downloadOnce(request, listener)
+                return
+            } catch (e: DownloadVerificationException) {
+                Log.w(TAG, "Downloaded ${request.url} does not verify, starting over", e)
+                deletePartialDownload(request.destination)
+                lastError = e
+            } catch (e: IOException) {
+                if (cancelled) throw e
+                Log.w(TAG, "Download of ${request.url} failed, attempt ${attempt + 1}", e)
+                lastError = e
+                if (retryDelayMs > 0 && attempt + 1 < maxAttempts) {
+                    try {
+                        Thread.sleep(retryDelayMs shl attempt)
+                    } catch (ie: InterruptedException) {
+                        throw InterruptedIOException("Download interrupted")
+                    }
+                }
+            }
+        }
+
+        throw lastError ?: IOException("Download of ${request.url} failed")
+    }
+
+    fun deletePartialDownload(destination: File) {
+        getPartialFile(destination).delete()
+        getStateFile(destination).delete()
+    }
+
+    private class Chunk(val start: Long, var end: Long, downloaded: Long, @Volatile var complete: Boolean) {
+        val downloaded = AtomicLong(downloaded)
+
+        fun toState() = ChunkState(start, end, downloaded.get(), complete)
+    }
+
+    private data class Probe(val totalSize: Long, val acceptsRanges: Boolean, val etag: String?)
+
+    private fun execute(request: Request): Response {
+        val call = httpClient.newCall(request)
+        synchronized(activeCalls) { activeCalls.add(call) }
+        if (cancelled) call.cancel()
+        try {
+            return call.execute()
+        } finally {
+            synchronized(activeCalls) { activeCalls.remove(call) }
+        }
+    }
+
+    private fun probe(url: String): Probe {
+        val request = Request.Builder().head().header("Accept-Encoding", "identity").url(url).build()
+        return try {
+            execute(request).use { response ->
+                if (!response.isSuccessful) {
+                    Probe(-1, false, null)
+                } else {
+                    Probe(
+                        response.header("Content-Length")?.toLongOrNull() ?: -1,
+                        response.header("Accept-Ranges") == "bytes",
+                        response.header("ETag")
+                    )
+                }
+            }
+        } catch (e: IOException) {
+            if (cancelled) throw e
+            Probe(-1, false, null)
+        }
+    }
+
+    private fun loadState(request: DownloadRequest): PartialDownloadState? {
+        val stateFile = getStateFile(request.destination)
+        if (!stateFile.exists() || !getPartialFile(request.destination).exists()) return null
+
+        return try {
+            json.decodeFromString<PartialDownloadState>(stateFile.readText()).takeIf { it.url == request.url }
+        } catch (e: Exception) {
+            Log.w(TAG, "Discarding unreadable partial download state for ${request.url}", e)
+            null
+        }
+    }
+
+    private fun saveState(destination: File, state: PartialDownloadState) {
+        val stateFile = getStateFile(destination)
+        val tmpFile = File(stateFile.parentFile, "${stateFile.name}.tmp")
+        tmpFile.writeText(json.encodeToString(state))
+        if (!tmpFile.renameTo(stateFile)) {
+            tmpFile.delete()
+            throw IOException("Could not save partial download state to $stateFile")
+        }
+    }
+
+    private fun makeChunks(probe: Probe): List<Chunk> {
+        if (probe.totalSize < 0) return listOf(Chunk(0, -1, 0, false))
+        if (probe.totalSize == 0L) return listOf(Chunk(0, -1, 0, true))
+
+        val count = if (probe.acceptsRanges && probe.totalSize >= parallelThreshold) parallelChunks else 1
+        val chunkSize = (probe.totalSize + count - 1) / count
+        return (0 until count).map {
+            val start = it * chunkSize
+            Chunk(start, minOf(start + chunkSize, probe.totalSize) - 1, 0, false)
+        }
+    }
+
+    // Hashes the file in order. Bytes written right where hashing stands are hashed as they are
+    // written, bytes further ahead are read back once everything before them is on disk.
+    private class HashCursor(private val channel: FileChannel) {
+        private val digest = MessageDigest.getInstance("SHA-256")
+        private var position = 0L
+        private val readBuffer = ByteBuffer.allocate(BUFFER_SIZE)
+
+        @Synchronized
+        fun onWritten(at: Long, bytes: ByteArray, length: Int) {
+            if (at == position) {
+                digest.update(bytes, 0, length)
+                position += length
+            }
+        }
+
+        @Synchronized
+        fun advanceTo(end: Long) {
+            while (position < end) {
+                readBuffer.clear()
+                readBuffer.limit(minOf(readBuffer.capacity().toLong(), end - position).toInt())
+                val read = channel.read(readBuffer, position)
+                if (read <= 0) throw IOException("Partial file is shorter than expected")
+                digest.update(readBuffer.array(), 0, read)
+                position += read
+            }
+        }
+
+        @Synchronized
+        fun finish(): String = digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    private inner class Progress(
+        private val destination: File,
+        private val state: () -> PartialDownloadState,
+        private val chunks: List<Chunk>,
+        private val channel: FileChannel,
+        private val hashCursor: HashCursor,
+        private val total: Long,
+        private val listener: DownloadProgressListener?
+    ) {
+        private val downloaded = AtomicLong(chunks.sumOf { it.downloaded.get() })
+        @Volatile
+        private var lastTick = System.nanoTime()
+
+        // Everything before this offset has been written
+        fun contiguousEnd(): Long {
+            var end = 0L
+            for (chunk in chunks) {
+                if (!chunk.complete) return chunk.start + chunk.downloaded.get()
+                end = chunk.start + chunk.downloaded.get()
+            }
+            return end
+        }
+
+        fun add(bytes: Int) {
+            val current = downloaded.addAndGet(bytes.toLong())
+            val now = System.nanoTime()
+            if ((now - lastTick) / 1_000_000L < progressIntervalMs) return
+
+            synchronized(this) {
+                if ((now - lastTick) / 1_000_000L < progressIntervalMs) return
+                lastTick = now
+                tick(current)
+            }
+        }
+
+        @Synchronized
+        fun tick(current: Long = downloaded.get()) {
+            hashCursor.advanceTo(contiguousEnd())
+
+            // The state must never claim more than what has reached the disk
+            channel.force(false)
+            saveState(destination, state())
+
+            listener?.onProgress(current, total)
+        }
+    }
+
+    private fun downloadOnce(request: DownloadRequest, listener: DownloadProgressListener?) {
+        val probe = probe(request.url)
+
+        var state = loadState(request)
+        if (state != null && (state.totalSize != probe.totalSize || state.etag != probe.etag
+                    || (!probe.acceptsRanges && state.chunks.any { it.downloaded > 0 }))) {
+            Log.i(TAG, "Remote file for ${request.url} changed, discarding partial download")
+            state = null
+        }
+
+        val partialFile = getPartialFile(request.destination)
+        val chunks = if (state != null) {
+            Log.i(TAG, "Resuming ${request.url} from partial download")
+            state.chunks.map { Chunk(it.start, it.end, it.downloaded, it.complete) }
+        } else {
+            partialFile.delete()
+            makeChunks(probe)
+        }
+
+        val currentState = {
+            PartialDownloadState(request.url, probe.totalSize, probe.etag, chunks.map { it.toState() })
+        }
+        saveState(request.destination, currentState())
+
+        RandomAccessFile(partialFile, "rw").use { file ->
+            val channel = file.channel
+            val hashCursor = HashCursor(channel)
+            val progress = Progress(request.destination, currentState, chunks, channel, hashCursor,
+                probe.totalSize, listener)
+
+            try {
+                if (chunks.size == 1) {
+                    downloadChunk(request.url, probe, chunks[0], channel, hashCursor, progress)
+                } else {
+                    downloadChunksInParallel(request.url, probe, chunks, channel, hashCursor, progress)
+                }
+            } catch (e: IOException) {
+                // Keep whatever made it to disk for the next attempt
+                try {
+                    progress.tick()
+                } catch (ignored: IOException) {
+                }
+                throw e
+            }
+
+            progress.tick()
+
+            val size = chunks.last().let { it.start + it.downloaded.get() }
+            if (probe.totalSize >= 0 && size != probe.totalSize) {
+                throw DownloadVerificationException("Downloaded $size bytes of ${request.url}, expected ${probe.totalSize}")
+            }
+            file.setLength(size)
+            hashCursor.advanceTo(size)
+
+            val sha256 = hashCursor.finish()
+            if (request.sha256 != null && !sha256.equals(request.sha256, ignoreCase = true)) {
+                throw DownloadVerificationException("Checksum of ${request.url} is $sha256, expected ${request.sha256}")
+            }
+        }
+
+        if (!partialFile.renameTo(request.destination)) {
+            throw IOException("Could not move $partialFile to ${request.destination}")
+        }
+        getStateFile(request.destination).delete()
+    }
+
+    private fun downloadChunksInParallel(
+        url: String,
+        probe: Probe,
+        chunks: List<Chunk>,
+        channel: FileChannel,
+        hashCursor: HashCursor,
+        progress: Progress
+    ) {
+        val executor = Executors.newFixedThreadPool(chunks.size)
+        try {
+            val futures: List<Future<*>> = chunks.map { chunk ->
+                executor.submit { downloadChunk(url, probe, chunk, channel, hashCursor, progress) }
+            }
+
+            // Let the other chunks finish what they can so less is fetched again on retry
+            var error: Throwable? = null
+            for (future in futures) {
+                try {
+                    future.get()
+                } catch (e: ExecutionException) {
+                    if (error == null) error = e.cause
+                }
+            }
+
+            when (val e = error) {
+                null -> {}
+                is IOException -> throw e
+                else -> throw IOException("Chunk download failed", e)
+            }
+        } catch (e: InterruptedException) {
+            throw InterruptedIOException("Download interrupted")
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private fun downloadChunk(
+        url: String,
+        probe: Probe,
+        chunk: Chunk,
+        channel: FileChannel,
+        hashCursor: HashCursor,
+        progress: Progress
+    ) {
+        if (chunk.complete) return
+
+        var position = chunk.start + chunk.downloaded.get()
+        val ranged = position > 0 || (chunk.end >= 0 && chunk.end + 1 < probe.totalSize)
+
+        val builder = Request.Builder().get().url(url)
+            // Ranges are offsets into the file as stored, not into a compressed stream
+            .header("Accept-Encoding", "identity")
+        if (ranged) {
+            builder.header("Range", if (chunk.end >= 0) "bytes=$position-${chunk.end}" else "bytes=$position-")
+            probe.etag?.let { builder.header("If-Range", it) }
+        }
+
+        execute(builder.build()).use { response ->
+            if (ranged && response.code == 200 && chunk.start == 0L && chunk.end + 1 >= probe.totalSize) {
+                // The server sent the whole file instead of the rest of it
+                Log.i(TAG, "Server ignored the range for $url, downloading from the start")
+                position = 0
+                chunk.downloaded.set(0)
+            } else if (ranged && response.code != 206) {
+                throw IOException("Unexpected response ${response.code} for range request to $url")
+            } else if (!response.isSuccessful) {
+                throw IOException("Unexpected response ${response.code} for $url")
+            }
+
+            // Nothing was written after this chunk yet, so hash what is before it and then hash
+            // this chunk as it arrives
+            if (progress.contiguousEnd() == position) hashCursor.advanceTo(position)
+
+            val source = response.body?.source() ?: throw IOException("Empty response for $url")
+            val buffer = ByteArray(BUFFER_SIZE)
+            val byteBuffer = ByteBuffer.wrap(buffer)
+            while (true) {
+                if (cancelled) throw InterruptedIOException("Download cancelled")
+
+                val limit = if (chunk.end >= 0) {
+                    minOf(buffer.size.toLong(), chunk.end + 1 - position).toInt()
+                } else {
+                    buffer.size
+                }
+                if (limit == 0) break
+
+                val read = source.read(buffer, 0, limit)
+                if (read == -1) break
+
+                byteBuffer.clear()
+                byteBuffer.limit(read)
+                while (byteBuffer.hasRemaining()) {
+                    channel.write(byteBuffer, position + byteBuffer.position())
+                }
+                hashCursor.onWritten(position, buffer, read)
+
+                position += read
+                chunk.downloaded.addAndGet(read.toLong())
+                progress.add(read)
+            }
+
+            if (chunk.end >= 0 && position != chunk.end + 1) {
+                throw IOException("Connection closed at byte $position of $url, expected ${chunk.end + 1}")
+            }
+            if (chunk.end < 0) chunk.end = position - 1
+            chunk.complete = true
+        }
+    }
+}
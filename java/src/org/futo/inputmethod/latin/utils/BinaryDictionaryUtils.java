@@ -16,14 +16,23 @@
 
 package org.futo.inputmethod.latin.utils;
 
+import android.util.Log;
+
 import org.futo.inputmethod.annotations.UsedForTesting;
 import org.futo.inputmethod.latin.BinaryDictionary;
+import org.futo.inputmethod.latin.Dictionary;
+import org.futo.inputmethod.latin.common.FileUtils;
 import org.futo.inputmethod.latin.common.StringUtils;
 import org.futo.inputmethod.latin.makedict.DictionaryHeader;
+import org.futo.inputmethod.latin.makedict.DictionaryPatch;
+import org.futo.inputmethod.latin.makedict.FormatSpec;
 import org.futo.inputmethod.latin.makedict.UnsupportedFormatException;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.Locale;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -91,6 +100,136 @@ public final class BinaryDictionaryUtils {
         return false;
     }
 
+    /**
+     * Copies a dictionary to a new path. Like {@link #renameDict}, the files inside a dictionary
+     * directory are renamed to match the name of the new directory.
+     */
+    public static boolean copyDict(final File dictFile, final File newDictFile) {
+        if (newDictFile.exists()) {
+            return false;
+        }
+        if (dictFile.isFile()) {
+            return copyFile(dictFile, newDictFile);
+        } else if (dictFile.isDirectory()) {
+            final String dictName = dictFile.getName();
+            final String newDictName = newDictFile.getName();
+            if (!newDictFile.mkdirs()) {
+                return false;
+            }
+            for (final File file : dictFile.listFiles()) {
+                if (!file.isFile()) {
+                    continue;
+                }
+                final String newFileName = file.getName().replaceFirst(
+                        Pattern.quote(dictName), Matcher.quoteReplacement(newDictName));
+                if (!copyFile(file, new File(newDictFile, newFileName))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static final String PATCHING_DICT_SUFFIX = ".patching";
+    private static final String REPLACED_DICT_SUFFIX = ".replaced";
+
+    /**
+     * Applies a dictionary patch to the dictionary at the given path. The patch is applied to a
+     * copy, which is converted to the updatable version 4 format first if needed, and the copy
+     * replaces the original only once every edit was applied and written. If anything fails, the
+     * original dictionary is left as it was.
+     * @return whether the patch was applied.
+     */
+    public static boolean patchDictFile(final File dictFile, final Locale locale,
+            final DictionaryPatch patch) {
+        final File patchingFile = new File(dictFile.getPath() + PATCHING_DICT_SUFFIX);
+        final File replacedFile = new File(dictFile.getPath() + REPLACED_DICT_SUFFIX);
+        // Left behind if a previous attempt was interrupted
+        FileUtils.deleteRecursively(patchingFile);
+        FileUtils.deleteRecursively(replacedFile);
+
+        boolean isPatched = false;
+        try {
+            if (!copyDict(dictFile, patchingFile)) {
+                Log.e(TAG, "Cannot copy " + dictFile + " to patch it");
+                return false;
+            }
+            isPatched = applyPatchToDict(patchingFile, locale, patch);
+            if (!isPatched) {
+                return false;
+            }
+
+            // Move the original aside first, a file can't be renamed over a directory
+            if (!renameDict(dictFile, replacedFile)) {
+                Log.e(TAG, "Cannot move " + dictFile + " aside to replace it");
+                isPatched = false;
+                return false;
+            }
+            if (!renameDict(patchingFile, dictFile)) {
+                Log.e(TAG, "Cannot replace " + dictFile + " with the patched dictionary");
+                renameDict(replacedFile, dictFile);
+                isPatched = false;
+                return false;
+            }
+            return true;
+        } finally {
+            if (!isPatched) {
+                FileUtils.deleteRecursively(patchingFile);
+            }
+            // Kept if it couldn't be moved back, rather than losing the dictionary
+            if (dictFile.exists()) {
+                FileUtils.deleteRecursively(replacedFile);
+            }
+        }
+    }
+
+    private static boolean applyPatchToDict(final File dictFile, final Locale locale,
+            final DictionaryPatch patch) {
+        final BinaryDictionary staticDict = new BinaryDictionary(dictFile.getAbsolutePath(),
+                0 /* offset */, dictFile.length(), false /* useFullEditDistance */, locale,
+                Dictionary.TYPE_MAIN, false /* isUpdatable */);
+        try {
+            if (!staticDict.isValidDictionary()) {
+                return false;
+            }
+            if (staticDict.getFormatVersion() != FormatSpec.VERSION4
+                    && !staticDict.migrateTo(FormatSpec.VERSION4)) {
+                Log.e(TAG, "Cannot convert " + dictFile + " to an updatable format");
+                return false;
+            }
+        } finally {
+            staticDict.close();
+        }
+
+        final BinaryDictionary dict = new BinaryDictionary(dictFile.getAbsolutePath(),
+                0 /* offset */, dictFile.length(), false /* useFullEditDistance */, locale,
+                Dictionary.TYPE_MAIN, true /* isUpdatable */);
+        try {
+            if (!dict.applyPatch(patch) || !dict.flushWithGC()) {
+                Log.e(TAG, "Cannot apply the patch to " + dictFile);
+                return false;
+            }
+            return true;
+        } finally {
+            dict.close();
+        }
+    }
+
+    private static boolean copyFile(final File from, final File to) {
+        try (final FileChannel in = new FileInputStream(from).getChannel();
+                final FileChannel out = new FileOutputStream(to).getChannel()) {
+            final long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            return true;
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
     @UsedForTesting
     public static boolean createEmptyDictFile(final String filePath, final long dictVersion,
             final Locale locale, final Map<String, String> attributeMap) {
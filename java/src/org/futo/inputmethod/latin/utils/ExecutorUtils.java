@@ -35,24 +35,36 @@ public class ExecutorUtils {
 
     public static final String KEYBOARD = "Keyboard";
     public static final String SPELLING = "Spelling";
+    // Runs dictionary compaction, which is slow but never waited on.
+    public static final String COMPACTION = "Compaction";
 
     private static ScheduledExecutorService sKeyboardExecutorService = newExecutorService(KEYBOARD);
     private static ScheduledExecutorService sSpellingExecutorService = newExecutorService(SPELLING);
+    private static ScheduledExecutorService sCompactionExecutorService =
+            newExecutorService(COMPACTION, Thread.MIN_PRIORITY);
 
     private static ScheduledExecutorService newExecutorService(final String name) {
-        return Executors.newSingleThreadScheduledExecutor(new ExecutorFactory(name));
+        return newExecutorService(name, Thread.NORM_PRIORITY);
+    }
+
+    private static ScheduledExecutorService newExecutorService(final String name,
+            final int priority) {
+        return Executors.newSingleThreadScheduledExecutor(new ExecutorFactory(name, priority));
     }
 
     private static class ExecutorFactory implements ThreadFactory {
         private final String mName;
+        private final int mPriority;
 
-        private ExecutorFactory(final String name) {
+        private ExecutorFactory(final String name, final int priority) {
             mName = name;
+            mPriority = priority;
         }
 
         @Override
         public Thread newThread(final Runnable runnable) {
             Thread thread = new Thread(runnable, TAG);
+            thread.setPriority(mPriority);
             thread.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
                 @Override
                 public void uncaughtException(Thread thread, Throwable ex) {
@@ -89,6 +101,8 @@ public class ExecutorUtils {
                 return sKeyboardExecutorService;
             case SPELLING:
                 return sSpellingExecutorService;
+            case COMPACTION:
+                return sCompactionExecutorService;
             default:
                 throw new IllegalArgumentException("Invalid executor: " + name);
         }
@@ -113,6 +127,9 @@ public class ExecutorUtils {
             case SPELLING:
                 sSpellingExecutorService = newExecutorService(SPELLING);
                 break;
+            case COMPACTION:
+                sCompactionExecutorService = newExecutorService(COMPACTION, Thread.MIN_PRIORITY);
+                break;
             default:
                 throw new IllegalArgumentException("Invalid executor: " + name);
         }
@@ -0,0 +1,228 @@
+package org.futo.inputmethod.latin.utils
+
+import android.content.Context
+import android.content.res.AssetFileDescriptor
+import android.net.Uri
+import android.util.Log
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.ReadableByteChannel
+import java.nio.channels.WritableByteChannel
+
+fun interface TransferProgressListener {
+    // total is -1 if the size of the source is not known
+    fun onProgress(transferred: Long, total: Long)
+}
+
+/**
+ * Copies and moves large files, such as models, without going through a small heap buffer.
+ * Between files the kernel copies the data with FileChannel.transferTo/transferFrom, streams
+ * go through a large direct buffer, and moves within one filesystem are a rename.
+ *
+ * Files are written to a temporary file next to the target, synced, and then renamed over the
+ * target, so the target is never left half written.
+ */
+object FileTransfer {
+    private const val TAG = "FileTransfer"
+
+    // How much is handed to the kernel at once, which is also how often progress is reported
+    private const val CHUNK_SIZE = 8L * 1024L * 1024L
+    private const val BUFFER_SIZE = 1024 * 1024
+
+    /**
+     * Copies from [source] to [target] and returns the number of bytes copied. If [total] is
+     * known and [source] is a FileChannel, copying starts at its current position.
+     */
+    @JvmStatic
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun transfer(
+        source: ReadableByteChannel,
+        target: WritableByteChannel,
+        total: Long = -1,
+        listener: TransferProgressListener? = null
+    ): Long {
+        var transferred = 0L
+
+        if (source is FileChannel && total >= 0) {
+            val start = source.position()
+            while (transferred < total) {
+                val count = source.transferTo(start + transferred,
+                    minOf(CHUNK_SIZE, total - transferred), target)
+                if (count <= 0) break
+                transferred += count
+                listener?.onProgress(transferred, total)
+            }
+            source.position(start + transferred)
+        } else if (target is FileChannel) {
+            val start = target.position()
+            while (total < 0 || transferred < total) {
+                val chunk = if (total < 0) CHUNK_SIZE else minOf(CHUNK_SIZE, total - transferred)
+                val count = target.transferFrom(source, start + transferred, chunk)
+                if (count <= 0) break
+                transferred += count
+                listener?.onProgress(transferred, total)
+            }
+            target.position(start + transferred)
+        } else {
+            val buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+            var sinceProgress = 0L
+            while (source.read(buffer) != -1) {
+                buffer.flip()
+                while (buffer.hasRemaining()) {
+                    val count = target.write(buffer)
+                    transferred += count
+                    sinceProgress += count
+                }
+                buffer.clear()
+                if (sinceProgress >= CHUNK_SIZE) {
+                    sinceProgress = 0
+                    listener?.onProgress(transferred, total)
+                }
+            }
+            listener?.onProgress(transferred, total)
+        }
+
+        if (total >= 0 && transferred != total) {
+            throw IOException("Copied $transferred bytes, expected $total")
+        }
+        return transferred
+    }
+
+    @JvmStatic
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun transfer(
+        source: InputStream,
+        target: OutputStream,
+        total: Long = -1,
+        listener: TransferProgressListener? = null
+    ): Long {
+        val sourceChannel = if (source is FileInputStream) source.channel else Channels.newChannel(source)
+        val targetChannel = if (target is FileOutputStream) target.channel else Channels.newChannel(target)
+        return transfer(sourceChannel, targetChannel, total, listener)
+    }
+
+    /**
+     * Writes everything [write] puts in the channel to [target], replacing it only once the data
+     * is synced to disk. Nothing is left behind if [write] throws.
+     */
+    @Throws(IOException::class)
+    private fun writeAtomically(target: File, write: (FileChannel) -> Unit) {
+        val tmpFile = File(target.parentFile, "${target.name}.tmp")
+        try {
+            FileOutputStream(tmpFile).use { outputStream ->
+                write(outputStream.channel)
+                outputStream.channel.force(true)
+            }
+            if (!tmpFile.renameTo(target)) {
+                throw IOException("Could not move $tmpFile to $target")
+            }
+        } catch (e: Exception) {
+            tmpFile.delete()
+            throw e
+        }
+    }
+
+    @JvmStatic
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun copy(
+        source: InputStream,
+        target: File,
+        total: Long = -1,
+        listener: TransferProgressListener? = null
+    ) {
+        writeAtomically(target) { channel ->
+            val sourceChannel = if (source is FileInputStream) source.channel else Channels.newChannel(source)
+            transfer(sourceChannel, channel, total, listener)
+        }
+    }
+
+    @JvmStatic
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun copy(source: File, target: File, listener: TransferProgressListener? = null) {
+        FileInputStream(source).use { copy(it, target, source.length(), listener) }
+    }
+
+    // The part of an APK or content provider file that the descriptor points at
+    @JvmStatic
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun copy(source: AssetFileDescriptor, target: File, listener: TransferProgressListener? = null) {
+        val length = source.length.takeIf { it != AssetFileDescriptor.UNKNOWN_LENGTH } ?: -1
+        source.createInputStream().use { copy(it, target, length, listener) }
+    }
+
+    /**
+     * Moves [source] to [target], renaming it if both are on the same filesystem and copying it
+     * otherwise.
+     */
+    @JvmStatic
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun move(source: File, target: File, listener: TransferProgressListener? = null) {
+        if (source.renameTo(target)) {
+            listener?.onProgress(target.length(), target.length())
+            return
+        }
+
+        copy(source, target, listener)
+        if (!source.delete()) {
+            Log.w(TAG, "Copied $source to $target but could not delete it")
+        }
+    }
+
+    /**
+     * Copies [source] into a content URI, such as one picked with ACTION_CREATE_DOCUMENT.
+     * Providers backed by a real file get a kernel copy and a sync, others a buffered stream.
+     */
+    @JvmStatic
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun export(
+        context: Context,
+        source: File,
+        target: Uri,
+        listener: TransferProgressListener? = null
+    ) {
+        val descriptor = try {
+            context.contentResolver.openFileDescriptor(target, "wt")
+        } catch (e: Exception) {
+            // Not every provider supports truncating, or file descriptors at all
+            null
+        }
+
+        if (descriptor != null) {
+            descriptor.use {
+                FileOutputStream(it.fileDescriptor).use { outputStream ->
+                    FileInputStream(source).use { inputStream ->
+                        transfer(inputStream.channel, outputStream.channel, source.length(), listener)
+                    }
+                    try {
+                        outputStream.fd.sync()
+                    } catch (e: IOException) {
+                        // Pipes and sockets can't be synced, the provider handles durability
+                    }
+                }
+            }
+            return
+        }
+
+        val outputStream = context.contentResolver.openOutputStream(target)
+            ?: throw IOException("Could not open $target for writing")
+        outputStream.use {
+            FileInputStream(source).use { inputStream ->
+                transfer(inputStream, it, source.length(), listener)
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.futo.inputmethod.latin.utils;
+
+import android.os.Trace;
+
+import org.futo.inputmethod.annotations.UsedForTesting;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how long the hot paths of the keyboard take, so that latency can be looked at on a
+ * device without attaching a profiler.
+ *
+ * Sections timed with {@link #begin(String)} and {@link #end(String, long)} also show up in
+ * system traces. Durations go to a histogram per section, which only takes a few atomic
+ * operations and never blocks, so recording is always on.
+ */
+public final class LatencyTracker {
+    public static final String KEY_INPUT = "Key input";
+    public static final String SUGGESTIONS_DICTIONARY = "Suggestions (dictionary)";
+    public static final String SUGGESTIONS_TRANSFORMER = "Suggestions (transformer)";
+    public static final String SUGGESTIONS_JOINT = "Suggestions (joint scoring)";
+    public static final String SUGGESTION_STRIP = "Suggestion strip";
+    public static final String DICTIONARY_GC = "Dictionary GC";
+    public static final String DICTIONARY_COMPACTION = "Dictionary compaction";
+    public static final String VOICE_PREFIX = "Voice: ";
+
+    private static final ConcurrentHashMap<String, Histogram> sHistograms =
+            new ConcurrentHashMap<>();
+
+    private LatencyTracker() {
+        // This utility class is not publicly instantiable.
+    }
+
+    /**
+     * Starts a section. The section must be ended on the same thread.
+     * @return the start time to pass to {@link #end(String, long)}.
+     */
+    public static long begin(final String section) {
+        Trace.beginSection(section);
+        return System.nanoTime();
+    }
+
+    public static void end(final String section, final long startNanos) {
+        final long nanos = System.nanoTime() - startNanos;
+        Trace.endSection();
+        record(section, nanos);
+    }
+
+    /**
+     * Records a duration that was measured elsewhere, typically because it spans several
+     * threads. This does not emit a trace section.
+     */
+    public static void record(final String section, final long nanos) {
+        Histogram histogram = sHistograms.get(section);
+        if (null == histogram) {
+            final Histogram newHistogram = new Histogram();
+            histogram = sHistograms.putIfAbsent(section, newHistogram);
+            if (null == histogram) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * @return a snapshot of the histogram of each section that has been recorded, by name.
+     */
+    public static TreeMap<String, Snapshot> getSnapshots() {
+        final TreeMap<String, Snapshot> snapshots = new TreeMap<>();
+        for (final Map.Entry<String, Histogram> entry : sHistograms.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().getSnapshot());
+        }
+        return snapshots;
+    }
+
+    public static void reset() {
+        sHistograms.clear();
+    }
+
+    /**
+     * @return the snapshots as a table of text, in milliseconds.
+     */
+    public static String dump() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ROOT, "%-32s %8s %9s %9s %9s %9s %9s\n",
+                "section", "count", "mean", "p50", "p90", "p99", "max"));
+        for (final Map.Entry<String, Snapshot> entry : getSnapshots().entrySet()) {
+            final Snapshot snapshot = entry.getValue();
+            builder.append(String.format(Locale.ROOT,
+                    "%-32s %8d %9.3f %9.3f %9.3f %9.3f %9.3f\n", entry.getKey(),
+                    snapshot.mCount, snapshot.getMeanMillis(),
+                    snapshot.getPercentileMillis(50), snapshot.getPercentileMillis(90),
+                    snapshot.getPercentileMillis(99), snapshot.getMaxMillis()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A histogram of durations in microseconds, with buckets whose width grows with their
+     * values like in HdrHistogram: each power of two is split into 16 buckets, so that any
+     * value is known within 1/16th of itself.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+        // Values from 2^41 microseconds, or about 25 days, all go to the last bucket.
+        private static final int MAX_MAGNITUDE = 40;
+        @UsedForTesting
+        static final int BUCKET_COUNT = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mTotalMicros = new AtomicLong();
+        private final AtomicLong mMaxMicros = new AtomicLong();
+
+        @UsedForTesting
+        static int getBucketIndex(final long micros) {
+            if (micros < SUB_BUCKET_COUNT) {
+                return (int) Math.max(0, micros);
+            }
+            final int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+            if (magnitude > MAX_MAGNITUDE) {
+                return BUCKET_COUNT - 1;
+            }
+            final int shift = magnitude - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKET_COUNT
+                    + (int) ((micros >> shift) & (SUB_BUCKET_COUNT - 1));
+        }
+
+        /**
+         * @return the highest value that goes to the bucket at this index.
+         */
+        @UsedForTesting
+        static long getHighestValueInBucket(final int index) {
+            if (index < SUB_BUCKET_COUNT) {
+                return index;
+            }
+            final int shift = index / SUB_BUCKET_COUNT - 1;
+            final long lowestValue = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+            return lowestValue + (1L << shift) - 1;
+        }
+
+        public void record(final long nanos) {
+            final long micros = nanos / 1000;
+            mCounts.incrementAndGet(getBucketIndex(micros));
+            mTotalMicros.addAndGet(micros);
+            long max = mMaxMicros.get();
+            while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+                max = mMaxMicros.get();
+            }
+        }
+
+        public Snapshot getSnapshot() {
+            final long[] counts = new long[BUCKET_COUNT];
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                counts[i] = mCounts.get(i);
+                count += counts[i];
+            }
+            return new Snapshot(counts, count, mTotalMicros.get(), mMaxMicros.get());
+        }
+    }
+
+    /**
+     * The state of a histogram at some point. Records made while the snapshot is taken may be
+     * partly included.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        public final long mCount;
+        private final long mTotalMicros;
+        private final long mMaxMicros;
+
+        Snapshot(final long[] counts, final long count, final long totalMicros,
+                final long maxMicros) {
+            mCounts = counts;
+            mCount = count;
+            mTotalMicros = totalMicros;
+            mMaxMicros = maxMicros;
+        }
+
+        public double getMeanMillis() {
+            return 0 == mCount ? 0 : mTotalMicros / 1000.0 / mCount;
+        }
+
+        public double getMaxMillis() {
+            return mMaxMicros / 1000.0;
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 100.
+         * @return the duration in milliseconds that this percentile of the records are under.
+         */
+        public double getPercentileMillis(final double percentile) {
+            final long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; ++i) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(Histogram.getHighestValueInBucket(i), mMaxMicros) / 1000.0;
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+}
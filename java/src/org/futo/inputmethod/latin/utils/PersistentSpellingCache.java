@@ -0,0 +1,312 @@
+package org.futo.inputmethod.latin.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.futo.inputmethod.annotations.UsedForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+/**
+ * An on-disk cache of whether words are in the main dictionary of one locale. It survives the
+ * process being killed, so that checking a document again after a restart doesn't have to go
+ * through the native dictionary for every word. Only the main dictionary is cached, as it only
+ * changes by being replaced; the personal dictionaries change as the user types and are small
+ * enough to be looked up each time.
+ *
+ * The cache is a fixed size memory-mapped file in the cache directory, shared by every process
+ * of the app. It is a direct-mapped hash table: each word has a single slot, and a new word
+ * replaces whatever was in its slot. Slots carry a checksum, so that a slot torn by a concurrent
+ * write from another process reads as empty.
+ *
+ * Entries are only valid for the dictionary they were computed with. Each instance is for one
+ * version, a hash of the main dictionary files, and each entry records the version it was stored
+ * with. Other versions' entries read as missing, and are only replaced one slot at a time, so
+ * a dictionary update doesn't need to clear the file.
+ */
+public final class PersistentSpellingCache {
+    private static final String TAG = PersistentSpellingCache.class.getSimpleName();
+
+    private static final String CACHE_DIRECTORY = "spelling_cache";
+    private static final String CACHE_FILE_EXTENSION = ".cache";
+
+    public static final long NO_DICTIONARY_VERSION = 0;
+
+    private static final int MAGIC_NUMBER = 0x53504C43; // "SPLC"
+    private static final int FORMAT_VERSION = 3;
+
+    // The header takes the place of the first slot: [magic number: i32][format version: i32]
+    private static final int HEADER_MAGIC_NUMBER_OFFSET = 0;
+    private static final int HEADER_FORMAT_VERSION_OFFSET = 4;
+
+    // Slot layout: [checksum: i32][flags: u8][dictionary version: i64][word length: u8][word]
+    // The word is in UTF-8. The checksum covers the rest of the slot.
+    private static final int SLOT_SIZE = 64;
+    private static final int SLOT_COUNT = 16384;
+    private static final int FILE_SIZE = SLOT_SIZE * (SLOT_COUNT + 1);
+    private static final int SLOT_CHECKSUM_SIZE = 4;
+    private static final int SLOT_FLAGS_OFFSET = SLOT_CHECKSUM_SIZE;
+    private static final int SLOT_DICTIONARY_VERSION_OFFSET = SLOT_FLAGS_OFFSET + 1;
+    private static final int SLOT_WORD_OFFSET = SLOT_DICTIONARY_VERSION_OFFSET + 8;
+
+    // Instances kept for reuse. Older ones are dropped, but keep working for whoever holds them.
+    private static final int MAX_INSTANCES = 8;
+
+    private static final int FLAG_HAS_VALIDITY = 0x1;
+    private static final int FLAG_IS_VALID = 0x2;
+
+    private static final class Entry {
+        public String mWord;
+        public long mDictionaryVersion;
+        public int mFlags;
+    }
+
+    private static final LinkedHashMap<String, PersistentSpellingCache> sInstances =
+            new LinkedHashMap<String, PersistentSpellingCache>(16, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<String, PersistentSpellingCache> eldest) {
+                    return size() > MAX_INSTANCES;
+                }
+            };
+
+    /**
+     * Returns the cache for results computed with the given version of the main dictionary for
+     * the locale. The file is only opened when the cache is first used.
+     */
+    public static PersistentSpellingCache getInstance(final Context context,
+            final Locale locale, final long dictionaryVersion) {
+        final File directory = new File(context.getCacheDir(), CACHE_DIRECTORY);
+        return getInstance(new File(directory, locale.toString() + CACHE_FILE_EXTENSION),
+                dictionaryVersion);
+    }
+
+    private static PersistentSpellingCache getInstance(final File file,
+            final long dictionaryVersion) {
+        final String key = file.getPath() + ":" + dictionaryVersion;
+        synchronized (sInstances) {
+            PersistentSpellingCache instance = sInstances.get(key);
+            if (instance == null) {
+                instance = new PersistentSpellingCache(file, dictionaryVersion);
+                sInstances.put(key, instance);
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Returns the cache in the same file for another version of the main dictionary.
+     */
+    public PersistentSpellingCache withDictionaryVersion(final long dictionaryVersion) {
+        if (dictionaryVersion == mDictionaryVersion) {
+            return this;
+        }
+        return getInstance(mFile, dictionaryVersion);
+    }
+
+    private final File mFile;
+    private final long mDictionaryVersion;
+    @Nullable private MappedByteBuffer mBuffer;
+    private boolean mHasFailedToOpen = false;
+    private final byte[] mSlot = new byte[SLOT_SIZE];
+    private final CRC32 mChecksum = new CRC32();
+
+    @UsedForTesting
+    PersistentSpellingCache(final File file, final long dictionaryVersion) {
+        mFile = file;
+        mDictionaryVersion = dictionaryVersion;
+    }
+
+    public long getDictionaryVersion() {
+        return mDictionaryVersion;
+    }
+
+    /**
+     * @return whether the word is in the main dictionary, or null if that is not cached.
+     */
+    @Nullable
+    public synchronized Boolean getValidity(final String word) {
+        final Entry entry = readEntryLocked(word);
+        if (entry == null || (entry.mFlags & FLAG_HAS_VALIDITY) == 0) {
+            return null;
+        }
+        return (entry.mFlags & FLAG_IS_VALID) != 0;
+    }
+
+    public synchronized void putValidity(final String word, final boolean isValid) {
+        final Entry entry = getEntryForUpdateLocked(word);
+        if (entry == null) {
+            return;
+        }
+        entry.mFlags = (entry.mFlags & ~FLAG_IS_VALID) | FLAG_HAS_VALIDITY
+                | (isValid ? FLAG_IS_VALID : 0);
+        writeEntryLocked(entry);
+    }
+
+    private boolean openLocked() {
+        if (mBuffer != null) {
+            return true;
+        }
+        if (mHasFailedToOpen) {
+            return false;
+        }
+        final File directory = mFile.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Can't create directory for spelling cache: " + directory);
+            mHasFailedToOpen = true;
+            return false;
+        }
+        try (final RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            // Mapping with a size extends the file, so a new file reads as empty slots and a
+            // header with no magic number.
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        } catch (final IOException e) {
+            Log.e(TAG, "Can't open spelling cache: " + mFile, e);
+            mHasFailedToOpen = true;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isCurrentLocked() {
+        return mBuffer.getInt(HEADER_MAGIC_NUMBER_OFFSET) == MAGIC_NUMBER
+                && mBuffer.getInt(HEADER_FORMAT_VERSION_OFFSET) == FORMAT_VERSION;
+    }
+
+    private static int getSlotIndex(final String word) {
+        // Spread the bits of String#hashCode, whose low bits are poor for short words.
+        final int hash = word.hashCode() * 0x9E3779B1;
+        return (hash >>> 16 ^ hash) & (SLOT_COUNT - 1);
+    }
+
+    private static int getSlotOffset(final int slot) {
+        // The header is in front of the first slot.
+        return SLOT_SIZE * (slot + 1);
+    }
+
+    @Nullable
+    private Entry readEntryLocked(final String word) {
+        if (mDictionaryVersion == NO_DICTIONARY_VERSION || !openLocked() || !isCurrentLocked()) {
+            return null;
+        }
+        final Entry entry = readSlotLocked(getSlotIndex(word));
+        if (entry == null || !word.equals(entry.mWord)
+                || entry.mDictionaryVersion != mDictionaryVersion) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the entry of the word to update, which is a new entry if it isn't cached for this
+     * version. Clears the cache first if it was written in another format.
+     */
+    @Nullable
+    private Entry getEntryForUpdateLocked(final String word) {
+        if (mDictionaryVersion == NO_DICTIONARY_VERSION || !openLocked()) {
+            return null;
+        }
+        if (!isCurrentLocked()) {
+            for (int slot = 0; slot < SLOT_COUNT; ++slot) {
+                clearSlotLocked(slot);
+            }
+            mBuffer.putInt(HEADER_MAGIC_NUMBER_OFFSET, MAGIC_NUMBER);
+            mBuffer.putInt(HEADER_FORMAT_VERSION_OFFSET, FORMAT_VERSION);
+        }
+        final Entry entry = readSlotLocked(getSlotIndex(word));
+        if (entry != null && word.equals(entry.mWord)
+                && entry.mDictionaryVersion == mDictionaryVersion) {
+            return entry;
+        }
+        final Entry newEntry = new Entry();
+        newEntry.mWord = word;
+        newEntry.mDictionaryVersion = mDictionaryVersion;
+        return newEntry;
+    }
+
+    private void clearSlotLocked(final int slot) {
+        final int offset = getSlotOffset(slot);
+        for (int i = 0; i < SLOT_SIZE; i += 8) {
+            mBuffer.putLong(offset + i, 0);
+        }
+    }
+
+    @Nullable
+    private Entry readSlotLocked(final int slot) {
+        final byte[] bytes = mSlot;
+        final int offset = getSlotOffset(slot);
+        for (int i = 0; i < SLOT_SIZE; ++i) {
+            bytes[i] = mBuffer.get(offset + i);
+        }
+        final int flags = bytes[SLOT_FLAGS_OFFSET] & 0xFF;
+        if (flags == 0 || readInt(bytes, 0) != computeChecksum(bytes)) {
+            return null;
+        }
+        final Entry entry = new Entry();
+        entry.mFlags = flags;
+        entry.mDictionaryVersion = readLong(bytes, SLOT_DICTIONARY_VERSION_OFFSET);
+        final int wordLength = bytes[SLOT_WORD_OFFSET] & 0xFF;
+        entry.mWord = new String(bytes, SLOT_WORD_OFFSET + 1, wordLength, StandardCharsets.UTF_8);
+        return entry;
+    }
+
+    private void writeEntryLocked(final Entry entry) {
+        final byte[] bytes = mSlot;
+        final byte[] word = entry.mWord.getBytes(StandardCharsets.UTF_8);
+        bytes[SLOT_FLAGS_OFFSET] = (byte) entry.mFlags;
+        writeLong(bytes, SLOT_DICTIONARY_VERSION_OFFSET, entry.mDictionaryVersion);
+        // Words that don't fit in a slot are not cached.
+        if (SLOT_WORD_OFFSET + 1 + word.length > SLOT_SIZE) {
+            return;
+        }
+        bytes[SLOT_WORD_OFFSET] = (byte) word.length;
+        System.arraycopy(word, 0, bytes, SLOT_WORD_OFFSET + 1, word.length);
+        for (int i = SLOT_WORD_OFFSET + 1 + word.length; i < SLOT_SIZE; ++i) {
+            bytes[i] = 0;
+        }
+        writeInt(bytes, 0, computeChecksum(bytes));
+
+        final int offset = getSlotOffset(getSlotIndex(entry.mWord));
+        for (int i = 0; i < SLOT_SIZE; ++i) {
+            mBuffer.put(offset + i, bytes[i]);
+        }
+    }
+
+    private int computeChecksum(final byte[] slot) {
+        mChecksum.reset();
+        mChecksum.update(slot, SLOT_CHECKSUM_SIZE, SLOT_SIZE - SLOT_CHECKSUM_SIZE);
+        return (int) mChecksum.getValue();
+    }
+
+    private static int readInt(final byte[] bytes, final int position) {
+        return (bytes[position] & 0xFF) << 24 | (bytes[position + 1] & 0xFF) << 16
+                | (bytes[position + 2] & 0xFF) << 8 | (bytes[position + 3] & 0xFF);
+    }
+
+    private static void writeInt(final byte[] bytes, final int position, final int value) {
+        bytes[position] = (byte) (value >>> 24);
+        bytes[position + 1] = (byte) (value >>> 16);
+        bytes[position + 2] = (byte) (value >>> 8);
+        bytes[position + 3] = (byte) value;
+    }
+
+    private static long readLong(final byte[] bytes, final int position) {
+        return (long) readInt(bytes, position) << 32 | (readInt(bytes, position + 4) & 0xFFFFFFFFL);
+    }
+
+    private static void writeLong(final byte[] bytes, final int position, final long value) {
+        writeInt(bytes, position, (int) (value >>> 32));
+        writeInt(bytes, position + 4, (int) value);
+    }
+}
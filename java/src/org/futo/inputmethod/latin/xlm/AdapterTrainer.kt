@@ -1,7 +1,10 @@
 package org.futo.inputmethod.latin.xlm
 
 import kotlinx.coroutines.DelicateCoroutinesApi
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.newSingleThreadContext
 import kotlinx.coroutines.withContext
 import org.futo.inputmethod.annotations.ExternallyReferenced
@@ -13,23 +16,29 @@ class InadequateDataException() : Exception("Inadequate Training Data")
 
 class AdapterTrainer(
     baseModelPath: String,
-    checkpointCachePath: String,
-    outputModelPath: String,
-    weight: Float,
-    examples: List<String>,
+    loraCachePath: String,
+    checkpointPath: String,
+    remainingFraction: Float,
+    examples: Sequence<String>,
     val lossFlow: MutableSharedFlow<Float>?,
     val progressFlow: MutableSharedFlow<Float>?
 ) {
-    private external fun openNative(baseModelPath: String, loraCachePath: String, outputModelPath: String, weight: Float): Long
+    private external fun openNative(baseModelPath: String, loraCachePath: String, checkpointPath: String, remainingFraction: Float): Long
     private external fun closeNative(handle: Long)
     private external fun addExample(handle: Long, example: String)
-    private external fun train(handle: Long) // Long-running function
+    private external fun stopNative(handle: Long)
+    private external fun train(handle: Long): Boolean // Long-running function
 
     private var handle: Long = 0L
     private fun isHandleValid() = handle != 0L
 
+    /** Progress of the current run, from 0 to 1 */
+    var lastProgress: Float = 0.0f
+        private set
+
     @ExternallyReferenced
     private fun emitProgress(progress: Float) {
+        lastProgress = progress
         progressFlow?.tryEmit(progress)
     }
 
@@ -39,11 +48,13 @@ class AdapterTrainer(
     }
 
     init {
-        handle = openNative(baseModelPath, checkpointCachePath, outputModelPath, weight)
+        handle = openNative(baseModelPath, loraCachePath, checkpointPath, remainingFraction)
         if(!isHandleValid()) {
             throw IllegalArgumentException("Failed to initialize AdapterTrainer with given parameters")
         }
 
+        // Examples are tokenized one at a time as they're generated, the full corpus is never
+        // held in memory as text
         var numAdded = 0
         examples.forEach {
             if(it.isNotBlank()) {
@@ -63,16 +74,36 @@ class AdapterTrainer(
         handle = 0
     }
 
-    suspend fun train() = withContext(TrainingContext) {
+    /**
+     * Trains until completion, returning true if it completed. If the calling coroutine is
+     * cancelled, training is stopped at the next iteration with its progress saved to the
+     * checkpoint, so that a later run can resume from it.
+     */
+    suspend fun train(): Boolean = coroutineScope {
         if(!isHandleValid()) throw IllegalStateException("Attempting to train with null handle")
-        train(handle)
+
+        val stopWatcher = launch {
+            try {
+                awaitCancellation()
+            } finally {
+                stopNative(handle)
+            }
+        }
+
+        try {
+            withContext(TrainingContext) {
+                train(handle)
+            }
+        } finally {
+            stopWatcher.cancel()
+        }
     }
 }
 
-class AdapterTrainerBuilder(val baseModelPath: String, val checkpointPath: String, val outputModelPath: String) {
-    private val examples = mutableListOf<String>()
-    fun addExamples(newExamples: List<String>) {
-        examples.addAll(newExamples)
+class AdapterTrainerBuilder(val baseModelPath: String, val loraCachePath: String, val checkpointPath: String) {
+    private var examples = emptySequence<String>()
+    fun addExamples(newExamples: Sequence<String>) {
+        examples += newExamples
     }
 
     private var lossFlow: MutableSharedFlow<Float>? = null
@@ -85,12 +116,12 @@ class AdapterTrainerBuilder(val baseModelPath: String, val checkpointPath: Strin
         progressFlow = flow
     }
 
-    private var weight = 1.0f;
-    fun setWeight(weight: Float) {
-        this.weight = weight;
+    private var remainingFraction = 1.0f
+    fun setRemainingFraction(fraction: Float) {
+        this.remainingFraction = fraction
     }
 
     fun loadAndPrepare(): AdapterTrainer {
-        return AdapterTrainer(baseModelPath, checkpointPath, outputModelPath, weight, examples, lossFlow = lossFlow, progressFlow = progressFlow)
+        return AdapterTrainer(baseModelPath, loraCachePath, checkpointPath, remainingFraction, examples, lossFlow = lossFlow, progressFlow = progressFlow)
     }
-}
\ No newline at end of file
+}
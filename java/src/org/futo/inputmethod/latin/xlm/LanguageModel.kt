@@ -4,6 +4,8 @@ import android.content.Context
 import android.util.Log
 import androidx.lifecycle.LifecycleCoroutineScope
 import kotlinx.coroutines.DelicateCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.newSingleThreadContext
 import kotlinx.coroutines.withContext
 import org.futo.inputmethod.keyboard.KeyDetector
@@ -12,6 +14,7 @@ import org.futo.inputmethod.latin.SuggestedWords
 import org.futo.inputmethod.latin.SuggestedWords.SuggestedWordInfo
 import org.futo.inputmethod.latin.common.ComposedData
 import org.futo.inputmethod.latin.settings.SettingsValuesForSuggestion
+import org.futo.inputmethod.latin.utils.LatencyTracker
 import java.util.Arrays
 import java.util.Locale
 
@@ -25,6 +28,12 @@ data class ComposeInfo(
     val inputMode: Int
 )
 
+private const val CALIBRATION_PROMPT_TOKENS = 64
+private const val CALIBRATION_DECODE_TOKENS = 8
+
+// A thread has to make things at least this much faster to be worth keeping
+private const val CALIBRATION_MIN_GAIN = 1.1f
+
 class LanguageModel(
     val applicationContext: Context,
     val lifecycleScope: LifecycleCoroutineScope,
@@ -33,12 +42,112 @@ class LanguageModel(
 ) {
     private suspend fun loadModel() = withContext(LanguageModelScope) {
         val modelPath = modelInfoLoader.path.absolutePath
-        mNativeState = openNative(modelPath)
+        val adapter = modelInfoLoader.loadAdapterInfo()?.takeIf { it.enabled }
+        val source = ModelPaths.openModelSource(applicationContext, modelInfoLoader.path)
+            ?: throw RuntimeException("Model $modelPath does not exist")
+        mNativeState = source.use {
+            openNative(
+                it.path,
+                it.offset,
+                it.length,
+                if(adapter != null) modelInfoLoader.adapterPath.absolutePath else "",
+                adapter?.scale ?: 0.0f
+            )
+        }
 
         // TODO: Not sure how to handle finetuned model being corrupt. Maybe have finetunedA.gguf and finetunedB.gguf and swap between them
         if (mNativeState == 0L) {
             throw RuntimeException("Failed to load models $modelPath")
         }
+
+        applyThreadPolicy()
+    }
+
+    // Only touched on LanguageModelScope
+    private var calibrationJob: Job? = null
+
+    // Must be called on LanguageModelScope with the model loaded
+    private suspend fun applyThreadPolicy() {
+        val policy = LanguageModelThreads.getPolicy(applicationContext)
+        if (policy != null) {
+            setThreadsNative(mNativeState, policy.decodeThreads, policy.promptThreads)
+            return
+        }
+
+        // Calibrating takes around a second, so it's left until after loading and the model runs
+        // with defaults until then
+        val defaultPolicy = LanguageModelThreads.getPolicyOrDefault(applicationContext)
+        setThreadsNative(mNativeState, defaultPolicy.decodeThreads, defaultPolicy.promptThreads)
+        scheduleCalibration()
+    }
+
+    private fun scheduleCalibration() {
+        if (calibrationJob?.isActive == true) return
+
+        calibrationJob = lifecycleScope.launch(LanguageModelScope) {
+            if (LanguageModelThreads.getPolicy(applicationContext) != null || mNativeState == 0L) {
+                return@launch
+            }
+
+            val policy = calibrateThreads()
+
+            // Saving the calibration suspends, during which the model may have been closed
+            if (mNativeState != 0L) {
+                setThreadsNative(mNativeState, policy.decodeThreads, policy.promptThreads)
+            }
+        }
+    }
+
+    /**
+     * Applies the thread counts from the settings, calibrating them in the background if needed.
+     * Does nothing if the model is not loaded, in which case they are applied when it is.
+     */
+    suspend fun updateThreadPolicy() = withContext(LanguageModelScope) {
+        if (mNativeState == 0L) return@withContext
+        applyThreadPolicy()
+    }
+
+    // Measures prompt and single-token decode speed for every thread count, and keeps the smallest
+    // count past which adding a thread stops paying off. Takes around a second, once per device.
+    private suspend fun calibrateThreads(): ThreadPolicy {
+        val speeds = FloatArray(2)
+
+        // The first decode after loading pays for allocations and cold caches
+        measureThroughputNative(mNativeState, 1, 1, CALIBRATION_PROMPT_TOKENS / 4, 1, speeds)
+
+        val promptSpeeds = FloatArray(LanguageModelThreads.maxThreads + 1)
+        val decodeSpeeds = FloatArray(LanguageModelThreads.maxThreads + 1)
+        for (threads in 1..LanguageModelThreads.maxThreads) {
+            if (!measureThroughputNative(mNativeState, threads, threads,
+                    CALIBRATION_PROMPT_TOKENS, CALIBRATION_DECODE_TOKENS, speeds)) break
+            promptSpeeds[threads] = speeds[0]
+            decodeSpeeds[threads] = speeds[1]
+        }
+
+        val pickThreads = { speedsByThreads: FloatArray ->
+            var best = 1
+            for (threads in 2 until speedsByThreads.size) {
+                if (speedsByThreads[threads] > speedsByThreads[best] * CALIBRATION_MIN_GAIN) {
+                    best = threads
+                }
+            }
+            best
+        }
+
+        val policy = ThreadPolicy(pickThreads(decodeSpeeds), pickThreads(promptSpeeds))
+        Log.i("LanguageModel", "Calibrated threads: $policy, prompt eval " +
+                "${promptSpeeds[1]} tok/s with 1 thread, " +
+                "${promptSpeeds[policy.promptThreads]} tok/s with ${policy.promptThreads}")
+
+        LanguageModelThreads.saveCalibration(
+            applicationContext,
+            policy,
+            promptSpeeds[1],
+            promptSpeeds[policy.promptThreads]
+        )
+
+        // Settings override only one of the counts at a time
+        return LanguageModelThreads.getPolicy(applicationContext) ?: policy
     }
 
 
@@ -185,12 +294,19 @@ class LanguageModel(
         return context
     }
 
+    /**
+     * Reorders the first [maxCandidates] suggestions by combining their scores with how likely
+     * the model finds them after the context, which is how gesture input gets transformer
+     * quality. The remaining suggestions follow in their original order. Returns null if there is
+     * nothing to reorder or the model is not loaded yet.
+     */
     suspend fun rescoreSuggestions(
         suggestedWords: SuggestedWords,
         composedData: ComposedData,
         ngramContext: NgramContext,
         keyDetector: KeyDetector,
         personalDictionary: List<String>,
+        maxCandidates: Int
     ): List<SuggestedWordInfo>? = withContext(LanguageModelScope) {
         if (mNativeState == 0L) {
             loadModel()
@@ -198,6 +314,9 @@ class LanguageModel(
             return@withContext null
         }
 
+        val candidates = suggestedWords.mSuggestedWordInfoList.take(maxCandidates)
+        if (candidates.size < 2) return@withContext null
+
         var composeInfo = getComposeInfo(composedData, keyDetector)
         var context = getContext(composeInfo, ngramContext)
 
@@ -205,22 +324,26 @@ class LanguageModel(
         context = safeguardContext(context)
         context = addPersonalDictionary(context, personalDictionary)
 
-        val wordStrings = suggestedWords.mSuggestedWordInfoList.map { it.mWord }.toTypedArray()
-        val wordScoresInput = suggestedWords.mSuggestedWordInfoList.map { it.mScore }.toTypedArray().toIntArray()
+        val wordStrings = candidates.map { it.mWord }.toTypedArray()
+        val wordScoresInput = candidates.map { it.mScore }.toIntArray()
         val wordScoresOutput = IntArray(wordScoresInput.size) { 0 }
 
-        rescoreSuggestionsNative(
-            mNativeState,
-            context,
+        val startTime = LatencyTracker.begin(LatencyTracker.SUGGESTIONS_TRANSFORMER)
+        try {
+            rescoreSuggestionsNative(
+                mNativeState,
+                context,
 
-            wordStrings,
-            wordScoresInput,
+                wordStrings,
+                wordScoresInput,
 
-            wordScoresOutput
-        )
+                wordScoresOutput
+            )
+        } finally {
+            LatencyTracker.end(LatencyTracker.SUGGESTIONS_TRANSFORMER, startTime)
+        }
 
-        return@withContext suggestedWords.mSuggestedWordInfoList.mapIndexed { index, suggestedWordInfo ->
-            Log.i("LanguageModel", "Suggestion [${suggestedWordInfo.word}] reweighted, from ${suggestedWordInfo.mScore} to ${wordScoresOutput[index]}")
+        val rescored = candidates.mapIndexed { index, suggestedWordInfo ->
             SuggestedWordInfo(
                 suggestedWordInfo.word,
                 suggestedWordInfo.mPrevWordsContext,
@@ -234,6 +357,61 @@ class LanguageModel(
                 suggestedWordInfo.mAutoCommitFirstWordConfidence
             )
         }.sortedByDescending { it.mScore }
+
+        return@withContext rescored + suggestedWords.mSuggestedWordInfoList.drop(candidates.size)
+    }
+
+    /**
+     * Scores each candidate as the word being typed, given the context and the taps so far, in
+     * a single batched decode. Returns the log-probability of each candidate, or null if the
+     * candidates can't be scored this way.
+     */
+    suspend fun scoreCandidates(
+        composedData: ComposedData,
+        ngramContext: NgramContext,
+        keyDetector: KeyDetector,
+        proximityInfoHandle: Long,
+        personalDictionary: List<String>,
+        candidates: List<String>
+    ): FloatArray? = withContext(LanguageModelScope) {
+        if (mNativeState == 0L) {
+            loadModel()
+            Log.d("LanguageModel", "Exiting because mNativeState == 0")
+            return@withContext null
+        }
+
+        if (composedData.mIsBatchMode || candidates.isEmpty()) return@withContext null
+
+        var composeInfo = getComposeInfo(composedData, keyDetector)
+        var context = getContext(composeInfo, ngramContext)
+
+        composeInfo = safeguardComposeInfo(composeInfo)
+        context = safeguardContext(context)
+        context = addPersonalDictionary(context, personalDictionary)
+
+        if (composeInfo.partialWord.isEmpty()) return@withContext null
+
+        val outLogProbabilities = FloatArray(candidates.size)
+        val startTime = LatencyTracker.begin(LatencyTracker.SUGGESTIONS_JOINT)
+        try {
+            scoreCandidatesNative(
+                mNativeState,
+                proximityInfoHandle,
+                context,
+                composeInfo.partialWord,
+                composeInfo.inputMode,
+                composeInfo.xCoords,
+                composeInfo.yCoords,
+                candidates.toTypedArray(),
+                outLogProbabilities
+            )
+        } finally {
+            LatencyTracker.end(LatencyTracker.SUGGESTIONS_JOINT, startTime)
+        }
+
+        if (outLogProbabilities.all { it == Float.NEGATIVE_INFINITY }) return@withContext null
+
+        return@withContext outLogProbabilities
     }
 
     suspend fun getSuggestions(
@@ -267,23 +445,104 @@ class LanguageModel(
         context = safeguardContext(context)
         context = addPersonalDictionary(context, personalDictionary)
 
+        if (composeInfo.partialWord.isEmpty()) {
+            return@withContext getNextWordPredictions(context, autocorrectThreshold, bannedWords)
+        }
 
-        val maxResults = 128
-        val outProbabilities = FloatArray(maxResults)
-        val outStrings = arrayOfNulls<String>(maxResults)
-        getSuggestionsNative(
-            mNativeState,
-            proximityInfoHandle,
+        return@withContext computeSuggestions(
             context,
-            composeInfo.partialWord,
-            composeInfo.inputMode,
-            composeInfo.xCoords,
-            composeInfo.yCoords,
+            composeInfo,
+            proximityInfoHandle,
             autocorrectThreshold,
-            bannedWords,
-            outStrings,
-            outProbabilities
+            bannedWords
         )
+    }
+
+    private data class NextWordKey(
+        val context: String,
+        val autocorrectThreshold: Float,
+        val bannedWords: List<String>
+    )
+
+    // The next-word predictions for the last context they were computed for, either on request or
+    // speculatively after a word was committed. Only accessed on LanguageModelScope.
+    private var cachedNextWordKey: NextWordKey? = null
+    private var cachedNextWordPredictions: List<SuggestedWordInfo> = listOf()
+
+    private fun invalidateNextWordPredictions() {
+        cachedNextWordKey = null
+        cachedNextWordPredictions = listOf()
+    }
+
+    private fun getNextWordPredictions(
+        context: String,
+        autocorrectThreshold: Float,
+        bannedWords: Array<String>
+    ): ArrayList<SuggestedWordInfo> {
+        val key = NextWordKey(context, autocorrectThreshold, bannedWords.toList())
+        if (key != cachedNextWordKey) {
+            cachedNextWordPredictions = computeSuggestions(
+                context,
+                ComposeInfo("", IntArray(0), IntArray(0), 0),
+                0L,
+                autocorrectThreshold,
+                bannedWords
+            )
+            cachedNextWordKey = key
+        }
+
+        return ArrayList(cachedNextWordPredictions)
+    }
+
+    /**
+     * Computes and caches the next-word predictions for the given context ahead of the suggestion
+     * strip asking for them, so that they can be shown as soon as it does. This also leaves the
+     * model's KV cache holding the context, which the first keystroke of the next word extends.
+     */
+    suspend fun precomputeNextWord(
+        ngramContext: NgramContext,
+        autocorrectThreshold: Float,
+        personalDictionary: List<String>,
+        bannedWords: Array<String>
+    ) = withContext(LanguageModelScope) {
+        if (mNativeState == 0L) return@withContext
+
+        var context = getContext(ComposeInfo("", IntArray(0), IntArray(0), 0), ngramContext)
+        context = safeguardContext(context)
+        context = addPersonalDictionary(context, personalDictionary)
+
+        getNextWordPredictions(context, autocorrectThreshold, bannedWords)
+    }
+
+    // Must be called on LanguageModelScope
+    private fun computeSuggestions(
+        context: String,
+        composeInfo: ComposeInfo,
+        proximityInfoHandle: Long,
+        autocorrectThreshold: Float,
+        bannedWords: Array<String>
+    ): ArrayList<SuggestedWordInfo> {
+        val maxResults = 128
+        val outProbabilities = FloatArray(maxResults)
+        val outStrings = arrayOfNulls<String>(maxResults)
+        val startTime = LatencyTracker.begin(LatencyTracker.SUGGESTIONS_TRANSFORMER)
+        try {
+            getSuggestionsNative(
+                mNativeState,
+                proximityInfoHandle,
+                context,
+                composeInfo.partialWord,
+                composeInfo.inputMode,
+                composeInfo.xCoords,
+                composeInfo.yCoords,
+                autocorrectThreshold,
+                bannedWords,
+                outStrings,
+                outProbabilities
+            )
+        } finally {
+            LatencyTracker.end(LatencyTracker.SUGGESTIONS_TRANSFORMER, startTime)
+        }
         val suggestions = ArrayList<SuggestedWordInfo>()
         var kind = SuggestedWordInfo.KIND_PREDICTION
         val resultMode = outStrings[maxResults - 1]
@@ -354,10 +613,36 @@ class LanguageModel(
             suggestion.mOriginatesFromTransformerLM = true
         }
 
-        return@withContext suggestions
+        return suggestions
+    }
+
+    /**
+     * Attaches the model's current adapter, or detaches it if there is none or it's disabled,
+     * without reloading the base model. Returns null if the model is not loaded, in which case the
+     * adapter is picked up when it is.
+     */
+    suspend fun reloadAdapter(): AdapterReloadResult? = withContext(LanguageModelScope) {
+        if (mNativeState == 0L) return@withContext null
+
+        invalidateNextWordPredictions()
+
+        val adapter = modelInfoLoader.loadAdapterInfo()?.takeIf { it.enabled }
+
+        val startTime = System.nanoTime()
+        val attached = setAdapterNative(
+            mNativeState,
+            if(adapter != null) modelInfoLoader.adapterPath.absolutePath else "",
+            adapter?.scale ?: 0.0f
+        ) && adapter != null
+        val latencyMs = (System.nanoTime() - startTime) / 1_000_000L
+
+        Log.d("LanguageModel", "Adapter for ${modelInfoLoader.name} reloaded in ${latencyMs}ms (attached=$attached)")
+
+        AdapterReloadResult(modelInfoLoader.name, attached, latencyMs)
     }
 
     suspend fun closeInternalLocked() = withContext(LanguageModelScope) {
+        invalidateNextWordPredictions()
         if (mNativeState != 0L) {
             closeNative(mNativeState)
             mNativeState = 0
@@ -365,8 +650,18 @@ class LanguageModel(
     }
 
     var mNativeState: Long = 0
-    private external fun openNative(sourceDir: String): Long
+    private external fun openNative(sourceDir: String, modelOffset: Long, modelSize: Long, loraPath: String, loraScale: Float): Long
     private external fun closeNative(state: Long)
+    private external fun setAdapterNative(state: Long, loraPath: String, loraScale: Float): Boolean
+    private external fun setThreadsNative(state: Long, nThreads: Int, nThreadsBatch: Int)
+    private external fun measureThroughputNative( // inputs
+        state: Long,
+        nThreads: Int,
+        nThreadsBatch: Int,
+        nPromptTokens: Int,
+        nDecodeTokens: Int,  // outputs
+        outTokensPerSecond: FloatArray
+    ): Boolean
     private external fun getSuggestionsNative( // inputs
         state: Long,
         proximityInfoHandle: Long,
@@ -390,4 +685,16 @@ class LanguageModel(
 
         outSuggestedScores: IntArray
     )
+
+    private external fun scoreCandidatesNative( // inputs
+        state: Long,
+        proximityInfoHandle: Long,
+        context: String,
+        partialWord: String,
+        inputMode: Int,
+        inComposeX: IntArray,
+        inComposeY: IntArray,
+        candidates: Array<String>,  // outputs
+        outLogProbabilities: FloatArray
+    )
 }
@@ -2,6 +2,7 @@ package org.futo.inputmethod.latin.xlm;
 
 import android.content.Context
 import android.util.Log
+import androidx.datastore.preferences.core.booleanPreferencesKey
 import androidx.datastore.preferences.core.floatPreferencesKey
 import androidx.lifecycle.LifecycleCoroutineScope
 import kotlinx.coroutines.CoroutineScope
@@ -30,6 +31,7 @@ import org.futo.inputmethod.latin.common.Constants
 import org.futo.inputmethod.latin.inputlogic.InputLogic
 import org.futo.inputmethod.latin.settings.Settings
 import org.futo.inputmethod.latin.settings.SettingsValuesForSuggestion
+import org.futo.inputmethod.latin.uix.EmojiTracker.loadEmojiUsage
 import org.futo.inputmethod.latin.uix.SHOW_EMOJI_SUGGESTIONS
 import org.futo.inputmethod.latin.uix.SettingsKey
 import org.futo.inputmethod.latin.uix.USE_TRANSFORMER_FINETUNING
@@ -38,6 +40,7 @@ import org.futo.inputmethod.latin.uix.getSetting
 import org.futo.inputmethod.latin.uix.getSettingFlow
 import org.futo.inputmethod.latin.utils.AsyncResultHolder
 import org.futo.inputmethod.latin.utils.SuggestionResults
+import kotlin.math.exp
 
 
 val AutocorrectThresholdSetting = SettingsKey(
@@ -50,6 +53,20 @@ val BinaryDictTransformerWeightSetting = SettingsKey(
     3.4f
 )
 
+val JointCandidateScoringSetting = SettingsKey(
+    booleanPreferencesKey("lm_joint_candidate_scoring"),
+    false
+)
+
+private const val MAX_EMOJI_SUGGESTIONS = 3
+private const val MIN_EMOJI_PREFIX_LENGTH = 3
+
+private const val MAX_UPDATE_BATCH_RESCORE_CANDIDATES = 6
+private const val MAX_TAIL_BATCH_RESCORE_CANDIDATES = 12
+private const val UPDATE_BATCH_RESCORE_BUDGET_MS = 40L
+
+private const val MAX_JOINT_SCORING_CANDIDATES = 10
+
 private fun SuggestedWordInfo.add(other: SuggestedWordInfo): SuggestedWordInfo {
     assert(mWord == other.mWord)
 
@@ -75,27 +92,27 @@ private fun levenshteinDistance(s1: String, s2: String): Int {
     val len1 = s1.length
     val len2 = s2.length
 
-    val dist = Array(len1 + 1) { IntArray(len2 + 1) }
-
-    for (i in 0..len1) {
-        dist[i][0] = i
-    }
-    for (j in 0..len2) {
-        dist[0][j] = j
-    }
+    // Only the previous column is needed to compute the next one
+    var prev = IntArray(len1 + 1) { it }
+    var curr = IntArray(len1 + 1)
 
     for (j in 1..len2) {
+        curr[0] = j
         for (i in 1..len1) {
             val cost = if (s1[i - 1] == s2[j - 1]) 0 else 1
-            dist[i][j] = minOf(
-                dist[i - 1][j] + 1,
-                dist[i][j - 1] + 1,
-                dist[i - 1][j - 1] + cost
+            curr[i] = minOf(
+                prev[i] + 1,
+                curr[i - 1] + 1,
+                prev[i - 1] + cost
             )
         }
+
+        val tmp = prev
+        prev = curr
+        curr = tmp
     }
 
-    return dist[len1][len2]
+    return prev[len1]
 }
 
 private fun areWordsRoughlyEqual(word1: String, word2: String, threshold: Int): Boolean {
@@ -163,28 +180,33 @@ public class LanguageModelFacilitator(
         return true
     }
 
-    private fun getEmojiCandidate(word: String): SuggestedWordInfo? {
-        val emoji = emojiData.emojiAliases[word.lowercase()]
+    private fun getEmojiCandidates(word: String): List<SuggestedWordInfo> {
+        // Absolute alias matches come first, followed by the best prefix matches. Very short
+        // words match too many emojis by prefix to be useful
+        val prefixMatches = if(word.length >= MIN_EMOJI_PREFIX_LENGTH) {
+            emojiData.search(word, MAX_EMOJI_SUGGESTIONS)
+        } else {
+            listOf()
+        }
 
-        if(emoji != null) {
-            return SuggestedWordInfo(
+        val emojis = (listOfNotNull(emojiData.emojiAliases[word.lowercase()]) + prefixMatches)
+            .distinct().take(MAX_EMOJI_SUGGESTIONS)
+
+        return emojis.mapIndexed { i, emoji ->
+            SuggestedWordInfo(
                 emoji.emoji,
                 "",
-                100,
+                100 - i,
                 SuggestedWordInfo.KIND_EMOJI_SUGGESTION,
                 null,
                 SuggestedWordInfo.NOT_AN_INDEX,
                 SuggestedWordInfo.NOT_A_CONFIDENCE
             )
-        } else {
-            return null
         }
     }
 
     private var skipLanguage: String? = null
-    private suspend fun runLanguageModel(values: PredictionInputValues): ArrayList<SuggestedWordInfo>? {
-        if(transformerDisabled) return null
-
+    private suspend fun updateLanguageModelForLocale(): LanguageModel? {
         val locale = dictionaryFacilitator.locale ?: return null
         if ((languageModel == null && locale.language != skipLanguage) || (languageModel?.locale?.language != locale.language)) {
             skipLanguage = null
@@ -207,6 +229,13 @@ public class LanguageModelFacilitator(
             }
         }
 
+        return languageModel
+    }
+
+    private suspend fun runLanguageModel(values: PredictionInputValues): ArrayList<SuggestedWordInfo>? {
+        if(transformerDisabled) return null
+
+        val languageModel = updateLanguageModelForLocale() ?: return null
         val settingsValues = settings.current ?: return null
 
         val keyboard = keyboardSwitcher.keyboard ?: return null
@@ -218,7 +247,7 @@ public class LanguageModelFacilitator(
 
         val autocorrectThreshold = context.getSetting(AutocorrectThresholdSetting)
 
-        return languageModel?.getSuggestions(
+        return languageModel.getSuggestions(
             values.composedData,
             values.ngramContext,
             keyboardSwitcher.mainKeyboardView.mKeyDetector,
@@ -232,6 +261,127 @@ public class LanguageModelFacilitator(
         )
     }
 
+    // Scores the dictionary's top candidates and the typed word as corrections of the taps in one
+    // pass, instead of letting the transformer search for its own words and merging both lists.
+    // The scores are probabilities over the candidates and need no further weighting.
+    private suspend fun runJointScoring(
+        values: PredictionInputValues,
+        dictionaryResults: SuggestedWords?
+    ): ArrayList<SuggestedWordInfo>? {
+        if(transformerDisabled) return null
+
+        val typedWord = values.composedData.mTypedWord
+        if(values.composedData.mIsBatchMode || typedWord.isEmpty()) return null
+
+        val languageModel = updateLanguageModelForLocale() ?: return null
+        val keyboard = keyboardSwitcher.keyboard ?: return null
+
+        val candidates = LinkedHashMap<String, SuggestedWordInfo?>()
+        dictionaryResults?.mSuggestedWordInfoList?.forEach {
+            if(candidates.size < MAX_JOINT_SCORING_CANDIDATES && suggestionBlacklist.isSuggestedWordOk(it)) {
+                candidates.putIfAbsent(it.mWord, it)
+            }
+        }
+        candidates.putIfAbsent(typedWord, null)
+
+        val words = candidates.keys.toList()
+        val logProbabilities = languageModel.scoreCandidates(
+            values.composedData,
+            values.ngramContext,
+            keyboardSwitcher.mainKeyboardView.mKeyDetector,
+            keyboard.proximityInfo.nativeProximityInfo,
+            userDictionary.getWords().map { it.word },
+            words
+        ) ?: return null
+
+        val maxLogProbability = logProbabilities.max()
+        val probabilities = logProbabilities.map { exp((it - maxLogProbability).toDouble()) }
+        val total = probabilities.sum()
+        val ranked = words.indices.sortedByDescending { probabilities[it] }
+
+        val autocorrectThreshold = context.getSetting(AutocorrectThresholdSetting)
+        val top = ranked[0]
+        val canAutocorrect = !words[top].equals(typedWord, ignoreCase = true)
+                && (ranked.size < 2 || probabilities[top] > autocorrectThreshold * probabilities[ranked[1]])
+
+        return ranked.mapIndexedTo(ArrayList()) { rank, i ->
+            var kind = if(rank == 0 && canAutocorrect) {
+                SuggestedWordInfo.KIND_WHITELIST or SuggestedWordInfo.KIND_FLAG_APPROPRIATE_FOR_AUTO_CORRECTION
+            } else {
+                SuggestedWordInfo.KIND_PREDICTION
+            }
+            if(words[i] == typedWord) kind = kind or SuggestedWordInfo.KIND_FLAG_EXACT_MATCH
+
+            SuggestedWordInfo(
+                words[i],
+                "",
+                ((probabilities[i] / total) * 500000.0 + 100000.0).toInt(),
+                kind,
+                candidates[words[i]]?.mSourceDict,
+                SuggestedWordInfo.NOT_AN_INDEX,
+                SuggestedWordInfo.NOT_A_CONFIDENCE
+            ).apply {
+                mOriginatesFromTransformerLM = true
+            }
+        }
+    }
+
+    // Set once rescoring an update of the current gesture takes longer than its budget, so that
+    // the preview keeps following the finger. The tail batch is always rescored.
+    private var skipUpdateBatchRescoring = false
+
+    private suspend fun rescoreBatchSuggestions(
+        values: PredictionInputValues,
+        results: SuggestedWords
+    ): SuggestedWords? {
+        if(transformerDisabled) return null
+
+        val isTailBatch = values.inputStyle == SuggestedWords.INPUT_STYLE_TAIL_BATCH
+        if(!isTailBatch && skipUpdateBatchRescoring) return null
+
+        val model = languageModel ?: return null
+        val startTime = System.nanoTime()
+        val rescored = model.rescoreSuggestions(
+            results,
+            values.composedData,
+            values.ngramContext,
+            keyboardSwitcher.mainKeyboardView.mKeyDetector,
+            userDictionary.getWords().map { it.word },
+            if(isTailBatch) MAX_TAIL_BATCH_RESCORE_CANDIDATES else MAX_UPDATE_BATCH_RESCORE_CANDIDATES
+        )
+        val elapsedMs = (System.nanoTime() - startTime) / 1_000_000L
+
+        if(isTailBatch) {
+            skipUpdateBatchRescoring = false
+        } else if(elapsedMs > UPDATE_BATCH_RESCORE_BUDGET_MS) {
+            Log.d("LanguageModelFacilitator", "Rescoring gesture update took ${elapsedMs}ms, skipping until the gesture ends")
+            skipUpdateBatchRescoring = true
+        }
+
+        if(rescored == null) return null
+
+        val suggestions = ArrayList(rescored)
+
+        // Like Suggest does for the dictionary order, don't put back on top a word that the user
+        // rejected for this gesture
+        val rejected = inputLogic.mWordComposer.rejectedBatchModeSuggestion
+        if(suggestions.size > 1 && suggestions[0].mWord == rejected) {
+            suggestions.add(1, suggestions.removeAt(0))
+        }
+
+        // The most relevant word acts as the typed word in batch input, see Suggest
+        return SuggestedWords(
+            suggestions,
+            results.mRawSuggestions,
+            suggestions[0],
+            true,
+            false,
+            false,
+            results.mInputStyle,
+            results.mSequenceNumber
+        )
+    }
+
     private suspend fun processUpdateSuggestionStrip(values: PredictionInputValues) {
         if(keyboardSwitcher.keyboard == null) return
 
@@ -267,39 +417,20 @@ public class LanguageModelFacilitator(
             val suggestionResults = SuggestionResults(
                 14, values.ngramContext.isBeginningOfSentenceContext, false)
 
-            val lmSuggestions = runLanguageModel(values)
+            val jointSuggestions = if(context.getSetting(JointCandidateScoringSetting)) {
+                runJointScoring(values, holder.get(null, Constants.GET_SUGGESTED_WORDS_TIMEOUT.toLong()))
+            } else {
+                null
+            }
+
+            val lmSuggestions = jointSuggestions ?: runLanguageModel(values)
 
             if(lmSuggestions == null) {
                 holder.get(null, Constants.GET_SUGGESTED_WORDS_TIMEOUT.toLong())?.let { results ->
                     job.cancel()
 
-                    val useRescoring = false
-
-                    val finalResults = if(useRescoring && values.composedData.mIsBatchMode) {
-                        val rescored = languageModel?.rescoreSuggestions(
-                            results,
-                            values.composedData,
-                            values.ngramContext,
-                            keyboardSwitcher.mainKeyboardView.mKeyDetector,
-                            userDictionary.getWords().map { it.word }
-                        )
-
-                        if(rescored != null) {
-                            SuggestedWords(
-                                ArrayList(rescored),
-                                // TODO: These should ideally not be null/false
-                                null,
-                                null,
-                                false,
-                                false,
-                                false,
-                                results.mInputStyle,
-                                results.mSequenceNumber
-                            )
-                            // TODO: We need the swapping rejection thing, the rescored array is resorted without the swapping
-                        } else {
-                            results
-                        }
+                    val finalResults = if(values.composedData.mIsBatchMode) {
+                        rescoreBatchSuggestions(values, results) ?: results
                     } else {
                         results
                     }
@@ -323,7 +454,7 @@ public class LanguageModelFacilitator(
                 return
             }
 
-            val reweightedSuggestions = lmSuggestions.mapIndexedNotNull { i, it ->
+            val reweightedSuggestions = jointSuggestions ?: lmSuggestions.mapIndexedNotNull { i, it ->
                 if(transformerWeight == Float.NEGATIVE_INFINITY) { null } else {
                     SuggestedWordInfo(
                         it.mWord,
@@ -356,7 +487,7 @@ public class LanguageModelFacilitator(
 
             var autocorrectWord: SuggestedWordInfo? = null
             val filtered = mutableListOf<SuggestedWordInfo>()
-            if(bothAlgorithmsCameToSameConclusion && maxWord != null && maxWordDict != null){
+            if(jointSuggestions == null && bothAlgorithmsCameToSameConclusion && maxWord != null && maxWordDict != null){
                 // We can be pretty confident about autocorrecting this
                 val clone = maxWord.add(maxWordDict)
                 autocorrectWord = clone
@@ -376,7 +507,7 @@ public class LanguageModelFacilitator(
                 suggestionResults.mRawSuggestions.addAll(reweightedSuggestions.filter { !filtered.contains(it) })
             }
 
-            if(transformerWeight != Float.POSITIVE_INFINITY) {
+            if(jointSuggestions == null && transformerWeight != Float.POSITIVE_INFINITY) {
                 suggestedWordsDictList?.let { words ->
                     suggestionResults.addAll(words.filter {
                         it != suggestedWordsDict.typedWordInfo && !filtered.contains(
@@ -387,21 +518,20 @@ public class LanguageModelFacilitator(
             }
 
             if(values.composedData.mTypedWord.isNotEmpty() && shouldSuggestEmojis) {
-                (getEmojiCandidate(values.composedData.mTypedWord)
-                    ?: autocorrectWord?.let {
+                getEmojiCandidates(values.composedData.mTypedWord).ifEmpty {
+                    autocorrectWord?.let {
                         if(areWordsRoughlyEqual(autocorrectWord.mWord, values.composedData.mTypedWord, 2))
-                            getEmojiCandidate(it.mWord)
+                            getEmojiCandidates(it.mWord)
                         else null
-                    })?.let {
-                    suggestionResults.add(it)
+                    } ?: listOf()
+                }.let {
+                    suggestionResults.addAll(it)
                 }
             }else if(shouldSuggestEmojis) {
                 val prevWord =
                     values.ngramContext.fullContext.split(" ").lastOrNull { it.isNotBlank() }
                 if(prevWord != null) {
-                    getEmojiCandidate(prevWord.trim())?.let {
-                        suggestionResults.add(it)
-                    }
+                    suggestionResults.addAll(getEmojiCandidates(prevWord.trim()))
                 }
             }
 
@@ -461,6 +591,28 @@ public class LanguageModelFacilitator(
             }
         }
 
+        launch {
+            withContext(Dispatchers.Default) {
+                ModelPaths.adapterUpdated.collect { modelFile ->
+                    val model = languageModel ?: return@collect
+                    if(model.modelInfoLoader.path.absolutePath != modelFile.absolutePath) return@collect
+
+                    Log.d("LanguageModelFacilitator", "Adapter updated, swapping it on the loaded model")
+                    model.reloadAdapter()?.let {
+                        ModelPaths.lastAdapterReload.value = it
+                    }
+                }
+            }
+        }
+
+        launch {
+            withContext(Dispatchers.Default) {
+                LanguageModelThreads.policyChanges(context).collect {
+                    languageModel?.updateThreadPolicy()
+                }
+            }
+        }
+
         launch {
             withContext(Dispatchers.Default) {
                 sharedFlow.conflate().collect { value ->
@@ -485,6 +637,12 @@ public class LanguageModelFacilitator(
             emojiData.loadEmojis(context)
         }
 
+        launch {
+            withContext(Dispatchers.Default) {
+                context.loadEmojiUsage()
+            }
+        }
+
         launch {
             withContext(Dispatchers.Default) {
                 context.getSettingFlow(SHOW_EMOJI_SUGGESTIONS).collect { shouldSuggestEmojis = it }
@@ -538,7 +696,44 @@ public class LanguageModelFacilitator(
         }
     }
 
-    private val historyLog: MutableList<HistoryLogForTraining> = mutableListOf()
+    /**
+     * Starts computing the next-word predictions for the text before the cursor right after a word
+     * and its separator were committed, without waiting for the suggestion strip update. The
+     * update that follows finds them already computed, or waits for them on the model's thread
+     * instead of computing them a second time.
+     */
+    public fun speculateNextWord() {
+        if(transformerDisabled || shouldPassThroughToLegacy()) return
+
+        val model = languageModel ?: return
+        val settingsValues = settings.current ?: return
+        if(!settingsValues.needsToLookupSuggestions()) return
+        if(!inputLogic.mConnection.isConnected) return
+
+        val ngramContext = try {
+            inputLogic.getNgramContextFromNthPreviousWordForSuggestion(
+                settingsValues.mSpacingAndPunctuations,
+                2
+            )
+        } catch(e: Exception) {
+            Log.d("LanguageModelFacilitator", "Failed to get context for speculation: $e")
+            return
+        }
+
+        val personalDictionary = userDictionary.getWords().map { it.word }
+        val bannedWords = suggestionBlacklist.currentBlacklist.toTypedArray<String>()
+
+        lifecycleScope.launch(Dispatchers.Default) {
+            model.precomputeNextWord(
+                ngramContext,
+                context.getSetting(AutocorrectThresholdSetting),
+                personalDictionary,
+                bannedWords
+            )
+        }
+    }
+
+    private val historyLog = HistoryLog.getInstance(context)
 
     public fun addToHistory(
         word: String,
@@ -621,25 +816,20 @@ public class LanguageModelFacilitator(
         
         val keyToSearch = committedNgramCtx.trim() + " " + word.trim()
 
-        val logToRemove = historyLog.indexOfLast {
-            it.key.startsWith(keyToSearch) || it.key == keyToSearch
-        }
-
-        if(logToRemove == -1) {
+        if(!historyLog.unlearn(keyToSearch)) {
             //println("addToHistory: UNLEARN Couldn't find key $keyToSearch")
-        } else {
-            //println("addToHistory: Unlearning ${historyLog[logToRemove]}")
-            historyLog.removeAt(logToRemove)
         }
     }
 
     public fun saveHistoryLog() {
-        saveHistoryLogBackup(context, historyLog)
+        historyLog.flush()
+        lifecycleScope.launch(Dispatchers.IO) {
+            historyLog.compactIfNeeded()
+        }
     }
 
     public fun loadHistoryLog() {
-        assert(historyLog.isEmpty())
-        loadHistoryLogBackup(context, historyLog)
+        historyLog.load(context)
     }
 
     public fun onStartInput() {
@@ -0,0 +1,180 @@
+package org.futo.inputmethod.latin.xlm
+
+import android.content.Context
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.merge
+import kotlinx.coroutines.flow.onStart
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import java.io.File
+
+data class ModelIndex(
+    // Models that could be parsed, and those that could not
+    val models: List<ModelInfo>,
+    val damagedModels: List<File>,
+
+    // The model file selected for each language
+    val options: Map<String, File>
+) {
+    fun getDetails(path: File): ModelInfo? = models.firstOrNull { it.path == path.absolutePath }
+}
+
+/**
+ * Keeps the metadata of every installed model in memory, and on disk between runs, so that
+ * settings pages don't need to parse GGUF headers to show models. Entries are keyed by the path,
+ * size and modification time of the model and are only parsed again when one of them changes.
+ */
+object ModelMetadataIndex {
+    @Serializable
+    private data class ModelMetadataEntry(
+        val path: String,
+        val size: Long,
+        val lastModified: Long,
+        // Fine-tuning changes the adapter info next to the model, not the model itself
+        val adapterInfoLastModified: Long,
+        // Null if the model could not be parsed
+        val info: ModelInfo?
+    )
+
+    @Serializable
+    private data class ModelMetadataIndexFile(
+        val version: Int,
+        val entries: List<ModelMetadataEntry>
+    )
+
+    private const val INDEX_FILE_NAME = "model-metadata-index.json"
+    private const val INDEX_VERSION = 1
+
+    private val json = Json { ignoreUnknownKeys = true }
+
+    private val mutex = Mutex()
+    private var entries: Map<String, ModelMetadataEntry>? = null
+
+    private val currentIndex = MutableStateFlow<ModelIndex?>(null)
+
+    // Null until the first refresh finishes
+    val index: StateFlow<ModelIndex?> = currentIndex
+
+    private fun getIndexFile(context: Context): File = File(context.filesDir, INDEX_FILE_NAME)
+
+    private fun readEntries(context: Context): Map<String, ModelMetadataEntry> {
+        val file = getIndexFile(context)
+        if(!file.exists()) return mapOf()
+
+        return try {
+            val indexFile = json.decodeFromString<ModelMetadataIndexFile>(file.readText())
+            if(indexFile.version != INDEX_VERSION) {
+                mapOf()
+            } else {
+                indexFile.entries.associateBy { it.path }
+            }
+        } catch(e: Exception) {
+            Log.e("ModelMetadataIndex", "Failed to read model metadata index, rebuilding it", e)
+            mapOf()
+        }
+    }
+
+    private fun writeEntries(context: Context, entries: Collection<ModelMetadataEntry>) {
+        val file = getIndexFile(context)
+        val tmpFile = File(file.parentFile, "$INDEX_FILE_NAME.tmp")
+        try {
+            tmpFile.writeText(json.encodeToString(ModelMetadataIndexFile(INDEX_VERSION, entries.toList())))
+            if(!tmpFile.renameTo(file)) {
+                tmpFile.delete()
+            }
+        } catch(e: Exception) {
+            Log.e("ModelMetadataIndex", "Failed to write model metadata index", e)
+            tmpFile.delete()
+        }
+    }
+
+    private fun getEntry(
+        context: Context,
+        loader: ModelInfoLoader,
+        previousEntries: Map<String, ModelMetadataEntry>
+    ): ModelMetadataEntry {
+        val path = loader.path.absolutePath
+        // The base model may be read out of the APK, which changes when the app is updated
+        val (size, lastModified) = ModelPaths.openModelSource(context, loader.path)?.use {
+            it.length to it.lastModified
+        } ?: (0L to 0L)
+        val adapterInfoLastModified = loader.adapterInfoPath.lastModified()
+
+        previousEntries[path]?.let {
+            if(it.size == size && it.lastModified == lastModified
+                && it.adapterInfoLastModified == adapterInfoLastModified) {
+                return it
+            }
+        }
+
+        return ModelMetadataEntry(path, size, lastModified, adapterInfoLastModified, loader.loadDetails(context))
+    }
+
+    /**
+     * Brings the index up to date with the model directory, parsing only the models that are new
+     * or have changed since they were last indexed.
+     */
+    suspend fun refresh(context: Context): ModelIndex = withContext(Dispatchers.IO) {
+        mutex.withLock {
+            val previousEntries = entries ?: readEntries(context)
+
+            val loaders = ModelPaths.getModels(context)
+            val newEntries = loaders.map { getEntry(context, it, previousEntries) }.associateBy { it.path }
+
+            if(newEntries != previousEntries) {
+                writeEntries(context, newEntries.values)
+            }
+            entries = newEntries
+
+            val index = ModelIndex(
+                models = newEntries.values.mapNotNull { it.info },
+                damagedModels = newEntries.values.filter { it.info == null }.map { File(it.path) },
+                options = ModelPaths.getModelOptions(context).mapValues { it.value.path }
+            )
+            currentIndex.value = index
+
+            index
+        }
+    }
+
+    /**
+     * Same as ModelInfoLoader.loadDetails, but only parses the model if it changed. Unlike
+     * [refresh], only this model is looked at.
+     */
+    suspend fun getDetails(context: Context, loader: ModelInfoLoader): ModelInfo? = withContext(Dispatchers.IO) {
+        mutex.withLock {
+            val previousEntries = entries ?: readEntries(context)
+
+            val entry = getEntry(context, loader, previousEntries)
+            val newEntries = if(previousEntries[entry.path] != entry) {
+                (previousEntries + (entry.path to entry)).also { writeEntries(context, it.values) }
+            } else {
+                previousEntries
+            }
+            entries = newEntries
+
+            entry.info
+        }
+    }
+
+    /**
+     * Refreshes the index now and again whenever models, model options or adapters change, for as
+     * long as the scope is active.
+     */
+    fun watch(context: Context, scope: CoroutineScope) {
+        scope.launch {
+            merge(ModelPaths.modelOptionsUpdated, ModelPaths.adapterUpdated)
+                .onStart { emit(Unit) }
+                .collect { refresh(context) }
+        }
+    }
+}
@@ -1,24 +1,39 @@
 package org.futo.inputmethod.latin.xlm
 
 import android.content.Context
+import android.content.res.AssetFileDescriptor
+import android.content.res.Resources
 import android.net.Uri
-import android.provider.OpenableColumns
 import android.util.Log
 import androidx.annotation.Keep
 import androidx.datastore.preferences.core.stringSetPreferencesKey
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.launch
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
 import org.futo.inputmethod.annotations.ExternallyReferenced
 import org.futo.inputmethod.latin.R
 import org.futo.inputmethod.latin.uix.SettingsKey
 import org.futo.inputmethod.latin.uix.getSetting
 import org.futo.inputmethod.latin.uix.setSetting
+import org.futo.inputmethod.latin.utils.FileTransfer
+import java.io.Closeable
 import java.io.File
-import java.io.FileOutputStream
 
 
 val BASE_MODEL_RESOURCE = R.raw.ml4_1_f16_meta_fixed
 val BASE_MODEL_NAME = "ml4_1_f16_meta_fixed"
 
+// GGUF's default alignment of tensor data. aapt only aligns uncompressed resources to 4 bytes, and
+// native code can only map the model if it starts at a multiple of this
+private const val MODEL_ALIGNMENT = 32L
+
 val MODEL_OPTION_KEY = SettingsKey(
     stringSetPreferencesKey("lmModelsByLanguage"),
     setOf("en:$BASE_MODEL_NAME")
@@ -26,6 +41,7 @@ val MODEL_OPTION_KEY = SettingsKey(
 
 @Keep
 @ExternallyReferenced
+@Serializable
 data class ModelInfo(
     val name: String,
     val description: String,
@@ -42,30 +58,108 @@ data class ModelInfo(
     }
 }
 
+@Serializable
+data class AdapterInfo(
+    val finetuneCount: Int,
+    val scale: Float,
+    val history: String,
+    val enabled: Boolean = true
+)
+
+data class AdapterReloadResult(
+    val model: String,
+    val attached: Boolean,
+    val latencyMs: Long
+)
+
+/**
+ * Where the native code reads a model from: a file, or a range of one. The base model is read
+ * straight out of the APK, where it is stored uncompressed, so the descriptor of the APK is kept
+ * open until the source is closed. Native code opens the path itself, and keeps its own handle.
+ */
+class ModelSource(
+    val path: String,
+    val offset: Long,
+    val length: Long,
+    val lastModified: Long,
+    private val descriptor: AssetFileDescriptor? = null
+) : Closeable {
+    override fun close() {
+        descriptor?.close()
+    }
+}
+
 class ModelInfoLoader(
     val path: File,
     val name: String,
 ) {
-    fun loadDetails(): ModelInfo? {
-        return loadNative(path.absolutePath)
+    // Fine-tuning produces a LoRA adapter that is stored next to the model instead of a modified
+    // copy of the model. The checkpoint holds the adapter together with the optimizer state, so
+    // each run continues from where the previous one left off
+    val adapterPath: File
+        get() = File(path.parentFile, "${path.nameWithoutExtension}.lora")
+    val adapterCheckpointPath: File
+        get() = File(path.parentFile, "${path.nameWithoutExtension}.checkpoint")
+    // How far the run that wrote the checkpoint got, so the next run only does what's left
+    val adapterCheckpointProgressPath: File
+        get() = File(path.parentFile, "${path.nameWithoutExtension}.checkpoint.progress")
+    val adapterInfoPath: File
+        get() = File(path.parentFile, "${path.nameWithoutExtension}.lora.json")
+
+    fun loadAdapterInfo(): AdapterInfo? {
+        if(!adapterPath.exists() || !adapterInfoPath.exists()) return null
+
+        return try {
+            Json.decodeFromString<AdapterInfo>(adapterInfoPath.readText())
+        } catch(e: Exception) {
+            Log.e("ModelInfoLoader", "Failed to read adapter info for $name", e)
+            null
+        }
+    }
+
+    fun saveAdapterInfo(info: AdapterInfo) {
+        adapterInfoPath.writeText(Json.encodeToString(info))
+    }
+
+    fun deleteAdapter() {
+        adapterPath.delete()
+        adapterCheckpointPath.delete()
+        adapterCheckpointProgressPath.delete()
+        adapterInfoPath.delete()
+    }
+
+    fun loadDetails(context: Context): ModelInfo? {
+        val info = ModelPaths.openModelSource(context, path)?.use {
+            loadNative(it.path, it.offset)?.copy(path = path.absolutePath)
+        } ?: return null
+
+        return loadAdapterInfo()?.let {
+            info.copy(finetune_count = info.finetune_count + it.finetuneCount)
+        } ?: info
     }
 
-    external fun loadNative(path: String): ModelInfo?
+    external fun loadNative(path: String, offset: Long): ModelInfo?
 }
 
 object ModelPaths {
     val modelOptionsUpdated = MutableSharedFlow<Unit>(replay = 0)
 
+    // Emits the model file whose adapter was changed, so a loaded model can swap it in place
+    val adapterUpdated = MutableSharedFlow<File>(replay = 0)
+    val lastAdapterReload = MutableStateFlow<AdapterReloadResult?>(null)
+
     fun exportModel(context: Context, uri: Uri, file: File) {
-        context.contentResolver.openOutputStream(uri)!!.use { outputStream ->
-            file.inputStream().use { inputStream ->
-                var read = 0
-                val bytes = ByteArray(1024)
-                while (inputStream.read(bytes).also { read = it } != -1) {
-                    outputStream.write(bytes, 0, read)
+        if(!file.isFile && file == getBaseModelFile(context)) {
+            // Copied out of the APK, rather than extracting it just to export it
+            context.contentResolver.openOutputStream(uri)!!.use { outputStream ->
+                context.resources.openRawResource(BASE_MODEL_RESOURCE).use { inputStream ->
+                    FileTransfer.transfer(inputStream, outputStream)
                 }
             }
+            return
         }
+
+        FileTransfer.export(context, file, uri)
     }
 
 
@@ -79,25 +173,14 @@ object ModelPaths {
         "experiment_linear_208_209_210",
     )
 
-    fun importModel(context: Context, uri: Uri): File {
-        val modelDirectory = getModelDirectory(context)
-
-        val fileName = context.contentResolver.query(uri, null, null, null, null, null).use {
-            if(it != null && it.moveToFirst()) {
-                val colIdx = it.getColumnIndex(OpenableColumns.DISPLAY_NAME)
-                if (colIdx != -1) {
-                    it.getString(colIdx)
-                } else {
-                    null
-                }
-            } else {
-                null
-            }
-        } ?: throw IllegalArgumentException("Model file data could not be obtained")
-
-
-        val file = File(modelDirectory, fileName)
-        if(file.exists()) {
+    /**
+     * Imports the model at [uri] into the model directory as [fileName], replacing any model
+     * already there. The model is copied next to its destination, checked, and only then renamed
+     * into place, so a failed or invalid import leaves the previous model untouched.
+     */
+    fun importModel(context: Context, uri: Uri, fileName: String): File {
+        val file = File(getModelDirectory(context), fileName)
+        if(file == getBaseModelFile(context)) {
             throw IllegalArgumentException("Model with the name \"${file.name}\" already exists, refusing to replace!")
         }
 
@@ -106,10 +189,13 @@ object ModelPaths {
         }
 
         context.contentResolver.openInputStream(uri)?.use { inputStream ->
+            val bytes = ByteArray(4)
             var read = 0
-            val bytes = ByteArray(1024)
-
-            read = inputStream.read(bytes)
+            while (read < bytes.size) {
+                val count = inputStream.read(bytes, read, bytes.size - read)
+                if (count == -1) break
+                read += count
+            }
 
             // Sanity check to make sure it's valid
             if(read < 4
@@ -120,39 +206,40 @@ object ModelPaths {
             ) {
                 throw IllegalArgumentException("File \"${file.name}\" does not appear to be a GGUF file")
             }
+        } ?: throw IllegalArgumentException("Model file data could not be obtained")
 
-            file.outputStream().use { outputStream ->
-                while (read != -1) {
-                    outputStream.write(bytes, 0, read)
-                    read = inputStream.read(bytes)
-                }
-            }
-        }
+        // Not listed as a model while it's being checked, as it lacks the .gguf extension
+        val importedFile = File(file.parentFile, "${file.name}.importing")
 
-        // Attempt to load metadata here and check if it can even load
-        val details = ModelInfoLoader(
-            name = file.nameWithoutExtension,
-            path = file
-        ).loadDetails()
+        // Opened again so that a provider backed by a file can be copied by the kernel
+        context.contentResolver.openAssetFileDescriptor(uri, "r")?.use {
+            FileTransfer.copy(it, importedFile)
+        } ?: throw IllegalArgumentException("Model file data could not be obtained")
 
-        if(details == null) {
-            file.delete()
-            throw IllegalArgumentException("Failed to load metadata, file \"${file.name}\" may not be a valid GGUF file")
-        }
+        try {
+            // Attempt to load metadata here and check if it can even load
+            val details = ModelInfoLoader(
+                name = file.nameWithoutExtension,
+                path = importedFile
+            ).loadDetails(context)
+                ?: throw IllegalArgumentException("Failed to load metadata, file \"${file.name}\" may not be a valid GGUF file")
+
+            // Check that the model has any features at all
+            if(details.features.isEmpty()) {
+                throw IllegalArgumentException("Model is a valid GGUF file, but does not support use as a keyboard language model (it lacks KeyboardLM metadata).\n\nIf you are a model creator: models must support specific features and prompt formats; arbitrary gguf models are unsupported at this time. Refer to the model creation documentation for more details.")
+            }
 
-        // Check that the model has any features at all
-        if(details.features.isEmpty()) {
-            file.delete()
-            throw IllegalArgumentException("Model is a valid GGUF file, but does not support use as a keyboard language model (it lacks KeyboardLM metadata).\n\nIf you are a model creator: models must support specific features and prompt formats; arbitrary gguf models are unsupported at this time. Refer to the model creation documentation for more details.")
-        }
+            // Check that we support all features from this model
+            val unsupportedFeatures = details.features.filter {
+                !(supportedFeatures.contains(it) || it.startsWith("opt_") || it.startsWith("_"))
+            }
+            if(unsupportedFeatures.isNotEmpty()) {
+                throw IllegalArgumentException("Model has the following unknown features: [${unsupportedFeatures.joinToString(separator=", ")}]\nYou probably need to update FUTO Keyboard.")
+            }
 
-        // Check that we support all features from this model
-        val unsupportedFeatures = details.features.filter {
-            !(supportedFeatures.contains(it) || it.startsWith("opt_") || it.startsWith("_"))
-        }
-        if(unsupportedFeatures.isNotEmpty()) {
-            file.delete()
-            throw IllegalArgumentException("Model has the following unknown features: [${unsupportedFeatures.joinToString(separator=", ")}]\nYou probably need to update FUTO Keyboard.")
+            FileTransfer.move(importedFile, file)
+        } finally {
+            importedFile.delete()
         }
 
         return file
@@ -162,6 +249,10 @@ object ModelPaths {
         modelOptionsUpdated.emit(Unit)
     }
 
+    suspend fun signalReloadAdapter(model: File) {
+        adapterUpdated.emit(model)
+    }
+
     suspend fun updateModelOption(context: Context, key: String, value: File) {
         if(!value.absolutePath.startsWith(context.filesDir.absolutePath)) {
             throw IllegalArgumentException("Model path ${value.absolutePath} does not start with filesDir path ${context.filesDir.absolutePath}")
@@ -179,7 +270,6 @@ object ModelPaths {
     }
 
     suspend fun getModelOptions(context: Context): Map<String, ModelInfoLoader> {
-        ensureDefaultModelExists(context)
         val modelDirectory = getModelDirectory(context)
         val options = context.getSetting(MODEL_OPTION_KEY)
 
@@ -191,7 +281,7 @@ object ModelPaths {
 
             // TODO: This assumes the extension is .gguf
             val modelFile = File(modelDirectory, "$modelName.gguf")
-            if(modelFile.exists()) {
+            if(modelFile.exists() || modelName == BASE_MODEL_NAME) {
                 modelOptionsByLanguage[language] = ModelInfoLoader(modelFile, modelName)
             } else {
                 Log.e("ModelPaths", "Option for language $language set to $modelName, but could not find ${modelFile.absolutePath}")
@@ -211,32 +301,101 @@ object ModelPaths {
         return modelDirectory
     }
 
-    fun ensureDefaultModelExists(context: Context) {
-        val directory = getModelDirectory(context)
+    private val extractionScope = CoroutineScope(Dispatchers.IO + SupervisorJob())
+    private var backgroundExtraction: Job? = null
 
-        val tgtFile = File(directory, "$BASE_MODEL_NAME.gguf")
-        if(!tgtFile.isFile) {
+    fun getBaseModelFile(context: Context): File =
+        File(getModelDirectory(context), "$BASE_MODEL_NAME.gguf")
 
-            context.resources.openRawResource(BASE_MODEL_RESOURCE).use { inputStream ->
-                FileOutputStream(tgtFile).use { outputStream ->
-                    var read = 0
-                    val bytes = ByteArray(1024)
-                    while (inputStream.read(bytes).also { read = it } != -1) {
-                        outputStream.write(bytes, 0, read)
-                    }
+    // Null if the resource is compressed in the APK, in which case it can only be read as a stream
+    private fun openBundledBaseModel(context: Context): AssetFileDescriptor? = try {
+        context.resources.openRawResourceFd(BASE_MODEL_RESOURCE)
+    } catch(e: Resources.NotFoundException) {
+        null
+    }
+
+    /**
+     * Opens the model for native code to read. The base model is read from the APK unless it has
+     * been extracted. Returns null if the model does not exist.
+     */
+    fun openModelSource(context: Context, file: File): ModelSource? {
+        if(!file.isFile && file == getBaseModelFile(context)) {
+            val descriptor = openBundledBaseModel(context)
+            if(descriptor != null) {
+                // Until it's extracted, native code reads a misaligned model into memory
+                if(descriptor.startOffset % MODEL_ALIGNMENT != 0L) {
+                    Log.w("ModelPaths", "Base model is not aligned in the APK, extracting it in the background")
+                    extractModelInBackground(context, file)
                 }
+
+                return ModelSource(
+                    path = "/proc/self/fd/${descriptor.parcelFileDescriptor.fd}",
+                    offset = descriptor.startOffset,
+                    length = descriptor.length,
+                    lastModified = File(context.applicationInfo.sourceDir).lastModified(),
+                    descriptor = descriptor
+                )
+            }
+
+            Log.w("ModelPaths", "Base model is compressed in the APK, extracting it")
+            extractModel(context, file)
+        }
+
+        if(!file.isFile) return null
+
+        return ModelSource(file.absolutePath, 0, file.length(), file.lastModified())
+    }
+
+    /**
+     * Extracts the base model out of the APK, if [file] is the base model and it has not been
+     * extracted yet. Only needed by code that can't read it from the APK, such as fine-tuning.
+     * Blocks for as long as it takes to copy the model.
+     */
+    fun extractModel(context: Context, file: File) {
+        if(file.isFile || file != getBaseModelFile(context)) return
+
+        val descriptor = openBundledBaseModel(context)
+        if(descriptor != null) {
+            descriptor.use { FileTransfer.copy(it, file) }
+        } else {
+            context.resources.openRawResource(BASE_MODEL_RESOURCE).use {
+                FileTransfer.copy(it, file)
             }
         }
     }
 
+    @Synchronized
+    private fun extractModelInBackground(context: Context, file: File) {
+        if(backgroundExtraction?.isActive == true) return
+
+        val appContext = context.applicationContext ?: context
+        backgroundExtraction = extractionScope.launch {
+            try {
+                extractModel(appContext, file)
+            } catch(e: Exception) {
+                Log.e("ModelPaths", "Failed to extract the base model", e)
+                return@launch
+            }
+
+            // Reloads the model, now mapped from the extracted file instead of held in memory
+            modelOptionsUpdated.emit(Unit)
+        }
+    }
+
     fun getModels(context: Context): List<ModelInfoLoader> {
-        ensureDefaultModelExists(context)
+        val files = getModelDirectory(context).listFiles()?.filter {
+            it.extension == "gguf"
+        } ?: listOf()
 
-        return getModelDirectory(context).listFiles()?.map {
+        // The base model is listed whether or not it has been extracted
+        val baseModelFile = getBaseModelFile(context)
+        val allFiles = if(files.contains(baseModelFile)) files else files + baseModelFile
+
+        return allFiles.map {
             ModelInfoLoader(
                 path = it,
                 name = it.nameWithoutExtension
             )
-        } ?: listOf()
+        }
     }
 }
\ No newline at end of file
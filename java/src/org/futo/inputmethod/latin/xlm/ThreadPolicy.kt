@@ -0,0 +1,130 @@
+package org.futo.inputmethod.latin.xlm
+
+import android.content.Context
+import androidx.datastore.preferences.core.edit
+import androidx.datastore.preferences.core.floatPreferencesKey
+import androidx.datastore.preferences.core.intPreferencesKey
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.combine
+import org.futo.inputmethod.latin.uix.SettingsKey
+import org.futo.inputmethod.latin.uix.dataStore
+import org.futo.inputmethod.latin.uix.getSetting
+import org.futo.inputmethod.latin.uix.getSettingFlow
+
+// Thread counts used by the language model, 0 means the one picked by calibration
+val LanguageModelDecodeThreadsSetting = SettingsKey(
+    intPreferencesKey("lm_decode_threads"),
+    0
+)
+
+val LanguageModelPromptThreadsSetting = SettingsKey(
+    intPreferencesKey("lm_prompt_threads"),
+    0
+)
+
+// Results of the last calibration, 0 when the device has not been calibrated yet
+val CalibratedDecodeThreadsSetting = SettingsKey(
+    intPreferencesKey("lm_calibrated_decode_threads"),
+    0
+)
+
+val CalibratedPromptThreadsSetting = SettingsKey(
+    intPreferencesKey("lm_calibrated_prompt_threads"),
+    0
+)
+
+val CalibratedSingleThreadPromptSpeedSetting = SettingsKey(
+    floatPreferencesKey("lm_calibrated_single_thread_prompt_tps"),
+    0.0f
+)
+
+val CalibratedPromptSpeedSetting = SettingsKey(
+    floatPreferencesKey("lm_calibrated_prompt_tps"),
+    0.0f
+)
+
+data class ThreadPolicy(val decodeThreads: Int, val promptThreads: Int)
+
+object LanguageModelThreads {
+    // Past this, the extra threads land on the same big cores and only add contention
+    private const val MAX_THREADS = 8
+
+    val maxThreads: Int = Runtime.getRuntime().availableProcessors().coerceIn(1, MAX_THREADS)
+
+    // Used until the device is calibrated, the counts the model ran with before calibration existed
+    private val DEFAULT_POLICY = ThreadPolicy(decodeThreads = 1, promptThreads = 1)
+
+    private suspend fun getThreads(
+        context: Context,
+        setting: SettingsKey<Int>,
+        calibrated: SettingsKey<Int>
+    ): Int? = context.getSetting(setting).takeIf { it > 0 }
+        ?: context.getSetting(calibrated).takeIf { it > 0 }
+
+    /**
+     * Returns the thread counts to use, or null if one of them is left to calibration and the
+     * device has not been calibrated yet.
+     */
+    suspend fun getPolicy(context: Context): ThreadPolicy? {
+        val decodeThreads = getThreads(context, LanguageModelDecodeThreadsSetting, CalibratedDecodeThreadsSetting)
+            ?: return null
+        val promptThreads = getThreads(context, LanguageModelPromptThreadsSetting, CalibratedPromptThreadsSetting)
+            ?: return null
+
+        return ThreadPolicy(
+            decodeThreads.coerceAtMost(maxThreads),
+            promptThreads.coerceAtMost(maxThreads)
+        )
+    }
+
+    /**
+     * Same as [getPolicy], with the counts left to a calibration that hasn't run yet set to
+     * defaults.
+     */
+    suspend fun getPolicyOrDefault(context: Context): ThreadPolicy {
+        val decodeThreads = getThreads(context, LanguageModelDecodeThreadsSetting, CalibratedDecodeThreadsSetting)
+            ?: DEFAULT_POLICY.decodeThreads
+        val promptThreads = getThreads(context, LanguageModelPromptThreadsSetting, CalibratedPromptThreadsSetting)
+            ?: DEFAULT_POLICY.promptThreads
+
+        return ThreadPolicy(
+            decodeThreads.coerceAtMost(maxThreads),
+            promptThreads.coerceAtMost(maxThreads)
+        )
+    }
+
+    // Written in one edit, as [policyChanges] would otherwise see the counts half updated
+    suspend fun saveCalibration(
+        context: Context,
+        policy: ThreadPolicy,
+        singleThreadPromptSpeed: Float,
+        promptSpeed: Float
+    ) {
+        context.dataStore.edit {
+            it[CalibratedDecodeThreadsSetting.key] = policy.decodeThreads
+            it[CalibratedPromptThreadsSetting.key] = policy.promptThreads
+            it[CalibratedSingleThreadPromptSpeedSetting.key] = singleThreadPromptSpeed
+            it[CalibratedPromptSpeedSetting.key] = promptSpeed
+        }
+    }
+
+    // The loaded model recalibrates as soon as it sees this
+    suspend fun resetCalibration(context: Context) {
+        context.dataStore.edit {
+            it[CalibratedDecodeThreadsSetting.key] = 0
+            it[CalibratedPromptThreadsSetting.key] = 0
+            it[CalibratedSingleThreadPromptSpeedSetting.key] = 0.0f
+            it[CalibratedPromptSpeedSetting.key] = 0.0f
+        }
+    }
+
+    // Emits whenever anything that decides the thread counts changes
+    fun policyChanges(context: Context): Flow<Any> = combine(
+        context.getSettingFlow(LanguageModelDecodeThreadsSetting),
+        context.getSettingFlow(LanguageModelPromptThreadsSetting),
+        context.getSettingFlow(CalibratedDecodeThreadsSetting),
+        context.getSettingFlow(CalibratedPromptThreadsSetting)
+    ) { decode, prompt, calibratedDecode, calibratedPrompt ->
+        listOf(decode, prompt, calibratedDecode, calibratedPrompt)
+    }
+}
@@ -1,10 +1,21 @@
 package org.futo.inputmethod.latin.xlm
 
 import android.content.Context
+import android.util.Log
 import kotlinx.serialization.Serializable
-import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
 import java.io.File
+import java.io.FileOutputStream
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.io.UTFDataFormatException
 
 @Serializable
 data class HistoryLogForTraining(
@@ -22,26 +33,373 @@ data class HistoryLogForTraining(
     val timeStamp: Long
 )
 
-fun saveHistoryLogBackup(context: Context, log: List<HistoryLogForTraining>) {
-    val json = Json.encodeToString(log)
+private const val HISTORY_LOG_FILE = "historyLog.bin"
+private const val LEGACY_HISTORY_LOG_FILE = "historyLog.json"
 
-    val file = File(context.cacheDir, "historyLog.json")
-    file.writeText(json)
+private const val RECORD_ENTRY: Int = 1
+private const val RECORD_TOMBSTONE: Int = 2
+
+// Record layout: [type: u8][payload length: i32][payload]
+private const val RECORD_HEADER_SIZE = 5
+
+private fun encodeEntry(entry: HistoryLogForTraining): ByteArray {
+    val bytes = ByteArrayOutputStream()
+    DataOutputStream(bytes).use {
+        // The key comes first, so that indexing only needs to read it
+        it.writeUTF(entry.key)
+        it.writeUTF(entry.priorContext)
+        it.writeUTF(entry.ngramContext)
+        it.writeBoolean(entry.misspelledWord != null)
+        it.writeUTF(entry.misspelledWord ?: "")
+        it.writeUTF(entry.committedWord)
+        it.writeInt(entry.importance)
+        it.writeUTF(entry.locale)
+        it.writeLong(entry.timeStamp)
+    }
+    return bytes.toByteArray()
+}
+
+private fun decodeEntry(payload: ByteArray, length: Int): HistoryLogForTraining {
+    DataInputStream(ByteArrayInputStream(payload, 0, length)).use {
+        val key = it.readUTF()
+        val priorContext = it.readUTF()
+        val ngramContext = it.readUTF()
+        val hasMisspelledWord = it.readBoolean()
+        val misspelledWord = it.readUTF()
+        return HistoryLogForTraining(
+            key = key,
+            priorContext = priorContext,
+            ngramContext = ngramContext,
+            misspelledWord = if(hasMisspelledWord) misspelledWord else null,
+            committedWord = it.readUTF(),
+            importance = it.readInt(),
+            locale = it.readUTF(),
+            timeStamp = it.readLong()
+        )
+    }
+}
+
+private fun decodeKey(payload: ByteArray, length: Int): String =
+    DataInputStream(ByteArrayInputStream(payload, 0, length)).use { it.readUTF() }
+
+private fun decodeTombstone(payload: ByteArray, length: Int): Long =
+    DataInputStream(ByteArrayInputStream(payload, 0, length)).use { it.readLong() }
+
+/**
+ * Reads every complete record in the file in order, calling [onRecord] with its offset, type and
+ * payload. The payload buffer is reused between records. A truncated record at the end (e.g. from
+ * a write in progress) ends the scan, and so does a record whose payload fails to decode.
+ */
+private inline fun scanRecords(file: File, onRecord: (offset: Long, type: Int, payload: ByteArray, length: Int) -> Unit) {
+    if(!file.exists()) return
+
+    file.inputStream().use { scanRecords(it, Long.MAX_VALUE, onRecord) }
 }
 
-fun loadHistoryLogBackup(context: Context, to: MutableList<HistoryLogForTraining>) {
-    try {
-        val file = File(context.cacheDir, "historyLog.json")
-        if(file.exists()) {
-            val reader = file.bufferedReader()
-            val inputString = reader.use { it.readText() }
+/**
+ * Same as above, reading from an already opened stream and stopping at [limit] bytes.
+ */
+private inline fun scanRecords(input: InputStream, limit: Long, onRecord: (offset: Long, type: Int, payload: ByteArray, length: Int) -> Unit) {
+    val stream = DataInputStream(BufferedInputStream(input, 64 * 1024))
+    var offset = 0L
+    var payload = ByteArray(1024)
+    while(offset < limit) {
+        val type = stream.read()
+        if(type == -1) break
+
+        val length = try {
+            stream.readInt()
+        } catch(e: EOFException) {
+            break
+        }
+
+        if(length < 0) {
+            Log.e("HistoryLog", "Corrupt record at offset $offset, ignoring the rest of the log")
+            break
+        }
+
+        if(payload.size < length) payload = ByteArray(length)
+
+        try {
+            stream.readFully(payload, 0, length)
+        } catch(e: EOFException) {
+            break
+        }
+
+        try {
+            onRecord(offset, type, payload, length)
+        } catch(e: EOFException) {
+            Log.e("HistoryLog", "Truncated payload at offset $offset, ignoring the rest of the log")
+            break
+        } catch(e: UTFDataFormatException) {
+            Log.e("HistoryLog", "Corrupt payload at offset $offset, ignoring the rest of the log")
+            break
+        }
+        offset += RECORD_HEADER_SIZE + length
+    }
+}
+
+/**
+ * Append-only binary log of committed words used as training data. Entries are never rewritten
+ * in place; unlearning an entry appends a tombstone pointing at it. An index from key hash to the
+ * offsets of live entries makes unlearning O(1), and [compactIfNeeded] rewrites the file without
+ * dead entries once enough of them have accumulated.
+ *
+ * There is one instance per process, see [getInstance], so that the training worker clears and
+ * reads the same log the keyboard appends to.
+ */
+class HistoryLog private constructor(private val file: File) {
+    private val lock = Any()
+    private var loaded = false
+
+    private var output: DataOutputStream? = null
+    private var fileLength = 0L
+
+    private val index = HashMap<Int, ArrayList<Long>>()
+    private var liveCount = 0
+    private var deadCount = 0
+
+    private fun openOutputLocked(): DataOutputStream =
+        output ?: DataOutputStream(BufferedOutputStream(FileOutputStream(file, true), 16 * 1024)).also {
+            output = it
+        }
+
+    private fun appendLocked(type: Int, payload: ByteArray): Long {
+        val offset = fileLength
+        openOutputLocked().apply {
+            writeByte(type)
+            writeInt(payload.size)
+            write(payload)
+        }
+        fileLength += RECORD_HEADER_SIZE + payload.size
+        return offset
+    }
+
+    private fun rebuildIndexLocked() {
+        // Buffered records have to be on disk to be indexed, and the file may be truncated below
+        output?.close()
+        output = null
+
+        index.clear()
+        liveCount = 0
+        deadCount = 0
+        fileLength = 0L
+
+        val hashByOffset = HashMap<Long, Int>()
+        scanRecords(file) { offset, type, payload, length ->
+            when(type) {
+                RECORD_ENTRY -> {
+                    val hash = decodeKey(payload, length).hashCode()
+                    index.getOrPut(hash) { ArrayList(1) }.add(offset)
+                    hashByOffset[offset] = hash
+                    liveCount += 1
+                }
+                RECORD_TOMBSTONE -> {
+                    val target = decodeTombstone(payload, length)
+                    val hash = hashByOffset.remove(target)
+                    if(hash != null && index[hash]?.remove(target) == true) {
+                        if(index[hash]!!.isEmpty()) index.remove(hash)
+                        liveCount -= 1
+                        deadCount += 1
+                    }
+                }
+            }
+            fileLength = offset + RECORD_HEADER_SIZE + length
+        }
+
+        // Drop any partially written record at the end, so new records start on a boundary
+        if(file.exists() && file.length() != fileLength) {
+            RandomAccessFile(file, "rw").use { it.setLength(fileLength) }
+        }
+    }
+
+    private fun readKeyAtLocked(offset: Long): String? {
+        RandomAccessFile(file, "r").use { raf ->
+            raf.seek(offset)
+            if(raf.read() != RECORD_ENTRY) return null
+            raf.readInt()
+            return raf.readUTF()
+        }
+    }
+
+    val size: Int
+        get() = synchronized(lock) { liveCount }
+
+    /**
+     * Migrates the legacy log and indexes the file. Only the first call does anything; after that
+     * the index is kept up to date by this instance.
+     */
+    fun load(context: Context) = synchronized(lock) {
+        if(loaded) return@synchronized
+
+        migrateLegacyLog(context)
+        rebuildIndexLocked()
+        loaded = true
+    }
+
+    private fun migrateLegacyLog(context: Context) {
+        val legacyFile = File(context.cacheDir, LEGACY_HISTORY_LOG_FILE)
+        if(!legacyFile.exists()) return
+
+        try {
+            val data = Json.decodeFromString<List<HistoryLogForTraining>>(legacyFile.readText())
+            DataOutputStream(BufferedOutputStream(FileOutputStream(file, true))).use { out ->
+                data.forEach {
+                    val payload = encodeEntry(it)
+                    out.writeByte(RECORD_ENTRY)
+                    out.writeInt(payload.size)
+                    out.write(payload)
+                }
+            }
+        } catch(e: Exception) {
+            Log.e("HistoryLog", "Failed to migrate legacy history log", e)
+        }
+
+        legacyFile.delete()
+    }
+
+    fun add(entry: HistoryLogForTraining) = synchronized(lock) {
+        val offset = appendLocked(RECORD_ENTRY, encodeEntry(entry))
+        index.getOrPut(entry.key.hashCode()) { ArrayList(1) }.add(offset)
+        liveCount += 1
+    }
+
+    /**
+     * Removes the most recent entry with the given key, returning whether one was found.
+     */
+    fun unlearn(key: String): Boolean = synchronized(lock) {
+        val offsets = index[key.hashCode()] ?: return false
+
+        // Buffered records must be on disk before they can be read back to resolve hash collisions
+        output?.flush()
+
+        val i = offsets.indexOfLast { readKeyAtLocked(it) == key }
+        if(i == -1) return false
 
-            val data = Json.decodeFromString<List<HistoryLogForTraining>>(inputString)
+        val target = offsets.removeAt(i)
+        if(offsets.isEmpty()) index.remove(key.hashCode())
 
-            to.clear()
-            to.addAll(data)
+        appendLocked(RECORD_TOMBSTONE, ByteArrayOutputStream(8).also {
+            DataOutputStream(it).use { out -> out.writeLong(target) }
+        }.toByteArray())
+
+        liveCount -= 1
+        deadCount += 1
+        return true
+    }
+
+    fun flush() = synchronized(lock) {
+        try {
+            output?.flush()
+        } catch(e: Exception) {
+            Log.e("HistoryLog", "Failed to flush history log", e)
         }
-    } catch(e: Exception) {
-        e.printStackTrace()
     }
-}
\ No newline at end of file
+
+    fun clear() = synchronized(lock) {
+        output?.close()
+        output = null
+
+        // Truncated rather than deleted: a snapshot being read sees the end of the log
+        try {
+            RandomAccessFile(file, "rw").use { it.setLength(0) }
+        } catch(e: Exception) {
+            Log.e("HistoryLog", "Failed to clear history log", e)
+            file.delete()
+        }
+
+        index.clear()
+        liveCount = 0
+        deadCount = 0
+        fileLength = 0L
+    }
+
+    private class Snapshot(val input: InputStream, val length: Long, val liveOffsets: HashSet<Long>)
+
+    private fun openSnapshotLocked(): Snapshot? {
+        output?.flush()
+        if(!file.exists()) return null
+
+        val liveOffsets = HashSet<Long>(liveCount * 2)
+        index.values.forEach { liveOffsets.addAll(it) }
+
+        // Compaction renames a new file over this one, which leaves the opened one intact
+        return Snapshot(file.inputStream(), fileLength, liveOffsets)
+    }
+
+    /**
+     * Streams the entries that were live when reading began. Only the live offsets are taken under
+     * the lock; the file itself is read afterwards, so adding to the log is not blocked by a slow
+     * reader. Clearing the log ends the stream early.
+     */
+    fun readLiveEntries(): Sequence<HistoryLogForTraining> = sequence {
+        val snapshot = synchronized(lock) { openSnapshotLocked() } ?: return@sequence
+        snapshot.input.use {
+            scanRecords(it, snapshot.length) { offset, type, payload, length ->
+                if(type == RECORD_ENTRY && snapshot.liveOffsets.contains(offset)) {
+                    yield(decodeEntry(payload, length))
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log without unlearned entries and tombstones once they make up a large part of
+     * it. Meant to be called from a background thread.
+     */
+    fun compactIfNeeded() = synchronized(lock) {
+        if(deadCount < 256 || deadCount < liveCount) return@synchronized
+
+        val snapshot = openSnapshotLocked() ?: return@synchronized
+        output?.close()
+        output = null
+
+        val tmpFile = File(file.absolutePath + ".tmp")
+        try {
+            snapshot.input.use { input ->
+                DataOutputStream(BufferedOutputStream(FileOutputStream(tmpFile), 64 * 1024)).use { out ->
+                    scanRecords(input, snapshot.length) { offset, type, payload, length ->
+                        if(type == RECORD_ENTRY && snapshot.liveOffsets.contains(offset)) {
+                            out.writeByte(RECORD_ENTRY)
+                            out.writeInt(length)
+                            out.write(payload, 0, length)
+                        }
+                    }
+                }
+            }
+
+            if(!tmpFile.renameTo(file)) {
+                throw IllegalStateException("Failed to replace history log with compacted log")
+            }
+        } catch(e: Exception) {
+            Log.e("HistoryLog", "Failed to compact history log", e)
+            tmpFile.delete()
+        }
+
+        rebuildIndexLocked()
+    }
+
+    companion object {
+        fun getFile(context: Context): File = File(context.cacheDir, HISTORY_LOG_FILE)
+
+        @Volatile
+        private var instance: HistoryLog? = null
+
+        fun getInstance(context: Context): HistoryLog = instance ?: synchronized(this) {
+            instance ?: HistoryLog(getFile(context)).also {
+                it.load(context.applicationContext)
+                instance = it
+            }
+        }
+    }
+}
+
+/**
+ * Streams the live entries of the history log without decoding the whole file at once.
+ */
+fun readHistoryLog(context: Context): Sequence<HistoryLogForTraining> =
+    HistoryLog.getInstance(context).readLiveEntries()
+
+fun clearHistoryLog(context: Context) {
+    HistoryLog.getInstance(context).clear()
+}
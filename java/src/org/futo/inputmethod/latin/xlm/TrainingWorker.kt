@@ -25,7 +25,9 @@ import kotlinx.coroutines.withContext
 import org.futo.inputmethod.latin.R
 import org.futo.inputmethod.latin.uix.USE_TRANSFORMER_FINETUNING
 import org.futo.inputmethod.latin.uix.getSetting
+import org.futo.inputmethod.latin.utils.FileTransfer
 import java.io.File
+import java.util.Date
 import java.util.concurrent.TimeUnit
 
 val NUM_TRAINING_RUNS_KEY = intPreferencesKey("training_runs_count")
@@ -38,6 +40,7 @@ enum class TrainingState {
     Training,
     ErrorInadequateData,
     Finished,
+    Interrupted, // Stopped before finishing, the next run resumes from the checkpoint
     FatalError,
 }
 
@@ -71,7 +74,7 @@ class TrainingWorker(val context: Context, val parameters: WorkerParameters) : C
         val shouldTrain = context.getSetting(USE_TRANSFORMER_FINETUNING)
         if(!shouldTrain) {
             println("TrainingWorker is exiting as training is disabled")
-            saveHistoryLogBackup(applicationContext, listOf())
+            clearHistoryLog(applicationContext)
             TrainingWorkerStatus.lmRequest.emit(LanguageModelFacilitatorRequest.ClearTrainingLog)
             return Result.success()
         }
@@ -88,91 +91,71 @@ class TrainingWorker(val context: Context, val parameters: WorkerParameters) : C
         return Result.success()
     }
 
-    private fun getTrainingData(locales: Set<String>): String {
-        val data = mutableListOf<HistoryLogForTraining>()
-        loadHistoryLogBackup(applicationContext, data)
+    private fun getTrainingData(locales: Set<String>): Sequence<HistoryLogForTraining>? {
+        val data = readHistoryLog(applicationContext).filter { locales.contains(it.locale) }
 
-        data.removeAll { !locales.contains(it.locale) }
-
-        if(data.size < 100) {
-            return ""
+        // The log is streamed from disk, so only count it here instead of keeping it in memory
+        if(data.count() < 100) {
+            return null
         }
 
-        return data.map { entry ->
+        return data
+    }
+
+    // Lazily expands each history entry into its training examples, so the full corpus is never
+    // materialized at once
+    private fun generateExamples(data: Sequence<HistoryLogForTraining>): Sequence<String> = sequence {
+        data.forEach { entry ->
             if(entry.misspelledWord != null) {
                 if(entry.importance == 3) {
-                    listOf(
-                        (0 until 4).map {
-                            TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 64.0f)
-                        }.joinToString(separator = "\n"),
-                        (0 until 4).map {
-                            TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 16.0f)
-                        }.joinToString(separator = "\n"),
-                        (0 until 4).map {
-                            TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 4.0f)
-                        }.joinToString(separator = "\n"),
-                        (0 until 4).map {
-                            TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f)
-                        }.joinToString(separator = "\n"),
-                        (0 until 4).map {
-                            TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 0.8f)
-                        }.joinToString(separator = "\n"),
-                        /*
-                        (0 until 4).map {
-                            TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 0.6f)
-                        }.joinToString(separator = "\n"),
-                        */
-                    ).joinToString(separator = "\n")
+                    listOf(64.0f, 16.0f, 4.0f, 1.0f, 0.8f /*, 0.6f */).forEach { correctness ->
+                        repeat(4) {
+                            yield(TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, correctness))
+                        }
+                    }
                 } else if(entry.importance == 1) {
-                    listOf(
-                        TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
-                        TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
-                        TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
-                        TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
-                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f),
-                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f),
-                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 0.6f),
-                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 0.6f)
-                    ).joinToString(separator = "\n")
+                    repeat(4) {
+                        yield(TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord))
+                    }
+                    repeat(2) {
+                        yield(TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f))
+                    }
+                    repeat(2) {
+                        yield(TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 0.6f))
+                    }
                 } else {
-                    listOf(
-                        TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord),
-                        TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f),
-                    ).joinToString(separator = "\n")
+                    yield(TrainingDataGenerator.concatFormatWordMisspelling(entry.ngramContext, entry.misspelledWord, entry.committedWord))
+                    yield(TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f))
                 }
             } else {
-                listOf(
-                    entry.ngramContext.trim() + " " + entry.committedWord,
-                    TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 4.0f),
-                    TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f)
-                ).joinToString(separator = "\n")
+                yield(entry.ngramContext.trim() + " " + entry.committedWord)
+                yield(TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 4.0f))
+                yield(TrainingDataGenerator.concatWordMisspelling(entry.ngramContext, entry.committedWord, 1.0f))
             }
-        }.map{ it.trim() }.joinToString(separator = "\n")
-    }
+        }
+    }.flatMap { it.trim().lineSequence() }
 
     private suspend fun train(customModel: String?, customTrainingData: String?): TrainingStateWithModel {
         val modelToTrain = if(customModel != null) {
-            val file = File(ModelPaths.getModelDirectory(context), "$customModel.gguf")
-            ModelInfoLoader(
-                file,
-                file.nameWithoutExtension,
-            ).loadDetails() ?: return TrainingStateWithModel(TrainingState.FatalError, customModel)
+            File(ModelPaths.getModelDirectory(context), "$customModel.gguf").let {
+                ModelInfoLoader(it, it.nameWithoutExtension)
+            }
         } else {
             val trainableModels = ModelPaths.getModelOptions(applicationContext)
 
-            val modelInfo = trainableModels.firstNotNullOfOrNull {
-                val data = getTrainingData(setOf(it.key))
-                if(data.isEmpty()) {
+            trainableModels.firstNotNullOfOrNull {
+                if(getTrainingData(setOf(it.key)) == null) {
                     null
                 } else {
                     it.value
                 }
             } ?: return TrainingStateWithModel(TrainingState.ErrorInadequateData, null)
-
-            modelInfo.loadDetails() ?: return TrainingStateWithModel(TrainingState.FatalError, model = modelInfo.path.nameWithoutExtension)
         }
 
-        val modelFile = File(modelToTrain.path)
+        val modelDetails = ModelMetadataIndex.getDetails(applicationContext, modelToTrain)
+            ?: return TrainingStateWithModel(TrainingState.FatalError, model = modelToTrain.name)
+
+        val modelFile = modelToTrain.path
 
         TrainingWorkerStatus.state.emit(
             TrainingStateWithModel(
@@ -181,31 +164,42 @@ class TrainingWorker(val context: Context, val parameters: WorkerParameters) : C
             )
         )
 
-        val data = if(customModel != null && customTrainingData != null) {
-            customTrainingData // TODO: This must be preprocessed into word correction format!
+        val examples = if(customModel != null && customTrainingData != null) {
+            customTrainingData.lineSequence() // TODO: This must be preprocessed into word correction format!
         } else {
-            getTrainingData(modelToTrain.languages.toSet())
-        }
+            val data = getTrainingData(modelDetails.languages.toSet())
+                ?: return TrainingStateWithModel(TrainingState.ErrorInadequateData, modelFile.nameWithoutExtension)
 
-        if (data.isEmpty()) {
-            return TrainingStateWithModel(TrainingState.ErrorInadequateData, modelFile.nameWithoutExtension)
+            generateExamples(data)
         }
 
-        val outputModel = File(applicationContext.cacheDir, modelFile.name + ".tmp")
         val cacheLoraPath = File(applicationContext.cacheDir, "adapter.bin")
 
+        // Written when a run is interrupted, so the next run only does the remaining iterations
+        val progressFile = modelToTrain.adapterCheckpointProgressPath
+        val previousProgress = if(progressFile.exists() && modelToTrain.adapterCheckpointPath.exists()) {
+            progressFile.readText().toFloatOrNull()?.coerceIn(0.0f, 1.0f) ?: 0.0f
+        } else {
+            0.0f
+        }
+
+        // The trainer needs the base model as a file of its own, while typing reads it out of the APK
+        withContext(Dispatchers.IO) {
+            ModelPaths.extractModel(applicationContext, modelFile)
+        }
+
         val builder = AdapterTrainerBuilder(
             modelFile.absolutePath,
             cacheLoraPath.absolutePath,
-            outputModel.absolutePath
+            modelToTrain.adapterCheckpointPath.absolutePath
         )
 
         builder.setLossFlow(TrainingWorkerStatus.loss)
         builder.setProgressFlow(TrainingWorkerStatus.progress)
 
-        builder.setWeight(0.75f)
+        builder.setRemainingFraction(1.0f - previousProgress)
 
-        builder.addExamples(data.lines())
+        builder.addExamples(examples)
 
         val trainer = try {
              builder.loadAndPrepare()
@@ -215,31 +209,61 @@ class TrainingWorker(val context: Context, val parameters: WorkerParameters) : C
 
         val powerManager = applicationContext.getSystemService(Context.POWER_SERVICE) as PowerManager
         val wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "FUTOLatinIME::modelTrainer")
-        withContext(Dispatchers.Default) {
-            println("Staring to train")
-            wakeLock.acquire(120*60*1000L /*1 hour*/)
-            try {
-                trainer.train()
-            } finally {
-                wakeLock.release()
+        val startTime = System.currentTimeMillis()
+        var completed = false
+        try {
+            withContext(Dispatchers.Default) {
+                println("Staring to train")
+                wakeLock.acquire(120*60*1000L /*1 hour*/)
+                try {
+                    completed = trainer.train()
+                } finally {
+                    wakeLock.release()
+                }
+                println("Finished training")
+            }
+        } finally {
+            if(!completed) {
+                val progress = previousProgress + (1.0f - previousProgress) * trainer.lastProgress
+                progressFile.writeText(progress.toString())
+            }
+            trainer.close()
+        }
+
+        if(!completed) {
+            val state = if(modelToTrain.adapterCheckpointPath.exists()) {
+                TrainingState.Interrupted
+            } else {
+                TrainingState.FatalError
             }
-            println("Finished training")
+            return TrainingStateWithModel(state, modelFile.nameWithoutExtension)
         }
 
-        // In case there's no one to receive ClearTrainingLog, save an empty log
-        saveHistoryLogBackup(applicationContext, listOf())
+        progressFile.delete()
+
+        // Only the adapter is kept, the base model file is left untouched. It has to be in place
+        // before the log it was trained on is cleared, or a failed move would lose both
+        FileTransfer.move(cacheLoraPath, modelToTrain.adapterPath)
+
+        // In case there's no one to receive ClearTrainingLog, remove the log here
+        clearHistoryLog(applicationContext)
 
         TrainingWorkerStatus.lmRequest.emit(LanguageModelFacilitatorRequest.ClearTrainingLog)
 
-        val fallback = File(
-            modelFile.absolutePath + ".bak"
+        val previousInfo = modelToTrain.loadAdapterInfo()
+        val minutes = (System.currentTimeMillis() - startTime) / 60000.0
+        modelToTrain.saveAdapterInfo(
+            AdapterInfo(
+                finetuneCount = (previousInfo?.finetuneCount ?: 0) + 1,
+                scale = previousInfo?.scale ?: 0.75f,
+                history = (previousInfo?.history ?: "") +
+                        "\n${Date()}: Fine-tuned adapter, took ${"%.2f".format(minutes)} minutes",
+                enabled = previousInfo?.enabled ?: true
+            )
         )
 
-        // TODO: A better solution for backup/reverting, etc
-        //modelFile.copyTo(fallback, overwrite = true)
-        outputModel.copyTo(modelFile, overwrite = true)
-
-        ModelPaths.signalReloadModels()
+        // The base model stays loaded, only the adapter is swapped
+        ModelPaths.signalReloadAdapter(modelFile)
 
         return TrainingStateWithModel(TrainingState.Finished, modelFile.nameWithoutExtension)
     }
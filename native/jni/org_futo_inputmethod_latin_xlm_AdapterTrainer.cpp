@@ -2,11 +2,9 @@
 // Created by alex on 11/7/23.
 //
 
+#include <algorithm>
+#include <atomic>
 #include <string>
-#include <iostream>
-#include <sstream>
-#include <chrono>
-#include <iomanip>
 #include "org_futo_inputmethod_latin_xlm_AdapterTrainer.h"
 #include "defines.h"
 #include "jni_common.h"
@@ -19,14 +17,16 @@ namespace latinime {
     struct AdapterTrainerState {
         std::string baseModelPath;
         std::string loraCachePath;
-        std::string outputModelPath;
-        float outputScale;
+        std::string checkpointPath;
+        float remainingFraction;
 
         ModelMetadata metadata;
 
         sentencepiece::SentencePieceProcessor spm;
         struct train_params params;
 
+        std::atomic<bool> stopRequested{false};
+
         static void OnLossCallback(void *userdata, float loss) {
             auto *state = reinterpret_cast<AdapterTrainerState *>(userdata);
             state->OnLoss(loss);
@@ -37,6 +37,11 @@ namespace latinime {
             state->OnProgress(progress);
         }
 
+        static bool ShouldStopCallback(void *userdata) {
+            auto *state = reinterpret_cast<AdapterTrainerState *>(userdata);
+            return state->stopRequested.load();
+        }
+
         JNIEnv *env;
         jobject callbackObject;
         jmethodID lossMethodId;
@@ -59,8 +64,13 @@ namespace latinime {
 
             params = get_default_train_params();
             params.common.fn_train_data = "";
-            params.common.fn_checkpoint_in = "";
-            params.common.fn_checkpoint_out = "";
+
+            // The checkpoint holds the adapter along with the optimizer state. It is read back in
+            // to continue training from where the last run (finished or interrupted) left off
+            params.common.fn_checkpoint_in = checkpointPath.c_str();
+            params.common.fn_checkpoint_out = checkpointPath.c_str();
+            params.common.save_every = 16;
+
             params.fn_model_base = baseModelPath.c_str();
             params.fn_lora_out = loraCachePath.c_str();
 
@@ -74,15 +84,16 @@ namespace latinime {
             params.common.warmup = 10;
             params.common.n_epochs = 1;
             params.common.adam_alpha = 1e-3;
-            params.common.adam_n_iter = 128;
+            params.common.adam_n_iter = std::max(1, (int)(128.0f * remainingFraction + 0.5f));
 
             // Increasing/decreasing this doesn't appear to significantly affect training time
             params.lora_r = 16;
             params.lora_alpha = 16;
 
-            params.common.callbacks.userdata = this;
-            params.common.callbacks.loss     = AdapterTrainerState::OnLossCallback;
-            params.common.callbacks.progress = AdapterTrainerState::OnProgressCallback;
+            params.common.callbacks.userdata    = this;
+            params.common.callbacks.loss        = AdapterTrainerState::OnLossCallback;
+            params.common.callbacks.progress    = AdapterTrainerState::OnProgressCallback;
+            params.common.callbacks.should_stop = AdapterTrainerState::ShouldStopCallback;
 
             if(!spm.LoadFromSerializedProto(metadata.ext_tokenizer_data).ok()){
                 AKLOGE("Failed to load tokenizer!");
@@ -100,49 +111,14 @@ namespace latinime {
         int Train() const {
             return finetune_train(params);
         }
-
-        void UpdateHistoryAndCount(std::chrono::system_clock::time_point start, std::chrono::system_clock::time_point end) {
-            std::chrono::duration<double> elapsed_seconds = end - start;
-
-            int num_examples = params.training_data.size();
-            int num_tokens = 0;
-            for(const auto & example: params.training_data) {
-                num_tokens += example.size();
-            }
-
-            time_t rawtime;
-            struct tm * timeinfo;
-            char date_time[32];
-
-            // Convert time_point to time_t
-            rawtime = std::chrono::system_clock::to_time_t(start);
-            // Convert time_t to tm struct
-            timeinfo = localtime(&rawtime);
-
-            // Format the date and time in ISO format
-            strftime(date_time, sizeof(date_time), "%Y-%m-%d %H:%M:%SZ", timeinfo);
-
-            // Create a stringstream object
-            std::stringstream ss;
-
-            // Format the string using the stringstream object
-            ss << "\n" << date_time << ": Fine-tuned on " << num_examples << " examples (" << num_tokens << " tokens), took "
-               << std::fixed << std::setprecision(2) << elapsed_seconds.count() / 60.0 << " minutes";
-
-            // Convert the stringstream object to a std::string
-            std::string result = ss.str();
-
-            metadata.finetuning_count += 1;
-            metadata.history.append(result);
-        }
     };
 
-    static jlong xlm_AdapterTrainer_open(JNIEnv *env, jclass clazz, jstring baseModelPathStr, jstring loraCacheStr, jstring outputModelPathStr, float outputScale) {
+    static jlong xlm_AdapterTrainer_open(JNIEnv *env, jclass clazz, jstring baseModelPathStr, jstring loraCacheStr, jstring checkpointPathStr, float remainingFraction) {
         auto *state = new AdapterTrainerState();
         state->baseModelPath   = jstring2string(env, baseModelPathStr);
         state->loraCachePath   = jstring2string(env, loraCacheStr);
-        state->outputModelPath = jstring2string(env, outputModelPathStr);
-        state->outputScale = outputScale;
+        state->checkpointPath  = jstring2string(env, checkpointPathStr);
+        state->remainingFraction = std::clamp(remainingFraction, 0.0f, 1.0f);
 
         state->env = env;
 
@@ -165,8 +141,16 @@ namespace latinime {
         state->AddTrainingExample(jstring2string(env, exampleStr));
     }
 
-    // TODO: Callback for progress
-    static void xlm_AdapterTrainer_train(JNIEnv *env, jobject instance, jlong statePtr) {
+    // May be called from any thread while train is running
+    static void xlm_AdapterTrainer_stop(JNIEnv *env, jclass clazz, jlong statePtr) {
+        auto *state = reinterpret_cast<AdapterTrainerState *>(statePtr);
+        if(state == nullptr) return;
+        state->stopRequested.store(true);
+    }
+
+    // Returns true if training ran to completion, false if it failed or was stopped early. In both
+    // of the latter cases, the checkpoint holds whatever progress had been made
+    static jboolean xlm_AdapterTrainer_train(JNIEnv *env, jobject instance, jlong statePtr) {
 
         jclass clazz = env->GetObjectClass(instance);
         ASSERT(clazz);
@@ -182,53 +166,13 @@ namespace latinime {
         state->progressMethodId = progressMethodId;
         state->callbackObject = instance;
 
-        std::chrono::system_clock::time_point start, end;
-        start = std::chrono::system_clock::now();
-
         int result = state->Train();
         if(result != 0) {
             AKLOGE("train returned with non-zero code %d", result);
-            return;
+            return false;
         }
 
-        end = std::chrono::system_clock::now();
-
-        // Increment count and add history
-        state->UpdateHistoryAndCount(start, end);
-
-        // Apply LoRA
-        llama_model_params model_params = llama_model_default_params();
-        model_params.use_mmap = false;
-
-        llama_model *model = llama_load_model_from_file(state->baseModelPath.c_str(), model_params);
-
-        if(model == nullptr) {
-            AKLOGE("failed to load model for exporting LoRA");
-            return;
-        }
-
-        int err = llama_model_apply_lora_from_file(
-                model,
-               state->loraCachePath.c_str(),
-               state->outputScale,
-               nullptr,
-               4
-        );
-        if(err != 0) {
-            AKLOGE("Failed to apply lora: %d", err);
-            return;
-        }
-
-        int status = save_llama_model_file(
-            state->outputModelPath.c_str(),
-            state->baseModelPath.c_str(),
-            model,
-            state->metadata
-        );
-        if(status != 0) {
-            AKLOGE("Failed to save model! %d", status);
-            return;
-        }
+        return !state->stopRequested.load();
     }
 
     static const JNINativeMethod sMethods[] = {
@@ -248,8 +192,13 @@ namespace latinime {
                     reinterpret_cast<void *>(xlm_AdapterTrainer_addExample)
             },
             {
-                    const_cast<char *>("train"),
+                    const_cast<char *>("stopNative"),
                     const_cast<char *>("(J)V"),
+                    reinterpret_cast<void *>(xlm_AdapterTrainer_stop)
+            },
+            {
+                    const_cast<char *>("train"),
+                    const_cast<char *>("(J)Z"),
                     reinterpret_cast<void *>(xlm_AdapterTrainer_train)
             },
 
@@ -259,4 +208,4 @@ namespace latinime {
         const char *const kClassPathName = "org/futo/inputmethod/latin/xlm/AdapterTrainer";
         return registerNativeMethods(env, kClassPathName, sMethods, NELEMS(sMethods));
     }
-}
\ No newline at end of file
+}
@@ -104,6 +104,23 @@ static void softmax(float * input, size_t input_len) {
     }
 }
 
+// Log probability of one token, without normalizing the logits in place
+static float log_softmax_at(const float * logits, size_t n_vocab, llama_token token) {
+    float m = -INFINITY;
+    for (size_t i = 0; i < n_vocab; i++) {
+        if (logits[i] > m) {
+            m = logits[i];
+        }
+    }
+
+    float sum = 0.0;
+    for (size_t i = 0; i < n_vocab; i++) {
+        sum += expf(logits[i] - m);
+    }
+
+    return logits[token] - m - logf(sum);
+}
+
 #define NUM_TOKEN_MIX 4
 struct TokenMix {
     float x;
@@ -184,8 +201,87 @@ struct LanguageModelState {
         std::vector<int> general_banned_tokens;
     } specialTokens;
 
-    bool Initialize(const std::string &paths){
-        model = std::unique_ptr<LanguageModel>(LlamaAdapter::createLanguageModel(paths));
+    bool SetAdapter(const std::string &loraPath, float loraScale) {
+        bool result = true;
+        if(loraPath.empty()) {
+            model->adapter->detachLora();
+        } else {
+            result = model->adapter->attachLora(loraPath, loraScale);
+        }
+
+        // Anything cached was computed with the previous weights
+        llama_kv_cache_seq_rm(model->context(), -1, -1, -1);
+        model->transformerContext.active_context = { };
+
+        return result;
+    }
+
+    // Decodes nPromptTokens tokens as one prompt and then nDecodeTokens tokens one at a time with
+    // the given thread counts, and reports the tokens per second of both. The KV cache is cleared
+    // before and after, so the next prompt is decoded from scratch.
+    bool MeasureThroughput(int nThreads, int nThreadsBatch, int nPromptTokens, int nDecodeTokens,
+                           float &outPromptTokensPerSecond, float &outDecodeTokensPerSecond) {
+        llama_context *ctx = model->context();
+        llama_batch batch = model->adapter->batch;
+        int n_batch = model->adapter->n_batch;
+
+        ASSERT(nPromptTokens + nDecodeTokens < LLAMA_CONTEXT_SIZE);
+
+        token_sequence sample = model->tokenize(
+                "The quick brown fox jumps over the lazy dog, and then it types a few more words.");
+        token_sequence tokens;
+        while((int)tokens.size() < nPromptTokens + nDecodeTokens) {
+            tokens.insert(tokens.end(), sample.begin(), sample.end());
+        }
+
+        model->adapter->setThreads(nThreads, nThreadsBatch);
+        llama_kv_cache_seq_rm(ctx, -1, -1, -1);
+        model->transformerContext.active_context = { };
+
+        bool ok = true;
+        int64_t start = ggml_time_us();
+        for(int b = 0; ok && b * n_batch < nPromptTokens; b++) {
+            batch.n_tokens = std::min(n_batch, nPromptTokens - b * n_batch);
+            for(int i = 0; i < batch.n_tokens; i++) {
+                batch.token[i] = tokens[b * n_batch + i];
+                batch.pos[i] = (llama_pos)(b * n_batch + i);
+                batch.seq_id[i][0] = 0;
+                batch.n_seq_id[i] = 1;
+                batch.logits[i] = false;
+            }
+            batch.logits[batch.n_tokens - 1] = true;
+
+            ok = llama_decode(ctx, batch) == 0;
+        }
+        int64_t promptTime = ggml_time_us() - start;
+
+        start = ggml_time_us();
+        for(int i = 0; ok && i < nDecodeTokens; i++) {
+            batch.n_tokens = 1;
+            batch.token[0] = tokens[nPromptTokens + i];
+            batch.pos[0] = (llama_pos)(nPromptTokens + i);
+            batch.seq_id[0][0] = 0;
+            batch.n_seq_id[0] = 1;
+            batch.logits[0] = true;
+
+            ok = llama_decode(ctx, batch) == 0;
+        }
+        int64_t decodeTime = ggml_time_us() - start;
+
+        llama_kv_cache_seq_rm(ctx, -1, -1, -1);
+
+        if(!ok) {
+            AKLOGE("llama_decode() failed while measuring throughput");
+            return false;
+        }
+
+        outPromptTokensPerSecond = (float)nPromptTokens * 1e6f / (float)std::max(promptTime, (int64_t)1);
+        outDecodeTokensPerSecond = (float)nDecodeTokens * 1e6f / (float)std::max(decodeTime, (int64_t)1);
+        return true;
+    }
+
+    bool Initialize(const std::string &paths, size_t modelOffset, size_t modelSize, const std::string &loraPath, float loraScale){
+        model = std::unique_ptr<LanguageModel>(LlamaAdapter::createLanguageModel(paths, modelOffset, modelSize, loraPath, loraScale));
 
         if(!model) {
             AKLOGE("GGMLDict: Could not load model");
@@ -783,6 +879,130 @@ struct LanguageModelState {
         return outputs;
     }
 
+    token_sequence GetCorrectionPrompt(const std::string &context, bool swipe_mode) {
+        token_sequence next_context;
+        if(!context.empty()) {
+            next_context = model->tokenize(trim(context) + " ");
+        }
+
+        next_context.insert(next_context.begin(), 1); // BOS
+        next_context.push_back(specialTokens.XBU);
+
+        if(swipe_mode) {
+            next_context.push_back(specialTokens.XC0_SWIPE_MODE);
+        }
+
+        return next_context;
+    }
+
+    // Returns the log probability of each continuation following the decoded prompt. Every
+    // continuation gets its own sequence sharing the prompt's KV cells, and they are decoded
+    // together in as few batches as n_batch allows. Sequence 0 is left as it was.
+    std::vector<float> ScoreContinuations(const DecodeResult &decodeResult, const std::vector<token_sequence> &continuations) {
+        llama_context *ctx = model->context();
+        size_t n_vocab = llama_n_vocab(llama_get_model(ctx));
+
+        // The first token of every continuation is predicted by the prompt's own logits, which
+        // are overwritten by the next decode
+        const float *promptLogits = llama_get_logits_ith(ctx, decodeResult.logits_head);
+        std::vector<float> logProbabilities(continuations.size(), -INFINITY);
+        for(size_t c = 0; c < continuations.size(); c++) {
+            if(continuations[c].empty()) continue;
+            logProbabilities[c] = log_softmax_at(promptLogits, n_vocab, continuations[c][0]);
+        }
+
+        llama_batch batch = model->adapter->batch;
+        int n_batch = model->adapter->n_batch;
+
+        size_t next = 0;
+        while(next < continuations.size()) {
+            // Index of each continuation in this batch, and the batch index of its first token
+            std::vector<std::pair<size_t, int>> batchContinuations;
+            batch.n_tokens = 0;
+
+            for(; next < continuations.size(); next++) {
+                const token_sequence &tokens = continuations[next];
+                if(tokens.size() < 2) continue;
+
+                int numTokens = (int)tokens.size() - 1;
+                if(numTokens > n_batch) {
+                    logProbabilities[next] = -INFINITY;
+                    continue;
+                }
+                if(batch.n_tokens + numTokens > n_batch) break;
+
+                auto seq = (llama_seq_id)(batchContinuations.size() + 1);
+                llama_kv_cache_seq_cp(ctx, 0, seq, 0, (llama_pos)decodeResult.size);
+
+                batchContinuations.emplace_back(next, batch.n_tokens);
+                for(int j = 0; j < numTokens; j++) {
+                    batch.token[batch.n_tokens] = tokens[j];
+                    batch.pos[batch.n_tokens] = (llama_pos)(decodeResult.size + j);
+                    batch.seq_id[batch.n_tokens][0] = seq;
+                    batch.n_seq_id[batch.n_tokens] = 1;
+                    batch.logits[batch.n_tokens] = true;
+                    batch.n_tokens++;
+                }
+            }
+
+            if(batch.n_tokens == 0) break;
+
+            bool decoded = llama_decode(ctx, batch) == 0;
+            if(!decoded) {
+                AKLOGE("llama_decode() failed while scoring continuations");
+            }
+
+            for(size_t b = 0; b < batchContinuations.size(); b++) {
+                size_t c = batchContinuations[b].first;
+                const token_sequence &tokens = continuations[c];
+                if(decoded) {
+                    for(size_t j = 1; j < tokens.size(); j++) {
+                        const float *logits = llama_get_logits_ith(
+                                ctx, batchContinuations[b].second + (int)j - 1);
+                        logProbabilities[c] += log_softmax_at(logits, n_vocab, tokens[j]);
+                    }
+                } else {
+                    logProbabilities[c] = -INFINITY;
+                }
+
+                llama_kv_cache_seq_rm(ctx, (llama_seq_id)(b + 1), -1, -1);
+            }
+        }
+
+        return logProbabilities;
+    }
+
+    // Returns the log probability of each word being the correction of the partial word given by
+    // the mixes. A word can end either with a space or with the end of correction token, and both
+    // are counted.
+    std::vector<float> ScoreCorrections(const std::string &context, const std::vector<TokenMix> &mixes, bool swipe_mode, const std::vector<std::string> &words) {
+        std::vector<float> scores(words.size(), -INFINITY);
+        if(specialTokens.XBU == -1 || mixes.empty()) return scores;
+
+        auto decoding_result = DecodePromptAndMixes(GetCorrectionPrompt(context, swipe_mode), mixes);
+        if(decoding_result.size == 0) return scores;
+
+        std::vector<token_sequence> continuations;
+        continuations.reserve(words.size() * 2);
+        for(const std::string &word : words) {
+            continuations.push_back(model->tokenize(trim(word) + " "));
+
+            token_sequence ended = model->tokenize(trim(word));
+            ended.push_back(specialTokens.XEC);
+            continuations.push_back(ended);
+        }
+
+        auto logProbabilities = ScoreContinuations(decoding_result, continuations);
+        for(size_t w = 0; w < words.size(); w++) {
+            float a = logProbabilities[w * 2];
+            float b = logProbabilities[w * 2 + 1];
+            float m = std::max(a, b);
+            scores[w] = std::isfinite(m) ? m + logf(expf(a - m) + expf(b - m)) : m;
+        }
+
+        return scores;
+    }
+
     std::vector<std::pair<float, std::string>> PredictNextWord(const std::string &context, const std::vector<std::string> &banned_words) {
         std::vector<banned_sequence> banned_sequences;
         for(const std::string &bw : banned_words) {
@@ -820,17 +1040,7 @@ struct LanguageModelState {
             banned_sequences.push_back({ tokenized2, compute_sequence_hash(tokenized2) });
         }
 
-        token_sequence next_context;
-        if(!context.empty()) {
-            next_context = model->tokenize(trim(context) + " ");
-        }
-
-        next_context.insert(next_context.begin(), 1); // BOS
-        next_context.push_back(specialTokens.XBU);
-
-        if(swipe_mode) {
-            next_context.push_back(specialTokens.XC0_SWIPE_MODE);
-        }
+        token_sequence next_context = GetCorrectionPrompt(context, swipe_mode);
 
         auto decoding_result = DecodePromptAndMixes(next_context, mixes);
         auto results = Sample(decoding_result, 3, capitals, banned_sequences);
@@ -856,7 +1066,7 @@ struct SuggestionItemToRescore {
 };
 
 namespace latinime {
-    static jlong xlm_LanguageModel_open(JNIEnv *env, jclass clazz, jstring modelDir) {
+    static jlong xlm_LanguageModel_open(JNIEnv *env, jclass clazz, jstring modelDir, jlong modelOffset, jlong modelSize, jstring loraPathStr, jfloat loraScale) {
         GGML_UNUSED(clazz);
 
         AKLOGI("open LM");
@@ -871,7 +1081,7 @@ namespace latinime {
 
         auto *state = new LanguageModelState();
 
-        if(!state->Initialize(sourceDirChars)) {
+        if(!state->Initialize(sourceDirChars, (size_t)modelOffset, (size_t)modelSize, jstring2string(env, loraPathStr), loraScale)) {
             delete state;
             return 0;
         }
@@ -889,8 +1099,53 @@ namespace latinime {
         delete state;
     }
 
+    static jboolean xlm_LanguageModel_setAdapter(JNIEnv *env, jclass clazz, jlong statePtr, jstring loraPathStr, jfloat loraScale) {
+        GGML_UNUSED(clazz);
+
+        auto *state = reinterpret_cast<LanguageModelState *>(statePtr);
+        if(state == nullptr) return false;
+
+        return state->SetAdapter(jstring2string(env, loraPathStr), loraScale);
+    }
+
+    static void xlm_LanguageModel_setThreads(JNIEnv *env, jclass clazz, jlong statePtr, jint nThreads, jint nThreadsBatch) {
+        GGML_UNUSED(env);
+        GGML_UNUSED(clazz);
+
+        auto *state = reinterpret_cast<LanguageModelState *>(statePtr);
+        if(state == nullptr) return;
+
+        state->model->adapter->setThreads(nThreads, nThreadsBatch);
+    }
+
+    // (JIIII[F)Z
+    // The thread counts are left as measured, the caller is expected to set the ones it picks
+    static jboolean xlm_LanguageModel_measureThroughput(JNIEnv *env, jclass clazz, jlong statePtr,
+        jint nThreads,
+        jint nThreadsBatch,
+        jint nPromptTokens,
+        jint nDecodeTokens,
+
+        jfloatArray outTokensPerSecond
+    ) {
+        GGML_UNUSED(clazz);
+
+        auto *state = reinterpret_cast<LanguageModelState *>(statePtr);
+        if(state == nullptr) return false;
+
+        float results[2] = { 0.0f, 0.0f };
+        if(!state->MeasureThroughput(nThreads, nThreadsBatch, nPromptTokens, nDecodeTokens,
+                                     results[0], results[1])) {
+            return false;
+        }
+
+        env->SetFloatArrayRegion(outTokensPerSecond, 0, 2, results);
+        return true;
+    }
+
     // (JLjava/lang/String;[Ljava/lang/String;[I[I)V
-    // TODO: This will also need caching to not make things extremely slow by recomputing every time
+    // Weighs every word by its probability of coming after the context. The context is decoded
+    // once, which leaves it cached for the next call, and the words are scored together.
     static void xlm_LanguageModel_rescoreSuggestions(JNIEnv *env, jclass clazz,
         jlong dict,
         jstring context,
@@ -918,6 +1173,10 @@ namespace latinime {
         }
 
         minScore -= (maxScore - minScore) * 0.33f;
+        if(maxScore <= minScore) {
+            env->SetIntArrayRegion(outScores, 0, inputSize, scores);
+            return;
+        }
 
         std::vector<SuggestionItemToRescore> words;
         jsize numWords = env->GetArrayLength(inWords);
@@ -931,31 +1190,43 @@ namespace latinime {
                 jstring2string(env, jstr),
                 {}
             };
+            env->DeleteLocalRef(jstr);
 
             item.tokens = state->model->tokenize(trim(item.word) + " ");
             words.push_back(item);
         }
 
-
-        // TODO: Transform here
-        llama_context *ctx = state->model->context();
-        size_t n_vocab = llama_n_vocab(llama_get_model(ctx));
-
         token_sequence next_context = state->model->tokenize(trim(contextString) + " ");
         next_context.insert(next_context.begin(), 1); // BOS
 
         auto decoding_result = state->DecodePromptAndMixes(next_context, { });
-        float *logits = llama_get_logits_ith(ctx, decoding_result.logits_head);
+        if(decoding_result.size == 0) {
+            AKLOGE("Failed to decode the context, leaving the scores as they are");
+            env->SetIntArrayRegion(outScores, 0, inputSize, scores);
+            return;
+        }
 
-        softmax(logits, n_vocab);
+        std::vector<token_sequence> continuations;
+        continuations.reserve(words.size());
+        for(const auto &entry : words) {
+            continuations.push_back(entry.tokens);
+        }
+        auto logProbabilities = state->ScoreContinuations(decoding_result, continuations);
+
+        // Combine both in log space, then map back so that the best word gets the highest input
+        // score and the others are spread below it
+        float bestCombined = -INFINITY;
+        std::vector<float> combined(words.size());
+        for(size_t w = 0; w < words.size(); w++) {
+            combined[w] = logf(std::max(words[w].transformedScore, 1e-6f)) + logProbabilities[w];
+            if(combined[w] > bestCombined) bestCombined = combined[w];
+        }
 
-        AKLOGI("Iter");
-        for(auto &entry : words) {
-            float pseudoScore = logits[entry.tokens[0]] / (float)entry.tokens.size();
-            AKLOGI("Word [%s], %d tokens, prob[0] = %.8f", entry.word.c_str(), entry.tokens.size(), pseudoScore);
-            entry.transformedScore *= pseudoScore * 1000.0f;
+        for(size_t w = 0; w < words.size(); w++) {
+            words[w].transformedScore = std::isfinite(bestCombined)
+                    ? expf(combined[w] - bestCombined)
+                    : words[w].transformedScore;
         }
-        // TODO: Transform here
 
         // Output scores
         jint *outArray = env->GetIntArrayElements(outScores, nullptr);
@@ -967,66 +1238,10 @@ namespace latinime {
         env->ReleaseIntArrayElements(outScores, outArray, 0);
     }
 
-    static void xlm_LanguageModel_getSuggestions(JNIEnv *env, jclass clazz,
-         // inputs
-         jlong dict,
-         jlong proximityInfo,
-         jstring context,
-         jstring partialWord,
-         jint inputMode,
-         jintArray inComposeX,
-         jintArray inComposeY,
-         jfloat autocorrectThreshold,
-         jobjectArray bannedWordsArray,
-
-         // outputs
-         jobjectArray outPredictions,
-         jfloatArray outProbabilities
-    ) {
-        GGML_UNUSED(clazz);
-
-        auto *state = reinterpret_cast<LanguageModelState *>(dict);
-        auto *pInfo = reinterpret_cast<ProximityInfo *>(proximityInfo);
-
-        size_t inputSize = env->GetArrayLength(inComposeX);
-
-        std::string contextString;
-        if(context != nullptr) {
-            contextString = jstring2string(env, context);
-        }
-
-        std::string partialWordString;
-        if(partialWord != nullptr){
-            partialWordString = jstring2string(env, partialWord);
-        }
-
-        if(partialWordString.size() < inputSize) inputSize = partialWordString.size();
-
-        WordCapitalizeMode capitals = WordCapitalizeMode::IgnoredCapitals;
-
-        if(!partialWordString.empty() && !isFirstCharLowercase(partialWordString.c_str())) {
-            if(partialWordString.size() > 1 && !hasLowercase(partialWordString.c_str())) {
-                capitals = WordCapitalizeMode::AllCapitals;
-            } else {
-                capitals = WordCapitalizeMode::FirstCapital;
-            }
-        }
-
-        std::vector<std::string> bannedWords;
-        size_t numBannedWords = env->GetArrayLength(bannedWordsArray);
-        for(size_t i=0; i<numBannedWords; i++) {
-            bannedWords.push_back(jstring2string(
-                env,
-                (jstring)env->GetObjectArrayElement(bannedWordsArray, (jsize) i)
-            ));
-        }
-
-        TIME_START(GettingMixes)
-        int xCoordinates[inputSize];
-        int yCoordinates[inputSize];
-        env->GetIntArrayRegion(inComposeX, 0, (jsize)inputSize, xCoordinates);
-        env->GetIntArrayRegion(inComposeY, 0, (jsize)inputSize, yCoordinates);
-
+    // Turns each tap of the partial word into a mix of the letter tokens of the nearest keys
+    static std::vector<TokenMix> GetTokenMixes(LanguageModelState *state, ProximityInfo *pInfo,
+            const std::string &partialWordString, const int *xCoordinates,
+            const int *yCoordinates, size_t inputSize) {
         std::vector<TokenMix> mixes;
         for(size_t i=0; i<inputSize; i++) {
             char wc = partialWordString[i];
@@ -1119,6 +1334,72 @@ namespace latinime {
             mixes.push_back(results);
         }
 
+        return mixes;
+    }
+
+    static void xlm_LanguageModel_getSuggestions(JNIEnv *env, jclass clazz,
+         // inputs
+         jlong dict,
+         jlong proximityInfo,
+         jstring context,
+         jstring partialWord,
+         jint inputMode,
+         jintArray inComposeX,
+         jintArray inComposeY,
+         jfloat autocorrectThreshold,
+         jobjectArray bannedWordsArray,
+
+         // outputs
+         jobjectArray outPredictions,
+         jfloatArray outProbabilities
+    ) {
+        GGML_UNUSED(clazz);
+
+        auto *state = reinterpret_cast<LanguageModelState *>(dict);
+        auto *pInfo = reinterpret_cast<ProximityInfo *>(proximityInfo);
+
+        size_t inputSize = env->GetArrayLength(inComposeX);
+
+        std::string contextString;
+        if(context != nullptr) {
+            contextString = jstring2string(env, context);
+        }
+
+        std::string partialWordString;
+        if(partialWord != nullptr){
+            partialWordString = jstring2string(env, partialWord);
+        }
+
+        if(partialWordString.size() < inputSize) inputSize = partialWordString.size();
+
+        WordCapitalizeMode capitals = WordCapitalizeMode::IgnoredCapitals;
+
+        if(!partialWordString.empty() && !isFirstCharLowercase(partialWordString.c_str())) {
+            if(partialWordString.size() > 1 && !hasLowercase(partialWordString.c_str())) {
+                capitals = WordCapitalizeMode::AllCapitals;
+            } else {
+                capitals = WordCapitalizeMode::FirstCapital;
+            }
+        }
+
+        std::vector<std::string> bannedWords;
+        size_t numBannedWords = env->GetArrayLength(bannedWordsArray);
+        for(size_t i=0; i<numBannedWords; i++) {
+            bannedWords.push_back(jstring2string(
+                env,
+                (jstring)env->GetObjectArrayElement(bannedWordsArray, (jsize) i)
+            ));
+        }
+
+        TIME_START(GettingMixes)
+        int xCoordinates[inputSize];
+        int yCoordinates[inputSize];
+        env->GetIntArrayRegion(inComposeX, 0, (jsize)inputSize, xCoordinates);
+        env->GetIntArrayRegion(inComposeY, 0, (jsize)inputSize, yCoordinates);
+
+        std::vector<TokenMix> mixes = GetTokenMixes(state, pInfo, partialWordString,
+                xCoordinates, yCoordinates, inputSize);
+
         TIME_END(GettingMixes)
 
         //AKLOGI("LanguageModel context [%s]", contextString.c_str());
@@ -1195,10 +1476,69 @@ namespace latinime {
         env->ReleaseFloatArrayElements(outProbabilities, probsArray, 0);
     }
 
+    // Scores the given words as corrections of the partial word in one pass, writing the log
+    // probability of each to outLogProbabilities. Words that can't be scored get -infinity.
+    static void xlm_LanguageModel_scoreCandidates(JNIEnv *env, jclass clazz,
+         // inputs
+         jlong dict,
+         jlong proximityInfo,
+         jstring context,
+         jstring partialWord,
+         jint inputMode,
+         jintArray inComposeX,
+         jintArray inComposeY,
+         jobjectArray candidatesArray,
+
+         // outputs
+         jfloatArray outLogProbabilities
+    ) {
+        GGML_UNUSED(clazz);
+
+        auto *state = reinterpret_cast<LanguageModelState *>(dict);
+        auto *pInfo = reinterpret_cast<ProximityInfo *>(proximityInfo);
+
+        size_t inputSize = env->GetArrayLength(inComposeX);
+
+        std::string contextString;
+        if(context != nullptr) {
+            contextString = jstring2string(env, context);
+        }
+
+        std::string partialWordString;
+        if(partialWord != nullptr){
+            partialWordString = jstring2string(env, partialWord);
+        }
+
+        if(partialWordString.size() < inputSize) inputSize = partialWordString.size();
+
+        std::vector<std::string> candidates;
+        size_t numCandidates = env->GetArrayLength(candidatesArray);
+        for(size_t i=0; i<numCandidates; i++) {
+            auto jstr = (jstring)env->GetObjectArrayElement(candidatesArray, (jsize) i);
+            candidates.push_back(jstring2string(env, jstr));
+            env->DeleteLocalRef(jstr);
+        }
+
+        int xCoordinates[inputSize];
+        int yCoordinates[inputSize];
+        env->GetIntArrayRegion(inComposeX, 0, (jsize)inputSize, xCoordinates);
+        env->GetIntArrayRegion(inComposeY, 0, (jsize)inputSize, yCoordinates);
+
+        std::vector<TokenMix> mixes = GetTokenMixes(state, pInfo, partialWordString,
+                xCoordinates, yCoordinates, inputSize);
+
+        TIME_START(ScoreCorrections)
+        std::vector<float> scores = state->ScoreCorrections(contextString, mixes,
+                inputMode == 1, candidates);
+        TIME_END(ScoreCorrections)
+
+        env->SetFloatArrayRegion(outLogProbabilities, 0, (jsize)scores.size(), scores.data());
+    }
+
     static const JNINativeMethod sMethods[] = {
             {
                     const_cast<char *>("openNative"),
-                    const_cast<char *>("(Ljava/lang/String;)J"),
+                    const_cast<char *>("(Ljava/lang/String;JJLjava/lang/String;F)J"),
                     reinterpret_cast<void *>(xlm_LanguageModel_open)
             },
             {
@@ -1206,11 +1546,31 @@ namespace latinime {
                     const_cast<char *>("(J)V"),
                     reinterpret_cast<void *>(xlm_LanguageModel_close)
             },
+            {
+                    const_cast<char *>("setAdapterNative"),
+                    const_cast<char *>("(JLjava/lang/String;F)Z"),
+                    reinterpret_cast<void *>(xlm_LanguageModel_setAdapter)
+            },
+            {
+                    const_cast<char *>("setThreadsNative"),
+                    const_cast<char *>("(JII)V"),
+                    reinterpret_cast<void *>(xlm_LanguageModel_setThreads)
+            },
+            {
+                    const_cast<char *>("measureThroughputNative"),
+                    const_cast<char *>("(JIIII[F)Z"),
+                    reinterpret_cast<void *>(xlm_LanguageModel_measureThroughput)
+            },
             {
                     const_cast<char *>("getSuggestionsNative"),
                     const_cast<char *>("(JJLjava/lang/String;Ljava/lang/String;I[I[IF[Ljava/lang/String;[Ljava/lang/String;[F)V"),
                     reinterpret_cast<void *>(xlm_LanguageModel_getSuggestions)
             },
+            {
+                    const_cast<char *>("scoreCandidatesNative"),
+                    const_cast<char *>("(JJLjava/lang/String;Ljava/lang/String;I[I[I[Ljava/lang/String;[F)V"),
+                    reinterpret_cast<void *>(xlm_LanguageModel_scoreCandidates)
+            },
             {
                     const_cast<char *>("rescoreSuggestionsNative"),
                     const_cast<char *>("(JLjava/lang/String;[Ljava/lang/String;[I[I)V"),
@@ -10,9 +10,9 @@
 
 namespace latinime {
 
-    jobject metadata_open(JNIEnv *env, jobject thiz, jstring pathString) {
+    jobject metadata_open(JNIEnv *env, jobject thiz, jstring pathString, jlong offset) {
         std::string path = jstring2string(env, pathString);
-        auto metadata = loadModelMetadata(path);
+        auto metadata = loadModelMetadata(path, (size_t)offset);
 
         if(metadata.error) {
             AKLOGE("ModelInfoLoader: loading metadata for %s failed", path.c_str());
@@ -82,7 +82,7 @@ namespace latinime {
     static const JNINativeMethod sMethods[] = {
             {
                     const_cast<char *>("loadNative"),
-                    const_cast<char *>("(Ljava/lang/String;)Lorg/futo/inputmethod/latin/xlm/ModelInfo;"),
+                    const_cast<char *>("(Ljava/lang/String;J)Lorg/futo/inputmethod/latin/xlm/ModelInfo;"),
                     reinterpret_cast<void *>(metadata_open)
             },
     };
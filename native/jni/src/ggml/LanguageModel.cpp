@@ -2,6 +2,7 @@
 // Created by alex on 7/24/23.
 //
 
+#include <fstream>
 #include <sentencepiece/sentencepiece_processor.h>
 #include "LanguageModel.h"
 #include "ModelMeta.h"
@@ -50,18 +51,27 @@ std::string LlamaAdapter::decode(const token_sequence &tokens) const {
     return spm.DecodeIds(tokens);
 }
 
-LanguageModel *LlamaAdapter::createLanguageModel(const std::string &modelPath) {
+void LlamaAdapter::setThreads(int nThreads, int nThreadsBatch) {
+    llama_set_n_threads(context, (uint32_t)std::max(nThreads, 1), (uint32_t)std::max(nThreadsBatch, 1));
+}
+
+LanguageModel *LlamaAdapter::createLanguageModel(const std::string &modelPath, size_t modelOffset, size_t modelSize,
+                                                 const std::string &loraPath, float loraScale) {
     auto adapter = new LlamaAdapter();
-    adapter->metadata = loadModelMetadata(modelPath);
+    adapter->metadata = loadModelMetadata(modelPath, modelOffset);
 
     llama_context_params ctx_params = llama_context_default_params();
     ctx_params.n_ctx = LLAMA_CONTEXT_SIZE;
+
+    // The caller picks the thread counts for the device with setThreads
     ctx_params.n_threads = 1;
     ctx_params.n_threads_batch = 1;
 
     adapter->n_batch = ctx_params.n_batch;
 
     llama_model_params model_params = llama_model_default_params();
+    model_params.file_offset = modelOffset;
+    model_params.file_size = modelSize;
 
     adapter->model = llama_load_model_from_file(modelPath.c_str(), model_params);
 
@@ -91,35 +101,147 @@ LanguageModel *LlamaAdapter::createLanguageModel(const std::string &modelPath) {
 
     adapter->batch = llama_batch_init(LLAMA_CONTEXT_SIZE, 0, 1);
 
-    if(adapter->metadata.HasFeature(FEATURE_EMBED_MIXING)) {
-        adapter->embeddings.resize(llama_n_embd(adapter->model) * llama_n_vocab(adapter->model));
+    adapter->loadEmbeddings();
 
-        auto tensor = llama_get_model_tensor(adapter->model, "token_embd.weight");
+    if(!loraPath.empty()) {
+        // The base model is still usable without the adapter
+        adapter->attachLora(loraPath, loraScale);
+    }
+
+    return new LanguageModel(adapter);
+}
+
+void LlamaAdapter::loadEmbeddings() {
+    if(metadata.HasFeature(FEATURE_EMBED_MIXING)) {
+        embeddings.resize(llama_n_embd(model) * llama_n_vocab(model));
+
+        auto tensor = llama_get_model_tensor(model, "token_embd.weight");
         ASSERT(tensor);
 
         if (tensor->type != GGML_TYPE_F32) {
             ggml_internal_get_type_traits(tensor->type).to_float(tensor->data,
-                                                                 adapter->embeddings.data(),
-                                                                 adapter->embeddings.size());
+                                                                 embeddings.data(),
+                                                                 embeddings.size());
         } else {
-            ASSERT((tensor->ne[0] * tensor->ne[1]) == adapter->embeddings.size());
-            memcpy(adapter->embeddings.data(), tensor->data,
-                   adapter->embeddings.size() * sizeof(float));
+            ASSERT((tensor->ne[0] * tensor->ne[1]) == embeddings.size());
+            memcpy(embeddings.data(), tensor->data,
+                   embeddings.size() * sizeof(float));
         }
     }
 
-    if(adapter->metadata.HasFeature(FEATURE_ENCODER)) {
-        adapter->encoder_weight.resize(llama_n_embd(adapter->model) * 2);
-        adapter->encoder_bias.resize(llama_n_embd(adapter->model));
+    if(metadata.HasFeature(FEATURE_ENCODER)) {
+        encoder_weight.resize(llama_n_embd(model) * 2);
+        encoder_bias.resize(llama_n_embd(model));
 
-        for(int i = 0; i < llama_n_embd(adapter->model); i++) {
-            adapter->encoder_weight[i*2]     = adapter->embeddings.data()[FEATURE_ENCODER_W_X_ID * llama_n_embd(adapter->model) + i];
-            adapter->encoder_weight[i*2 + 1] = adapter->embeddings.data()[FEATURE_ENCODER_W_Y_ID * llama_n_embd(adapter->model) + i];
-            adapter->encoder_bias[i]         = adapter->embeddings.data()[FEATURE_ENCODER_B_ID   * llama_n_embd(adapter->model) + i];
+        for(int i = 0; i < llama_n_embd(model); i++) {
+            encoder_weight[i*2]     = embeddings.data()[FEATURE_ENCODER_W_X_ID * llama_n_embd(model) + i];
+            encoder_weight[i*2 + 1] = embeddings.data()[FEATURE_ENCODER_W_Y_ID * llama_n_embd(model) + i];
+            encoder_bias[i]         = embeddings.data()[FEATURE_ENCODER_B_ID   * llama_n_embd(model) + i];
         }
     }
+}
 
-    return new LanguageModel(adapter);
+// Lists the base tensors modified by a LoRA adapter file, in the format written by finetune
+static bool readLoraTargets(const std::string &path, std::vector<std::string> &outNames) {
+    std::ifstream fin(path, std::ios::binary);
+    if(!fin) return false;
+
+    uint32_t magic;
+    uint32_t version;
+    int32_t loraR;
+    int32_t loraAlpha;
+    fin.read(reinterpret_cast<char *>(&magic), sizeof(magic));
+    fin.read(reinterpret_cast<char *>(&version), sizeof(version));
+    fin.read(reinterpret_cast<char *>(&loraR), sizeof(loraR));
+    fin.read(reinterpret_cast<char *>(&loraAlpha), sizeof(loraAlpha));
+    if(!fin || version != 1) return false;
+
+    std::unordered_set<std::string> seen;
+    while(true) {
+        int32_t nDims;
+        int32_t length;
+        int32_t ftype;
+        fin.read(reinterpret_cast<char *>(&nDims), sizeof(nDims));
+        fin.read(reinterpret_cast<char *>(&length), sizeof(length));
+        fin.read(reinterpret_cast<char *>(&ftype), sizeof(ftype));
+        if(fin.eof()) break;
+
+        if(nDims < 1 || nDims > 2 || length <= 0 || length >= 1024 || (ftype != 0 && ftype != 1)) {
+            return false;
+        }
+
+        size_t numElements = 1;
+        for(int i = 0; i < nDims; i++) {
+            int32_t ne;
+            fin.read(reinterpret_cast<char *>(&ne), sizeof(ne));
+            numElements *= (size_t)ne;
+        }
+
+        std::string name(length, '\0');
+        fin.read(&name[0], length);
+
+        // Tensor data is aligned to 32 bytes
+        size_t offset = ((size_t)fin.tellg() + 31) & -32;
+        fin.seekg((std::streamoff)(offset + numElements * (ftype == 0 ? sizeof(float) : sizeof(ggml_fp16_t))));
+
+        size_t pos = name.rfind(".lora");
+        if(pos == std::string::npos) return false;
+
+        std::string baseName = name.substr(0, pos);
+        if(seen.insert(baseName).second) {
+            outNames.push_back(baseName);
+        }
+    }
+
+    return true;
+}
+
+bool LlamaAdapter::attachLora(const std::string &loraPath, float loraScale) {
+    detachLora();
+
+    std::vector<std::string> targets;
+    if(!readLoraTargets(loraPath, targets)) {
+        AKLOGE("Failed to read LoRA adapter %s", loraPath.c_str());
+        return false;
+    }
+
+    // Give every modified tensor its own writable copy, so the adapter can be merged into it and
+    // later detached by pointing back at the (possibly read-only mapped) base weights
+    for(const auto &name : targets) {
+        ggml_tensor *tensor = llama_get_model_tensor(model, name.c_str());
+        if(tensor == nullptr) {
+            AKLOGE("LoRA adapter %s modifies unknown tensor %s", loraPath.c_str(), name.c_str());
+            detachLora();
+            return false;
+        }
+
+        LoraTensorOverride tensorOverride = { tensor, tensor->data, std::vector<uint8_t>(ggml_nbytes(tensor)) };
+        memcpy(tensorOverride.data.data(), tensor->data, tensorOverride.data.size());
+        tensor->data = tensorOverride.data.data();
+
+        loraTensors.push_back(std::move(tensorOverride));
+    }
+
+    int err = llama_model_apply_lora_from_file(model, loraPath.c_str(), loraScale, nullptr, 1);
+    if(err != 0) {
+        AKLOGE("Failed to apply LoRA adapter %s: %d", loraPath.c_str(), err);
+        detachLora();
+        return false;
+    }
+
+    loadEmbeddings();
+    return true;
+}
+
+void LlamaAdapter::detachLora() {
+    if(loraTensors.empty()) return;
+
+    for(auto &tensorOverride : loraTensors) {
+        tensorOverride.tensor->data = tensorOverride.baseData;
+    }
+    loraTensors.clear();
+
+    loadEmbeddings();
 }
 
 LlamaAdapter::LlamaAdapter() = default;
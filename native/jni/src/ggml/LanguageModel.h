@@ -35,7 +35,24 @@ public:
     int tokenToId(const char *text);
     std::string decode(const token_sequence &tokens) const;
 
-    static LanguageModel *createLanguageModel(const std::string &paths);
+    // If loraPath is not empty, the LoRA adapter at that path is attached after loading
+    // modelOffset and modelSize locate a model stored inside another file, 0 for the whole file
+    static LanguageModel *createLanguageModel(const std::string &modelPath, size_t modelOffset, size_t modelSize,
+                                              const std::string &loraPath, float loraScale);
+
+    // Applies a LoRA adapter on top of the base weights, replacing any previously attached adapter.
+    // Only the tensors modified by the adapter are copied, the base model itself is never written to
+    bool attachLora(const std::string &loraPath, float loraScale);
+
+    // Restores the base weights
+    void detachLora();
+
+    inline bool hasLora() const {
+        return !loraTensors.empty();
+    }
+
+    // Sets the number of threads used to decode single tokens and batches of tokens
+    void setThreads(int nThreads, int nThreadsBatch);
     llama_context *context{};
     llama_model *model{};
     llama_batch batch{};
@@ -58,6 +75,16 @@ public:
 private:
     LlamaAdapter();
 
+    // Copies embeddings (and weights derived from them) out of the model for feature use
+    void loadEmbeddings();
+
+    struct LoraTensorOverride {
+        ggml_tensor *tensor;
+        void *baseData;
+        std::vector<uint8_t> data;
+    };
+    std::vector<LoraTensorOverride> loraTensors;
+
     sentencepiece::SentencePieceProcessor spm;
 };
 
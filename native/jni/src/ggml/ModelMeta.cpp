@@ -18,7 +18,7 @@ do { \
     } \
 } while (0)
 
-struct ModelMetadata loadModelMetadata(const std::string &modelPath) {
+struct ModelMetadata loadModelMetadata(const std::string &modelPath, size_t modelOffset) {
     struct ModelMetadata result;
 
     struct gguf_init_params params = {
@@ -26,7 +26,7 @@ struct ModelMetadata loadModelMetadata(const std::string &modelPath) {
             /*.ctx      = */ nullptr,
     };
 
-    struct gguf_context *ctx_gguf = gguf_init_from_file(modelPath.c_str(), params);
+    struct gguf_context *ctx_gguf = gguf_init_from_file_range(modelPath.c_str(), modelOffset, params);
     if(ctx_gguf == NULL) {
         result.error = true;
         return result;
@@ -52,7 +52,8 @@ public:
 };
 
 
-struct ModelMetadata loadModelMetadata(const std::string &modelPath);
+// modelOffset is where the model starts within the file, for one stored inside the APK
+struct ModelMetadata loadModelMetadata(const std::string &modelPath, size_t modelOffset = 0);
 int writeModelMetadata(gguf_context *fctx, const ModelMetadata &metadata);
 
 #endif
\ No newline at end of file
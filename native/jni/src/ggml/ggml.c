@@ -18071,12 +18071,21 @@ struct gguf_context * gguf_init_empty(void) {
 }
 
 struct gguf_context * gguf_init_from_file(const char * fname, struct gguf_init_params params) {
+    return gguf_init_from_file_range(fname, 0, params);
+}
+
+struct gguf_context * gguf_init_from_file_range(const char * fname, size_t file_offset, struct gguf_init_params params) {
     FILE * file = fopen(fname, "rb");
     if (!file) {
         return NULL;
     }
 
-    // offset from start of file
+    if (file_offset > 0 && fseek(file, (long) file_offset, SEEK_SET) != 0) {
+        fclose(file);
+        return NULL;
+    }
+
+    // offset from start of the gguf data, which is file_offset into the file
     size_t offset = 0;
 
     char magic[4];
@@ -18242,7 +18251,7 @@ struct gguf_context * gguf_init_from_file(const char * fname, struct gguf_init_p
 
         if (offset_pad != 0) {
             offset += ctx->alignment - offset_pad;
-            fseek(file, offset, SEEK_SET);
+            fseek(file, file_offset + offset, SEEK_SET);
         }
     }
 
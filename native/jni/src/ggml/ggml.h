@@ -2012,6 +2012,8 @@ struct gguf_init_params {
 
 GGML_API struct gguf_context * gguf_init_empty(void);
 GGML_API struct gguf_context * gguf_init_from_file(const char * fname, struct gguf_init_params params);
+// same as gguf_init_from_file, for gguf data that starts file_offset bytes into the file
+GGML_API struct gguf_context * gguf_init_from_file_range(const char * fname, size_t file_offset, struct gguf_init_params params);
 //GGML_API struct gguf_context * gguf_init_from_buffer(..);
 
 GGML_API void gguf_free(struct gguf_context * ctx);
@@ -764,13 +764,25 @@ struct llama_file {
     FILE * fp;
     size_t size;
 
-    llama_file(const char * fname, const char * mode) {
+    // where the file starts within fp, for a model stored inside another file such as an APK.
+    // tell() and seek() are relative to it
+    size_t base = 0;
+
+    // length 0 means up to the end of the file
+    llama_file(const char * fname, const char * mode, size_t offset = 0, size_t length = 0) {
         fp = std::fopen(fname, mode);
         if (fp == NULL) {
             throw std::runtime_error(format("failed to open %s: %s", fname, strerror(errno)));
         }
         seek(0, SEEK_END);
-        size = tell();
+        const size_t total = tell();
+        if (offset > total || length > total - offset) {
+            std::fclose(fp);
+            fp = NULL;
+            throw std::runtime_error(format("range %zu+%zu is outside of %s", offset, length, fname));
+        }
+        base = offset;
+        size = length > 0 ? length : total - offset;
         seek(0, SEEK_SET);
     }
 
@@ -781,10 +793,13 @@ struct llama_file {
         long ret = std::ftell(fp);
 #endif
         GGML_ASSERT(ret != -1); // this really shouldn't fail
-        return (size_t) ret;
+        return (size_t) ret - base;
     }
 
     void seek(size_t offset, int whence) const {
+        if (whence == SEEK_SET) {
+            offset += base;
+        }
 #ifdef _WIN32
         int ret = _fseeki64(fp, (__int64) offset, whence);
 #else
@@ -844,6 +859,10 @@ struct llama_mmap {
 #ifdef _POSIX_MAPPED_FILES
     static constexpr bool SUPPORTED = true;
 
+    // the mapping starts at the page holding file->base, addr points at file->base within it
+    void * mapped_addr;
+    size_t mapped_size;
+
     llama_mmap(struct llama_file * file, size_t prefetch = (size_t) -1 /* -1 = max value */, bool numa = false) {
         size = file->size;
         int fd = fileno(file->fp);
@@ -853,14 +872,19 @@ struct llama_mmap {
 #ifdef __linux__
         if (prefetch) { flags |= MAP_POPULATE; }
 #endif
-        addr = mmap(NULL, file->size, PROT_READ, flags, fd, 0);
-        if (addr == MAP_FAILED) {
+        const size_t page_size = (size_t) sysconf(_SC_PAGESIZE);
+        const size_t map_offset = file->base - file->base % page_size;
+        mapped_size = file->size + (file->base - map_offset);
+        mapped_addr = mmap(NULL, mapped_size, PROT_READ, flags, fd, (off_t) map_offset);
+        if (mapped_addr == MAP_FAILED) {
             throw std::runtime_error(format("mmap failed: %s", strerror(errno)));
         }
+        addr = (char *) mapped_addr + (file->base - map_offset);
 
         if (prefetch > 0) {
             // Advise the kernel to preload the mapped memory
-            if (posix_madvise(addr, std::min(file->size, prefetch), POSIX_MADV_WILLNEED)) {
+            // madvise needs a page aligned address, which addr only is if file->base is
+            if (posix_madvise(mapped_addr, std::min(mapped_size, prefetch), POSIX_MADV_WILLNEED)) {
                 fprintf(stderr, "warning: posix_madvise(.., POSIX_MADV_WILLNEED) failed: %s\n",
                         strerror(errno));
             }
@@ -868,7 +892,7 @@ struct llama_mmap {
         if (numa) {
             // advise the kernel not to use readahead
             // (because the next page might not belong on the same node)
-            if (posix_madvise(addr, file->size, POSIX_MADV_RANDOM)) {
+            if (posix_madvise(mapped_addr, mapped_size, POSIX_MADV_RANDOM)) {
                 fprintf(stderr, "warning: posix_madvise(.., POSIX_MADV_RANDOM) failed: %s\n",
                         strerror(errno));
             }
@@ -876,7 +900,7 @@ struct llama_mmap {
     }
 
     ~llama_mmap() {
-        munmap(addr, size);
+        munmap(mapped_addr, mapped_size);
     }
 #elif defined(_WIN32)
     static constexpr bool SUPPORTED = true;
@@ -884,6 +908,8 @@ struct llama_mmap {
     llama_mmap(struct llama_file * file, bool prefetch = true, bool numa = false) {
         (void) numa;
 
+        GGML_ASSERT(file->base == 0);
+
         size = file->size;
 
         HANDLE hFile = (HANDLE) _get_osfhandle(_fileno(file->fp));
@@ -1783,13 +1809,14 @@ struct llama_model_loader {
     struct gguf_context * ctx_gguf = NULL;
     struct ggml_context * ctx_meta = NULL;
 
-    llama_model_loader(const std::string & fname, bool use_mmap) : file(fname.c_str(), "rb") {
+    llama_model_loader(const std::string & fname, bool use_mmap, size_t file_offset = 0, size_t file_size = 0)
+            : file(fname.c_str(), "rb", file_offset, file_size) {
         struct gguf_init_params params = {
                 /*.no_alloc = */ true,
                 /*.ctx      = */ &ctx_meta,
         };
 
-        ctx_gguf = gguf_init_from_file(fname.c_str(), params);
+        ctx_gguf = gguf_init_from_file_range(fname.c_str(), file_offset, params);
         if (!ctx_gguf) {
             throw std::runtime_error(format("%s: failed to load model from %s\n", __func__, fname.c_str()));
         }
@@ -1894,6 +1921,12 @@ struct llama_model_loader {
             use_mmap = false;
         }
 
+        // tensors mapped from inside another file would only be as aligned as the model within it
+        if (use_mmap && file.base % gguf_get_alignment(ctx_gguf) != 0) {
+            LLAMA_LOG_WARN("%s: model at offset %zu is not aligned, reading it instead of mapping it\n", __func__, file.base);
+            use_mmap = false;
+        }
+
         this->use_mmap = use_mmap;
     }
 
@@ -3374,7 +3407,7 @@ static void llm_load_tensors(
 
 static bool llama_model_load(const std::string & fname, llama_model & model, const llama_model_params & params) {
     try {
-        llama_model_loader ml(fname, params.use_mmap);
+        llama_model_loader ml(fname, params.use_mmap, params.file_offset, params.file_size);
 
         model.hparams.vocab_only = params.vocab_only;
 
@@ -8091,9 +8124,29 @@ static int llama_apply_lora_from_file_internal(
 
     LLAMA_LOG_INFO("%s: r = %d, alpha = %d, scaling = %.2f\n", __func__, lora_r, lora_alpha, scaling);
 
-    // create a temporary ggml context to store the lora tensors
-    // todo: calculate size from biggest possible tensor
-    std::vector<uint8_t> lora_buf(1024ull * 1024ull * 1024ull);
+    // create a name -> tensor map of the model to accelerate lookups
+    std::unordered_map<std::string, struct ggml_tensor*> model_tensors;
+    for (const auto & kv : model.tensors_by_name) {
+        model_tensors.insert(kv);
+    }
+
+    // create a temporary ggml context to store the lora tensors. The context is reset after every
+    // A/B pair, so it only needs to fit one pair (bounded by the file size), their f32 product and
+    // the graph to apply it
+    size_t lora_file_size;
+    {
+        const auto pos = fin.tellg();
+        fin.seekg(0, std::ios::end);
+        lora_file_size = (size_t) fin.tellg();
+        fin.seekg(pos);
+    }
+
+    size_t max_tensor_f32_size = 0;
+    for (const auto & kv : model.tensors_by_name) {
+        max_tensor_f32_size = std::max(max_tensor_f32_size, (size_t) ggml_nelements(kv.second) * sizeof(float));
+    }
+
+    std::vector<uint8_t> lora_buf(lora_file_size + 2 * max_tensor_f32_size + ggml_graph_overhead() + 16 * ggml_tensor_overhead() + 1024ull * 1024ull);
     struct ggml_init_params params;
     params.mem_size   = lora_buf.size();
     params.mem_buffer = lora_buf.data();
@@ -8102,12 +8155,6 @@ static int llama_apply_lora_from_file_internal(
     ggml_context * lora_ctx = ggml_init(params);
     std::unordered_map<std::string, struct ggml_tensor *> lora_tensors;
 
-    // create a name -> tensor map of the model to accelerate lookups
-    std::unordered_map<std::string, struct ggml_tensor*> model_tensors;
-    for (const auto & kv : model.tensors_by_name) {
-        model_tensors.insert(kv);
-    }
-
     // load base model
     std::unique_ptr<llama_model_loader> ml;
     ggml_context * base_ctx = NULL;
@@ -8340,6 +8387,8 @@ struct llama_model_params llama_model_default_params() {
             /*.n_gpu_layers                =*/ 0,
             /*.main_gpu                    =*/ 0,
             /*.tensor_split                =*/ nullptr,
+            /*.file_offset                 =*/ 0,
+            /*.file_size                   =*/ 0,
             /*.progress_callback           =*/ nullptr,
             /*.progress_callback_user_data =*/ nullptr,
             /*.vocab_only                  =*/ false,
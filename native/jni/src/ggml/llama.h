@@ -165,6 +165,10 @@ struct llama_model_params {
     int32_t main_gpu;     // the GPU that is used for scratch and small tensors
     const float * tensor_split; // how to split layers across multiple GPUs (size: LLAMA_MAX_DEVICES)
 
+    // where the model starts within the file and its size, 0 for the whole file
+    size_t file_offset;
+    size_t file_size;
+
     // called with a progress value between 0 and 1, pass NULL to disable
     llama_progress_callback progress_callback;
     // context pointer passed to the progress callback
@@ -1084,6 +1084,11 @@ struct train_params_common get_default_train_params_common() {
     params.adam_gclip          = 1.0f;
     params.adam_eps_f          = 0.0f;
 
+    params.callbacks.userdata    = nullptr;
+    params.callbacks.loss        = nullptr;
+    params.callbacks.progress    = nullptr;
+    params.callbacks.should_stop = nullptr;
+
     return params;
 }
 
@@ -1454,7 +1459,7 @@ void train_opt_callback(void * vdata, int accum_step, float * sched, bool * canc
         }
 
         if(params->callbacks.progress != nullptr) {
-            float progress_iterations = ((float)opt->iter) / ((float)params->adam_n_iter);
+            float progress_iterations = ((float)(opt->iter - data->first_iter)) / ((float)params->adam_n_iter);
             float progress_samples = ((float)sample_curr) / ((float)(train->shuffle_sample_count * params->n_epochs));
             params->callbacks.progress(params->callbacks.userdata, std::max(progress_iterations, progress_samples));
         }
@@ -1512,6 +1517,11 @@ void train_opt_callback(void * vdata, int accum_step, float * sched, bool * canc
         train->shuffle_next_sample = 0;
     }
 
+    if (params->callbacks.should_stop != nullptr && params->callbacks.should_stop(params->callbacks.userdata)) {
+        AKLOGI("%s: stop requested, canceling\n", __func__);
+        *cancel = true;
+    }
+
     const bool last_epoch_reached = (params->n_epochs > 0 && (int64_t) train->train_epochs - data->first_epoch >= params->n_epochs);
     if (last_epoch_reached) {
         // allow optimization iteration at last epoch to be completed before canceling
@@ -33,6 +33,9 @@ struct train_callbacks {
 
     void (*loss)(void* userdata, float loss);
     void (*progress)(void* userdata, float progress);
+
+    // Polled once per iteration, training stops early (saving its state) when this returns true
+    bool (*should_stop)(void* userdata);
 };
 
 struct train_params_common {
@@ -0,0 +1,98 @@
+package org.futo.inputmethod.latin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.futo.inputmethod.latin.SuggestedWords.SuggestedWordInfo;
+import org.futo.inputmethod.latin.common.ComposedData;
+import org.futo.inputmethod.latin.settings.SettingsValuesForSuggestion;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Unit tests for the batched validity check of {@link DictionaryCollection}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class DictionaryCollectionTests {
+    private static final class FakeDictionary extends Dictionary {
+        private final HashSet<String> mWords;
+        private final boolean mIsReadable;
+        public int mLookupCount = 0;
+
+        FakeDictionary(final boolean isReadable, final String... words) {
+            super(Dictionary.TYPE_MAIN, Locale.ENGLISH);
+            mWords = new HashSet<>(Arrays.asList(words));
+            mIsReadable = isReadable;
+        }
+
+        @Override
+        public ArrayList<SuggestedWordInfo> getSuggestions(final ComposedData composedData,
+                final NgramContext ngramContext, final long proximityInfoHandle,
+                final SettingsValuesForSuggestion settingsValuesForSuggestion,
+                final int sessionId, final float weightForLocale,
+                final float[] inOutWeightOfLangModelVsSpatialModel) {
+            return null;
+        }
+
+        @Override
+        public boolean isInDictionary(final String word) {
+            ++mLookupCount;
+            return mWords.contains(word);
+        }
+
+        @Override
+        public boolean markValidWords(final String[] words, final boolean[] isValid) {
+            // Like a dictionary whose lock is taken, the words are left as they were.
+            return mIsReadable && super.markValidWords(words, isValid);
+        }
+    }
+
+    @Test
+    public void testMarksWordsOfEveryDictionary() {
+        final FakeDictionary first = new FakeDictionary(true, "hello");
+        final FakeDictionary second = new FakeDictionary(true, "world");
+        final DictionaryCollection collection =
+                new DictionaryCollection(Dictionary.TYPE_MAIN, Locale.ENGLISH, first, second);
+
+        final String[] words = { "hello", "wrold", "world" };
+        final boolean[] isValid = new boolean[words.length];
+        assertTrue(collection.markValidWords(words, isValid));
+        assertArrayEquals(new boolean[] { true, false, true }, isValid);
+    }
+
+    @Test
+    public void testSkipsWordsAlreadyValid() {
+        final FakeDictionary dictionary = new FakeDictionary(true, "hello");
+        final String[] words = { "hello", "world" };
+        final boolean[] isValid = { false, true };
+        assertTrue(dictionary.markValidWords(words, isValid));
+        assertEquals(1, dictionary.mLookupCount);
+        assertArrayEquals(new boolean[] { true, true }, isValid);
+    }
+
+    @Test
+    public void testUnreadableDictionaryReportsWordsUnchecked() {
+        final FakeDictionary readable = new FakeDictionary(true, "hello");
+        final FakeDictionary busy = new FakeDictionary(false, "world");
+        final DictionaryCollection collection =
+                new DictionaryCollection(Dictionary.TYPE_MAIN, Locale.ENGLISH, readable, busy);
+
+        final String[] words = { "hello", "world" };
+        final boolean[] isValid = new boolean[words.length];
+        // "world" is left invalid, but only because it couldn't be checked
+        assertFalse(collection.markValidWords(words, isValid));
+        assertArrayEquals(new boolean[] { true, false }, isValid);
+        assertEquals(0, busy.mLookupCount);
+    }
+}
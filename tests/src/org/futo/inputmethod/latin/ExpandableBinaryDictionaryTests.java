@@ -0,0 +1,205 @@
+package org.futo.inputmethod.latin;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.futo.inputmethod.latin.common.FileUtils;
+import org.futo.inputmethod.latin.utils.ExecutorUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for the pending-update queue and the background compaction of
+ * {@link ExpandableBinaryDictionary}.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ExpandableBinaryDictionaryTests {
+    private static final String TEST_DICT_NAME = "ExpandableBinaryDictionaryTests";
+    private static final int PROBABILITY = 100;
+
+    private File mDictFile;
+    private final Locale mLocale = Locale.ENGLISH;
+
+    private static final class TestDictionary extends ExpandableBinaryDictionary {
+        TestDictionary(final Context context, final Locale locale, final File dictFile) {
+            super(context, getDictName(TEST_DICT_NAME, locale, dictFile), locale,
+                    Dictionary.TYPE_USER, dictFile);
+        }
+
+        @Override
+        protected void loadInitialContentsLocked() {
+            // No initial contents.
+        }
+    }
+
+    private Context getContext() {
+        return InstrumentationRegistry.getTargetContext();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mDictFile = new File(getContext().getCacheDir(), TEST_DICT_NAME + ".dict");
+        FileUtils.deleteRecursively(mDictFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteRecursively(mDictFile);
+    }
+
+    private TestDictionary createDictionary() {
+        final TestDictionary dict = new TestDictionary(getContext(), mLocale, mDictFile);
+        dict.reloadDictionaryIfRequired();
+        dict.waitAllTasksForTests();
+        return dict;
+    }
+
+    private static void addWord(final ExpandableBinaryDictionary dict, final String word) {
+        dict.addUnigramEntry(word, PROBABILITY, null /* shortcutTarget */,
+                0 /* shortcutProbability */, false /* isNotAWord */,
+                false /* isPossiblyOffensive */, BinaryDictionary.NOT_A_VALID_TIMESTAMP);
+    }
+
+    private boolean isInDictionaryFile(final String word) {
+        final BinaryDictionary dict = new BinaryDictionary(mDictFile.getAbsolutePath(),
+                0 /* offset */, mDictFile.length(), false /* useFullEditDistance */, mLocale,
+                Dictionary.TYPE_USER, false /* isUpdatable */);
+        try {
+            assertTrue(dict.isValidDictionary());
+            return dict.isInDictionary(word);
+        } finally {
+            dict.close();
+        }
+    }
+
+    // Blocks the executor with the given name until the returned latch is counted down.
+    private static CountDownLatch blockExecutor(final String name) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        ExecutorUtils.getBackgroundExecutor(name).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return latch;
+    }
+
+    private static void waitForCompaction() throws Exception {
+        final Future<?> future = ExecutorUtils.getBackgroundExecutor(ExecutorUtils.COMPACTION)
+                .submit(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+        future.get();
+    }
+
+    @Test
+    public void testPendingUpdatesAnswerIsInDictionary() {
+        final TestDictionary dict = createDictionary();
+        final CountDownLatch release = blockExecutor(ExecutorUtils.KEYBOARD);
+        try {
+            // Nothing can be applied while the executor is blocked, so these come from the queue.
+            addWord(dict, "hello");
+            addWord(dict, "world");
+            assertTrue(dict.isInDictionary("hello"));
+            dict.removeUnigramEntryDynamically("hello");
+            assertFalse(dict.isInDictionary("hello"));
+            assertTrue(dict.isInDictionary("world"));
+        } finally {
+            release.countDown();
+        }
+        dict.waitAllTasksForTests();
+        assertFalse(dict.isInDictionary("hello"));
+        assertTrue(dict.isInDictionary("world"));
+        dict.close();
+    }
+
+    @Test
+    public void testUpdatesDuringCompactionAreReplayed() throws Exception {
+        final TestDictionary dict = createDictionary();
+        addWord(dict, "flushed");
+        dict.asyncFlushBinaryDictionary();
+        dict.waitAllTasksForTests();
+        assertTrue(isInDictionaryFile("flushed"));
+
+        // Applied to the dictionary but not written, so it has to be replayed on the copy.
+        addWord(dict, "unflushed");
+        dict.waitAllTasksForTests();
+        assertFalse(isInDictionaryFile("unflushed"));
+
+        final CountDownLatch release = blockExecutor(ExecutorUtils.COMPACTION);
+        try {
+            dict.compactForTests();
+            dict.waitAllTasksForTests();
+            // Made after the copy is scheduled, so it has to be applied again after the swap.
+            addWord(dict, "during");
+            dict.waitAllTasksForTests();
+            assertTrue(dict.isInDictionary("during"));
+        } finally {
+            release.countDown();
+        }
+        waitForCompaction();
+        dict.waitAllTasksForTests();
+
+        assertTrue(dict.isInDictionary("flushed"));
+        assertTrue(dict.isInDictionary("unflushed"));
+        assertTrue(dict.isInDictionary("during"));
+        // The compacted file is in place, with the updates made before the compaction started.
+        assertTrue(isInDictionaryFile("flushed"));
+        assertTrue(isInDictionaryFile("unflushed"));
+        assertFalse(isInDictionaryFile("during"));
+
+        dict.asyncFlushBinaryDictionary();
+        dict.waitAllTasksForTests();
+        assertTrue(isInDictionaryFile("during"));
+        assertFalse(new File(mDictFile.getPath() + ".compacting").exists());
+        dict.close();
+    }
+
+    @Test
+    public void testCompactionOfReplacedDictionaryIsDiscarded() throws Exception {
+        final TestDictionary dict = createDictionary();
+        addWord(dict, "hello");
+        dict.asyncFlushBinaryDictionary();
+        dict.waitAllTasksForTests();
+
+        final CountDownLatch release = blockExecutor(ExecutorUtils.COMPACTION);
+        try {
+            dict.compactForTests();
+            dict.clear();
+            dict.waitAllTasksForTests();
+        } finally {
+            release.countDown();
+        }
+        waitForCompaction();
+        dict.waitAllTasksForTests();
+
+        // The compaction was scheduled before the dictionary was cleared, so it must not bring
+        // the old contents back.
+        assertFalse(dict.isInDictionary("hello"));
+        addWord(dict, "world");
+        dict.waitAllTasksForTests();
+        assertTrue(dict.isInDictionary("world"));
+        assertFalse(new File(mDictFile.getPath() + ".compacting").exists());
+        dict.close();
+    }
+}
@@ -26,7 +26,10 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Encodes binary files for a FusionDictionary.
@@ -50,6 +53,9 @@ public class BinaryDictEncoderUtils {
     // suspicion that a bug might be causing an infinite loop.
     private static final int MAX_PASSES = 24;
 
+    // Below this many PtNode arrays, a fork/join task does its work directly instead of splitting.
+    private static final int MIN_PTNODE_ARRAYS_PER_TASK = 512;
+
     /**
      * Compute the binary size of the character array.
      *
@@ -335,10 +341,10 @@ public class BinaryDictEncoderUtils {
                         nodeSize + size, ptNode.mChildren));
             }
             if (null != ptNode.mBigrams) {
-                for (WeightedString bigram : ptNode.mBigrams) {
+                for (int i = 0; i < ptNode.mBigrams.size(); ++i) {
                     final int offset = getOffsetToTargetPtNodeDuringUpdate(ptNodeArray,
                             nodeSize + size + FormatSpec.PTNODE_ATTRIBUTE_FLAGS_SIZE,
-                            FusionDictionary.findWordInTree(dict.mRootNodeArray, bigram.mWord));
+                            getBigramTarget(dict, ptNode, i));
                     nodeSize += getByteSize(offset) + FormatSpec.PTNODE_ATTRIBUTE_FLAGS_SIZE;
                 }
             }
@@ -352,6 +358,175 @@ public class BinaryDictEncoderUtils {
         return changed;
     }
 
+    /**
+     * Computes the size of a node array using only the addresses of the previous pass.
+     *
+     * Unlike {@link #computeActualPtNodeArraySize}, this does not depend on the addresses computed
+     * for the node arrays before it in the same pass, so all node arrays can be sized in parallel.
+     * The sizes only ever shrink from one pass to the next, so this converges like the sequential
+     * version, although it may take a pass or two more.
+     *
+     * @param ptNodeArray the node array to compute the size of.
+     * @return true if the size of any PtNode in the node array changed, false otherwise.
+     */
+    private static boolean computePtNodeArraySizeFromPreviousPass(final PtNodeArray ptNodeArray,
+            final FusionDictionary dict,
+            final HashMap<Integer, Integer> codePointToOneByteCodeMap) {
+        boolean changed = false;
+        final int nodeArrayAddress = ptNodeArray.mCachedAddressBeforeUpdate;
+        int size = getPtNodeCountSize(ptNodeArray);
+        for (final PtNode ptNode : ptNodeArray.mData) {
+            int nodeSize = getNodeHeaderSize(ptNode, codePointToOneByteCodeMap);
+            if (ptNode.isTerminal()) {
+                nodeSize += FormatSpec.PTNODE_FREQUENCY_SIZE;
+            }
+            if (null != ptNode.mChildren) {
+                nodeSize += getByteSize(ptNode.mChildren.mCachedAddressBeforeUpdate
+                        - (nodeArrayAddress + size + nodeSize));
+            }
+            if (null != ptNode.mBigrams) {
+                for (int i = 0; i < ptNode.mBigrams.size(); ++i) {
+                    final int offset = getBigramTarget(dict, ptNode, i).mCachedAddressBeforeUpdate
+                            - (nodeArrayAddress + size + nodeSize
+                                    + FormatSpec.PTNODE_ATTRIBUTE_FLAGS_SIZE);
+                    nodeSize += getByteSize(offset) + FormatSpec.PTNODE_ATTRIBUTE_FLAGS_SIZE;
+                }
+            }
+            if (ptNode.mCachedSize != nodeSize) {
+                if (nodeSize > ptNode.mCachedSize) {
+                    throw new RuntimeException("Increased size ?!");
+                }
+                ptNode.mCachedSize = nodeSize;
+                changed = true;
+            }
+            size += nodeSize;
+        }
+        ptNodeArray.mCachedSize = size;
+        return changed;
+    }
+
+    /**
+     * Sizes a range of node arrays from the previous pass, splitting the range across the pool.
+     */
+    private static final class ComputeSizesTask extends RecursiveTask<Boolean> {
+        private final List<PtNodeArray> mFlatNodes;
+        private final int mFrom;
+        private final int mTo;
+        private final FusionDictionary mDict;
+        private final HashMap<Integer, Integer> mCodePointToOneByteCodeMap;
+
+        ComputeSizesTask(final List<PtNodeArray> flatNodes, final int from, final int to,
+                final FusionDictionary dict,
+                final HashMap<Integer, Integer> codePointToOneByteCodeMap) {
+            mFlatNodes = flatNodes;
+            mFrom = from;
+            mTo = to;
+            mDict = dict;
+            mCodePointToOneByteCodeMap = codePointToOneByteCodeMap;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (mTo - mFrom <= MIN_PTNODE_ARRAYS_PER_TASK) {
+                boolean changed = false;
+                for (int i = mFrom; i < mTo; ++i) {
+                    changed |= computePtNodeArraySizeFromPreviousPass(mFlatNodes.get(i), mDict,
+                            mCodePointToOneByteCodeMap);
+                }
+                return changed;
+            }
+            final int middle = (mFrom + mTo) >>> 1;
+            final ComputeSizesTask left = new ComputeSizesTask(mFlatNodes, mFrom, middle, mDict,
+                    mCodePointToOneByteCodeMap);
+            left.fork();
+            final boolean rightChanged = new ComputeSizesTask(mFlatNodes, middle, mTo, mDict,
+                    mCodePointToOneByteCodeMap).compute();
+            return left.join() | rightChanged;
+        }
+    }
+
+    /**
+     * Looks up the target PtNode of every bigram of a range of node arrays, splitting the range
+     * across the pool. Lookups only read the tree, so they can run concurrently.
+     */
+    private static final class ResolveBigramsTask extends RecursiveTask<Integer> {
+        private final List<PtNodeArray> mFlatNodes;
+        private final int mFrom;
+        private final int mTo;
+        private final FusionDictionary mDict;
+
+        ResolveBigramsTask(final List<PtNodeArray> flatNodes, final int from, final int to,
+                final FusionDictionary dict) {
+            mFlatNodes = flatNodes;
+            mFrom = from;
+            mTo = to;
+            mDict = dict;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (mTo - mFrom <= MIN_PTNODE_ARRAYS_PER_TASK) {
+                int count = 0;
+                for (int i = mFrom; i < mTo; ++i) {
+                    for (final PtNode ptNode : mFlatNodes.get(i).mData) {
+                        count += resolveBigramTargets(mDict, ptNode);
+                    }
+                }
+                return count;
+            }
+            final int middle = (mFrom + mTo) >>> 1;
+            final ResolveBigramsTask left = new ResolveBigramsTask(mFlatNodes, mFrom, middle,
+                    mDict);
+            left.fork();
+            final int rightCount = new ResolveBigramsTask(mFlatNodes, middle, mTo, mDict)
+                    .compute();
+            return left.join() + rightCount;
+        }
+    }
+
+    private static int resolveBigramTargets(final FusionDictionary dict, final PtNode ptNode) {
+        if (null == ptNode.mBigrams) {
+            ptNode.mCachedBigramTargets = null;
+            return 0;
+        }
+        final PtNode[] targets = new PtNode[ptNode.mBigrams.size()];
+        for (int i = 0; i < targets.length; ++i) {
+            targets[i] = FusionDictionary.findWordInTree(dict.mRootNodeArray,
+                    ptNode.mBigrams.get(i).mWord);
+        }
+        ptNode.mCachedBigramTargets = targets;
+        return targets.length;
+    }
+
+    /**
+     * Returns the PtNode the given bigram of a PtNode points to, using the cached target if
+     * {@link #resolveBigramTargets} was run.
+     */
+    /* package */ static PtNode getBigramTarget(final FusionDictionary dict, final PtNode ptNode,
+            final int bigramIndex) {
+        final PtNode[] targets = ptNode.mCachedBigramTargets;
+        if (null != targets && targets.length == ptNode.mBigrams.size()) {
+            return targets[bigramIndex];
+        }
+        return FusionDictionary.findWordInTree(dict.mRootNodeArray,
+                ptNode.mBigrams.get(bigramIndex).mWord);
+    }
+
+    /**
+     * Looks up the target of every bigram in the dictionary once and caches it in the PtNodes.
+     *
+     * @param dict the dictionary
+     * @param flatNodes the list of node arrays of the dictionary
+     * @param pool the pool to run the lookups in, or null to run them on the calling thread
+     */
+    /* package */ static void resolveBigramTargets(final FusionDictionary dict,
+            final ArrayList<PtNodeArray> flatNodes, final ForkJoinPool pool) {
+        final ResolveBigramsTask task = new ResolveBigramsTask(flatNodes, 0, flatNodes.size(),
+                dict);
+        final int count = null == pool ? task.compute() : pool.invoke(task);
+        MakedictLog.i("Resolved " + count + " bigram targets");
+    }
+
     /**
      * Initializes the cached addresses of node arrays and their containing nodes from their size.
      *
@@ -445,6 +620,67 @@ public class BinaryDictEncoderUtils {
         return flatNodes;
     }
 
+    /**
+     * Compute the addresses and sizes of an ordered list of PtNode arrays, sizing the node arrays
+     * in parallel.
+     *
+     * Each pass sizes every node array from the addresses of the previous pass across the pool,
+     * then lays the node arrays out one after the other on the calling thread. This produces a
+     * valid layout just like {@link #computeAddresses(FusionDictionary, ArrayList, HashMap)}, which
+     * it falls back to when there is no pool.
+     *
+     * @param dict the dictionary
+     * @param flatNodes the ordered list of PtNode arrays
+     * @param pool the pool to size the node arrays in, or null to run sequentially
+     * @return the same array it was passed. The nodes have been updated for address and size.
+     */
+    /* package */ static ArrayList<PtNodeArray> computeAddresses(final FusionDictionary dict,
+            final ArrayList<PtNodeArray> flatNodes,
+            final HashMap<Integer, Integer> codePointToOneByteCodeMap, final ForkJoinPool pool) {
+        if (null == pool || flatNodes.size() <= MIN_PTNODE_ARRAYS_PER_TASK) {
+            return computeAddresses(dict, flatNodes, codePointToOneByteCodeMap);
+        }
+
+        // First get the worst possible sizes and offsets
+        for (final PtNodeArray n : flatNodes) {
+            calculatePtNodeArrayMaximumSize(n, codePointToOneByteCodeMap);
+        }
+        final int offset = initializePtNodeArraysCachedAddresses(flatNodes);
+
+        MakedictLog.i("Compressing the array addresses with " + pool.getParallelism()
+                + " threads. Original size : " + offset);
+
+        int passes = 0;
+        boolean changesDone;
+        do {
+            changesDone = pool.invoke(new ComputeSizesTask(flatNodes, 0, flatNodes.size(), dict,
+                    codePointToOneByteCodeMap));
+
+            int ptNodeArrayStartOffset = 0;
+            for (final PtNodeArray ptNodeArray : flatNodes) {
+                ptNodeArray.mCachedAddressAfterUpdate = ptNodeArrayStartOffset;
+                int ptNodeOffset = ptNodeArrayStartOffset + getPtNodeCountSize(ptNodeArray);
+                for (final PtNode ptNode : ptNodeArray.mData) {
+                    ptNode.mCachedAddressAfterUpdate = ptNodeOffset;
+                    ptNodeOffset += ptNode.mCachedSize;
+                }
+                changesDone |= ptNodeArray.mCachedAddressAfterUpdate
+                        != ptNodeArray.mCachedAddressBeforeUpdate;
+                ptNodeArrayStartOffset += ptNodeArray.mCachedSize;
+            }
+            updatePtNodeArraysCachedAddresses(flatNodes);
+            ++passes;
+            if (passes > MAX_PASSES) throw new RuntimeException("Too many passes - probably a bug");
+        } while (changesDone);
+
+        final PtNodeArray lastPtNodeArray = flatNodes.get(flatNodes.size() - 1);
+        MakedictLog.i("Compression complete in " + passes + " passes.");
+        MakedictLog.i("After address compression : "
+                + (lastPtNodeArray.mCachedAddressAfterUpdate + lastPtNodeArray.mCachedSize));
+
+        return flatNodes;
+    }
+
     /**
      * Validity-checking method.
      *
@@ -98,6 +98,9 @@ public final class FusionDictionary implements Iterable<WordProperty> {
         int mCachedSize; // The size, in bytes, of this PtNode.
         int mCachedAddressBeforeUpdate; // The address of this PtNode (before update)
         int mCachedAddressAfterUpdate; // The address of this PtNode (after update)
+        // The PtNode each of mBigrams points to, in the same order. Filled by the encoder so that
+        // each bigram is looked up in the tree once rather than on every address update pass.
+        PtNode[] mCachedBigramTargets;
 
         public PtNode(final int[] chars, final ArrayList<WeightedString> bigrams,
                 final ProbabilityInfo probabilityInfo, final boolean isNotAWord,
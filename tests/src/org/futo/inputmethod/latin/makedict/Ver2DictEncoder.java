@@ -35,6 +35,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * An implementation of DictEncoder for version 2 binary dictionary.
@@ -47,15 +48,26 @@ public class Ver2DictEncoder implements DictEncoder {
     private byte[] mBuffer;
     private int mPosition;
     private final int mCodePointTableMode;
+    private final int mParallelism;
     public static final int CODE_POINT_TABLE_OFF = 0;
     public static final int CODE_POINT_TABLE_ON = 1;
 
     @UsedForTesting
     public Ver2DictEncoder(final File dictFile, final int codePointTableMode) {
+        this(dictFile, codePointTableMode, 1 /* parallelism */);
+    }
+
+    /**
+     * @param parallelism the number of threads to compute the layout of the dictionary with. 1
+     *     computes it on the calling thread.
+     */
+    public Ver2DictEncoder(final File dictFile, final int codePointTableMode,
+            final int parallelism) {
         mDictFile = dictFile;
         mOutStream = null;
         mBuffer = null;
         mCodePointTableMode = codePointTableMode;
+        mParallelism = Math.max(1, parallelism);
     }
 
     // This constructor is used only by BinaryDictOffdeviceUtilsTests.
@@ -66,6 +78,7 @@ public class Ver2DictEncoder implements DictEncoder {
         mDictFile = null;
         mOutStream = outStream;
         mCodePointTableMode = CODE_POINT_TABLE_OFF;
+        mParallelism = 1;
     }
 
     private void openStream() throws FileNotFoundException {
@@ -160,9 +173,17 @@ public class Ver2DictEncoder implements DictEncoder {
         MakedictLog.i("Flattening the tree...");
         ArrayList<PtNodeArray> flatNodes = BinaryDictEncoderUtils.flattenTree(dict.mRootNodeArray);
 
-        MakedictLog.i("Computing addresses...");
-        BinaryDictEncoderUtils.computeAddresses(dict, flatNodes,
-                codePointTable.mCodePointToOneByteCodeMap);
+        final ForkJoinPool pool = mParallelism > 1 ? new ForkJoinPool(mParallelism) : null;
+        try {
+            MakedictLog.i("Resolving bigrams...");
+            BinaryDictEncoderUtils.resolveBigramTargets(dict, flatNodes, pool);
+
+            MakedictLog.i("Computing addresses...");
+            BinaryDictEncoderUtils.computeAddresses(dict, flatNodes,
+                    codePointTable.mCodePointToOneByteCodeMap, pool);
+        } finally {
+            if (null != pool) pool.shutdown();
+        }
         MakedictLog.i("Checking PtNode array...");
         if (MakedictLog.DBG) BinaryDictEncoderUtils.checkFlatPtNodeArrayList(flatNodes);
 
@@ -177,6 +198,12 @@ public class Ver2DictEncoder implements DictEncoder {
             BinaryDictEncoderUtils.writePlacedPtNodeArray(dict, this, nodeArray,
                     codePointTable.mCodePointToOneByteCodeMap);
         }
+        // The cached targets are only valid as long as the dictionary is not modified
+        for (PtNodeArray nodeArray : flatNodes) {
+            for (PtNode ptNode : nodeArray.mData) {
+                ptNode.mCachedBigramTargets = null;
+            }
+        }
         if (MakedictLog.DBG) BinaryDictEncoderUtils.showStatistics(flatNodes);
         mOutStream.write(mBuffer, 0, mPosition);
 
@@ -243,18 +270,19 @@ public class Ver2DictEncoder implements DictEncoder {
     /**
      * Write a bigram attributes list to mBuffer.
      *
-     * @param bigrams the bigram attributes list.
+     * @param ptNode the PtNode whose bigrams to write.
      * @param dict the dictionary the node array is a part of (for relative offsets).
      */
-    private void writeBigrams(final ArrayList<WeightedString> bigrams,
-            final FusionDictionary dict) {
+    private void writeBigrams(final PtNode ptNode, final FusionDictionary dict) {
+        final ArrayList<WeightedString> bigrams = ptNode.mBigrams;
         if (bigrams == null) return;
 
         final Iterator<WeightedString> bigramIterator = bigrams.iterator();
+        int bigramIndex = 0;
         while (bigramIterator.hasNext()) {
             final WeightedString bigram = bigramIterator.next();
             final PtNode target =
-                    FusionDictionary.findWordInTree(dict.mRootNodeArray, bigram.mWord);
+                    BinaryDictEncoderUtils.getBigramTarget(dict, ptNode, bigramIndex++);
             final int addressOfBigram = target.mCachedAddressAfterUpdate;
             final int unigramFrequencyForThisWord = target.getProbability();
             final int offset = addressOfBigram
@@ -275,6 +303,6 @@ public class Ver2DictEncoder implements DictEncoder {
         writeCharacters(ptNode.mChars, ptNode.hasSeveralChars(), codePointToOneByteCodeMap);
         writeFrequency(ptNode.getProbability());
         writeChildrenPosition(ptNode, codePointToOneByteCodeMap);
-        writeBigrams(ptNode.mBigrams, dict);
+        writeBigrams(ptNode, dict);
     }
 }
@@ -0,0 +1,158 @@
+package org.futo.inputmethod.latin.uix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import kotlin.coroutines.Continuation;
+import kotlin.coroutines.EmptyCoroutineContext;
+import kotlin.jvm.functions.Function2;
+import kotlinx.coroutines.BuildersKt;
+import kotlinx.coroutines.CoroutineScope;
+
+/**
+ * Tests for the frecency ranking and the batched saving of {@link EmojiTracker}.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class EmojiTrackerTests {
+    private static final String TRACKER_FILE = "emoji_usage.json";
+    private static final String GRINNING = "😀";
+    private static final String THUMBS_UP = "👍";
+    private static final String HEART = "❤️";
+
+    private static final EmojiTracker TRACKER = EmojiTracker.INSTANCE;
+
+    private Context getContext() {
+        return InstrumentationRegistry.getTargetContext();
+    }
+
+    private static <T> T runBlocking(
+            final Function2<CoroutineScope, Continuation<? super T>, Object> block)
+            throws InterruptedException {
+        return BuildersKt.runBlocking(EmptyCoroutineContext.INSTANCE, block);
+    }
+
+    private void useEmoji(final String emoji, final int times) throws InterruptedException {
+        for (int i = 0; i < times; i++) {
+            runBlocking((scope, continuation) ->
+                    TRACKER.useEmoji(getContext(), emoji, continuation));
+        }
+    }
+
+    private File getTrackerFile() {
+        return new File(getContext().getFilesDir(), TRACKER_FILE);
+    }
+
+    private static String readFile(final File file) throws IOException {
+        final StringBuilder text = new StringBuilder();
+        try (final InputStreamReader reader = new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8)) {
+            final char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, read);
+            }
+        }
+        return text.toString();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        runBlocking((scope, continuation) ->
+                TRACKER.resetForTests(getContext(), continuation));
+        SettingsKt.setSettingBlocking(getContext(), EmojiTrackerKt.getLastUsedEmoji(), "");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        runBlocking((scope, continuation) ->
+                TRACKER.resetForTests(getContext(), continuation));
+    }
+
+    @Test
+    public void testFrequentEmojisAreOrderedByUse() throws Exception {
+        useEmoji(GRINNING, 1);
+        useEmoji(THUMBS_UP, 3);
+        useEmoji(HEART, 2);
+
+        final List<String> frequent = runBlocking((scope, continuation) ->
+                TRACKER.getFrequentEmojis(getContext(), continuation));
+        assertEquals(Arrays.asList(THUMBS_UP, HEART, GRINNING), frequent);
+
+        assertTrue(TRACKER.frecencyScore(THUMBS_UP) > TRACKER.frecencyScore(HEART));
+        assertTrue(TRACKER.frecencyScore(HEART) > TRACKER.frecencyScore(GRINNING));
+        assertTrue(TRACKER.frecencyScore(GRINNING) > 0.0f);
+        assertEquals(0.0f, TRACKER.frecencyScore("🚀"), 0.0f);
+    }
+
+    @Test
+    public void testUnuseLowersScore() throws Exception {
+        useEmoji(GRINNING, 2);
+        final float score = TRACKER.frecencyScore(GRINNING);
+
+        runBlocking((scope, continuation) ->
+                TRACKER.unuseEmoji(getContext(), GRINNING, continuation));
+        assertEquals(score - 1.0f, TRACKER.frecencyScore(GRINNING), 0.01f);
+
+        runBlocking((scope, continuation) ->
+                TRACKER.unuseEmoji(getContext(), GRINNING, continuation));
+        assertEquals(0.0f, TRACKER.frecencyScore(GRINNING), 0.0f);
+        final List<String> frequent = runBlocking((scope, continuation) ->
+                TRACKER.getFrequentEmojis(getContext(), continuation));
+        assertFalse(frequent.contains(GRINNING));
+    }
+
+    @Test
+    public void testUsesAreSavedInOneBatch() throws Exception {
+        useEmoji(GRINNING, 1);
+        useEmoji(THUMBS_UP, 1);
+        // Nothing is written on each use, only once the uses stop for a while.
+        assertFalse(getTrackerFile().exists());
+
+        runBlocking((scope, continuation) -> TRACKER.awaitPersistForTests(continuation));
+        assertTrue(getTrackerFile().exists());
+        final String saved = readFile(getTrackerFile());
+        assertTrue(saved.contains(GRINNING));
+        assertTrue(saved.contains(THUMBS_UP));
+    }
+
+    @Test
+    public void testLegacyRecentEmojisAreMigrated() throws Exception {
+        // The legacy preference lists the newest first.
+        SettingsKt.setSettingBlocking(getContext(), EmojiTrackerKt.getLastUsedEmoji(),
+                THUMBS_UP + "<|>" + GRINNING);
+
+        runBlocking((scope, continuation) ->
+                TRACKER.loadEmojiUsage(getContext(), continuation));
+
+        // The migrated usage is saved before the legacy preference is removed.
+        assertTrue(getTrackerFile().exists());
+        assertEquals("", SettingsKt.getSettingBlocking(getContext(),
+                EmojiTrackerKt.getLastUsedEmoji(), ""));
+
+        final List<String> recent = runBlocking((scope, continuation) ->
+                TRACKER.getRecentEmojis(getContext(), continuation));
+        assertEquals(Arrays.asList(THUMBS_UP, GRINNING), recent);
+        assertTrue(TRACKER.frecencyScore(GRINNING) > 0.0f);
+    }
+}
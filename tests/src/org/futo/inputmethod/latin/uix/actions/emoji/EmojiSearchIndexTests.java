@@ -0,0 +1,113 @@
+package org.futo.inputmethod.latin.uix.actions.emoji;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for the prefix search and the term filtering of {@link EmojiSearchIndex}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class EmojiSearchIndexTests {
+    private static final EmojiItem GRINNING = emoji("😀", "grinning face",
+            Arrays.asList("smile", "happy"), Collections.singletonList("grinning"));
+    private static final EmojiItem CATERPILLAR = emoji("🐛", "bug",
+            Collections.singletonList("insect"), Collections.singletonList("caterpillar"));
+    private static final EmojiItem CAT = emoji("🐱", "cat face",
+            Collections.singletonList("pet"), Collections.singletonList("cat"));
+    private static final EmojiItem CAR = emoji("🚗", "automobile",
+            Collections.<String>emptyList(), Arrays.asList("car", "red_car"));
+    private static final EmojiItem JOY = emoji("😂", "face with tears of joy",
+            Collections.<String>emptyList(), Collections.singletonList("joy"));
+    private static final EmojiItem BUTTON = emoji("🅰️", "a button",
+            Collections.<String>emptyList(), Collections.singletonList("blood_type"));
+
+    private static final List<EmojiItem> EMOJIS =
+            Arrays.asList(GRINNING, CATERPILLAR, CAT, CAR, JOY, BUTTON);
+
+    private static EmojiItem emoji(final String emoji, final String description,
+            final List<String> tags, final List<String> aliases) {
+        return new EmojiItem(emoji, description, "test", false, tags, aliases);
+    }
+
+    private static List<EmojiItem> search(final EmojiSearchIndex index, final String query) {
+        return index.search(query, 10, emoji -> 0.0f);
+    }
+
+    @Test
+    public void testPrefixMatchesAliasesTagsAndDescriptions() {
+        final EmojiSearchIndex index = new EmojiSearchIndex(EMOJIS);
+        assertEquals(Collections.singletonList(GRINNING), search(index, "grin"));
+        assertEquals(Collections.singletonList(GRINNING), search(index, "hap"));
+        assertEquals(Collections.singletonList(CAR), search(index, "automo"));
+        assertEquals(Collections.singletonList(CAR), search(index, "red"));
+        assertEquals(Collections.<EmojiItem>emptyList(), search(index, "dog"));
+    }
+
+    @Test
+    public void testExactMatchRanksAbovePrefixMatch() {
+        final EmojiSearchIndex index = new EmojiSearchIndex(EMOJIS);
+        // The caterpillar comes first in the list, but "cat" is exactly the cat's alias.
+        assertEquals(Arrays.asList(CAT, CATERPILLAR), search(index, "cat"));
+    }
+
+    @Test
+    public void testEveryWordMustMatch() {
+        final EmojiSearchIndex index = new EmojiSearchIndex(EMOJIS);
+        assertEquals(Collections.singletonList(CAT), search(index, "cat face"));
+        assertEquals(Collections.<EmojiItem>emptyList(), search(index, "grinning cat"));
+    }
+
+    @Test
+    public void testUsageBreaksTies() {
+        final EmojiSearchIndex index = new EmojiSearchIndex(EMOJIS);
+        // Both only match through their description.
+        assertEquals(Arrays.asList(GRINNING, CAT), search(index, "fac").subList(0, 2));
+        final List<EmojiItem> results = index.search("fac", 10,
+                emoji -> emoji.equals(CAT.getEmoji()) ? 1.0f : 0.0f);
+        assertEquals(CAT, results.get(0));
+    }
+
+    @Test
+    public void testLimit() {
+        final EmojiSearchIndex index = new EmojiSearchIndex(EMOJIS);
+        assertEquals(2, index.search("ca", 2, emoji -> 0.0f).size());
+        assertEquals(Collections.<EmojiItem>emptyList(), index.search("ca", 0, emoji -> 0.0f));
+    }
+
+    @Test
+    public void testDescriptionStopwordsAreNotIndexed() {
+        final EmojiSearchIndex index = new EmojiSearchIndex(EMOJIS);
+        assertEquals(Collections.<EmojiItem>emptyList(), search(index, "with"));
+        assertEquals(Collections.<EmojiItem>emptyList(), search(index, "of"));
+        assertEquals(Collections.singletonList(JOY), search(index, "tears"));
+    }
+
+    @Test
+    public void testQueryStopwordsAreIgnored() {
+        final EmojiSearchIndex index = new EmojiSearchIndex(EMOJIS);
+        assertEquals(Collections.singletonList(JOY), search(index, "face with tears"));
+        assertEquals(Collections.singletonList(JOY), search(index, "tears of joy"));
+    }
+
+    @Test
+    public void testOneLetterDescriptionWordsAreNotIndexed() {
+        final EmojiSearchIndex index = new EmojiSearchIndex(EMOJIS);
+        final List<EmojiItem> results = search(index, "a");
+        // "a" still finds terms that start with it, only not the one-letter word itself.
+        assertTrue(results.contains(CAR));
+        assertFalse(results.contains(BUTTON));
+        assertEquals(Collections.singletonList(BUTTON), search(index, "button"));
+    }
+}
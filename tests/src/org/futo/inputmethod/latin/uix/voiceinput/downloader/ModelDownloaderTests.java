@@ -0,0 +1,241 @@
+package org.futo.inputmethod.latin.uix.voiceinput.downloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.annotation.NonNull;
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+/**
+ * Tests for {@link ModelDownloader} against a local server that drops connections and serves
+ * corrupt data on request.
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class ModelDownloaderTests {
+    private static final int CONTENT_SIZE = 1024 * 1024;
+    private static final String ETAG = "\"model-v1\"";
+
+    private final byte[] mContent = new byte[CONTENT_SIZE];
+    private final OkHttpClient mClient = new OkHttpClient();
+    private MockWebServer mServer;
+    private StandInDispatcher mDispatcher;
+    private File mDirectory;
+    private File mDestination;
+
+    // Serves mContent with range support. The first GET responses can be made to disconnect
+    // halfway through, or to have a byte flipped.
+    private class StandInDispatcher extends Dispatcher {
+        final AtomicInteger mDropsRemaining = new AtomicInteger(0);
+        final AtomicInteger mCorruptionsRemaining = new AtomicInteger(0);
+        final List<String> mRanges = Collections.synchronizedList(new ArrayList<>());
+
+        @NonNull
+        @Override
+        public MockResponse dispatch(@NonNull final RecordedRequest request) {
+            final MockResponse response = new MockResponse()
+                    .setHeader("Accept-Ranges", "bytes")
+                    .setHeader("ETag", ETAG);
+
+            if ("HEAD".equals(request.getMethod())) {
+                return response.setHeader("Content-Length", CONTENT_SIZE);
+            }
+
+            int start = 0;
+            int end = CONTENT_SIZE - 1;
+            final String range = request.getHeader("Range");
+            if (range != null) {
+                mRanges.add(range);
+                final String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Integer.parseInt(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Integer.parseInt(bounds[1]);
+                }
+                response.setResponseCode(206).setHeader("Content-Range",
+                        "bytes " + start + "-" + end + "/" + CONTENT_SIZE);
+            }
+
+            final byte[] body = new byte[end - start + 1];
+            System.arraycopy(mContent, start, body, 0, body.length);
+            if (mCorruptionsRemaining.getAndDecrement() > 0) {
+                body[body.length / 2] ^= 1;
+            }
+            response.setBody(new Buffer().write(body));
+
+            if (mDropsRemaining.getAndDecrement() > 0) {
+                response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+            }
+            return response;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(mContent);
+
+        mDispatcher = new StandInDispatcher();
+        mServer = new MockWebServer();
+        mServer.setDispatcher(mDispatcher);
+        mServer.start();
+
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "ModelDownloaderTests");
+        mDirectory.mkdirs();
+        mDestination = new File(mDirectory, "model.bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+        for (final File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    private static String sha256(final byte[] bytes) throws NoSuchAlgorithmException {
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private DownloadRequest makeRequest() throws NoSuchAlgorithmException {
+        return new DownloadRequest(mServer.url("/model.bin").toString(), mDestination,
+                sha256(mContent));
+    }
+
+    private ModelDownloader makeDownloader(final int parallelChunks, final int maxAttempts) {
+        return new ModelDownloader(mClient, parallelChunks, 256 * 1024 /* parallelThreshold */,
+                maxAttempts, 0 /* retryDelayMs */, 0 /* progressIntervalMs */);
+    }
+
+    private void assertDownloaded() throws IOException {
+        assertEquals(CONTENT_SIZE, mDestination.length());
+        final byte[] downloaded = new byte[CONTENT_SIZE];
+        try (final FileInputStream stream = new FileInputStream(mDestination)) {
+            int read = 0;
+            while (read < CONTENT_SIZE) {
+                read += stream.read(downloaded, read, CONTENT_SIZE - read);
+            }
+        }
+        assertArrayEquals(mContent, downloaded);
+        assertFalse(ModelDownloader.Companion.getPartialFile(mDestination).exists());
+    }
+
+    @Test
+    public void testDownloadsAndReportsProgress() throws Exception {
+        final List<Long> progress = new ArrayList<>();
+        makeDownloader(1, 1).download(makeRequest(), (downloaded, total) -> {
+            assertEquals(CONTENT_SIZE, total);
+            progress.add(downloaded);
+        });
+
+        assertDownloaded();
+        assertFalse(progress.isEmpty());
+        assertEquals(CONTENT_SIZE, (long) progress.get(progress.size() - 1));
+        assertTrue(mDispatcher.mRanges.isEmpty());
+    }
+
+    @Test
+    public void testDownloadsChunksInParallel() throws Exception {
+        makeDownloader(4, 1).download(makeRequest());
+
+        assertDownloaded();
+        assertEquals(4, mDispatcher.mRanges.size());
+        assertTrue(mDispatcher.mRanges.contains("bytes=0-262143"));
+        assertTrue(mDispatcher.mRanges.contains("bytes=786432-1048575"));
+    }
+
+    @Test
+    public void testResumesAfterDroppedConnections() throws Exception {
+        mDispatcher.mDropsRemaining.set(2);
+        makeDownloader(1, 3).download(makeRequest());
+
+        assertDownloaded();
+        assertEquals(2, mDispatcher.mRanges.size());
+        for (final String range : mDispatcher.mRanges) {
+            assertFalse(range.startsWith("bytes=0-"));
+        }
+    }
+
+    @Test
+    public void testResumesChunksAfterDroppedConnections() throws Exception {
+        mDispatcher.mDropsRemaining.set(3);
+        makeDownloader(4, 2).download(makeRequest());
+
+        assertDownloaded();
+        assertEquals(4 + 3, mDispatcher.mRanges.size());
+    }
+
+    @Test
+    public void testResumesPartialFileFromEarlierSession() throws Exception {
+        mDispatcher.mDropsRemaining.set(1);
+        try {
+            makeDownloader(1, 1).download(makeRequest());
+            fail("Dropped connection did not fail the download");
+        } catch (final IOException e) {
+            // Expected
+        }
+        assertFalse(mDestination.exists());
+        assertTrue(ModelDownloader.Companion.getPartialFile(mDestination).length() > 0);
+
+        makeDownloader(1, 1).download(makeRequest());
+
+        assertDownloaded();
+        assertEquals(1, mDispatcher.mRanges.size());
+        assertFalse(mDispatcher.mRanges.get(0).startsWith("bytes=0-"));
+    }
+
+    @Test
+    public void testCorruptDownloadIsRetriedFromScratch() throws Exception {
+        mDispatcher.mCorruptionsRemaining.set(1);
+        makeDownloader(1, 2).download(makeRequest());
+
+        assertDownloaded();
+    }
+
+    @Test
+    public void testCorruptDownloadIsRejected() throws Exception {
+        mDispatcher.mCorruptionsRemaining.set(Integer.MAX_VALUE);
+        try {
+            makeDownloader(4, 2).download(makeRequest());
+            fail("Corrupt download was accepted");
+        } catch (final DownloadVerificationException e) {
+            // Expected
+        }
+
+        assertFalse(mDestination.exists());
+        assertFalse(ModelDownloader.Companion.getPartialFile(mDestination).exists());
+    }
+}
@@ -0,0 +1,263 @@
+package org.futo.inputmethod.latin.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.futo.inputmethod.latin.BinaryDictionary;
+import org.futo.inputmethod.latin.Dictionary;
+import org.futo.inputmethod.latin.DictionaryCollection;
+import org.futo.inputmethod.latin.NgramContext;
+import org.futo.inputmethod.latin.ReadOnlyBinaryDictionary;
+import org.futo.inputmethod.latin.common.FileUtils;
+import org.futo.inputmethod.latin.makedict.DictionaryPatch;
+import org.futo.inputmethod.latin.makedict.FormatSpec;
+import org.futo.inputmethod.latin.makedict.UnsupportedFormatException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Tests for patching a dictionary on disk with {@link BinaryDictionaryUtils#patchDictFile}, and
+ * in memory with {@link ReadOnlyBinaryDictionary#applyPatch}.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class BinaryDictionaryUtilsTests {
+    private static final String BASE_VERSION = "1";
+    private static final String TARGET_VERSION = "2";
+    private static final int PROBABILITY = 100;
+    private static final int PATCHED_PROBABILITY = 150;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "BinaryDictionaryUtilsTests");
+        FileUtils.deleteRecursively(mDir);
+        assertTrue(mDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteRecursively(mDir);
+    }
+
+    private File createDictionary(final String... words) {
+        final File dictFile = new File(mDir, "main.dict");
+        assertTrue(dictFile.mkdir());
+        assertTrue(BinaryDictionaryUtils.createEmptyDictFile(dictFile.getAbsolutePath(),
+                FormatSpec.VERSION4, Locale.ENGLISH, new HashMap<String, String>()));
+
+        final BinaryDictionary dict = openDictionary(dictFile);
+        for (final String word : words) {
+            assertTrue(dict.addUnigramEntry(word, PROBABILITY, null /* shortcutTarget */,
+                    0 /* shortcutProbability */, false /* isBeginningOfSentence */,
+                    false /* isNotAWord */, false /* isPossiblyOffensive */,
+                    BinaryDictionary.NOT_A_VALID_TIMESTAMP));
+        }
+        assertTrue(dict.flushWithGC());
+        dict.close();
+        return dictFile;
+    }
+
+    private static BinaryDictionary openDictionary(final File dictFile) {
+        return new BinaryDictionary(dictFile.getAbsolutePath(), 0 /* offset */,
+                dictFile.length(), false /* useFullEditDistance */, Locale.ENGLISH,
+                Dictionary.TYPE_MAIN, true /* isUpdatable */);
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final FileInputStream in = new FileInputStream(file)) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static TreeMap<String, byte[]> readContents(final File dictFile) throws IOException {
+        final TreeMap<String, byte[]> contents = new TreeMap<>();
+        if (dictFile.isFile()) {
+            contents.put(dictFile.getName(), readFile(dictFile));
+        } else {
+            for (final File file : dictFile.listFiles()) {
+                contents.put(file.getName(), readFile(file));
+            }
+        }
+        return contents;
+    }
+
+    private static void assertSameContents(final TreeMap<String, byte[]> expected,
+            final TreeMap<String, byte[]> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (final String name : expected.keySet()) {
+            assertArrayEquals(name, expected.get(name), actual.get(name));
+        }
+    }
+
+    private void assertNoTemporaryFiles() {
+        assertEquals(1, mDir.listFiles().length);
+    }
+
+    private static DictionaryPatch createPatch() {
+        return new DictionaryPatch(BASE_VERSION, TARGET_VERSION, new HashMap<String, String>());
+    }
+
+    private static NgramContext after(final String word) {
+        return new NgramContext(new NgramContext.WordInfo(word));
+    }
+
+    // A dictionary with "hello there" as its only bigram.
+    private File createDictionaryWithBigram() {
+        final File dictFile = createDictionary("hello", "there", "world");
+        final BinaryDictionary dict = openDictionary(dictFile);
+        assertTrue(dict.addNgramEntry(after("hello"), "there", PROBABILITY,
+                BinaryDictionary.NOT_A_VALID_TIMESTAMP));
+        assertTrue(dict.flushWithGC());
+        dict.close();
+        return dictFile;
+    }
+
+    // Goes through the same serialized form as a downloaded patch.
+    private static DictionaryPatch createSerializedPatch()
+            throws IOException, UnsupportedFormatException {
+        final DictionaryPatch patch = createPatch();
+        patch.setWord("hello", PATCHED_PROBABILITY, false /* isNotAWord */,
+                false /* isPossiblyOffensive */);
+        patch.setWord("friend", PROBABILITY, false /* isNotAWord */,
+                false /* isPossiblyOffensive */);
+        patch.removeBigram("hello", "there");
+        patch.setBigram("hello", "world", PROBABILITY);
+        patch.removeWord("there");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        patch.writeTo(out);
+        final DictionaryPatch readPatch =
+                DictionaryPatch.readFrom(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(patch.getEditCount(), readPatch.getEditCount());
+        return readPatch;
+    }
+
+    @Test
+    public void testPatchDictFile() {
+        final File dictFile = createDictionary("hello", "there");
+
+        final DictionaryPatch patch = createPatch();
+        patch.setWord("world", PROBABILITY, false /* isNotAWord */,
+                false /* isPossiblyOffensive */);
+        patch.removeWord("there");
+        assertTrue(BinaryDictionaryUtils.patchDictFile(dictFile, Locale.ENGLISH, patch));
+
+        final BinaryDictionary dict = openDictionary(dictFile);
+        assertTrue(dict.isValidDictionary());
+        assertTrue(dict.isInDictionary("hello"));
+        assertTrue(dict.isInDictionary("world"));
+        assertFalse(dict.isInDictionary("there"));
+        dict.close();
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    public void testFailedPatchLeavesDictionaryUntouched() throws IOException {
+        final File dictFile = createDictionary("hello");
+        final TreeMap<String, byte[]> contents = readContents(dictFile);
+
+        // The first edit applies, the second fails as the word isn't in the dictionary
+        final DictionaryPatch patch = createPatch();
+        patch.setWord("world", PROBABILITY, false /* isNotAWord */,
+                false /* isPossiblyOffensive */);
+        patch.removeWord("missing");
+        assertFalse(BinaryDictionaryUtils.patchDictFile(dictFile, Locale.ENGLISH, patch));
+
+        assertSameContents(contents, readContents(dictFile));
+        final BinaryDictionary dict = openDictionary(dictFile);
+        assertTrue(dict.isInDictionary("hello"));
+        assertFalse(dict.isInDictionary("world"));
+        dict.close();
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    public void testInvalidDictionaryIsNotPatched() throws IOException {
+        final File dictFile = new File(mDir, "main.dict");
+        try (final FileOutputStream out = new FileOutputStream(dictFile)) {
+            out.write(new byte[] { 1, 2, 3, 4 });
+        }
+        final TreeMap<String, byte[]> contents = readContents(dictFile);
+
+        final DictionaryPatch patch = createPatch();
+        patch.setWord("world", PROBABILITY, false /* isNotAWord */,
+                false /* isPossiblyOffensive */);
+        assertFalse(BinaryDictionaryUtils.patchDictFile(dictFile, Locale.ENGLISH, patch));
+
+        assertTrue(dictFile.isFile());
+        assertSameContents(contents, readContents(dictFile));
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    public void testSerializedPatchIsAppliedToDictFile()
+            throws IOException, UnsupportedFormatException {
+        final File dictFile = createDictionaryWithBigram();
+        assertTrue(BinaryDictionaryUtils.patchDictFile(dictFile, Locale.ENGLISH,
+                createSerializedPatch()));
+
+        final BinaryDictionary dict = openDictionary(dictFile);
+        assertTrue(dict.isValidDictionary());
+        assertEquals(PATCHED_PROBABILITY, dict.getFrequency("hello"));
+        assertEquals(PROBABILITY, dict.getFrequency("world"));
+        assertTrue(dict.isInDictionary("friend"));
+        assertFalse(dict.isInDictionary("there"));
+        assertTrue(dict.isValidNgram(after("hello"), "world"));
+        assertFalse(dict.isValidNgram(after("hello"), "there"));
+        dict.close();
+        assertNoTemporaryFiles();
+    }
+
+    @Test
+    public void testSerializedPatchIsAppliedInMemory()
+            throws IOException, UnsupportedFormatException {
+        final File dictFile = createDictionaryWithBigram();
+        final TreeMap<String, byte[]> contents = readContents(dictFile);
+        final ReadOnlyBinaryDictionary dict = new ReadOnlyBinaryDictionary(
+                dictFile.getAbsolutePath(), 0 /* offset */, dictFile.length(),
+                false /* useFullEditDistance */, Locale.ENGLISH, Dictionary.TYPE_MAIN,
+                true /* isPatchable */);
+        final DictionaryCollection collection =
+                new DictionaryCollection(Dictionary.TYPE_MAIN, Locale.ENGLISH, dict);
+        assertTrue(collection.applyPatch(createSerializedPatch()));
+
+        assertEquals(PATCHED_PROBABILITY, dict.getFrequency("hello"));
+        assertTrue(collection.isInDictionary("friend"));
+        assertFalse(collection.isInDictionary("there"));
+        collection.close();
+
+        // Only the loaded dictionary changes, the file is left for the next full update.
+        assertSameContents(contents, readContents(dictFile));
+        final BinaryDictionary reopened = openDictionary(dictFile);
+        assertTrue(reopened.isInDictionary("there"));
+        assertTrue(reopened.isValidNgram(after("hello"), "there"));
+        reopened.close();
+    }
+}
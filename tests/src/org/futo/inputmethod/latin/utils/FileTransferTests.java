@@ -0,0 +1,128 @@
+package org.futo.inputmethod.latin.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link FileTransfer}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class FileTransferTests {
+    // Large enough to take several chunks
+    private static final int CONTENT_SIZE = 20 * 1024 * 1024 + 123;
+
+    private final byte[] mContent = new byte[CONTENT_SIZE];
+    private File mDirectory;
+    private File mSource;
+    private File mTarget;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(mContent);
+        mDirectory = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "FileTransferTests");
+        mDirectory.mkdirs();
+        mSource = new File(mDirectory, "source");
+        mTarget = new File(mDirectory, "target");
+        try (final FileOutputStream stream = new FileOutputStream(mSource)) {
+            stream.write(mContent);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (final File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    private void assertTargetHasContent() throws IOException {
+        assertEquals(CONTENT_SIZE, mTarget.length());
+        final byte[] copied = new byte[CONTENT_SIZE];
+        try (final FileInputStream stream = new FileInputStream(mTarget)) {
+            int read = 0;
+            while (read < CONTENT_SIZE) {
+                read += stream.read(copied, read, CONTENT_SIZE - read);
+            }
+        }
+        assertArrayEquals(mContent, copied);
+        assertFalse(new File(mDirectory, "target.tmp").exists());
+    }
+
+    @Test
+    public void testCopyFileReportsProgress() throws IOException {
+        final List<Long> progress = new ArrayList<>();
+        FileTransfer.copy(mSource, mTarget, (transferred, total) -> {
+            assertEquals(CONTENT_SIZE, total);
+            progress.add(transferred);
+        });
+
+        assertTargetHasContent();
+        assertTrue(mSource.exists());
+        assertTrue(progress.size() >= 3);
+        assertEquals(CONTENT_SIZE, (long) progress.get(progress.size() - 1));
+    }
+
+    @Test
+    public void testCopyStreamOfUnknownSize() throws IOException {
+        FileTransfer.copy(new ByteArrayInputStream(mContent), mTarget);
+
+        assertTargetHasContent();
+    }
+
+    @Test
+    public void testCopyReplacesTarget() throws IOException {
+        try (final FileOutputStream stream = new FileOutputStream(mTarget)) {
+            stream.write(new byte[] { 1, 2, 3 });
+        }
+        FileTransfer.copy(mSource, mTarget);
+
+        assertTargetHasContent();
+    }
+
+    @Test
+    public void testTruncatedSourceLeavesTargetAlone() {
+        final InputStream truncated = new ByteArrayInputStream(mContent, 0, CONTENT_SIZE / 2);
+        try {
+            FileTransfer.copy(truncated, mTarget, CONTENT_SIZE);
+            fail("Copying a truncated stream succeeded");
+        } catch (final IOException e) {
+            // Expected
+        }
+
+        assertFalse(mTarget.exists());
+        assertFalse(new File(mDirectory, "target.tmp").exists());
+    }
+
+    @Test
+    public void testMove() throws IOException {
+        FileTransfer.move(mSource, mTarget);
+
+        assertTargetHasContent();
+        assertFalse(mSource.exists());
+    }
+}
@@ -0,0 +1,53 @@
+package org.futo.inputmethod.latin.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link LatencyTracker}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class LatencyTrackerTests {
+    @Test
+    public void testBucketsAreContiguous() {
+        long previousHighest = -1;
+        for (int index = 0; index < LatencyTracker.Histogram.BUCKET_COUNT; ++index) {
+            final long highest = LatencyTracker.Histogram.getHighestValueInBucket(index);
+            assertEquals(index, LatencyTracker.Histogram.getBucketIndex(previousHighest + 1));
+            assertEquals(index, LatencyTracker.Histogram.getBucketIndex(highest));
+            previousHighest = highest;
+        }
+    }
+
+    @Test
+    public void testPercentilesAreWithinBucketPrecision() {
+        final LatencyTracker.Histogram histogram = new LatencyTracker.Histogram();
+        for (int millis = 1; millis <= 1000; ++millis) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        final LatencyTracker.Snapshot snapshot = histogram.getSnapshot();
+        assertEquals(1000, snapshot.mCount);
+        assertEquals(500.5, snapshot.getMeanMillis(), 0.01);
+        assertEquals(1000.0, snapshot.getMaxMillis(), 0.01);
+        // Buckets are 1/16th of their power of two wide, so values are off by at most ~6%.
+        assertEquals(500.0, snapshot.getPercentileMillis(50), 500.0 / 16);
+        assertEquals(990.0, snapshot.getPercentileMillis(99), 990.0 / 16);
+        assertTrue(snapshot.getPercentileMillis(99) <= snapshot.getMaxMillis());
+    }
+
+    @Test
+    public void testEmptySnapshot() {
+        final LatencyTracker.Snapshot snapshot = new LatencyTracker.Histogram().getSnapshot();
+        assertEquals(0, snapshot.mCount);
+        assertEquals(0.0, snapshot.getPercentileMillis(50), 0.0);
+    }
+}
@@ -0,0 +1,111 @@
+package org.futo.inputmethod.latin.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Unit tests for {@link PersistentSpellingCache}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PersistentSpellingCacheTests {
+    private static final long VERSION = 42;
+    private static final long OTHER_VERSION = 43;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("PersistentSpellingCacheTests", ".cache");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private PersistentSpellingCache openCache(final long version) {
+        return new PersistentSpellingCache(mFile, version);
+    }
+
+    @Test
+    public void testNothingIsCachedWithoutVersion() {
+        final PersistentSpellingCache cache =
+                openCache(PersistentSpellingCache.NO_DICTIONARY_VERSION);
+        cache.putValidity("hello", true);
+        assertNull(cache.getValidity("hello"));
+    }
+
+    @Test
+    public void testEntriesSurviveReopening() {
+        final PersistentSpellingCache cache = openCache(VERSION);
+        cache.putValidity("hello", true);
+        cache.putValidity("wrold", false);
+
+        final PersistentSpellingCache reopened = openCache(VERSION);
+        assertTrue(reopened.getValidity("hello"));
+        assertFalse(reopened.getValidity("wrold"));
+        assertNull(reopened.getValidity("world"));
+    }
+
+    @Test
+    public void testVersionsDontInvalidateEachOther() {
+        final PersistentSpellingCache cache = openCache(VERSION);
+        final PersistentSpellingCache otherCache = openCache(OTHER_VERSION);
+        cache.putValidity("hello", true);
+        assertNull(otherCache.getValidity("hello"));
+
+        otherCache.putValidity("world", false);
+        assertTrue(cache.getValidity("hello"));
+        assertNull(cache.getValidity("world"));
+        assertFalse(otherCache.getValidity("world"));
+
+        // A word has one slot, so the last version to store it wins
+        otherCache.putValidity("hello", false);
+        assertNull(cache.getValidity("hello"));
+        assertFalse(otherCache.getValidity("hello"));
+    }
+
+    @Test
+    public void testWordsThatDontFitAreNotCached() {
+        final StringBuilder longWord = new StringBuilder();
+        for (int i = 0; i < 20; ++i) {
+            longWord.append("long");
+        }
+        final PersistentSpellingCache cache = openCache(VERSION);
+        cache.putValidity(longWord.toString(), true);
+        assertNull(cache.getValidity(longWord.toString()));
+    }
+
+    @Test
+    public void testCorruptSlotIsIgnored() throws IOException {
+        openCache(VERSION).putValidity("hello", true);
+        try (final RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            final byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            // Flip a bit of the word in every non-empty slot, after the header.
+            for (int slot = 64; slot < bytes.length; slot += 64) {
+                if (bytes[slot + 4] != 0) {
+                    bytes[slot + 14] ^= 1;
+                }
+            }
+            file.seek(0);
+            file.write(bytes);
+        }
+        assertNull(openCache(VERSION).getValidity("hello"));
+    }
+}
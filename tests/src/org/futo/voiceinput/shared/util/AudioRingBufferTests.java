@@ -0,0 +1,191 @@
+package org.futo.voiceinput.shared.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unit tests for {@link AudioRingBuffer}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AudioRingBufferTests {
+    private static final int FRAME_SIZE = 4;
+
+    // Every sample of frame n is n, so frames can be told apart after conversion to floats
+    private static void writeFrames(final AudioRingBuffer buffer, final int from, final int count) {
+        final short[] pcm = new short[count * FRAME_SIZE];
+        for (int i = 0; i < pcm.length; ++i) {
+            pcm[i] = (short) (from + i / FRAME_SIZE);
+        }
+        buffer.write(pcm, 0, pcm.length);
+    }
+
+    private static int frameValue(final float[] samples, final int offset) {
+        return Math.round(samples[offset] * Short.MAX_VALUE);
+    }
+
+    private static ArrayList<Long> readSequences(final AudioRingBuffer.Reader reader,
+            final int maxFrames) {
+        final ArrayList<Long> sequences = new ArrayList<>();
+        reader.read(maxFrames, (sequence, samples, offset, length) -> {
+            assertEquals(FRAME_SIZE, length);
+            assertEquals(sequence, frameValue(samples, offset));
+            sequences.add(sequence);
+        });
+        return sequences;
+    }
+
+    @Test
+    public void testFramesComeOutInOrder() {
+        final AudioRingBuffer buffer = new AudioRingBuffer(FRAME_SIZE, 8);
+        final AudioRingBuffer.Reader reader = buffer.newReader();
+        writeFrames(buffer, 0, 5);
+        assertEquals(5, reader.getAvailable());
+
+        final ArrayList<Long> sequences = readSequences(reader, Integer.MAX_VALUE);
+        assertEquals(5, sequences.size());
+        for (int i = 0; i < 5; ++i) {
+            assertEquals(i, (long) sequences.get(i));
+        }
+        assertEquals(0, reader.getAvailable());
+    }
+
+    @Test
+    public void testPartialFrameIsNotPublished() {
+        final AudioRingBuffer buffer = new AudioRingBuffer(FRAME_SIZE, 8);
+        final AudioRingBuffer.Reader reader = buffer.newReader();
+        buffer.write(new short[] { 1, 1, 1 }, 0, 3);
+        assertEquals(0, buffer.getWrittenFrames());
+        assertEquals(0, reader.getAvailable());
+
+        buffer.write(new short[] { 1, 2, 2 }, 0, 3);
+        assertEquals(1, buffer.getWrittenFrames());
+        assertEquals(1, reader.getAvailable());
+    }
+
+    @Test
+    public void testReadersKeepTheirOwnPace() {
+        final AudioRingBuffer buffer = new AudioRingBuffer(FRAME_SIZE, 16);
+        final AudioRingBuffer.Reader fast = buffer.newReader();
+        final AudioRingBuffer.Reader slow = buffer.newReader();
+        writeFrames(buffer, 0, 6);
+
+        assertEquals(6, readSequences(fast, Integer.MAX_VALUE).size());
+        assertEquals(2, readSequences(slow, 2).size());
+        assertEquals(4, slow.getAvailable());
+
+        // A reader made later only sees what comes after it
+        final AudioRingBuffer.Reader late = buffer.newReader();
+        writeFrames(buffer, 6, 2);
+        assertEquals(2, late.getAvailable());
+        assertEquals(6, slow.getAvailable());
+        assertEquals(6, (long) readSequences(late, Integer.MAX_VALUE).get(0));
+    }
+
+    @Test
+    public void testOverrunSkipsLostFrames() {
+        final AudioRingBuffer buffer = new AudioRingBuffer(FRAME_SIZE, 8);
+        final AudioRingBuffer.Reader reader = buffer.newReader();
+        writeFrames(buffer, 0, 20);
+
+        // One slot is the one being written next, so 7 frames are still there
+        assertEquals(7, reader.getAvailable());
+        final ArrayList<Long> sequences = readSequences(reader, Integer.MAX_VALUE);
+        assertEquals(7, sequences.size());
+        assertEquals(13, (long) sequences.get(0));
+        assertEquals(13, reader.getOverrunFrames());
+        assertEquals(1, reader.getOverruns());
+    }
+
+    @Test
+    public void testReadAll() {
+        final AudioRingBuffer buffer = new AudioRingBuffer(FRAME_SIZE, 8);
+        final AudioRingBuffer.Reader reader = buffer.newReader();
+        writeFrames(buffer, 0, 3);
+
+        final float[] samples = reader.readAll();
+        assertEquals(3 * FRAME_SIZE, samples.length);
+        for (int i = 0; i < samples.length; ++i) {
+            assertEquals(i / FRAME_SIZE, frameValue(samples, i));
+        }
+        assertEquals(0, reader.readAll().length);
+    }
+
+    @Test
+    public void testSkipTo() {
+        final AudioRingBuffer buffer = new AudioRingBuffer(FRAME_SIZE, 8);
+        final AudioRingBuffer.Reader reader = buffer.newReader();
+        writeFrames(buffer, 0, 5);
+
+        reader.skipTo(3);
+        assertEquals(3, reader.getSkippedFrames());
+        assertEquals(3, (long) readSequences(reader, Integer.MAX_VALUE).get(0));
+
+        // Never past the latest frame, nor back
+        reader.skipTo(100);
+        assertEquals(5, reader.getSequence());
+        reader.skipTo(1);
+        assertEquals(5, reader.getSequence());
+        assertEquals(0, reader.getOverrunFrames());
+    }
+
+    @Test
+    public void testConcurrentReaderSeesConsistentFrames() throws InterruptedException {
+        final AudioRingBuffer buffer = new AudioRingBuffer(FRAME_SIZE, 32);
+        final AudioRingBuffer.Reader reader = buffer.newReader();
+        final int frames = 20000;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        final Thread producer = new Thread(() -> {
+            for (int i = 0; i < frames; ++i) {
+                writeFrames(buffer, i % Short.MAX_VALUE, 1);
+            }
+        });
+        producer.start();
+
+        // Frames come out in order whatever the producer is doing, up to the last one. A frame
+        // may only be torn if the reader then reports it as overrun, which it does right after
+        // passing it on, so a frame is checked once the next one arrives or the read returns
+        final long[] expected = { 0 };
+        final long[] pending = { -1, 0, 0 }; // sequence, whether it was intact, overrun count then
+        final Runnable checkPending = () -> {
+            if (pending[0] >= 0 && reader.getOverrunFrames() == pending[2] && pending[1] == 0) {
+                error.compareAndSet(null, new AssertionError("Torn frame " + pending[0]));
+            }
+            pending[0] = -1;
+        };
+        while (producer.isAlive() || reader.getAvailable() > 0) {
+            final long overrunBefore = reader.getOverrunFrames();
+            reader.read(Integer.MAX_VALUE, (sequence, samples, offset, length) -> {
+                checkPending.run();
+                if (sequence < expected[0]) {
+                    error.compareAndSet(null, new AssertionError("Out of order " + sequence));
+                }
+                expected[0] = sequence + 1;
+
+                boolean isIntact = true;
+                for (int i = 0; i < length; ++i) {
+                    if (frameValue(samples, offset + i) != sequence) isIntact = false;
+                }
+                pending[0] = sequence;
+                pending[1] = isIntact ? 1 : 0;
+                pending[2] = reader.getOverrunFrames();
+            });
+            checkPending.run();
+            assertTrue(reader.getOverrunFrames() >= overrunBefore);
+        }
+        producer.join();
+
+        if (error.get() != null) throw new AssertionError(error.get());
+        assertEquals(frames, reader.getSequence());
+    }
+}
@@ -0,0 +1,88 @@
+package org.futo.voiceinput.shared.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Unit tests for {@link SpeechSegmentBuffer}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SpeechSegmentBufferTests {
+    private static float[] range(final int from, final int length) {
+        final float[] samples = new float[length];
+        for (int i = 0; i < length; ++i) {
+            samples[i] = from + i;
+        }
+        return samples;
+    }
+
+    @Test
+    public void testSegmentsComeOutInOrder() {
+        final SpeechSegmentBuffer buffer = new SpeechSegmentBuffer(100);
+        buffer.append(range(0, 10), 0, 10);
+        assertTrue(buffer.closeSegment());
+        buffer.append(range(10, 20), 0, 20);
+        assertTrue(buffer.closeSegment());
+        assertEquals(2, buffer.getQueuedSegments());
+
+        assertArrayEquals(range(0, 10), buffer.takeSegment(), 0.0f);
+        assertArrayEquals(range(10, 20), buffer.takeSegment(), 0.0f);
+        assertNull(buffer.takeSegment());
+    }
+
+    @Test
+    public void testEmptySegmentIsNotQueued() {
+        final SpeechSegmentBuffer buffer = new SpeechSegmentBuffer(100);
+        assertFalse(buffer.closeSegment());
+        assertNull(buffer.takeSegment());
+    }
+
+    @Test
+    public void testTrimKeepsPreRoll() {
+        final SpeechSegmentBuffer buffer = new SpeechSegmentBuffer(100);
+        buffer.append(range(0, 50), 0, 50);
+        buffer.trimOpenSegment(5);
+        assertEquals(5, buffer.getOpenSegmentLength());
+
+        buffer.append(range(50, 10), 0, 10);
+        buffer.closeSegment();
+        assertArrayEquals(range(45, 15), buffer.takeSegment(), 0.0f);
+    }
+
+    @Test
+    public void testWrapsAroundWithBoundedMemory() {
+        final SpeechSegmentBuffer buffer = new SpeechSegmentBuffer(64);
+        // Far more audio than the ring holds, taken as it's produced
+        for (int i = 0; i < 1000; ++i) {
+            assertEquals(23, buffer.append(range(i * 23, 23), 0, 23));
+            buffer.closeSegment();
+            assertArrayEquals(range(i * 23, 23), buffer.takeSegment(), 0.0f);
+        }
+        assertEquals(0, buffer.getOverrunSamples());
+    }
+
+    @Test
+    public void testOverrunWhenRecognitionFallsBehind() {
+        final SpeechSegmentBuffer buffer = new SpeechSegmentBuffer(32);
+        assertEquals(20, buffer.append(range(0, 20), 0, 20));
+        buffer.closeSegment();
+        assertEquals(12, buffer.append(range(20, 20), 0, 20));
+        assertEquals(8, buffer.getOverrunSamples());
+        buffer.closeSegment();
+
+        // Taking the first segment makes room again
+        assertArrayEquals(range(0, 20), buffer.takeSegment(), 0.0f);
+        assertEquals(20, buffer.append(range(40, 20), 0, 20));
+        assertArrayEquals(range(20, 12), buffer.takeSegment(), 0.0f);
+    }
+}
@@ -0,0 +1,113 @@
+package org.futo.voiceinput.shared.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link StreamingMelSpectrogram}, against the batch {@link AudioFeatureExtraction}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class StreamingMelSpectrogramTests {
+    private static final int SAMPLING_RATE = 16000;
+
+    // A rising tone with some noise, so every filter sees some energy
+    private static float[] makeAudio(final int length) {
+        final Random random = new Random(42);
+        final float[] audio = new float[length];
+        for (int i = 0; i < length; ++i) {
+            final double t = (double) i / SAMPLING_RATE;
+            audio[i] = (float) (0.5 * Math.sin(2 * Math.PI * (200 + 1500 * t) * t)
+                    + 0.05 * random.nextGaussian());
+        }
+        return audio;
+    }
+
+    private static float[] extractInChunks(final float[] audio, final int chunkSize) {
+        final StreamingMelSpectrogram extractor = new StreamingMelSpectrogram();
+        for (int offset = 0; offset < audio.length; offset += chunkSize) {
+            extractor.accept(audio, offset, Math.min(chunkSize, audio.length - offset));
+        }
+        extractor.finish();
+        return extractor.toWhisperInput();
+    }
+
+    @Test
+    public void testMatchesBatchExtraction() {
+        final float[] audio = makeAudio(SAMPLING_RATE * 5 / 2 + 37);
+        final double[] doubleAudio = new double[audio.length];
+        for (int i = 0; i < audio.length; ++i) {
+            doubleAudio[i] = audio[i];
+        }
+        final float[] expected = new AudioFeatureExtraction(80 /* featureSize */,
+                SAMPLING_RATE, 160 /* hopLength */, 30 /* chunkLength */, 400 /* nFFT */,
+                0.0 /* paddingValue */).melSpectrogram(doubleAudio);
+
+        assertArrayEquals(expected, extractInChunks(audio, audio.length), 1e-3f);
+    }
+
+    @Test
+    public void testChunkSizeDoesNotMatter() {
+        final float[] audio = makeAudio(SAMPLING_RATE + 123);
+        final float[] whole = extractInChunks(audio, audio.length);
+
+        assertArrayEquals(whole, extractInChunks(audio, 1), 0.0f);
+        assertArrayEquals(whole, extractInChunks(audio, 160), 0.0f);
+        assertArrayEquals(whole, extractInChunks(audio, 1601), 0.0f);
+    }
+
+    @Test
+    public void testFramesArriveWhileRecording() {
+        final List<Integer> frames = new ArrayList<>();
+        final StreamingMelSpectrogram extractor = new StreamingMelSpectrogram(80, SAMPLING_RATE,
+                160, 400, 3000, (index, logMel) -> {
+                    assertEquals(80, logMel.length);
+                    frames.add(index);
+                });
+
+        final float[] audio = makeAudio(SAMPLING_RATE);
+        // A frame needs half a window past its center
+        assertEquals(0, extractor.accept(audio, 0, 200));
+        assertEquals(1, extractor.accept(audio, 200, 1));
+        assertEquals(10, extractor.accept(audio, 201, 1600));
+        extractor.accept(audio, 1801, audio.length - 1801);
+        assertTrue(extractor.finish() > 0);
+
+        // One frame per hop, plus the padding hop
+        assertEquals(audio.length / 160 + 2, extractor.getFrameCount());
+        assertEquals(extractor.getFrameCount(), frames.size());
+        for (int i = 0; i < frames.size(); ++i) {
+            assertEquals(i, (int) frames.get(i));
+        }
+    }
+
+    @Test
+    public void testStopsAtMaxFrames() {
+        final StreamingMelSpectrogram extractor = new StreamingMelSpectrogram(80, SAMPLING_RATE,
+                160, 400, 100, null);
+        extractor.accept(makeAudio(SAMPLING_RATE * 2));
+        extractor.finish();
+
+        assertEquals(100, extractor.getFrameCount());
+        assertEquals(80 * 100, extractor.toWhisperInput().length);
+    }
+
+    @Test
+    public void testFilterBankIsSparse() {
+        final SparseMelFilterBank filterBank =
+                new SparseMelFilterBank(201, 80, 0.0, 8000.0, SAMPLING_RATE);
+        // Each bin is covered by at most two filters
+        assertTrue(filterBank.getNonZeroWeights() <= 2 * 201);
+    }
+}
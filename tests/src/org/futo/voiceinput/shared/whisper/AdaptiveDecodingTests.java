@@ -0,0 +1,145 @@
+package org.futo.voiceinput.shared.whisper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.futo.voiceinput.shared.ggml.DecodingMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Unit tests for {@link LatencyHistory} and {@link AdaptiveDecoding}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AdaptiveDecodingTests {
+    private static final String MODEL = "test:model";
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        AdaptiveDecoding.INSTANCE.reset(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        AdaptiveDecoding.INSTANCE.reset(mContext);
+    }
+
+    private void record(final DecodingMode mode, final float seconds, final float latencyMs) {
+        AdaptiveDecoding.INSTANCE.record(mContext, MODEL, mode, seconds, latencyMs, "text",
+                false /* switchedLanguage */);
+    }
+
+    @Test
+    public void testHistoryFitsLine() {
+        final LatencyHistory history = new LatencyHistory(8);
+        assertNull(history.predict(1.0f));
+
+        // 200ms plus 100ms per second of audio
+        for (int seconds = 1; seconds <= 6; ++seconds) {
+            history.add(seconds, 200 + 100 * seconds);
+        }
+        assertEquals(1200.0f, history.predict(10.0f), 1.0f);
+    }
+
+    @Test
+    public void testHistoryForgetsOldEntries() {
+        final LatencyHistory history = new LatencyHistory(4);
+        for (int i = 0; i < 4; ++i) {
+            history.add(2.0f, 5000.0f);
+        }
+        for (int i = 0; i < 4; ++i) {
+            history.add(2.0f, 500.0f);
+        }
+        assertEquals(4, history.getSize());
+        assertEquals(500.0f, history.predict(2.0f), 1.0f);
+    }
+
+    @Test
+    public void testUnknownModelUsesBeamSearch() {
+        assertTrue(AdaptiveDecoding.INSTANCE.needsCalibration(mContext, MODEL));
+        assertEquals(DecodingMode.BeamSearch5,
+                AdaptiveDecoding.INSTANCE.chooseMode(mContext, MODEL, 2.0f, 1000L));
+    }
+
+    @Test
+    public void testFastDeviceUsesBeamSearch() {
+        // Calibrated greedy decoding of 3 seconds takes 150ms
+        record(DecodingMode.Greedy, 3.0f, 150.0f);
+        assertFalse(AdaptiveDecoding.INSTANCE.needsCalibration(mContext, MODEL));
+        assertEquals(DecodingMode.BeamSearch5,
+                AdaptiveDecoding.INSTANCE.chooseMode(mContext, MODEL, 3.0f, 1000L));
+    }
+
+    @Test
+    public void testSlowDeviceFallsBackToGreedy() {
+        record(DecodingMode.Greedy, 3.0f, 900.0f);
+        assertEquals(DecodingMode.Greedy,
+                AdaptiveDecoding.INSTANCE.chooseMode(mContext, MODEL, 3.0f, 1000L));
+        // A longer budget allows a narrow beam
+        assertEquals(DecodingMode.BeamSearch2,
+                AdaptiveDecoding.INSTANCE.chooseMode(mContext, MODEL, 3.0f, 1500L));
+    }
+
+    @Test
+    public void testLongClipsUseNarrowerBeams() {
+        for (int seconds = 1; seconds <= 10; ++seconds) {
+            record(DecodingMode.BeamSearch5, seconds, 100.0f * seconds);
+        }
+        assertEquals(DecodingMode.BeamSearch5,
+                AdaptiveDecoding.INSTANCE.chooseMode(mContext, MODEL, 2.0f, 1000L));
+        assertEquals(DecodingMode.Greedy,
+                AdaptiveDecoding.INSTANCE.chooseMode(mContext, MODEL, 25.0f, 1000L));
+    }
+
+    @Test
+    public void testSlowModeIsRetried() {
+        // Beam search was slow once, e.g. while the device was hot
+        for (int i = 0; i < 3; ++i) {
+            record(DecodingMode.BeamSearch2, 3.0f, 2000.0f);
+        }
+        // Wider beams are predicted from greedy decoding, which has the most history
+        for (int i = 0; i < 4; ++i) {
+            record(DecodingMode.Greedy, 3.0f, 600.0f);
+        }
+
+        int retries = 0;
+        for (int i = 0; i < AdaptiveDecoding.RETRY_INTERVAL; ++i) {
+            final DecodingMode mode =
+                    AdaptiveDecoding.INSTANCE.chooseMode(mContext, MODEL, 3.0f, 1000L);
+            if (mode == DecodingMode.BeamSearch2) {
+                ++retries;
+            } else {
+                assertEquals(DecodingMode.Greedy, mode);
+            }
+        }
+        assertEquals(1, retries);
+    }
+
+    @Test
+    public void testCalibrationOnlyRulesOutBeamSearch() {
+        AdaptiveDecoding.INSTANCE.recordCalibration(mContext, MODEL, 3.0f, 100.0f);
+        assertFalse(AdaptiveDecoding.INSTANCE.needsCalibration(mContext, MODEL));
+        // A fast calibration is not trusted to predict beam search on speech
+        assertEquals(DecodingMode.BeamSearch5,
+                AdaptiveDecoding.INSTANCE.chooseMode(mContext, MODEL, 3.0f, 1000L));
+
+        AdaptiveDecoding.INSTANCE.reset(mContext);
+        AdaptiveDecoding.INSTANCE.recordCalibration(mContext, MODEL, 3.0f, 1200.0f);
+        assertEquals(DecodingMode.Greedy,
+                AdaptiveDecoding.INSTANCE.chooseMode(mContext, MODEL, 3.0f, 1000L));
+    }
+}
@@ -29,6 +29,9 @@ public class CommandList {
         Dicttool.addCommand("package", Package.Packager.class);
         Dicttool.addCommand("unpackage", Package.Unpackager.class);
         Dicttool.addCommand("makedict", Makedict.class);
+        Dicttool.addCommand("makedictbenchmark", MakedictBenchmark.class);
+        Dicttool.addCommand("makepatch", Patch.Maker.class);
+        Dicttool.addCommand("applypatch", Patch.Applier.class);
         Dicttool.addCommand("test", Test.class);
     }
 }
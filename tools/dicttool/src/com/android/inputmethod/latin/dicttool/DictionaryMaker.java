@@ -53,12 +53,14 @@ public class DictionaryMaker {
         private static final String OPTION_CODE_POINT_TABLE = "-t";
         private static final String OPTION_CODE_POINT_TABLE_OFF = "off";
         private static final String OPTION_CODE_POINT_TABLE_ON = "on";
+        private static final String OPTION_THREADS = "-j";
         public final String mInputBinary;
         public final String mInputCombined;
         public final String mOutputBinary;
         public final String mOutputCombined;
         public final int mOutputBinaryFormatVersion;
         public final int mCodePointTableMode;
+        public final int mThreads;
 
         private void checkIntegrity() throws IOException {
             checkHasExactlyOneInput();
@@ -103,12 +105,14 @@ public class DictionaryMaker {
                     + "| [-s <combined format input]"
                     + "| [-s <binary input>] [-d <binary output>]"
                     + " [-o <combined output>] [-t <code point table switch: on/off/auto>]"
-                    + "[-2] [-3] [-4]\n"
+                    + " [-j <threads>] [-2] [-3] [-4]\n"
                     + "\n"
                     + "  Converts a source dictionary file to one or several outputs.\n"
                     + "  Source can be a binary dictionary file or a combined format file.\n"
                     + "  Binary version 2 (Jelly Bean), 3, 4, and\n"
-                    + "  combined format outputs are supported.";
+                    + "  combined format outputs are supported.\n"
+                    + "  -j sets how many threads lay out a version 2 binary dictionary,\n"
+                    + "  it defaults to the number of available processors.";
         }
 
         public Arguments(String[] argsArray) throws IOException {
@@ -123,6 +127,7 @@ public class DictionaryMaker {
             int outputBinaryFormatVersion = FormatSpec.VERSION202; // the default version is 202.
             // Don't use code point table by default.
             int codePointTableMode = Ver2DictEncoder.CODE_POINT_TABLE_OFF;
+            int threads = Runtime.getRuntime().availableProcessors();
 
             while (!args.isEmpty()) {
                 final String arg = args.get(0);
@@ -164,6 +169,17 @@ public class DictionaryMaker {
                                 throw new IllegalArgumentException(
                                         "Unknown argument to -t option : " + argValue);
                             }
+                        } else if (OPTION_THREADS.equals(arg)) {
+                            try {
+                                threads = Integer.parseInt(argValue);
+                            } catch (final NumberFormatException e) {
+                                throw new IllegalArgumentException(
+                                        "Unknown argument to -j option : " + argValue);
+                            }
+                            if (threads < 1) {
+                                throw new IllegalArgumentException(
+                                        "Argument to -j option must be at least 1 : " + argValue);
+                            }
                         } else {
                             throw new IllegalArgumentException("Unknown option : " + arg);
                         }
@@ -191,6 +207,7 @@ public class DictionaryMaker {
             mOutputCombined = outputCombined;
             mOutputBinaryFormatVersion = outputBinaryFormatVersion;
             mCodePointTableMode = codePointTableMode;
+            mThreads = threads;
             checkIntegrity();
         }
     }
@@ -208,7 +225,7 @@ public class DictionaryMaker {
      * @param args the parsed command line arguments.
      * @return the read dictionary.
      */
-    private static FusionDictionary readInputFromParsedArgs(final Arguments args)
+    /* package */ static FusionDictionary readInputFromParsedArgs(final Arguments args)
             throws IOException, UnsupportedFormatException, FileNotFoundException {
         if (null != args.mInputBinary) {
             return readBinaryFile(args.mInputBinary);
@@ -261,12 +278,13 @@ public class DictionaryMaker {
      * @throws FileNotFoundException if one of the output files can't be created.
      * @throws IOException if one of the output files can't be written to.
      */
-    private static void writeOutputToParsedArgs(final Arguments args, final FusionDictionary dict)
+    /* package */ static void writeOutputToParsedArgs(final Arguments args,
+            final FusionDictionary dict)
             throws FileNotFoundException, IOException, UnsupportedFormatException,
             IllegalArgumentException {
         if (null != args.mOutputBinary) {
             writeBinaryDictionary(args.mOutputBinary, dict, args.mOutputBinaryFormatVersion,
-                    args.mCodePointTableMode);
+                    args.mCodePointTableMode, args.mThreads);
         }
         if (null != args.mOutputCombined) {
             writeCombinedDictionary(args.mOutputCombined, dict);
@@ -280,11 +298,13 @@ public class DictionaryMaker {
      * @param dict the dictionary to write.
      * @param version the binary format version to use.
      * @param codePointTableMode the value to decide how we treat the code point table.
+     * @param threads the number of threads to lay out the dictionary with.
      * @throws FileNotFoundException if the output file can't be created.
      * @throws IOException if the output file can't be written to.
      */
     private static void writeBinaryDictionary(final String outputFilename,
-            final FusionDictionary dict, final int version, final int codePointTableMode)
+            final FusionDictionary dict, final int version, final int codePointTableMode,
+            final int threads)
             throws FileNotFoundException, IOException, UnsupportedFormatException {
         final File outputFile = new File(outputFilename);
         final FormatSpec.FormatOptions formatOptions = new FormatSpec.FormatOptions(version);
@@ -293,7 +313,7 @@ public class DictionaryMaker {
             // VERSION4 doesn't use the code point table.
             dictEncoder = new Ver4DictEncoder(outputFile);
         } else {
-            dictEncoder = new Ver2DictEncoder(outputFile, codePointTableMode);
+            dictEncoder = new Ver2DictEncoder(outputFile, codePointTableMode, threads);
         }
         dictEncoder.writeDictionary(dict, formatOptions);
     }
@@ -0,0 +1,165 @@
+package org.futo.inputmethod.latin.dicttool;
+
+import org.futo.inputmethod.latin.common.FileUtils;
+import org.futo.inputmethod.latin.makedict.FusionDictionary;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Dicttool command that measures the end-to-end time and peak heap of makedict.
+ *
+ * Without an input file, a synthetic combined word list with bigrams is generated first, so that
+ * builds of different sizes can be compared on any machine.
+ */
+public class MakedictBenchmark extends Dicttool.Command {
+    public static final String COMMAND = "makedictbenchmark";
+    private static final int DEFAULT_WORD_COUNT = 2000000;
+    private static final int BIGRAMS_PER_WORD = 2;
+    private static final int MAX_PROBABILITY = 255;
+
+    @Override
+    public String getHelp() {
+        return COMMAND + " [-n wordCount] [-j threads] [-s seed] [-k] [combined input]\n"
+                + "Builds a version 2 binary dictionary and reports wall time and peak heap.\n"
+                + "Without an input, a list of wordCount (default " + DEFAULT_WORD_COUNT
+                + ") synthetic words with " + BIGRAMS_PER_WORD + " bigrams each is generated.\n"
+                + "If -k is provided, do not delete the generated files.";
+    }
+
+    @Override
+    public void run() throws Exception {
+        int wordCount = DEFAULT_WORD_COUNT;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long seed = 0;
+        boolean keepFiles = false;
+        String input = null;
+        int i = 0;
+        while (i < mArgs.length) {
+            final String arg = mArgs[i++];
+            if ("-n".equals(arg)) {
+                wordCount = Integer.parseInt(mArgs[i++]);
+            } else if ("-j".equals(arg)) {
+                threads = Integer.parseInt(mArgs[i++]);
+            } else if ("-s".equals(arg)) {
+                seed = Long.parseLong(mArgs[i++]);
+            } else if ("-k".equals(arg)) {
+                keepFiles = true;
+            } else if (null == input) {
+                input = arg;
+            } else {
+                throw new IllegalArgumentException("Several input files specified");
+            }
+        }
+
+        final File tmpDir = Files.createTempDirectory("makedictbenchmark").toFile();
+        try {
+            if (null == input) {
+                final File generated = new File(tmpDir, "words.combined");
+                final long startGenerate = System.nanoTime();
+                generateWordList(generated, wordCount, seed);
+                System.out.println("Generated " + wordCount + " words in "
+                        + formatMillis(System.nanoTime() - startGenerate));
+                input = generated.getAbsolutePath();
+            }
+            final File output = new File(tmpDir, "main.dict");
+            runBenchmark(input, output, threads);
+        } finally {
+            if (!keepFiles) {
+                FileUtils.deleteRecursively(tmpDir);
+            } else {
+                System.out.println("Kept files in " + tmpDir);
+            }
+        }
+    }
+
+    private static void runBenchmark(final String input, final File output, final int threads)
+            throws Exception {
+        final DictionaryMaker.Arguments args = new DictionaryMaker.Arguments(new String[] {
+                "-s", input, "-d", output.getAbsolutePath(), "-j", Integer.toString(threads) });
+
+        System.gc();
+        resetPeakHeap();
+
+        final long start = System.nanoTime();
+        final FusionDictionary dict = DictionaryMaker.readInputFromParsedArgs(args);
+        final long read = System.nanoTime();
+        final long peakAfterRead = getPeakHeap();
+        DictionaryMaker.writeOutputToParsedArgs(args, dict);
+        final long end = System.nanoTime();
+
+        System.out.println("Threads         : " + threads);
+        System.out.println("Read input      : " + formatMillis(read - start));
+        System.out.println("Write binary    : " + formatMillis(end - read));
+        System.out.println("Total           : " + formatMillis(end - start));
+        System.out.println("Peak heap, read : " + formatMegabytes(peakAfterRead));
+        System.out.println("Peak heap, total: " + formatMegabytes(getPeakHeap()));
+        System.out.println("Output size     : " + formatMegabytes(output.length()));
+    }
+
+    /**
+     * Writes a combined format word list. Words are unique and spread over the alphabet like a
+     * real word list, and each has bigrams pointing at earlier words.
+     */
+    private static void generateWordList(final File file, final int wordCount, final long seed)
+            throws IOException {
+        final Random random = new Random(seed);
+        try (final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"), 1 << 16)) {
+            writer.write("dictionary=benchmark,locale=en,description=Benchmark,date=0,"
+                    + "version=1\n");
+            for (int w = 0; w < wordCount; ++w) {
+                writer.write(" word=" + makeWord(w) + ",f="
+                        + (MAX_PROBABILITY - (int) (Math.log1p(w) * 16) % MAX_PROBABILITY)
+                        + "\n");
+                if (w == 0) continue;
+                for (int b = 0; b < BIGRAMS_PER_WORD; ++b) {
+                    writer.write("  bigram=" + makeWord(random.nextInt(w)) + ",f="
+                            + random.nextInt(MAX_PROBABILITY) + "\n");
+                }
+            }
+        }
+    }
+
+    // Spells out the index in base 26 with the least significant letter first, so that
+    // consecutive words differ at the start and the tree fans out like a natural word list.
+    private static String makeWord(final int index) {
+        final StringBuilder word = new StringBuilder();
+        int remaining = index;
+        do {
+            word.append((char) ('a' + remaining % 26));
+            remaining /= 26;
+        } while (remaining > 0);
+        return word.toString();
+    }
+
+    private static void resetPeakHeap() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    private static String formatMillis(final long nanos) {
+        return (nanos / 1000000) + " ms";
+    }
+
+    private static String formatMegabytes(final long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+}
@@ -0,0 +1,197 @@
+package org.futo.inputmethod.latin.dicttool;
+
+import org.futo.inputmethod.latin.makedict.DictionaryHeader;
+import org.futo.inputmethod.latin.makedict.DictionaryPatch;
+import org.futo.inputmethod.latin.makedict.FormatSpec.DictionaryOptions;
+import org.futo.inputmethod.latin.makedict.FusionDictionary;
+import org.futo.inputmethod.latin.makedict.FusionDictionary.PtNodeArray;
+import org.futo.inputmethod.latin.makedict.ProbabilityInfo;
+import org.futo.inputmethod.latin.makedict.UnsupportedFormatException;
+import org.futo.inputmethod.latin.makedict.WeightedString;
+import org.futo.inputmethod.latin.makedict.WordProperty;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class Patch {
+    private Patch() {
+        // This container class is not publicly instantiable.
+    }
+
+    private static String getVersion(final FusionDictionary dict) {
+        final String version =
+                dict.mOptions.mAttributes.get(DictionaryHeader.DICTIONARY_VERSION_KEY);
+        if (null == version) {
+            throw new RuntimeException("Dictionary has no version attribute");
+        }
+        return version;
+    }
+
+    /**
+     * Computes the patch that turns dict0 into dict1.
+     */
+    public static DictionaryPatch makePatch(final FusionDictionary dict0,
+            final FusionDictionary dict1) {
+        return DictionaryPatch.compute(getVersion(dict0), dict0, getVersion(dict1), dict1,
+                dict1.mOptions.mAttributes);
+    }
+
+    private static final class WordEntry {
+        public int mProbability;
+        public boolean mIsNotAWord;
+        public boolean mIsPossiblyOffensive;
+        public final TreeMap<String, Integer> mBigrams = new TreeMap<>();
+    }
+
+    /**
+     * Returns a new dictionary with the patch applied to the words of dict. The header of the
+     * result is the one recorded in the patch.
+     */
+    public static FusionDictionary applyPatch(final FusionDictionary dict,
+            final DictionaryPatch patch) {
+        if (!patch.mBaseVersion.equals(getVersion(dict))) {
+            throw new RuntimeException("Patch is for version " + patch.mBaseVersion
+                    + ", not " + getVersion(dict));
+        }
+
+        final TreeMap<String, WordEntry> words = new TreeMap<>();
+        for (final WordProperty wordProperty : dict) {
+            final WordEntry entry = new WordEntry();
+            entry.mProbability = wordProperty.getProbability();
+            entry.mIsNotAWord = wordProperty.mIsNotAWord;
+            entry.mIsPossiblyOffensive = wordProperty.mIsPossiblyOffensive;
+            final ArrayList<WeightedString> bigrams = wordProperty.getBigrams();
+            if (null != bigrams) {
+                for (final WeightedString bigram : bigrams) {
+                    entry.mBigrams.put(bigram.mWord, bigram.getProbability());
+                }
+            }
+            words.put(wordProperty.mWord, entry);
+        }
+
+        final boolean applied = patch.applyTo(new DictionaryPatch.Editor() {
+            @Override
+            public boolean setWord(final String word, final int probability,
+                    final boolean isNotAWord, final boolean isPossiblyOffensive) {
+                WordEntry entry = words.get(word);
+                if (null == entry) {
+                    entry = new WordEntry();
+                    words.put(word, entry);
+                }
+                entry.mProbability = probability;
+                entry.mIsNotAWord = isNotAWord;
+                entry.mIsPossiblyOffensive = isPossiblyOffensive;
+                return true;
+            }
+
+            @Override
+            public boolean removeWord(final String word) {
+                return null != words.remove(word);
+            }
+
+            @Override
+            public boolean setBigram(final String word0, final String word1,
+                    final int probability) {
+                final WordEntry entry = words.get(word0);
+                if (null == entry || !words.containsKey(word1)) return false;
+                entry.mBigrams.put(word1, probability);
+                return true;
+            }
+
+            @Override
+            public boolean removeBigram(final String word0, final String word1) {
+                final WordEntry entry = words.get(word0);
+                return null != entry && null != entry.mBigrams.remove(word1);
+            }
+        });
+        if (!applied) {
+            throw new RuntimeException("Patch does not apply to this dictionary");
+        }
+
+        final FusionDictionary result = new FusionDictionary(new PtNodeArray(),
+                new DictionaryOptions(new HashMap<>(patch.mTargetAttributes)));
+        for (final Map.Entry<String, WordEntry> word : words.entrySet()) {
+            final WordEntry entry = word.getValue();
+            result.add(word.getKey(), new ProbabilityInfo(entry.mProbability),
+                    entry.mIsNotAWord, entry.mIsPossiblyOffensive);
+        }
+        for (final Map.Entry<String, WordEntry> word : words.entrySet()) {
+            for (final Map.Entry<String, Integer> bigram :
+                    word.getValue().mBigrams.entrySet()) {
+                result.setBigram(word.getKey(), bigram.getKey(),
+                        new ProbabilityInfo(bigram.getValue()));
+            }
+        }
+        return result;
+    }
+
+    static public class Maker extends Dicttool.Command {
+        public static final String COMMAND = "makepatch";
+
+        public Maker() {
+        }
+
+        @Override
+        public String getHelp() {
+            return COMMAND + " <old dict> <new dict> <patch>: "
+                    + "Writes a patch that updates the old dictionary to the new one";
+        }
+
+        @Override
+        public void run() throws IOException {
+            if (mArgs.length != 3) {
+                throw new RuntimeException("Wrong number of arguments for command " + COMMAND);
+            }
+            final FusionDictionary dict0 =
+                    BinaryDictOffdeviceUtils.getDictionary(mArgs[0], false /* report */);
+            if (null == dict0) throw new RuntimeException("Can't read dictionary " + mArgs[0]);
+            final FusionDictionary dict1 =
+                    BinaryDictOffdeviceUtils.getDictionary(mArgs[1], false /* report */);
+            if (null == dict1) throw new RuntimeException("Can't read dictionary " + mArgs[1]);
+
+            final DictionaryPatch patch = makePatch(dict0, dict1);
+            try (final OutputStream out = getFileOutputStreamOrStdOut(mArgs[2])) {
+                patch.writeTo(out);
+            }
+            System.err.println("Wrote " + patch.getEditCount() + " edits from version "
+                    + patch.mBaseVersion + " to " + patch.mTargetVersion);
+        }
+    }
+
+    static public class Applier extends Dicttool.Command {
+        public static final String COMMAND = "applypatch";
+
+        public Applier() {
+        }
+
+        @Override
+        public String getHelp() {
+            return COMMAND + " <dict> <patch> <combined output>: "
+                    + "Applies a patch to a dictionary and writes the result in combined format";
+        }
+
+        @Override
+        public void run() throws IOException, UnsupportedFormatException {
+            if (mArgs.length != 3) {
+                throw new RuntimeException("Wrong number of arguments for command " + COMMAND);
+            }
+            final FusionDictionary dict =
+                    BinaryDictOffdeviceUtils.getDictionary(mArgs[0], false /* report */);
+            if (null == dict) throw new RuntimeException("Can't read dictionary " + mArgs[0]);
+            final DictionaryPatch patch;
+            try (final InputStream in = getFileInputStreamOrStdIn(mArgs[1])) {
+                patch = DictionaryPatch.readFrom(in);
+            }
+            try (final BufferedWriter writer = new BufferedWriter(new FileWriter(mArgs[2]))) {
+                CombinedInputOutput.writeDictionaryCombined(writer, applyPatch(dict, patch));
+            }
+        }
+    }
+}
@@ -49,6 +49,8 @@ public class Test extends Dicttool.Command {
 
     private static final Class<?>[] sClassesToTest = {
         BinaryDictOffdeviceUtilsTests.class,
+        DictionaryPatchTests.class,
+        MakedictParallelTests.class,
         FusionDictionaryTest.class,
         BinaryDictDecoderEncoderTests.class,
         BinaryDictEncoderFlattenTreeTests.class,
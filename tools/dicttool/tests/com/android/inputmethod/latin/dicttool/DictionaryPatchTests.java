@@ -0,0 +1,166 @@
+package org.futo.inputmethod.latin.dicttool;
+
+import org.futo.inputmethod.latin.common.CodePointUtils;
+import org.futo.inputmethod.latin.makedict.DictionaryHeader;
+import org.futo.inputmethod.latin.makedict.DictionaryPatch;
+import org.futo.inputmethod.latin.makedict.FormatSpec.DictionaryOptions;
+import org.futo.inputmethod.latin.makedict.FusionDictionary;
+import org.futo.inputmethod.latin.makedict.FusionDictionary.PtNodeArray;
+import org.futo.inputmethod.latin.makedict.ProbabilityInfo;
+import org.futo.inputmethod.latin.makedict.UnsupportedFormatException;
+import org.futo.inputmethod.latin.makedict.WeightedString;
+import org.futo.inputmethod.latin.makedict.WordProperty;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Unit tests for dictionary patches
+ */
+public class DictionaryPatchTests extends TestCase {
+    private static final int CODE_POINT_SET_SIZE = 300;
+    private static final int MAX_PROBABILITY = 255;
+    private static final int BIGRAMS_PER_WORD = 3;
+    private final Random mRandom;
+    private final ArrayList<String> mWords = new ArrayList<>();
+
+    public DictionaryPatchTests(final long seed, final int maxUnigrams) {
+        super();
+        mRandom = new Random(seed);
+        final int[] codePointSet = CodePointUtils.generateCodePointSet(
+                CODE_POINT_SET_SIZE, mRandom);
+        final Set<String> wordSet = new HashSet<>();
+        while (wordSet.size() < maxUnigrams) {
+            wordSet.add(CodePointUtils.generateWord(mRandom, codePointSet));
+        }
+        mWords.addAll(wordSet);
+    }
+
+    private static FusionDictionary makeDictionary(final String version) {
+        final HashMap<String, String> attributes = new HashMap<>();
+        attributes.put(DictionaryHeader.DICTIONARY_ID_KEY, "main:test");
+        attributes.put(DictionaryHeader.DICTIONARY_LOCALE_KEY, "test");
+        attributes.put(DictionaryHeader.DICTIONARY_VERSION_KEY, version);
+        return new FusionDictionary(new PtNodeArray(), new DictionaryOptions(attributes));
+    }
+
+    // Words are picked from the first three quarters of the list for the old dictionary, and
+    // from the last three quarters for the new one, so that words are both added and removed.
+    private FusionDictionary makeRandomDictionary(final String version, final int from,
+            final int to) {
+        final FusionDictionary dict = makeDictionary(version);
+        for (int i = from; i < to; ++i) {
+            dict.add(mWords.get(i), new ProbabilityInfo(mRandom.nextInt(MAX_PROBABILITY)),
+                    mRandom.nextInt(50) == 0 /* isNotAWord */,
+                    mRandom.nextInt(50) == 0 /* isPossiblyOffensive */);
+        }
+        for (int i = from; i < to; ++i) {
+            for (int b = 0; b < BIGRAMS_PER_WORD; ++b) {
+                dict.setBigram(mWords.get(i), mWords.get(from + mRandom.nextInt(to - from)),
+                        new ProbabilityInfo(mRandom.nextInt(MAX_PROBABILITY)));
+            }
+        }
+        return dict;
+    }
+
+    // One line per word with its attributes and sorted bigrams, independent of insertion order.
+    private static TreeSet<String> getContents(final FusionDictionary dict) {
+        final TreeSet<String> contents = new TreeSet<>();
+        for (final WordProperty wordProperty : dict) {
+            final TreeMap<String, Integer> bigrams = new TreeMap<>();
+            final ArrayList<WeightedString> weightedStrings = wordProperty.getBigrams();
+            if (null != weightedStrings) {
+                for (final WeightedString bigram : weightedStrings) {
+                    bigrams.put(bigram.mWord, bigram.getProbability());
+                }
+            }
+            contents.add(wordProperty.mWord + " f=" + wordProperty.getProbability()
+                    + " not_a_word=" + wordProperty.mIsNotAWord
+                    + " offensive=" + wordProperty.mIsPossiblyOffensive
+                    + " bigrams=" + bigrams);
+        }
+        return contents;
+    }
+
+    private static DictionaryPatch writeAndRead(final DictionaryPatch patch)
+            throws IOException, UnsupportedFormatException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        patch.writeTo(out);
+        return DictionaryPatch.readFrom(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    public void testPatchRoundTrip() throws IOException, UnsupportedFormatException {
+        final int quarter = mWords.size() / 4;
+        final FusionDictionary dict0 = makeRandomDictionary("1", 0, quarter * 3);
+        final FusionDictionary dict1 = makeRandomDictionary("2", quarter, mWords.size());
+
+        final DictionaryPatch patch = writeAndRead(Patch.makePatch(dict0, dict1));
+        assertEquals("Wrong base version", "1", patch.mBaseVersion);
+        assertEquals("Wrong target version", "2", patch.mTargetVersion);
+
+        final FusionDictionary patched = Patch.applyPatch(dict0, patch);
+        assertEquals("Patched header differs", dict1.mOptions.mAttributes,
+                patched.mOptions.mAttributes);
+        assertEquals("Patched words differ", getContents(dict1), getContents(patched));
+    }
+
+    public void testSmallChangeGivesSmallPatch() throws IOException, UnsupportedFormatException {
+        final FusionDictionary dict0 = makeRandomDictionary("1", 0, mWords.size());
+        final FusionDictionary dict1 = makeDictionary("2");
+        for (final WordProperty wordProperty : dict0) {
+            dict1.add(wordProperty.mWord, wordProperty.mProbabilityInfo,
+                    wordProperty.mIsNotAWord, wordProperty.mIsPossiblyOffensive);
+        }
+        for (final WordProperty wordProperty : dict0) {
+            final ArrayList<WeightedString> bigrams = wordProperty.getBigrams();
+            if (null == bigrams) continue;
+            for (final WeightedString bigram : bigrams) {
+                dict1.setBigram(wordProperty.mWord, bigram.mWord, bigram.mProbabilityInfo);
+            }
+        }
+        final String changedWord = mWords.get(0);
+        final int probability =
+                FusionDictionary.findWordInTree(dict0.mRootNodeArray, changedWord).getProbability();
+        dict1.add(changedWord, new ProbabilityInfo((probability + 1) % MAX_PROBABILITY),
+                false /* isNotAWord */, false /* isPossiblyOffensive */);
+
+        final DictionaryPatch patch = writeAndRead(Patch.makePatch(dict0, dict1));
+        assertEquals("Only the changed word should be in the patch", 1, patch.getEditCount());
+        assertEquals("Patched words differ", getContents(dict1),
+                getContents(Patch.applyPatch(dict0, patch)));
+    }
+
+    public void testPatchForOtherVersionIsRejected()
+            throws IOException, UnsupportedFormatException {
+        final FusionDictionary dict0 = makeRandomDictionary("1", 0, mWords.size() / 2);
+        final FusionDictionary dict1 = makeRandomDictionary("2", 0, mWords.size() / 2);
+        final DictionaryPatch patch = writeAndRead(Patch.makePatch(dict0, dict1));
+        try {
+            Patch.applyPatch(dict1, patch);
+            fail("Patch was applied to the wrong version");
+        } catch (final RuntimeException e) {
+            // Expected
+        }
+    }
+
+    public void testNotAPatchIsRejected() throws IOException {
+        final byte[] garbage = new byte[1024];
+        mRandom.nextBytes(garbage);
+        try {
+            DictionaryPatch.readFrom(new ByteArrayInputStream(garbage));
+            fail("Random data was read as a patch");
+        } catch (final UnsupportedFormatException e) {
+            // Expected
+        }
+    }
+}
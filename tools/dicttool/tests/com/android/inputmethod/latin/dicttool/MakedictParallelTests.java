@@ -0,0 +1,117 @@
+package org.futo.inputmethod.latin.dicttool;
+
+import org.futo.inputmethod.latin.common.CodePointUtils;
+import org.futo.inputmethod.latin.makedict.DictionaryHeader;
+import org.futo.inputmethod.latin.makedict.FormatSpec;
+import org.futo.inputmethod.latin.makedict.FormatSpec.DictionaryOptions;
+import org.futo.inputmethod.latin.makedict.FormatSpec.FormatOptions;
+import org.futo.inputmethod.latin.makedict.FusionDictionary;
+import org.futo.inputmethod.latin.makedict.FusionDictionary.PtNodeArray;
+import org.futo.inputmethod.latin.makedict.ProbabilityInfo;
+import org.futo.inputmethod.latin.makedict.UnsupportedFormatException;
+import org.futo.inputmethod.latin.makedict.Ver2DictEncoder;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests that makedict writes the same dictionary whatever the number of threads it uses
+ */
+public class MakedictParallelTests extends TestCase {
+    private static final int CODE_POINT_SET_SIZE = 300;
+    private static final int MAX_PROBABILITY = 255;
+    private static final int BIGRAMS_PER_WORD = 3;
+    private static final int[] THREAD_COUNTS = { 2, 4, 8 };
+    private final Random mRandom;
+    private final ArrayList<String> mWords = new ArrayList<>();
+
+    public MakedictParallelTests(final long seed, final int maxUnigrams) {
+        super();
+        mRandom = new Random(seed);
+        final int[] codePointSet = CodePointUtils.generateCodePointSet(
+                CODE_POINT_SET_SIZE, mRandom);
+        final Set<String> wordSet = new HashSet<>();
+        while (wordSet.size() < maxUnigrams) {
+            wordSet.add(CodePointUtils.generateWord(mRandom, codePointSet));
+        }
+        mWords.addAll(wordSet);
+    }
+
+    private FusionDictionary makeRandomDictionary() {
+        final HashMap<String, String> attributes = new HashMap<>();
+        attributes.put(DictionaryHeader.DICTIONARY_ID_KEY, "main:test");
+        attributes.put(DictionaryHeader.DICTIONARY_LOCALE_KEY, "test");
+        attributes.put(DictionaryHeader.DICTIONARY_VERSION_KEY, "1");
+        final FusionDictionary dict =
+                new FusionDictionary(new PtNodeArray(), new DictionaryOptions(attributes));
+        for (final String word : mWords) {
+            dict.add(word, new ProbabilityInfo(mRandom.nextInt(MAX_PROBABILITY)),
+                    mRandom.nextInt(50) == 0 /* isNotAWord */,
+                    mRandom.nextInt(50) == 0 /* isPossiblyOffensive */);
+        }
+        for (final String word : mWords) {
+            for (int b = 0; b < BIGRAMS_PER_WORD; ++b) {
+                dict.setBigram(word, mWords.get(mRandom.nextInt(mWords.size())),
+                        new ProbabilityInfo(mRandom.nextInt(MAX_PROBABILITY)));
+            }
+        }
+        return dict;
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final FileInputStream in = new FileInputStream(file)) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] makedict(final File input, final String codePointTable,
+            final int threads) throws IOException, UnsupportedFormatException {
+        final File output = File.createTempFile("testMakedict", ".dict");
+        output.deleteOnExit();
+        DictionaryMaker.main(new String[] { "-s", input.getAbsolutePath(),
+                "-d", output.getAbsolutePath(), "-t", codePointTable,
+                "-j", Integer.toString(threads) });
+        return readFile(output);
+    }
+
+    private void runParallelOutputTest(final String codePointTable)
+            throws IOException, UnsupportedFormatException {
+        // The input is binary, as random words may contain the separators of the combined format
+        final File input = File.createTempFile("testMakedict", ".dict");
+        input.deleteOnExit();
+        new Ver2DictEncoder(input, Ver2DictEncoder.CODE_POINT_TABLE_OFF).writeDictionary(
+                makeRandomDictionary(), new FormatOptions(FormatSpec.VERSION202));
+
+        final byte[] expected = makedict(input, codePointTable, 1);
+        assertTrue("Empty dictionary written", expected.length > 0);
+        for (final int threads : THREAD_COUNTS) {
+            assertTrue("Output with -j " + threads + " differs from -j 1",
+                    Arrays.equals(expected, makedict(input, codePointTable, threads)));
+        }
+    }
+
+    public void testParallelOutputIsIdentical() throws IOException, UnsupportedFormatException {
+        runParallelOutputTest("off");
+    }
+
+    public void testParallelOutputIsIdenticalWithCodePointTable()
+            throws IOException, UnsupportedFormatException {
+        runParallelOutputTest("on");
+    }
+}
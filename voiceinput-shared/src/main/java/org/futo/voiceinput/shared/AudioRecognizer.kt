@@ -15,6 +15,7 @@ import android.media.MicrophoneDirection
 import android.net.Uri
 import android.os.Build
 import android.provider.Settings
+import android.util.Log
 import androidx.lifecycle.LifecycleCoroutineScope
 import com.konovalov.vad.Vad
 import com.konovalov.vad.config.FrameSize
@@ -25,8 +26,10 @@ import com.konovalov.vad.models.VadModel
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
 import kotlinx.coroutines.yield
 import org.futo.voiceinput.shared.ggml.InferenceCancelledException
 import org.futo.voiceinput.shared.types.AudioRecognizerListener
@@ -36,15 +39,16 @@ import org.futo.voiceinput.shared.types.MagnitudeState
 import org.futo.voiceinput.shared.types.ModelInferenceCallback
 import org.futo.voiceinput.shared.types.ModelLoader
 import org.futo.voiceinput.shared.ui.MicrophoneDeviceState
+import org.futo.voiceinput.shared.util.AudioFrameConsumer
+import org.futo.voiceinput.shared.util.AudioRingBuffer
+import org.futo.voiceinput.shared.util.SpeechSegmentBuffer
 import org.futo.voiceinput.shared.whisper.DecodingConfiguration
 import org.futo.voiceinput.shared.whisper.ModelManager
 import org.futo.voiceinput.shared.whisper.MultiModelRunConfiguration
 import org.futo.voiceinput.shared.whisper.MultiModelRunner
 import org.futo.voiceinput.shared.whisper.isBlankResult
-import java.nio.FloatBuffer
-import java.nio.ShortBuffer
-import kotlin.math.min
 import kotlin.math.pow
+import kotlin.math.roundToInt
 import kotlin.math.sqrt
 
 private fun getRecordingDeviceKind(type: Int): String {
@@ -77,7 +81,13 @@ private fun getRecordingDeviceKind(type: Int): String {
 
 data class RecordingSettings(
     val preferBluetoothMic: Boolean,
-    val requestAudioFocus: Boolean
+    val requestAudioFocus: Boolean,
+
+    // Keep recording until finished, recognizing and reporting each utterance on its own
+    val continuousDictation: Boolean = false,
+
+    // In continuous dictation, keep the model loaded through long pauses between utterances
+    val keepModelLoaded: Boolean = true
 )
 
 data class AudioRecognizerSettings(
@@ -91,7 +101,7 @@ class ModelDoesNotExistException(val models: List<ModelLoader>) : Throwable()
 class AudioRecognizer(
     private val context: Context,
     private val lifecycleScope: LifecycleCoroutineScope,
-    modelManager: ModelManager,
+    private val modelManager: ModelManager,
     private val listener: AudioRecognizerListener,
     private val settings: AudioRecognizerSettings
 ) {
@@ -100,11 +110,24 @@ class AudioRecognizer(
 
     private val modelRunner = MultiModelRunner(modelManager)
 
-    private val floatSamples: FloatBuffer = FloatBuffer.allocate(16000 * 30)
+    // Everything recorded, shared by the recording loop's readers and the model
+    private val audio = AudioRingBuffer(FRAME_SIZE, RING_CAPACITY_FRAMES)
+
+    // Not continuous dictation only: the whole recording, read by the model once it's finished
+    private var modelReader: AudioRingBuffer.Reader? = null
     private var recorderJob: Job? = null
     private var modelJob: Job? = null
     private var loadModelJob: Job? = null
 
+    private val continuous = settings.recordingConfiguration.continuousDictation
+
+    // Continuous dictation only: the utterances waiting to be recognized, and a signal for each
+    private val segments by lazy { SpeechSegmentBuffer(SEGMENT_BUFFER_SAMPLES) }
+    private var segmentSignal: Channel<Unit>? = null
+    private var segmentJob: Job? = null
+    private var speechActive = false
+    private var segmentsOverrunning = false
+
     private var focusRequest: AudioFocusRequest? = null
 
     private var communicationDevice = "unknown"
@@ -214,6 +237,12 @@ class AudioRecognizer(
         recorder = null
 
         modelJob?.cancel()
+        segmentJob?.cancel()
+        segmentSignal?.close()
+        segmentSignal = null
+        if (continuous) segments.clear()
+        speechActive = false
+        segmentsOverrunning = false
         isRecording = false
 
         modelRunner.cancelAll()
@@ -289,6 +318,12 @@ class AudioRecognizer(
         modelRunner.preload(settings.modelRunConfiguration)
     }
 
+    // The model can't fit anything recorded once the buffer is this full, finish instead
+    private fun isRunningOutOfSpace(): Boolean {
+        val reader = modelReader ?: return false
+        return reader.available + FRAMES_PER_READ >= audio.capacityFrames - 1
+    }
+
     private suspend fun recordingJob(recorder: AudioRecord, vad: VadModel) {
         var hasTalked = false
         var anyNoiseAtAll = false
@@ -302,11 +337,54 @@ class AudioRecognizer(
         }
         var isMicBlocked = false
 
-        val vadSampleBuffer = ShortBuffer.allocate(480)
+        // Each consumer of the recording reads the ring at its own pace
+        val vadReader = audio.newReader()
+        val levelReader = audio.newReader()
+        val gateReader = if (continuous) audio.newReader() else null
+
+        val vadSamples = ShortArray(480)
+        var vadPosition = 0
         var numConsecutiveNonSpeech = 0
         var numConsecutiveSpeech = 0
 
+        val vadConsumer = AudioFrameConsumer { _, frame, offset, length ->
+            for (i in 0 until length) {
+                vadSamples[vadPosition + i] = (frame[offset + i] * Short.MAX_VALUE).roundToInt().toShort()
+            }
+            vadPosition += length
+
+            if (vadPosition == vadSamples.size) {
+                vadPosition = 0
+
+                // Quiet frames can't be speech, skip running the VAD on them
+                val isSpeech = !(continuous && isQuiet(vadSamples)) && vad.isSpeech(vadSamples)
+                if (!isSpeech) {
+                    numConsecutiveNonSpeech++
+                    numConsecutiveSpeech = 0
+                } else {
+                    numConsecutiveNonSpeech = 0
+                    numConsecutiveSpeech++
+                }
+            }
+        }
+
+        var sumOfSquares = 0.0
+        var levelSamples = 0
+        val levelConsumer = AudioFrameConsumer { _, frame, offset, length ->
+            for (i in offset until offset + length) {
+                sumOfSquares += frame[i] * frame[i]
+            }
+            levelSamples += length
+        }
+
+        var isSpeech = false
+        var isSilent = false
+        val gateConsumer = AudioFrameConsumer { _, frame, offset, length ->
+            gateSpeech(frame, offset, length, isSpeech, isSilent)
+        }
+
         val samples = ShortArray(1600)
+        val recordingStart = audio.writtenFrames
 
         while (isRecording) {
             yield()
@@ -314,9 +392,8 @@ class AudioRecognizer(
             if (nRead <= 0) break
             yield()
 
-            val isRunningOutOfSpace = floatSamples.remaining() < nRead.coerceAtLeast(1600)
             val hasNotTalkedRecently = hasTalked && (numConsecutiveNonSpeech > 66)
-            if (isRunningOutOfSpace || hasNotTalkedRecently) {
+            if (!continuous && (isRunningOutOfSpace() || hasNotTalkedRecently)) {
                 yield()
                 withContext(Dispatchers.Main) {
                     finish()
@@ -324,45 +401,45 @@ class AudioRecognizer(
                 return
             }
 
-            // Run VAD
-            var remainingSamples = nRead
-            var offset = 0
-            while (remainingSamples > 0) {
-                if (!vadSampleBuffer.hasRemaining()) {
-                    val isSpeech = vad.isSpeech(vadSampleBuffer.array())
-                    vadSampleBuffer.clear()
-                    vadSampleBuffer.rewind()
-
-                    if (!isSpeech) {
-                        numConsecutiveNonSpeech++
-                        numConsecutiveSpeech = 0
-                    } else {
-                        numConsecutiveNonSpeech = 0
-                        numConsecutiveSpeech++
-                    }
-                }
+            audio.write(samples, 0, nRead)
 
-                val samplesToRead = min(min(remainingSamples, 480), vadSampleBuffer.remaining())
-                for (i in 0 until samplesToRead) {
-                    vadSampleBuffer.put(
-                        samples[offset]
-                    )
-                    offset += 1
-                    remainingSamples -= 1
-                }
+            // Skip ahead as much as possible, in case we are behind (taking more than
+            // 100ms to process 100ms)
+            while (!isRunningOutOfSpace()) {
+                yield()
+                val nRead2 = recorder.read(
+                    samples, 0, 1600, AudioRecord.READ_NON_BLOCKING
+                )
+                if (nRead2 <= 0) break
+                audio.write(samples, 0, nRead2)
             }
 
-            floatSamples.put(samples.sliceArray(0 until nRead).map { it.toFloat() / Short.MAX_VALUE.toFloat() }.toFloatArray())
+            // Run VAD, only on the latest audio if it has fallen behind
+            vadReader.skipTo(audio.writtenFrames - MAX_VAD_BACKLOG_FRAMES)
+            vadReader.read(consumer = vadConsumer)
+
+            val recordedSamples = (audio.writtenFrames - recordingStart) * audio.frameSize
 
             // Don't set hasTalked if the start sound may still be playing, otherwise on some
             // devices the rms just explodes and `hasTalked` is always true
-            val startSoundPassed = (floatSamples.position() > 16000 * 0.6)
+            val startSoundPassed = (recordedSamples > 16000 * 0.6)
             if (!startSoundPassed) {
                 numConsecutiveSpeech = 0
                 numConsecutiveNonSpeech = 0
             }
 
-            val rms = sqrt(samples.sumOf { (it.toFloat() / Short.MAX_VALUE.toFloat()).pow(2).toDouble() } / samples.size).toFloat()
+            if (gateReader != null) {
+                isSpeech = numConsecutiveSpeech > 2
+                isSilent = numConsecutiveNonSpeech > SEGMENT_END_SILENCE_FRAMES
+                gateReader.read(consumer = gateConsumer)
+            }
+
+            // The level is of the last read
+            sumOfSquares = 0.0
+            levelSamples = 0
+            levelReader.skipTo(audio.writtenFrames - FRAMES_PER_READ)
+            levelReader.read(consumer = levelConsumer)
+            val rms = sqrt(sumOfSquares / levelSamples.coerceAtLeast(1)).toFloat()
 
             if (startSoundPassed && ((rms > 0.01) || (numConsecutiveSpeech > 8))) {
                 hasTalked = true
@@ -374,14 +451,14 @@ class AudioRecognizer(
             }
 
             // Check if mic is blocked
-            val blockCheckTimePassed = (floatSamples.position() > 2 * 16000) // two seconds
+            val blockCheckTimePassed = (recordedSamples > 2 * 16000) // two seconds
             if (!anyNoiseAtAll && canMicBeBlocked && blockCheckTimePassed) {
                 isMicBlocked = true
             }
 
             val magnitude = (1.0f - 0.1f.pow(24.0f * rms))
 
-            val state = if (hasTalked) {
+            val state = if (if (continuous) speechActive else hasTalked) {
                 MagnitudeState.TALKING
             } else if (isMicBlocked) {
                 MagnitudeState.MIC_MAY_BE_BLOCKED
@@ -393,29 +470,126 @@ class AudioRecognizer(
             withContext(Dispatchers.Main) {
                 listener.updateMagnitude(magnitude, state)
             }
+        }
+        println("isRecording loop exited")
+
+        if (vadReader.skippedFrames > 0) {
+            Log.w(TAG, "VAD fell behind, skipped ${vadReader.skippedFrames} frames")
+        }
+        if (gateReader != null && gateReader.overrunFrames > 0) {
+            Log.w(TAG, "Continuous dictation lost ${gateReader.overrunFrames} frames in ${gateReader.overruns} overruns")
+        }
+    }
+
+    private fun isQuiet(frame: ShortArray): Boolean {
+        var sumOfSquares = 0L
+        for (sample in frame) {
+            sumOfSquares += sample * sample
+        }
+        return sumOfSquares < QUIET_FRAME_MEAN_SQUARE * frame.size
+    }
+
+    // Continuous dictation: keeps the audio of each utterance, with a little from before it
+    // started, and queues it for recognition once it's followed by enough silence or grows too
+    // long for one pass of the model. Silence between utterances is dropped.
+    private fun gateSpeech(samples: FloatArray, offset: Int, count: Int, isSpeech: Boolean, isSilent: Boolean) {
+        val written = segments.append(samples, offset, count)
+        val overrun = written < count
+        if (overrun && !segmentsOverrunning) {
+            // Once per overrun, every chunk is cut short until recognition catches up
+            Log.w(TAG, "Recognition is falling behind, dropping audio until it catches up")
+        }
+        segmentsOverrunning = overrun
+
+        if (!speechActive) {
+            if (!isSpeech) {
+                segments.trimOpenSegment(PRE_ROLL_SAMPLES)
+                return
+            }
+
+            speechActive = true
+            if (!settings.recordingConfiguration.keepModelLoaded) {
+                // The model may have been released during the pause, load it while the user talks
+                lifecycleScope.launch(Dispatchers.Default) { preloadModels() }
+            }
+        }
+
+        if (isSilent || overrun || segments.openSegmentLength >= MAX_SEGMENT_SAMPLES) {
+            if (segments.closeSegment()) {
+                segmentSignal?.trySend(Unit)
+            }
+            speechActive = !isSilent && !overrun
+        }
+    }
+
+    private val segmentCallback: ModelInferenceCallback = object : ModelInferenceCallback {
+        // The recording UI stays up while utterances are recognized in the background
+        override fun updateStatus(state: InferenceState) {}
+
+        override fun languageDetected(language: Language) {
+            listener.languageDetected(language)
+        }
+
+        override fun partialResult(string: String) {
+            if(isBlankResult(string)) return
+            listener.partialResult(string)
+        }
+    }
+
+    private suspend fun recognizeSegments(signal: Channel<Unit>) {
+        val keepModelLoaded = settings.recordingConfiguration.keepModelLoaded
+        var modelMayBeLoaded = true
+
+        while (true) {
+            val received = if (keepModelLoaded || !modelMayBeLoaded) {
+                signal.receiveCatching()
+            } else {
+                withTimeoutOrNull(MODEL_IDLE_TIMEOUT_MS) { signal.receiveCatching() }
+            }
+
+            if (received == null) {
+                // Nothing was said for a while, free the model until the next utterance
+                modelManager.cleanUp()
+                modelMayBeLoaded = false
+                continue
+            }
 
-            // Skip ahead as much as possible, in case we are behind (taking more than
-            // 100ms to process 100ms)
             while (true) {
+                val samples = segments.takeSegment() ?: break
+                modelMayBeLoaded = true
+
                 yield()
-                val nRead2 = recorder.read(
-                    samples, 0, 1600, AudioRecord.READ_NON_BLOCKING
-                )
-                if (nRead2 > 0) {
-                    if (floatSamples.remaining() < nRead2) {
-                        yield()
-                        withContext(Dispatchers.Main) {
-                            finish()
-                        }
-                        break
-                    }
-                    floatSamples.put(samples.sliceArray(0 until nRead2).map { it.toFloat() / Short.MAX_VALUE.toFloat() }.toFloatArray())
-                } else {
-                    break
+                val outputText = try {
+                    modelRunner.run(
+                        samples,
+                        settings.modelRunConfiguration,
+                        settings.decodingConfiguration,
+                        segmentCallback
+                    ).trim()
+                } catch (e: InferenceCancelledException) {
+                    yield()
+                    return
+                }
+
+                if (isBlankResult(outputText)) continue
+
+                yield()
+                withContext(Dispatchers.Main) {
+                    listener.segmentFinished(outputText)
                 }
             }
+
+            if (received.isClosed) break
+        }
+
+        if (segments.overrunSamples > 0) {
+            Log.w(TAG, "Continuous dictation dropped ${segments.overrunSamples} samples")
+        }
+
+        yield()
+        withContext(Dispatchers.Main) {
+            listener.finished("")
         }
-        println("isRecording loop exited")
     }
 
     private fun createVad(): VadModel {
@@ -472,6 +646,10 @@ class AudioRecognizer(
     }
 
     private fun startRecording() {
+        if (!continuous) {
+            modelReader = modelReader ?: audio.newReader()
+        }
+
         val device = try {
             createRecorderAndJob(settings.recordingConfiguration.preferBluetoothMic)
         } catch (e: SecurityException) {
@@ -490,6 +668,16 @@ class AudioRecognizer(
                 preloadModels()
             }
         }
+
+        if (continuous) {
+            val signal = Channel<Unit>(Channel.UNLIMITED)
+            segmentSignal = signal
+            segmentJob = lifecycleScope.launch {
+                withContext(Dispatchers.Default) {
+                    recognizeSegments(signal)
+                }
+            }
+        }
     }
 
     private val runnerCallback: ModelInferenceCallback = object : ModelInferenceCallback {
@@ -515,7 +703,15 @@ class AudioRecognizer(
             }
         }
 
-        val floatArray = floatSamples.array().sliceArray(0 until floatSamples.position())
+        // The recording loop may still be writing what it read before it was cancelled, so
+        // wait for it to stop before reading the whole recording
+        recorderJob?.join()
+
+        val reader = modelReader ?: return
+        val floatArray = reader.readAll()
+        if (reader.overrunFrames > 0) {
+            Log.w(TAG, "Lost ${reader.overrunFrames} frames of the recording")
+        }
 
         yield()
         val outputText = try {
@@ -556,10 +752,46 @@ class AudioRecognizer(
 
         listener.processing()
 
+        if (continuous) {
+            val recordingJob = recorderJob
+            modelJob = lifecycleScope.launch {
+                // Queue the utterance in progress, the recognizer finishes once it's done with it
+                recordingJob?.join()
+                if (speechActive) {
+                    segments.closeSegment()
+                } else {
+                    segments.trimOpenSegment(0)
+                }
+                speechActive = false
+                segmentSignal?.close()
+            }
+            return
+        }
+
         modelJob = lifecycleScope.launch {
             withContext(Dispatchers.Default) {
                 runModel()
             }
         }
     }
-}
\ No newline at end of file
+
+    companion object {
+        private const val TAG = "AudioRecognizer"
+
+        // Recording, in frames of 10ms. The ring holds 30 seconds, as much as the model takes
+        private const val FRAME_SIZE = 160
+        private const val FRAMES_PER_READ = 1600 / FRAME_SIZE
+        private const val RING_CAPACITY_FRAMES = 16000 * 30 / FRAME_SIZE + 1
+        private const val MAX_VAD_BACKLOG_FRAMES = FRAMES_PER_READ
+
+        // Continuous dictation
+        private const val SEGMENT_BUFFER_SAMPLES = 16000 * 60
+        private const val MAX_SEGMENT_SAMPLES = 16000 * 28
+        private const val PRE_ROLL_SAMPLES = 16000 * 3 / 10
+        private const val SEGMENT_END_SILENCE_FRAMES = 26 // of 30ms
+        private const val MODEL_IDLE_TIMEOUT_MS = 30_000L
+
+        // About -50 dBFS
+        private const val QUIET_FRAME_MEAN_SQUARE = 100L * 100L
+    }
+}
@@ -43,4 +43,8 @@ val MULTILINGUAL_MODELS: List<ModelLoader> = listOf(
         ggmlFile = "small_acft_q8_0.bin",
         checksum = "15ef255465a6dc582ecf1ec651a4618c7ee2c18c05570bbe46493d248d465ac4"
     ),
-)
\ No newline at end of file
+)
+
+fun getDownloadChecksum(file: String): String? {
+    return (ENGLISH_MODELS + MULTILINGUAL_MODELS).firstNotNullOfOrNull { it.getDownloadChecksum(file) }
+}
@@ -53,10 +53,19 @@ interface RecognizerViewListener {
 
     fun finished(result: String)
 
+    // Continuous dictation only, the text of an utterance is final while recording goes on.
+    // Partial results after this are for the next utterance
+    fun segmentFinished(result: String) {}
+
     fun partialResult(result: String)
 
     // Return true if a permission modal was shown, otherwise return false
     fun requestPermission(onGranted: () -> Unit, onRejected: () -> Unit): Boolean
+
+    // Recording has ended and inference is about to start
+    fun processing() {}
+
+    fun decodingStatus(status: InferenceState) {}
 }
 
 class RecognizerView(
@@ -133,6 +142,10 @@ class RecognizerView(
             listener.finished(result)
         }
 
+        override fun segmentFinished(result: String) {
+            listener.segmentFinished(result)
+        }
+
         override fun languageDetected(language: Language) {
             // TODO
         }
@@ -147,6 +160,8 @@ class RecognizerView(
 
 
         override fun decodingStatus(status: InferenceState) {
+            listener.decodingStatus(status)
+
             val text = context.getString(
                 when (settings.shouldShowVerboseFeedback) {
                     true -> VerboseAnnotations[status]!!
@@ -192,6 +207,8 @@ class RecognizerView(
         }
 
         override fun processing() {
+            listener.processing()
+
             loadingCircleText.value = context.getString(R.string.processing)
             currentViewState.value = CurrentView.LoadingCircle
         }
@@ -11,6 +11,8 @@ val inferenceContext = newSingleThreadContext("whisper-ggml-inference")
 
 enum class DecodingMode(val value: Int) {
     Greedy(0),
+    BeamSearch2(2),
+    BeamSearch3(3),
     BeamSearch5(5)
 }
 
@@ -9,6 +9,9 @@ enum class MagnitudeState {
 interface AudioRecognizerListener {
     fun cancelled()
     fun finished(result: String)
+
+    // Continuous dictation only, an utterance was recognized while recording goes on
+    fun segmentFinished(result: String)
     fun languageDetected(language: Language)
     fun partialResult(result: String)
     fun decodingStatus(status: InferenceState)
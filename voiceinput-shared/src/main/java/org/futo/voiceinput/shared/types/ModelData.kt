@@ -36,9 +36,15 @@ interface ModelLoader {
     @get:StringRes
     val name: Int
 
+    // Identifies the model across runs, for statistics kept about it
+    val key: String
+
     fun exists(context: Context): Boolean
     fun getRequiredDownloadList(context: Context): List<String>
 
+    // SHA-256 of a file from getRequiredDownloadList, if it is known
+    fun getDownloadChecksum(file: String): String? = null
+
     fun loadGGML(context: Context): WhisperGGML
 }
 
@@ -46,6 +52,9 @@ internal class ModelBuiltInAsset(
     override val name: Int,
     val ggmlFile: String
 ) : ModelLoader {
+    override val key: String
+        get() = "asset:$ggmlFile"
+
     override fun exists(context: Context): Boolean {
         return true
     }
@@ -81,6 +90,9 @@ internal class ModelDownloadable(
     val ggmlFile: String,
     val checksum: String
 ) : ModelLoader {
+    override val key: String
+        get() = "downloaded:$ggmlFile"
+
     override fun exists(context: Context): Boolean {
         return getRequiredDownloadList(context).isEmpty()
     }
@@ -91,16 +103,23 @@ internal class ModelDownloadable(
         }
     }
 
+    override fun getDownloadChecksum(file: String): String? {
+        return if(file == ggmlFile) checksum else null
+    }
+
     override fun loadGGML(context: Context): WhisperGGML {
         val file = context.tryOpenDownloadedModel(ggmlFile)
         return WhisperGGML(file)
     }
 }
 
-public class ModelFileFile(
+public data class ModelFileFile(
     override val name: Int,
     val file: File,
 ) : ModelLoader {
+    override val key: String
+        get() = "file:${file.absolutePath}"
+
     override fun exists(context: Context): Boolean {
         return file.exists()
     }
@@ -0,0 +1,129 @@
+package org.futo.voiceinput.shared.util
+
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.min
+
+fun interface AudioFrameConsumer {
+    // The frame is samples[offset until offset + length], in place in the ring. It is only valid
+    // until the call returns, and may have been overwritten if the reader reports an overrun
+    fun onFrame(sequence: Long, samples: FloatArray, offset: Int, length: Int)
+}
+
+/**
+ * A ring of fixed-size PCM frames written by a single producer, the recorder, and read by any
+ * number of readers, such as voice activity detection, the level meter and the recognizer. Each
+ * reader has its own position, so it reads at its own pace, and gets frames in place without
+ * copies. Neither side ever locks or waits: the producer overwrites the oldest frames, and a reader
+ * that falls more than the capacity behind skips the frames it lost and counts them as overrun.
+ *
+ * Frames are numbered by a sequence that starts at 0 and never wraps. The producer publishes a
+ * frame by advancing the written sequence once all of it is in place, so a reader that sees the
+ * sequence also sees the samples.
+ */
+class AudioRingBuffer(val frameSize: Int, val capacityFrames: Int) {
+    private val samples = FloatArray(frameSize * capacityFrames)
+
+    // Frames before this are published
+    private val written = AtomicLong(0L)
+
+    // Samples of the next frame already written, only touched by the producer
+    private var partialFrameSamples = 0
+
+    val writtenFrames: Long
+        get() = written.get()
+
+    private fun slotOffset(sequence: Long): Int = (sequence % capacityFrames).toInt() * frameSize
+
+    /** Writes 16-bit PCM, converted to floats in [-1, 1]. Only called by the producer. */
+    fun write(pcm: ShortArray, offset: Int = 0, length: Int = pcm.size - offset) {
+        var position = offset
+        val end = offset + length
+        while (position < end) {
+            val sequence = written.get()
+            val slot = slotOffset(sequence) + partialFrameSamples
+            val count = min(end - position, frameSize - partialFrameSamples)
+            for (i in 0 until count) {
+                samples[slot + i] = pcm[position + i].toFloat() / Short.MAX_VALUE.toFloat()
+            }
+
+            position += count
+            partialFrameSamples += count
+            if (partialFrameSamples == frameSize) {
+                partialFrameSamples = 0
+                written.set(sequence + 1)
+            }
+        }
+    }
+
+    /** Returns a reader that starts at the next frame to be written. */
+    fun newReader(): Reader = Reader(written.get())
+
+    inner class Reader internal constructor(startSequence: Long) {
+        // The next frame to read
+        var sequence: Long = startSequence
+            private set
+
+        // Frames lost because the producer overwrote them before they were read, and how many
+        // times that happened
+        var overrunFrames = 0L
+            private set
+        var overruns = 0
+            private set
+
+        // Frames passed over on purpose with skipTo
+        var skippedFrames = 0L
+            private set
+
+        val available: Int
+            get() = min(written.get() - sequence, capacityFrames - 1L).toInt()
+
+        private fun lose(frames: Long) {
+            if (frames <= 0) return
+            overrunFrames += frames
+            overruns += 1
+            sequence += frames
+        }
+
+        /** Reads up to maxFrames frames, and returns how many were read. */
+        fun read(maxFrames: Int = Int.MAX_VALUE, consumer: AudioFrameConsumer): Int {
+            // The oldest frame's slot is the one the producer is writing the next frame into
+            lose(written.get() + 1 - capacityFrames - sequence)
+
+            val end = min(written.get(), sequence + maxFrames)
+            var read = 0
+            while (sequence < end) {
+                consumer.onFrame(sequence, samples, slotOffset(sequence), frameSize)
+
+                // The producer may have started on this slot again while it was being read
+                if (written.get() + 1 - capacityFrames > sequence) {
+                    lose(written.get() + 1 - capacityFrames - sequence)
+                    continue
+                }
+
+                sequence++
+                read++
+            }
+
+            return read
+        }
+
+        /** Copies every available frame into a new array, which is what the model takes. */
+        fun readAll(): FloatArray {
+            val out = FloatArray(available * frameSize)
+            var position = 0
+            read(out.size / frameSize) { _, samples, offset, length ->
+                System.arraycopy(samples, offset, out, position, length)
+                position += length
+            }
+            return if (position == out.size) out else out.copyOf(position)
+        }
+
+        /** Passes over frames without reading them, up to the latest one written. */
+        fun skipTo(target: Long) {
+            val skipTo = min(target, written.get())
+            if (skipTo <= sequence) return
+            skippedFrames += skipTo - sequence
+            sequence = skipTo
+        }
+    }
+}
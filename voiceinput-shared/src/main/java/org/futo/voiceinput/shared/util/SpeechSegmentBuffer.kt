@@ -0,0 +1,98 @@
+package org.futo.voiceinput.shared.util
+
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * A fixed-size ring of audio that holds the speech segments waiting to be recognized, so that a
+ * dictation session uses the same memory however long it runs.
+ *
+ * The recorder appends audio to the open segment and closes it at the end of an utterance, which
+ * queues it; the recognizer takes queued segments in order. Between utterances the open segment
+ * is trimmed to a short pre-roll, so that the start of the next one is not cut off. Appending to
+ * a full ring writes nothing and counts the samples as overrun.
+ */
+class SpeechSegmentBuffer(val capacity: Int) {
+    private class Segment(val start: Long, val length: Int)
+
+    private val ring = FloatArray(capacity)
+    private val queued = ArrayDeque<Segment>()
+
+    // Positions count samples since the start, and index the ring modulo capacity
+    private var writePosition = 0L
+    private var openSegmentStart = 0L
+
+    var overrunSamples = 0L
+        @Synchronized get
+        private set
+
+    val openSegmentLength: Int
+        @Synchronized get() = (writePosition - openSegmentStart).toInt()
+
+    val queuedSegments: Int
+        @Synchronized get() = queued.size
+
+    private fun oldestNeededPosition(): Long = queued.firstOrNull()?.start ?: openSegmentStart
+
+    /**
+     * Appends audio to the open segment. Returns how many samples were written, which is less
+     * than length if the ring is full.
+     */
+    @Synchronized
+    fun append(samples: FloatArray, offset: Int = 0, length: Int = samples.size - offset): Int {
+        val free = capacity - (writePosition - oldestNeededPosition()).toInt()
+        val count = min(length, free)
+        overrunSamples += length - count
+
+        var written = 0
+        while (written < count) {
+            val index = ((writePosition + written) % capacity).toInt()
+            val chunk = min(count - written, capacity - index)
+            System.arraycopy(samples, offset + written, ring, index, chunk)
+            written += chunk
+        }
+        writePosition += count
+
+        return count
+    }
+
+    /** Drops all but the last maxLength samples of the open segment. */
+    @Synchronized
+    fun trimOpenSegment(maxLength: Int) {
+        openSegmentStart = max(openSegmentStart, writePosition - maxLength)
+    }
+
+    /** Queues the open segment, if it has any audio, and starts a new one. */
+    @Synchronized
+    fun closeSegment(): Boolean {
+        val length = (writePosition - openSegmentStart).toInt()
+        openSegmentStart = writePosition
+        if (length == 0) return false
+
+        queued.addLast(Segment(writePosition - length, length))
+        return true
+    }
+
+    /** Removes the oldest queued segment and returns its audio, or null if none is queued. */
+    @Synchronized
+    fun takeSegment(): FloatArray? {
+        val segment = queued.removeFirstOrNull() ?: return null
+        val out = FloatArray(segment.length)
+
+        var read = 0
+        while (read < segment.length) {
+            val index = ((segment.start + read) % capacity).toInt()
+            val chunk = min(segment.length - read, capacity - index)
+            System.arraycopy(ring, index, out, read, chunk)
+            read += chunk
+        }
+
+        return out
+    }
+
+    @Synchronized
+    fun clear() {
+        queued.clear()
+        openSegmentStart = writePosition
+    }
+}
@@ -0,0 +1,258 @@
+package org.futo.voiceinput.shared.util
+
+import org.futo.pocketfft.PocketFFT
+import kotlin.math.log10
+import kotlin.math.max
+import kotlin.math.min
+
+fun interface MelFrameListener {
+    // logMel holds the log10 mel energies of the frame and is reused for the next one
+    fun onMelFrame(index: Int, logMel: FloatArray)
+}
+
+/**
+ * A mel filter bank stored as the range of frequency bins each filter covers and their weights.
+ * Each Slaney filter only overlaps its two neighbours, so this skips the zeros that make up
+ * almost all of the dense matrix.
+ */
+class SparseMelFilterBank(
+    numFrequencyBins: Int,
+    val numMelFilters: Int,
+    minFrequency: Double,
+    maxFrequency: Double,
+    samplingRate: Int
+) {
+    private val firstBins = IntArray(numMelFilters)
+    private val weights: Array<FloatArray>
+
+    init {
+        // [bin][filter]
+        val dense = melFilterBank(
+            numFrequencyBins = numFrequencyBins,
+            numMelFilters = numMelFilters,
+            minFrequency = minFrequency,
+            maxFrequency = maxFrequency,
+            samplingRate = samplingRate,
+            norm = Normalization.Slaney,
+            melScale = MelScale.Slaney
+        )
+
+        weights = Array(numMelFilters) { filter ->
+            var first = 0
+            while (first < numFrequencyBins && dense[first][filter] == 0.0) first++
+            var last = numFrequencyBins - 1
+            while (last >= first && dense[last][filter] == 0.0) last--
+
+            firstBins[filter] = first
+            FloatArray(max(0, last - first + 1)) { dense[first + it][filter].toFloat() }
+        }
+    }
+
+    // Number of weights actually stored, against numMelFilters * numFrequencyBins dense ones
+    val nonZeroWeights: Int
+        get() = weights.sumOf { it.size }
+
+    fun apply(power: FloatArray, out: FloatArray) {
+        for (filter in 0 until numMelFilters) {
+            val filterWeights = weights[filter]
+            val firstBin = firstBins[filter]
+            var sum = 0.0f
+            for (i in filterWeights.indices) {
+                sum += filterWeights[i] * power[firstBin + i]
+            }
+            out[filter] = sum
+        }
+    }
+}
+
+/**
+ * Computes the log-mel spectrogram of audio one hop at a time as it arrives, the same way as
+ * [AudioFeatureExtraction.melSpectrogram] does for a whole recording. A frame is computed as soon
+ * as the window centered on it is complete, and passed to the listener. Nothing is allocated per
+ * frame.
+ *
+ * Nothing in the app consumes these features yet: WhisperGGML computes its own from the samples
+ * and voice activity detection works on the samples too. This is the front end for a recognizer
+ * or detector that takes mel frames while recording.
+ *
+ * Whisper's normalization depends on the loudest frame of the whole recording, so it is applied
+ * by [toWhisperInput] once recording is [finish]ed.
+ */
+class StreamingMelSpectrogram @JvmOverloads constructor(
+    val featureSize: Int = 80,
+    val samplingRate: Int = 16000,
+    val hopLength: Int = 160,
+    val nFFT: Int = 400,
+    val maxFrames: Int = 3000,
+    private val listener: MelFrameListener? = null
+) {
+    private val numFrequencyBins = 1 + nFFT / 2
+    private val filterBank = SparseMelFilterBank(numFrequencyBins, featureSize, 0.0, 8000.0, samplingRate)
+    private val window = createHannWindow(nFFT)
+
+    // PocketFFT only works on doubles
+    private val fft = PocketFFT(nFFT)
+    private val fftFrame = DoubleArray(nFFT)
+    private val fftOutput = DoubleArray(nFFT + 1)
+    private val power = FloatArray(numFrequencyBins)
+    private val frame = FloatArray(featureSize)
+
+    // The first samples, which the first frames reflect around the start
+    private val head = FloatArray(nFFT / 2 + 1)
+
+    // The samples that frames still to come need, history[0] is sample historyStart. Frames only
+    // wait for half a window past their center, so this never holds more than a window and a hop
+    private val history = FloatArray(nFFT * 4)
+    private var historyStart = 0L
+    private var historyLength = 0
+
+    private val padding = FloatArray(hopLength)
+
+    var totalSamples = 0L
+        private set
+    var isFinished = false
+        private set
+
+    // Frame-major, frameCount frames of featureSize log10 mel energies
+    val logMel = FloatArray(maxFrames * featureSize)
+    var frameCount = 0
+        private set
+    private var maxLogMel = Float.NEGATIVE_INFINITY
+
+    fun reset() {
+        historyStart = 0
+        historyLength = 0
+        totalSamples = 0
+        isFinished = false
+        frameCount = 0
+        maxLogMel = Float.NEGATIVE_INFINITY
+    }
+
+    /**
+     * Adds samples in [-1, 1] and computes every frame they complete. Returns how many frames
+     * were computed.
+     */
+    @JvmOverloads
+    fun accept(samples: FloatArray, offset: Int = 0, length: Int = samples.size - offset): Int {
+        check(!isFinished) { "accept called after finish" }
+
+        val framesBefore = frameCount
+        var position = offset
+        val end = offset + length
+        while (position < end && frameCount < maxFrames) {
+            compactHistory()
+
+            val count = min(end - position, history.size - historyLength)
+            System.arraycopy(samples, position, history, historyLength, count)
+
+            if (totalSamples < head.size) {
+                val headCount = min(count.toLong(), head.size - totalSamples).toInt()
+                System.arraycopy(samples, position, head, totalSamples.toInt(), headCount)
+            }
+
+            historyLength += count
+            totalSamples += count
+            position += count
+
+            // Also needs the sample right past the window, for the reflection at the start
+            while (frameCount < maxFrames
+                && frameCount.toLong() * hopLength + nFFT / 2 < totalSamples) {
+                computeFrame(frameCount)
+            }
+        }
+
+        return frameCount - framesBefore
+    }
+
+    /**
+     * Computes the remaining frames at the end of the recording. Like the batch extractor, this
+     * pads the audio with a hop of silence, to at least a window, and reflects it around its end.
+     */
+    fun finish(): Int {
+        if (isFinished) return 0
+
+        val framesBefore = frameCount
+        padding.fill(0.0f)
+        var remaining = max(hopLength.toLong(), nFFT - totalSamples)
+        while (remaining > 0 && frameCount < maxFrames) {
+            val count = min(remaining, padding.size.toLong()).toInt()
+            accept(padding, 0, count)
+            remaining -= count
+        }
+        isFinished = true
+
+        val lastFrame = totalSamples / hopLength
+        while (frameCount < maxFrames && frameCount <= lastFrame) {
+            computeFrame(frameCount)
+        }
+
+        return frameCount - framesBefore
+    }
+
+    // Drops the samples before the window of the next frame
+    private fun compactHistory() {
+        val firstNeeded = max(0L, frameCount.toLong() * hopLength - nFFT / 2)
+        val drop = (firstNeeded - historyStart).toInt().coerceIn(0, historyLength)
+        if (drop == 0) return
+
+        System.arraycopy(history, drop, history, 0, historyLength - drop)
+        historyLength -= drop
+        historyStart += drop
+    }
+
+    private fun sampleAt(position: Long): Float {
+        var p = position
+        if (p < 0) p = -p
+        if (isFinished && p >= totalSamples) p = 2 * (totalSamples - 1) - p
+
+        return if (p < historyStart) head[p.toInt()] else history[(p - historyStart).toInt()]
+    }
+
+    private fun computeFrame(index: Int) {
+        val start = index.toLong() * hopLength - nFFT / 2
+        for (i in 0 until nFFT) {
+            fftFrame[i] = sampleAt(start + i) * window[i]
+        }
+
+        fft.forward(fftFrame, fftOutput)
+
+        for (i in 0 until numFrequencyBins) {
+            val real = fftOutput[i * 2]
+            val imaginary = if (i == numFrequencyBins - 1) 0.0 else fftOutput[i * 2 + 1]
+            power[i] = (real * real + imaginary * imaginary).toFloat()
+        }
+
+        filterBank.apply(power, frame)
+
+        for (i in 0 until featureSize) {
+            val value = log10(max(1e-10f, frame[i]))
+            frame[i] = value
+            if (value > maxLogMel) maxLogMel = value
+        }
+
+        System.arraycopy(frame, 0, logMel, index * featureSize, featureSize)
+        frameCount = index + 1
+
+        listener?.onMelFrame(index, frame)
+    }
+
+    /**
+     * Writes the spectrogram as Whisper takes it: featureSize rows of maxFrames frames, clamped
+     * to 8 below the loudest value and scaled. Frames past the end of the audio are silence.
+     */
+    @JvmOverloads
+    fun toWhisperInput(out: FloatArray = FloatArray(featureSize * maxFrames)): FloatArray {
+        val silence = log10(1e-10f)
+        val loudest = if (frameCount < maxFrames) max(maxLogMel, silence) else maxLogMel
+        val floor = loudest - 8.0f
+
+        for (mel in 0 until featureSize) {
+            for (frameIndex in 0 until maxFrames) {
+                val value = if (frameIndex < frameCount) logMel[frameIndex * featureSize + mel] else silence
+                out[mel * maxFrames + frameIndex] = (max(value, floor) + 4.0f) / 4.0f
+            }
+        }
+
+        return out
+    }
+}
@@ -0,0 +1,349 @@
+package org.futo.voiceinput.shared.whisper
+
+import android.content.Context
+import android.util.Log
+import org.futo.voiceinput.shared.ggml.DecodingMode
+import org.json.JSONArray
+import org.json.JSONObject
+import java.io.File
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * The latency of the last inferences with one model and decoding mode, by clip duration. The
+ * encoder and decoder both grow with the length of the clip, so latency is predicted from a line
+ * fitted through the window. Old entries fall out, so predictions follow the device as it heats
+ * up or slows down.
+ */
+class LatencyHistory(val capacity: Int = 32) {
+    private val durations = FloatArray(capacity)
+    private val latencies = FloatArray(capacity)
+    private var next = 0
+
+    var size = 0
+        private set
+
+    fun add(durationSeconds: Float, latencyMs: Float) {
+        durations[next] = durationSeconds
+        latencies[next] = latencyMs
+        next = (next + 1) % capacity
+        size = min(size + 1, capacity)
+    }
+
+    /** Returns the predicted latency in milliseconds, or null with no history. */
+    fun predict(durationSeconds: Float): Float? {
+        if (size == 0) return null
+
+        var meanDuration = 0.0f
+        var meanLatency = 0.0f
+        for (i in 0 until size) {
+            meanDuration += durations[i]
+            meanLatency += latencies[i]
+        }
+        meanDuration /= size
+        meanLatency /= size
+
+        var covariance = 0.0f
+        var variance = 0.0f
+        for (i in 0 until size) {
+            val d = durations[i] - meanDuration
+            covariance += d * (latencies[i] - meanLatency)
+            variance += d * d
+        }
+
+        // Without clips of different lengths there is no slope to fit, assume a constant real
+        // time factor instead
+        if (size < 3 || variance / size < MIN_DURATION_VARIANCE) {
+            return meanLatency * durationSeconds / max(meanDuration, 0.1f)
+        }
+
+        val slope = max(0.0f, covariance / variance)
+        return max(0.0f, meanLatency + slope * (durationSeconds - meanDuration))
+    }
+
+    fun toJson(): JSONArray = JSONArray().also { array ->
+        // Oldest first, so that reading it back keeps the order
+        for (i in 0 until size) {
+            val index = (next - size + i + capacity) % capacity
+            array.put(JSONArray().put(durations[index].toDouble()).put(latencies[index].toDouble()))
+        }
+    }
+
+    fun readJson(array: JSONArray) {
+        for (i in 0 until array.length()) {
+            val entry = array.getJSONArray(i)
+            add(entry.getDouble(0).toFloat(), entry.getDouble(1).toFloat())
+        }
+    }
+
+    companion object {
+        // In seconds squared
+        private const val MIN_DURATION_VARIANCE = 0.25f
+    }
+}
+
+/** Totals kept for each model and decoding mode, for tuning the policy. */
+class DecodingModeStatistics {
+    val history = LatencyHistory()
+
+    var count = 0L
+    var totalLatencyMs = 0.0
+    var totalAudioSeconds = 0.0
+    var totalCharacters = 0L
+
+    // Results that came out blank, and inferences that had to switch to a language model
+    var blankResults = 0L
+    var languageSwitches = 0L
+
+    // Inferences since this mode was last used, while it was the next wider one than the mode used
+    var passedOver = 0
+
+    // The calibration clip, which isn't part of the history, 0 if there was none
+    var calibrationSeconds = 0.0f
+    var calibrationLatencyMs = 0.0f
+
+    val realTimeFactor: Double
+        get() = if (totalAudioSeconds > 0.0) totalLatencyMs / 1000.0 / totalAudioSeconds else 0.0
+
+    fun toJson(): JSONObject = JSONObject()
+        .put("history", history.toJson())
+        .put("count", count)
+        .put("totalLatencyMs", totalLatencyMs)
+        .put("totalAudioSeconds", totalAudioSeconds)
+        .put("totalCharacters", totalCharacters)
+        .put("blankResults", blankResults)
+        .put("languageSwitches", languageSwitches)
+        .put("passedOver", passedOver)
+        .put("calibrationSeconds", calibrationSeconds.toDouble())
+        .put("calibrationLatencyMs", calibrationLatencyMs.toDouble())
+        .put("realTimeFactor", realTimeFactor)
+
+    fun readJson(json: JSONObject) {
+        history.readJson(json.optJSONArray("history") ?: JSONArray())
+        count = json.optLong("count")
+        totalLatencyMs = json.optDouble("totalLatencyMs", 0.0)
+        totalAudioSeconds = json.optDouble("totalAudioSeconds", 0.0)
+        totalCharacters = json.optLong("totalCharacters")
+        blankResults = json.optLong("blankResults")
+        languageSwitches = json.optLong("languageSwitches")
+        passedOver = json.optInt("passedOver")
+        calibrationSeconds = json.optDouble("calibrationSeconds", 0.0).toFloat()
+        calibrationLatencyMs = json.optDouble("calibrationLatencyMs", 0.0).toFloat()
+    }
+}
+
+/**
+ * Picks the decoding mode for each inference: the widest beam search predicted to finish within
+ * the latency budget, or greedy decoding if none is. Predictions come from the latency of past
+ * inferences with the same model, kept on disk along with quality and latency totals for each
+ * mode. A model without any is calibrated once with a short clip when it is first preloaded.
+ *
+ * A mode predicted to be too slow is retried now and then, so that its history can recover once
+ * the device is faster again, e.g. after it has cooled down.
+ */
+object AdaptiveDecoding {
+    private const val TAG = "AdaptiveDecoding"
+    private const val STATISTICS_FILE_NAME = "whisper-decoding-statistics.json"
+    private const val STATISTICS_VERSION = 1
+
+    const val CALIBRATION_SAMPLES = 16000 * 3
+
+    // Inferences with a mode before its own history is trusted over the other modes'
+    private const val MIN_OWN_HISTORY = 3
+
+    // Inferences after which the next wider mode than the one picked is tried again
+    const val RETRY_INTERVAL = 16
+
+    // Rough cost of each mode against greedy decoding, to predict modes that haven't been used
+    private val relativeCost = mapOf(
+        DecodingMode.Greedy to 1.0f,
+        DecodingMode.BeamSearch2 to 1.5f,
+        DecodingMode.BeamSearch3 to 2.0f,
+        DecodingMode.BeamSearch5 to 3.0f
+    )
+
+    // Widest first
+    private val beamSearchModes = listOf(
+        DecodingMode.BeamSearch5,
+        DecodingMode.BeamSearch3,
+        DecodingMode.BeamSearch2
+    )
+
+    private var statistics: HashMap<String, HashMap<DecodingMode, DecodingModeStatistics>>? = null
+
+    private fun getStatisticsFile(context: Context): File =
+        File(context.filesDir, STATISTICS_FILE_NAME)
+
+    private fun getStatistics(context: Context): HashMap<String, HashMap<DecodingMode, DecodingModeStatistics>> {
+        statistics?.let { return it }
+
+        val loaded = hashMapOf<String, HashMap<DecodingMode, DecodingModeStatistics>>()
+        val file = getStatisticsFile(context)
+        if (file.exists()) {
+            try {
+                val json = JSONObject(file.readText())
+                if (json.optInt("version") == STATISTICS_VERSION) {
+                    val models = json.getJSONObject("models")
+                    for (modelKey in models.keys()) {
+                        val modes = models.getJSONObject(modelKey)
+                        val modelStatistics = hashMapOf<DecodingMode, DecodingModeStatistics>()
+                        for (modeName in modes.keys()) {
+                            val mode = DecodingMode.values().firstOrNull { it.name == modeName }
+                                ?: continue
+                            modelStatistics[mode] = DecodingModeStatistics().apply {
+                                readJson(modes.getJSONObject(modeName))
+                            }
+                        }
+                        loaded[modelKey] = modelStatistics
+                    }
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to read decoding statistics, starting over", e)
+                loaded.clear()
+            }
+        }
+
+        statistics = loaded
+        return loaded
+    }
+
+    private fun save(context: Context) {
+        val models = JSONObject()
+        getStatistics(context).forEach { (modelKey, modes) ->
+            models.put(modelKey, JSONObject().also { json ->
+                modes.forEach { (mode, modeStatistics) -> json.put(mode.name, modeStatistics.toJson()) }
+            })
+        }
+
+        try {
+            val file = getStatisticsFile(context)
+            val tmpFile = File(file.parentFile, file.name + ".tmp")
+            tmpFile.writeText(JSONObject().put("version", STATISTICS_VERSION).put("models", models).toString())
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete()
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to save decoding statistics", e)
+        }
+    }
+
+    private fun predictLatency(
+        modes: Map<DecodingMode, DecodingModeStatistics>,
+        mode: DecodingMode,
+        durationSeconds: Float
+    ): Float? {
+        val own = modes[mode]?.history
+        if (own != null && own.size >= MIN_OWN_HISTORY) {
+            return own.predict(durationSeconds)
+        }
+
+        // Scale the prediction of the mode with the most history by their relative cost
+        val (reference, referenceStatistics) = modes.entries
+            .maxByOrNull { it.value.history.size }
+            ?.takeIf { it.value.history.size > 0 }
+            ?.toPair() ?: return own?.predict(durationSeconds)
+
+        val referencePrediction = referenceStatistics.history.predict(durationSeconds) ?: return null
+        return referencePrediction * relativeCost[mode]!! / relativeCost[reference]!!
+    }
+
+    @Synchronized
+    fun needsCalibration(context: Context, modelKey: String): Boolean {
+        return getStatistics(context)[modelKey].isNullOrEmpty()
+    }
+
+    /**
+     * Returns the mode to decode a clip of the given length with. Without any history for the
+     * model yet, this is beam search with 5 beams as before, unless calibration showed that even
+     * greedy decoding is too slow.
+     */
+    @Synchronized
+    fun chooseMode(context: Context, modelKey: String, durationSeconds: Float, latencyBudgetMs: Long): DecodingMode {
+        val modes = getStatistics(context)[modelKey]
+        if (modes.isNullOrEmpty() || modes.values.all { it.history.size == 0 }) {
+            // The calibration clip is near silence, which is decoded much faster than speech, so
+            // it only shows when the device is too slow for any beam search. The first inferences
+            // then give a history to predict from
+            val calibration = modes?.values?.firstOrNull { it.calibrationSeconds > 0.0f }
+            return if (calibration != null && durationSeconds >= calibration.calibrationSeconds
+                && calibration.calibrationLatencyMs > latencyBudgetMs) {
+                DecodingMode.Greedy
+            } else {
+                DecodingMode.BeamSearch5
+            }
+        }
+
+        val chosen = beamSearchModes.firstOrNull { mode ->
+            val predicted = predictLatency(modes, mode, durationSeconds)
+            predicted != null && predicted <= latencyBudgetMs
+        } ?: DecodingMode.Greedy
+
+        // The history of a mode that is too slow only changes when it is used, so try the next
+        // wider one once in a while instead of never using it again
+        val wider = (listOf(DecodingMode.Greedy) + beamSearchModes.asReversed())
+            .let { it.getOrNull(it.indexOf(chosen) + 1) }
+        val widerStatistics = wider?.let { modes[it] }
+        if (widerStatistics != null && widerStatistics.history.size >= MIN_OWN_HISTORY) {
+            widerStatistics.passedOver += 1
+            if (widerStatistics.passedOver >= RETRY_INTERVAL) {
+                widerStatistics.passedOver = 0
+                return wider
+            }
+        }
+
+        return chosen
+    }
+
+    /**
+     * Records how long the calibration clip took with greedy decoding. It is kept apart from the
+     * history, see [chooseMode].
+     */
+    @Synchronized
+    fun recordCalibration(context: Context, modelKey: String, durationSeconds: Float, latencyMs: Float) {
+        getStatistics(context)
+            .getOrPut(modelKey) { hashMapOf() }
+            .getOrPut(DecodingMode.Greedy) { DecodingModeStatistics() }
+            .apply {
+                calibrationSeconds = durationSeconds
+                calibrationLatencyMs = latencyMs
+            }
+
+        save(context)
+    }
+
+    @Synchronized
+    fun record(
+        context: Context,
+        modelKey: String,
+        mode: DecodingMode,
+        durationSeconds: Float,
+        latencyMs: Float,
+        result: String,
+        switchedLanguage: Boolean = false
+    ) {
+        val modeStatistics = getStatistics(context)
+            .getOrPut(modelKey) { hashMapOf() }
+            .getOrPut(mode) { DecodingModeStatistics() }
+
+        // Switching languages runs a second model, which would skew the latency of this one
+        if (!switchedLanguage) {
+            modeStatistics.history.add(durationSeconds, latencyMs)
+        }
+
+        modeStatistics.passedOver = 0
+        modeStatistics.count += 1
+        modeStatistics.totalLatencyMs += latencyMs
+        modeStatistics.totalAudioSeconds += durationSeconds
+        modeStatistics.totalCharacters += result.length
+        if (isBlankResult(result)) modeStatistics.blankResults += 1
+        if (switchedLanguage) modeStatistics.languageSwitches += 1
+
+        save(context)
+    }
+
+    @Synchronized
+    fun reset(context: Context) {
+        statistics = hashMapOf()
+        getStatisticsFile(context).delete()
+    }
+}
@@ -1,16 +1,20 @@
 package org.futo.voiceinput.shared.whisper
 
-import org.futo.voiceinput.shared.util.AudioFeatureExtraction
+import org.futo.voiceinput.shared.util.StreamingMelSpectrogram
 
-private val extractor = AudioFeatureExtraction(
-    chunkLength = 30,
+private val extractor = StreamingMelSpectrogram(
     featureSize = 80,
+    samplingRate = 16000,
     hopLength = 160,
     nFFT = 400,
-    paddingValue = 0.0,
-    samplingRate = 16000
+    maxFrames = 3000
 )
 
-fun extractMelSpectrogramForWhisper(samples: DoubleArray): FloatArray {
-    return extractor.melSpectrogram(samples)
-}
\ No newline at end of file
+// Not called at the moment, WhisperGGML takes the samples and computes the features natively
+@Synchronized
+fun extractMelSpectrogramForWhisper(samples: FloatArray): FloatArray {
+    extractor.reset()
+    extractor.accept(samples)
+    extractor.finish()
+    return extractor.toWhisperInput()
+}
@@ -5,30 +5,53 @@ import org.futo.voiceinput.shared.ggml.WhisperGGML
 import org.futo.voiceinput.shared.types.ModelLoader
 
 
+/**
+ * Loads models once and keeps them until [cleanUp]. Models may be obtained from several threads,
+ * for example by a background preload and by a recognizer started while it is still running, in
+ * which case the second caller waits for the first load rather than loading the model again.
+ */
 class ModelManager(
     val context: Context
 ) {
     private val loadedModels: HashMap<ModelLoader, WhisperGGML> = hashMapOf()
+    private val loadLocks: HashMap<ModelLoader, Any> = hashMapOf()
 
     fun obtainModel(model: ModelLoader): WhisperGGML {
-        if (!loadedModels.contains(model)) {
-            loadedModels[model] = model.loadGGML(context)
+        val loadLock = synchronized(loadedModels) {
+            loadedModels[model]?.let { return it }
+            loadLocks.getOrPut(model) { Any() }
         }
 
-        return loadedModels[model]!!
+        synchronized(loadLock) {
+            synchronized(loadedModels) {
+                loadedModels[model]?.let { return it }
+            }
+
+            val loaded = model.loadGGML(context)
+            synchronized(loadedModels) {
+                loadedModels[model] = loaded
+            }
+            return loaded
+        }
+    }
+
+    fun isLoaded(model: ModelLoader): Boolean {
+        return synchronized(loadedModels) { loadedModels.containsKey(model) }
     }
 
     fun cancelAll() {
-        loadedModels.forEach {
-            it.value.cancel()
+        synchronized(loadedModels) { loadedModels.values.toList() }.forEach {
+            it.cancel()
         }
     }
 
     suspend fun cleanUp() {
-        for (model in loadedModels.values) {
-            model.close()
+        val models = synchronized(loadedModels) {
+            loadedModels.values.toList().also { loadedModels.clear() }
         }
 
-        loadedModels.clear()
+        for (model in models) {
+            model.close()
+        }
     }
 }
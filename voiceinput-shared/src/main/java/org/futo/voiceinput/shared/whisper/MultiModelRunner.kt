@@ -7,12 +7,14 @@ import kotlinx.coroutines.launch
 import org.futo.voiceinput.shared.ggml.BailLanguageException
 import org.futo.voiceinput.shared.ggml.DecodingMode
 import org.futo.voiceinput.shared.ggml.InferenceCancelledException
+import org.futo.voiceinput.shared.ggml.WhisperGGML
 import org.futo.voiceinput.shared.types.InferenceState
 import org.futo.voiceinput.shared.types.Language
 import org.futo.voiceinput.shared.types.ModelInferenceCallback
 import org.futo.voiceinput.shared.types.ModelLoader
 import org.futo.voiceinput.shared.types.getLanguageFromWhisperString
 import org.futo.voiceinput.shared.types.toWhisperString
+import java.util.Random
 
 
 data class MultiModelRunConfiguration(
@@ -23,7 +25,10 @@ data class MultiModelRunConfiguration(
 data class DecodingConfiguration(
     val glossary: List<String>,
     val languages: Set<Language>,
-    val suppressSymbols: Boolean
+    val suppressSymbols: Boolean,
+
+    // How long decoding should take at most, see AdaptiveDecoding
+    val latencyBudgetMs: Long = 1500L
 )
 
 class MultiModelRunner(
@@ -33,7 +38,8 @@ class MultiModelRunner(
         val jobs = mutableListOf<Job>()
 
         jobs.add(launch(Dispatchers.Default) {
-            modelManager.obtainModel(runConfiguration.primaryModel)
+            val model = modelManager.obtainModel(runConfiguration.primaryModel)
+            calibrate(runConfiguration.primaryModel, model)
         })
 
         if (runConfiguration.languageSpecificModels.count() < 2) {
@@ -47,6 +53,67 @@ class MultiModelRunner(
         jobs.forEach { it.join() }
     }
 
+    // Times a short clip with a model that has never been used. The clip is near silence, so this
+    // is a lower bound of how fast the model runs on this device, see AdaptiveDecoding.chooseMode
+    private suspend fun calibrate(loader: ModelLoader, model: WhisperGGML) {
+        val context = modelManager.context
+        if (!AdaptiveDecoding.needsCalibration(context, loader.key)) return
+
+        val random = Random(0)
+        val samples = FloatArray(AdaptiveDecoding.CALIBRATION_SAMPLES) {
+            (0.01 * random.nextGaussian()).toFloat()
+        }
+
+        try {
+            val startTime = System.nanoTime()
+            model.infer(
+                samples = samples,
+                prompt = "",
+                languages = arrayOf("en"),
+                bailLanguages = arrayOf(),
+                decodingMode = DecodingMode.Greedy,
+                suppressNonSpeechTokens = true,
+                partialResultCallback = { }
+            )
+
+            AdaptiveDecoding.recordCalibration(
+                context, loader.key,
+                durationSeconds = samples.size / SAMPLE_RATE,
+                latencyMs = (System.nanoTime() - startTime) / 1e6f
+            )
+        } catch (e: InferenceCancelledException) {
+            // Calibrate next time
+        }
+    }
+
+    private fun chooseDecodingMode(
+        loader: ModelLoader,
+        samples: FloatArray,
+        decodingConfiguration: DecodingConfiguration
+    ): DecodingMode = AdaptiveDecoding.chooseMode(
+        modelManager.context,
+        loader.key,
+        samples.size / SAMPLE_RATE,
+        decodingConfiguration.latencyBudgetMs
+    )
+
+    private fun recordDecoding(
+        loader: ModelLoader,
+        mode: DecodingMode,
+        samples: FloatArray,
+        startTime: Long,
+        result: String,
+        switchedLanguage: Boolean = false
+    ) = AdaptiveDecoding.record(
+        modelManager.context,
+        loader.key,
+        mode,
+        durationSeconds = samples.size / SAMPLE_RATE,
+        latencyMs = (System.nanoTime() - startTime) / 1e6f,
+        result = result,
+        switchedLanguage = switchedLanguage
+    )
+
     @Throws(InferenceCancelledException::class)
     suspend fun run(
         samples: FloatArray,
@@ -66,6 +133,9 @@ class MultiModelRunner(
             ""
         }
 
+        val primaryDecodingMode = chooseDecodingMode(runConfiguration.primaryModel, samples, decodingConfiguration)
+        val startTime = System.nanoTime()
+
         val result = try {
             callback.updateStatus(InferenceState.Encoding)
             primaryModel.infer(
@@ -73,30 +143,37 @@ class MultiModelRunner(
                 prompt = glossary,
                 languages = allowedLanguages,
                 bailLanguages = bailLanguages,
-                decodingMode = DecodingMode.BeamSearch5,
+                decodingMode = primaryDecodingMode,
                 suppressNonSpeechTokens = true,
                 partialResultCallback = {
                     callback.partialResult(it)
                 }
-            )
+            ).also {
+                recordDecoding(runConfiguration.primaryModel, primaryDecodingMode, samples, startTime, it)
+            }
         } catch(e: BailLanguageException) {
             callback.updateStatus(InferenceState.SwitchingModel)
             val language = getLanguageFromWhisperString(e.language)
 
             val specificModelLoader = runConfiguration.languageSpecificModels[language]!!
             val specificModel = modelManager.obtainModel(specificModelLoader)
+            val specificDecodingMode = chooseDecodingMode(specificModelLoader, samples, decodingConfiguration)
+            val specificStartTime = System.nanoTime()
 
             specificModel.infer(
                 samples = samples,
                 prompt = glossary,
                 languages = arrayOf(e.language),
                 bailLanguages = arrayOf(),
-                decodingMode = DecodingMode.BeamSearch5,
+                decodingMode = specificDecodingMode,
                 suppressNonSpeechTokens = true,
                 partialResultCallback = {
                     callback.partialResult(it)
                 }
-            )
+            ).also {
+                recordDecoding(runConfiguration.primaryModel, primaryDecodingMode, samples, startTime, it, switchedLanguage = true)
+                recordDecoding(specificModelLoader, specificDecodingMode, samples, specificStartTime, it)
+            }
         }
 
         return@coroutineScope result
@@ -105,4 +182,8 @@ class MultiModelRunner(
     fun cancelAll() {
         modelManager.cancelAll()
     }
+
+    companion object {
+        private const val SAMPLE_RATE = 16000.0f
+    }
 }
\ No newline at end of file